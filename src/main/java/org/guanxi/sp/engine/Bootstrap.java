@@ -16,6 +16,14 @@
 
 package org.guanxi.sp.engine;
 
+import org.guanxi.sp.engine.binding.InboundMessageDecoder;
+import org.guanxi.sp.engine.connection.BackChannelClient;
+import org.guanxi.sp.engine.security.ReplayCache;
+import org.guanxi.sp.engine.trust.TrustDecisionCache;
+import org.guanxi.sp.engine.trust.TrustMaterialIndex;
+import org.guanxi.sp.engine.guard.GuardRegistry;
+import org.guanxi.sp.engine.idp.IdPRegistry;
+import org.guanxi.sp.engine.session.EngineSessionStore;
 import org.guanxi.sp.engine.service.saml2.DiscoveryFeedManager;
 import org.springframework.web.context.ServletContextAware;
 import org.springframework.context.ApplicationListener;
@@ -65,6 +73,22 @@ public class Bootstrap implements ApplicationListener, ApplicationContextAware,
   private Scheduler scheduler = null;
   /** The SAML2 Discovery Service feed manager to use */
   private DiscoveryFeedManager saml2DiscoveryFeedManager = null;
+  /** The registry of Guards the Engine knows about */
+  private GuardRegistry guardRegistry = null;
+  /** The registry of IdPs the Engine knows about */
+  private IdPRegistry idpRegistry = null;
+  /** Holds the logins in progress */
+  private EngineSessionStore engineSessionStore = null;
+  /** Makes the back-channel connections to Guards and IdPs */
+  private BackChannelClient backChannelClient = null;
+  /** Decodes the SAML messages IdPs send via the browser */
+  private InboundMessageDecoder inboundMessageDecoder = null;
+  /** Remembers the SAML messages already accepted */
+  private ReplayCache replayCache = null;
+  /** Remembers the decisions the trust engines have made about IdP certificates */
+  private TrustDecisionCache trustDecisionCache = null;
+  /** The trust material decoded from the metadata */
+  private TrustMaterialIndex trustMaterialIndex = null;
 
   /**
    * Initialise the intercepter
@@ -119,6 +143,30 @@ public class Bootstrap implements ApplicationListener, ApplicationContextAware,
       // Inject the Discovery Service feed manager
       servletContext.setAttribute(Guanxi.CONTEXT_ATTR_ENGINE_DISCOVERY_FEED_MANAGER, saml2DiscoveryFeedManager);
 
+      // Inject the Guard registry
+      servletContext.setAttribute(Config.CONTEXT_ATTR_ENGINE_GUARD_REGISTRY, guardRegistry);
+
+      // Inject the IdP registry
+      servletContext.setAttribute(Config.CONTEXT_ATTR_ENGINE_IDP_REGISTRY, idpRegistry);
+
+      // Inject the store of logins in progress
+      servletContext.setAttribute(Config.CONTEXT_ATTR_ENGINE_SESSION_STORE, engineSessionStore);
+
+      // Inject the back-channel client
+      servletContext.setAttribute(Config.CONTEXT_ATTR_ENGINE_BACK_CHANNEL_CLIENT, backChannelClient);
+
+      // Inject the inbound SAML message decoder
+      servletContext.setAttribute(Config.CONTEXT_ATTR_ENGINE_INBOUND_MESSAGE_DECODER, inboundMessageDecoder);
+
+      // Inject the replay cache
+      servletContext.setAttribute(Config.CONTEXT_ATTR_ENGINE_REPLAY_CACHE, replayCache);
+
+      // Inject the trust decision cache
+      servletContext.setAttribute(Config.CONTEXT_ATTR_ENGINE_TRUST_DECISION_CACHE, trustDecisionCache);
+
+      // Inject the trust material index
+      servletContext.setAttribute(Config.CONTEXT_ATTR_ENGINE_TRUST_MATERIAL_INDEX, trustMaterialIndex);
+
       loadGuardMetadata(config.getGuardsMetadataDirectory());
       loadIdPMetadata(config.getIdPMetadataDirectory());
 
@@ -251,9 +299,8 @@ public class Bootstrap implements ApplicationListener, ApplicationContextAware,
         guardDocument = EntityDescriptorDocument.Factory.parse(currentGuardFile);
         guardDescriptor = guardDocument.getEntityDescriptor();
 
-        // Put the Guard's SAML2 EntityDescriptor in the context under the Guard's entityID
-        // TODO: This should probably be handled in a similar way to the IdP metadata
-        servletContext.setAttribute(guardDescriptor.getEntityID(), guardDescriptor);
+        // Resolve the Guard's native metadata and register it under the Guard's entityID
+        guardRegistry.register(guardDescriptor);
         loaded++;
       }
       catch ( Exception e ) {
@@ -302,6 +349,9 @@ public class Bootstrap implements ApplicationListener, ApplicationContextAware,
         Metadata metadataHandler = manager.createNewEntityHandler();
         metadataHandler.setPrivateData(idpDescriptor);
         manager.addMetadata(metadataHandler);
+        // Locally registered IdPs aren't part of a federation so they have no CAs
+        trustMaterialIndex.index(idpDescriptor, null);
+        idpRegistry.register(idpDescriptor);
       }
       catch ( Exception e ) {
         logger.error("Error while loading IdP metadata object : " + currentIdPFile.getAbsolutePath(), e);
@@ -408,4 +458,12 @@ public class Bootstrap implements ApplicationListener, ApplicationContextAware,
   public EntityFarm getEntityFarm() { return entityFarm; }
   public void setEntityFarm(EntityFarm entityFarm) { this.entityFarm = entityFarm; }
   public void setSaml2DiscoveryFeedManager(DiscoveryFeedManager saml2DiscoveryFeedManager) { this.saml2DiscoveryFeedManager = saml2DiscoveryFeedManager; }
+  public void setGuardRegistry(GuardRegistry guardRegistry) { this.guardRegistry = guardRegistry; }
+  public void setIdpRegistry(IdPRegistry idpRegistry) { this.idpRegistry = idpRegistry; }
+  public void setEngineSessionStore(EngineSessionStore engineSessionStore) { this.engineSessionStore = engineSessionStore; }
+  public void setBackChannelClient(BackChannelClient backChannelClient) { this.backChannelClient = backChannelClient; }
+  public void setInboundMessageDecoder(InboundMessageDecoder inboundMessageDecoder) { this.inboundMessageDecoder = inboundMessageDecoder; }
+  public void setReplayCache(ReplayCache replayCache) { this.replayCache = replayCache; }
+  public void setTrustDecisionCache(TrustDecisionCache trustDecisionCache) { this.trustDecisionCache = trustDecisionCache; }
+  public void setTrustMaterialIndex(TrustMaterialIndex trustMaterialIndex) { this.trustMaterialIndex = trustMaterialIndex; }
 }
@@ -32,6 +32,24 @@ public class Config implements ServletContextAware {
   public static final String REQUEST_ATTRIBUTE_IDP_NAME_IDENTIFIER = "REQUEST_ATTRIBUTE_IDP_NAME_IDENTIFIER";
   /** The request attribute that holds the IdP's metadata */
   public static final String REQUEST_ATTRIBUTE_IDP_METADATA = "REQUEST_ATTRIBUTE_IDP_METADATA";
+  /** The context attribute that holds the registry of Guards the Engine knows about */
+  public static final String CONTEXT_ATTR_ENGINE_GUARD_REGISTRY = "CONTEXT_ATTR_ENGINE_GUARD_REGISTRY";
+  /** The context attribute that holds the store of logins in progress */
+  public static final String CONTEXT_ATTR_ENGINE_SESSION_STORE = "CONTEXT_ATTR_ENGINE_SESSION_STORE";
+  /** The context attribute that holds the client for back-channel connections */
+  public static final String CONTEXT_ATTR_ENGINE_BACK_CHANNEL_CLIENT = "CONTEXT_ATTR_ENGINE_BACK_CHANNEL_CLIENT";
+  /** The context attribute that holds the decoder for SAML messages sent via the browser */
+  public static final String CONTEXT_ATTR_ENGINE_INBOUND_MESSAGE_DECODER = "CONTEXT_ATTR_ENGINE_INBOUND_MESSAGE_DECODER";
+  /** The context attribute that holds the IDs of the SAML messages already accepted */
+  public static final String CONTEXT_ATTR_ENGINE_REPLAY_CACHE = "CONTEXT_ATTR_ENGINE_REPLAY_CACHE";
+  /** The context attribute that holds the decisions the trust engines have made about IdP certificates */
+  public static final String CONTEXT_ATTR_ENGINE_TRUST_DECISION_CACHE = "CONTEXT_ATTR_ENGINE_TRUST_DECISION_CACHE";
+  /** The context attribute that holds the trust material decoded from the metadata */
+  public static final String CONTEXT_ATTR_ENGINE_TRUST_MATERIAL_INDEX = "CONTEXT_ATTR_ENGINE_TRUST_MATERIAL_INDEX";
+  /** The context attribute that holds the registry of IdPs the Engine knows about */
+  public static final String CONTEXT_ATTR_ENGINE_IDP_REGISTRY = "CONTEXT_ATTR_ENGINE_IDP_REGISTRY";
+  /** The prefix of the context attributes that hold the digests of the entities loaded from each metadata source */
+  public static final String CONTEXT_ATTR_ENGINE_METADATA_DIGESTS = "CONTEXT_ATTR_ENGINE_METADATA_DIGESTS_";
 
   private ServletContext servletContext = null;
   private String id = null;
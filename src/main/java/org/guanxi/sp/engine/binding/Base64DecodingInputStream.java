@@ -0,0 +1,138 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.engine.binding;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes base64 (RFC2045 alphabet) straight out of a String, a group of 4 characters
+ * at a time. Whitespace is ignored. Missing padding at the end is tolerated but
+ * anything other than whitespace after padding is an error.
+ */
+class Base64DecodingInputStream extends InputStream {
+  /** The value of each base64 character, or -1 */
+  private static final int[] DECODE = new int[128];
+  static {
+    for (int c=0; c < DECODE.length; c++) {
+      DECODE[c] = -1;
+    }
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    for (int c=0; c < alphabet.length(); c++) {
+      DECODE[alphabet.charAt(c)] = c;
+    }
+  }
+
+  /** The base64 we're decoding */
+  private String encoded = null;
+  /** Where we are in it */
+  private int position = 0;
+  /** The bytes from the last group of characters */
+  private byte[] decoded = new byte[3];
+  /** How many bytes are in decoded */
+  private int decodedLength = 0;
+  /** The next byte to return from decoded */
+  private int decodedPosition = 0;
+  /** Whether the end of the data has been reached */
+  private boolean finished = false;
+
+  Base64DecodingInputStream(String encoded) {
+    this.encoded = encoded;
+  }
+
+  public int read() throws IOException {
+    if ((decodedPosition == decodedLength) && !decodeGroup()) {
+      return -1;
+    }
+    return decoded[decodedPosition++] & 0xff;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    int n = 0;
+    while (n < len) {
+      if ((decodedPosition == decodedLength) && !decodeGroup()) {
+        break;
+      }
+      int available = Math.min(decodedLength - decodedPosition, len - n);
+      System.arraycopy(decoded, decodedPosition, b, off + n, available);
+      decodedPosition += available;
+      n += available;
+    }
+    return (n == 0) ? -1 : n;
+  }
+
+  /**
+   * Decodes the next group of 4 characters
+   *
+   * @return false if there's no more data
+   * @throws IOException if the base64 is invalid
+   */
+  private boolean decodeGroup() throws IOException {
+    if (finished) {
+      return false;
+    }
+
+    int bits = 0;
+    int chars = 0;
+    int padding = 0;
+    while ((chars + padding < 4) && (position < encoded.length())) {
+      char c = encoded.charAt(position++);
+      if (Character.isWhitespace(c)) {
+        continue;
+      }
+      if (c == '=') {
+        padding++;
+        continue;
+      }
+      if ((padding > 0) || (c >= DECODE.length) || (DECODE[c] == -1)) {
+        throw new IOException("Invalid base64 at position " + (position - 1));
+      }
+      bits = (bits << 6) | DECODE[c];
+      chars++;
+    }
+
+    if ((padding > 0) || (position >= encoded.length())) {
+      finished = true;
+    }
+    // Padding is only allowed at the very end
+    if (padding > 0) {
+      for (; position < encoded.length(); position++) {
+        if (!Character.isWhitespace(encoded.charAt(position))) {
+          throw new IOException("Data after base64 padding at position " + position);
+        }
+      }
+    }
+    if (chars == 0) {
+      return false;
+    }
+    if (chars == 1) {
+      throw new IOException("Truncated base64");
+    }
+
+    // Line the bits up as if there were 4 characters
+    bits <<= 6 * (4 - chars);
+    decodedLength = chars - 1;
+    decoded[0] = (byte)(bits >> 16);
+    decoded[1] = (byte)(bits >> 8);
+    decoded[2] = (byte)bits;
+    decodedPosition = 0;
+    return true;
+  }
+}
@@ -0,0 +1,70 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.engine.binding;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops reading a stream once it has produced a maximum number of bytes
+ */
+class BoundedInputStream extends InputStream {
+  /** The stream we're reading */
+  private InputStream in = null;
+  /** How many bytes the stream can produce */
+  private int maxSize;
+  /** How many bytes it has produced so far */
+  private long count = 0;
+  /** Counts the streams that were too large */
+  private AtomicLong rejections = null;
+
+  BoundedInputStream(InputStream in, int maxSize, AtomicLong rejections) {
+    this.in = in;
+    this.maxSize = maxSize;
+    this.rejections = rejections;
+  }
+
+  public int read() throws IOException {
+    int b = in.read();
+    if (b != -1) {
+      counted(1);
+    }
+    return b;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    // Read no more than one byte past the limit, which is enough to know it's been passed
+    int n = in.read(b, off, (int)Math.min(len, maxSize - count + 1));
+    if (n > 0) {
+      counted(n);
+    }
+    return n;
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+  private void counted(int n) throws MessageTooLargeException {
+    count += n;
+    if (count > maxSize) {
+      rejections.incrementAndGet();
+      throw new MessageTooLargeException(maxSize);
+    }
+  }
+}
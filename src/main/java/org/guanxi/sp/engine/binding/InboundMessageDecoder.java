@@ -0,0 +1,101 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.engine.binding;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes the SAML messages IdPs send via the browser. The base64 is decoded, and
+ * inflated for the Redirect binding, as the XML parser reads it so the message is
+ * never held as a String or byte array. Messages that decode to more than
+ * maxDecodedSize bytes are rejected, before any decoding if the encoded message is
+ * too long to possibly fit.
+ *
+ * Instances are thread safe.
+ */
+public class InboundMessageDecoder {
+  /** The maximum size, in bytes, of a decoded message */
+  private int maxDecodedSize = 1048576;
+  /** How many messages have been rejected for being too large */
+  private AtomicLong rejections = new AtomicLong();
+
+  /**
+   * Returns a stream of the decoded message. The caller must close it.
+   *
+   * @param encoded the base64 encoded message from the request
+   * @param deflated true if the message was deflated before being encoded, as it is for the Redirect binding
+   * @return the decoded message
+   * @throws IOException if there's no message or it's too large. Errors in the encoding, and
+   * messages that turn out to be too large, are reported when the stream is read.
+   */
+  public InputStream decode(String encoded, boolean deflated) throws IOException {
+    if (encoded == null) {
+      throw new IOException("No SAML message");
+    }
+
+    /* Every 4 base64 characters decode to 3 bytes. Allow for line breaks, which are
+     * usually every 76 characters, and for deflate, which can expand data slightly.
+     */
+    long maxEncodedLength = ((maxDecodedSize + 2L) / 3) * 4;
+    maxEncodedLength += maxEncodedLength / 38;
+    if (encoded.length() > maxEncodedLength) {
+      rejections.incrementAndGet();
+      throw new MessageTooLargeException(maxDecodedSize);
+    }
+
+    InputStream in = new Base64DecodingInputStream(encoded);
+    if (deflated) {
+      // Raw deflate can need an extra byte after the data to finish
+      in = new SequenceInputStream(in, new ByteArrayInputStream(new byte[1]));
+      in = new RawInflaterInputStream(in);
+    }
+    return new BoundedInputStream(in, maxDecodedSize, rejections);
+  }
+
+  /**
+   * @return the number of messages that have been rejected for being too large
+   */
+  public long getRejections() {
+    return rejections.get();
+  }
+
+  /**
+   * Inflates raw deflate data (RFC1951, no zlib wrapper) and frees the Inflater on close
+   */
+  private static class RawInflaterInputStream extends InflaterInputStream {
+    RawInflaterInputStream(InputStream in) {
+      super(in, new Inflater(true));
+    }
+
+    public void close() throws IOException {
+      try {
+        super.close();
+      }
+      finally {
+        inf.end();
+      }
+    }
+  }
+
+  public void setMaxDecodedSize(int maxDecodedSize) { this.maxDecodedSize = maxDecodedSize; }
+}
@@ -0,0 +1,30 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.engine.binding;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an inbound SAML message is larger than the Engine will accept
+ */
+public class MessageTooLargeException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  public MessageTooLargeException(int maxDecodedSize) {
+    super("SAML message is larger than the maximum of " + maxDecodedSize + " bytes");
+  }
+}
@@ -0,0 +1,62 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.connection;
+
+import javax.net.ssl.X509KeyManager;
+import java.net.Socket;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+/**
+ * Always presents the same client key, whatever the server asks for. Keystores can hold
+ * keys for more than one entity so we can't let the JSSE choose.
+ */
+class AliasKeyManager implements X509KeyManager {
+  private final X509KeyManager keyManager;
+  private final String alias;
+
+  AliasKeyManager(X509KeyManager keyManager, String alias) {
+    this.keyManager = keyManager;
+    this.alias = alias;
+  }
+
+  public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+    return alias;
+  }
+
+  public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+    return keyManager.chooseServerAlias(keyType, issuers, socket);
+  }
+
+  public String[] getClientAliases(String keyType, Principal[] issuers) {
+    return keyManager.getClientAliases(keyType, issuers);
+  }
+
+  public String[] getServerAliases(String keyType, Principal[] issuers) {
+    return keyManager.getServerAliases(keyType, issuers);
+  }
+
+  public X509Certificate[] getCertificateChain(String alias) {
+    return keyManager.getCertificateChain(alias);
+  }
+
+  public PrivateKey getPrivateKey(String alias) {
+    return keyManager.getPrivateKey(alias);
+  }
+}
@@ -0,0 +1,190 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.connection;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+
+import javax.net.ssl.*;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes the Engine's back-channel connections to Guards and Attribute Authorities.
+ *
+ * Every combination of client key and truststore gets one SSLSocketFactory, from the
+ * SSLContextCache, which is shared by all the connections that use it. That lets the
+ * JVM keep connections to the same destination alive between requests and resume TLS
+ * sessions instead of doing a full handshake each time. The number of connections to
+ * each destination is limited by maxConnectionsPerHost.
+ */
+public class BackChannelClient {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(BackChannelClient.class.getName());
+  /**
+   * A probing connection decides trust afterwards from the server certificate and metadata,
+   * so it doesn't check host names. Every other connection keeps the default verifier.
+   * This must be a single instance as the JVM only reuses a kept alive connection if the
+   * verifier is the same.
+   */
+  private static final HostnameVerifier PROBING_HOSTNAME_VERIFIER = new HostnameVerifier() {
+    public boolean verify(String hostname, SSLSession session) {
+      return true;
+    }
+  };
+  /** The maximum number of simultaneous connections to a host */
+  private int maxConnectionsPerHost = 20;
+  /** How long, in milliseconds, to wait for a free connection to a host */
+  private int acquireTimeout = 10000;
+  /** How long, in milliseconds, to wait for a connection to be made */
+  private int connectTimeout = 30000;
+  /** How long, in milliseconds, to wait for a response */
+  private int readTimeout = 60000;
+  /** Where we get the socket factories from */
+  private SSLContextCache sslContextCache = null;
+  /** Limits the number of connections to each host */
+  private ConcurrentHashMap<String, Semaphore> hostPermits = null;
+  /** How many connections have been opened */
+  private AtomicLong connections = null;
+  /** How many times we couldn't get a connection to a host within acquireTimeout */
+  private AtomicLong rejections = null;
+
+  public void init() {
+    hostPermits = new ConcurrentHashMap<String, Semaphore>();
+    connections = new AtomicLong();
+    rejections = new AtomicLong();
+  }
+
+  /**
+   * Opens a connection to an entity. The connection must be closed when it's finished with
+   * so it can be reused.
+   *
+   * @param url the URL of the entity
+   * @param alias the alias of the client key in the keystore
+   * @param keystore full path of the keystore that holds the client key
+   * @param keystorePassword the password for the keystore and the client key
+   * @param truststore full path of the truststore used to verify the entity
+   * @param truststorePassword the password for the truststore
+   * @param probing true to accept any server certificate so the caller can check it
+   * @return the connection
+   * @throws GuanxiException if the connection can't be opened
+   */
+  public BackChannelConnection openConnection(String url, String alias, String keystore, String keystorePassword,
+                                              String truststore, String truststorePassword,
+                                              boolean probing) throws GuanxiException {
+    URL entityURL = null;
+    try {
+      entityURL = new URL(url);
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+
+    String host = entityURL.getHost() + ":" + entityURL.getPort();
+    Semaphore permits = getHostPermits(host);
+    try {
+      if (!permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+        rejections.incrementAndGet();
+        logger.warn("No free connection to " + host + " after " + acquireTimeout + "ms");
+        throw new GuanxiException("Too many connections to " + entityURL.getHost());
+      }
+    }
+    catch(InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new GuanxiException(ie);
+    }
+
+    try {
+      HttpURLConnection connection = (HttpURLConnection)entityURL.openConnection();
+      connection.setConnectTimeout(connectTimeout);
+      connection.setReadTimeout(readTimeout);
+      if (connection instanceof HttpsURLConnection) {
+        HttpsURLConnection httpsConnection = (HttpsURLConnection)connection;
+        httpsConnection.setSSLSocketFactory(sslContextCache.getSocketFactory(alias, keystore, keystorePassword,
+                                                                             truststore, truststorePassword, probing));
+        if (probing) {
+          httpsConnection.setHostnameVerifier(PROBING_HOSTNAME_VERIFIER);
+        }
+      }
+      connections.incrementAndGet();
+      return new BackChannelConnection(connection, permits);
+    }
+    catch(GuanxiException ge) {
+      permits.release();
+      throw ge;
+    }
+    catch(Exception e) {
+      permits.release();
+      throw new GuanxiException(e);
+    }
+  }
+
+  /**
+   * Gets the connection limit for a host
+   *
+   * @param host the host and port
+   * @return the host's connection permits
+   */
+  private Semaphore getHostPermits(String host) {
+    Semaphore permits = hostPermits.get(host);
+    if (permits == null) {
+      Semaphore newPermits = new Semaphore(maxConnectionsPerHost, true);
+      permits = hostPermits.putIfAbsent(host, newPermits);
+      if (permits == null) {
+        permits = newPermits;
+      }
+    }
+    return permits;
+  }
+
+  // Metrics
+  public long getConnections() { return connections.get(); }
+  public long getRejections() { return rejections.get(); }
+  public long getHandshakes() { return sslContextCache.getHandshakes(); }
+  public long getResumedHandshakes() { return sslContextCache.getResumedHandshakes(); }
+  public long getSocketsCreated() { return sslContextCache.getSockets(); }
+
+  /**
+   * @param host the host and port, e.g. guard.example.org:443
+   * @return the number of connections to the host currently in use
+   */
+  public int getConnectionsInUse(String host) {
+    Semaphore permits = hostPermits.get(host);
+    return (permits == null) ? 0 : maxConnectionsPerHost - permits.availablePermits();
+  }
+
+  /**
+   * Lets the back-channel know that a keystore or truststore has changed
+   *
+   * @param file full path of the keystore or truststore
+   */
+  public void keyMaterialChanged(String file) {
+    sslContextCache.invalidate(file);
+  }
+
+  public void setSslContextCache(SSLContextCache sslContextCache) { this.sslContextCache = sslContextCache; }
+  public void setMaxConnectionsPerHost(int maxConnectionsPerHost) { this.maxConnectionsPerHost = maxConnectionsPerHost; }
+  public void setAcquireTimeout(int acquireTimeout) { this.acquireTimeout = acquireTimeout; }
+  public void setConnectTimeout(int connectTimeout) { this.connectTimeout = connectTimeout; }
+  public void setReadTimeout(int readTimeout) { this.readTimeout = readTimeout; }
+}
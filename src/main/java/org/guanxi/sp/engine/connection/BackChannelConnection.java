@@ -0,0 +1,133 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.connection;
+
+import org.guanxi.common.GuanxiException;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A back-channel connection opened by the BackChannelClient. It must be closed when it's
+ * finished with, which lets the JVM keep the underlying connection alive for the next
+ * request to the same destination.
+ */
+public class BackChannelConnection {
+  /** The underlying connection */
+  private HttpURLConnection connection = null;
+  /** The host's connection permits */
+  private Semaphore permits = null;
+  /** The response stream, if it's been opened */
+  private InputStream inputStream = null;
+  private boolean closed = false;
+
+  BackChannelConnection(HttpURLConnection connection, Semaphore permits) {
+    this.connection = connection;
+    this.permits = permits;
+  }
+
+  public void setDoOutput(boolean doOutput) {
+    connection.setDoOutput(doOutput);
+  }
+
+  public void setRequestProperty(String key, String value) {
+    connection.setRequestProperty(key, value);
+  }
+
+  public void connect() throws IOException {
+    connection.connect();
+  }
+
+  /**
+   * @return the server's certificate or null if the connection isn't secure
+   * @throws IOException if the connection hasn't been made
+   */
+  public X509Certificate getServerCertificate() throws IOException {
+    if (!(connection instanceof HttpsURLConnection)) return null;
+    Certificate[] certs = ((HttpsURLConnection)connection).getServerCertificates();
+    if ((certs == null) || (certs.length == 0) || (!(certs[0] instanceof X509Certificate))) return null;
+    return (X509Certificate)certs[0];
+  }
+
+  public OutputStream getOutputStream() throws IOException {
+    return connection.getOutputStream();
+  }
+
+  public InputStream getInputStream() throws IOException {
+    if (inputStream == null) {
+      inputStream = connection.getInputStream();
+    }
+    return inputStream;
+  }
+
+  /**
+   * Reads the whole response
+   *
+   * @return the response
+   * @throws GuanxiException if an error occurs
+   */
+  public String getContentAsString() throws GuanxiException {
+    try {
+      InputStream in = getInputStream();
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        content.write(buffer, 0, read);
+      }
+      return new String(content.toByteArray());
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+
+  /**
+   * Finishes with the connection. If the response has been read it's drained and closed
+   * so the connection can be reused, otherwise the connection is dropped.
+   */
+  public void close() {
+    if (closed) return;
+    closed = true;
+    try {
+      if (inputStream != null) {
+        byte[] buffer = new byte[1024];
+        while (inputStream.read(buffer) != -1) {
+          // Drain whatever the caller didn't read
+        }
+        inputStream.close();
+      }
+      else {
+        connection.disconnect();
+      }
+    }
+    catch(IOException ioe) {
+      connection.disconnect();
+    }
+    finally {
+      permits.release();
+    }
+  }
+}
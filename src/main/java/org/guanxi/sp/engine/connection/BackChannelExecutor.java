@@ -0,0 +1,157 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.connection;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the Engine's back-channel work, such as talking to Attribute Authorities and
+ * Guards after a Shibboleth login, on a bounded set of threads. Work is run on a fixed
+ * pool of named threads with a bounded queue or, if useVirtualThreads is set and the
+ * JVM supports them, on virtual threads with the same overall limit. Work that doesn't
+ * fit is rejected with a RejectedExecutionException.
+ */
+public class BackChannelExecutor {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(BackChannelExecutor.class.getName());
+  /** Prefix for the names of our threads */
+  private static final String THREAD_NAME_PREFIX = "GuanxiBackChannel-";
+  /** How many threads run the work */
+  private int poolSize = 50;
+  /** How much work can wait for a thread */
+  private int queueSize = 500;
+  /** Whether to use virtual threads if the JVM supports them */
+  private boolean useVirtualThreads = false;
+  /** The pool when using platform threads */
+  private ThreadPoolExecutor pool = null;
+  /** Creates virtual threads, if we're using them */
+  private ThreadFactory virtualThreadFactory = null;
+  /** Limits the work in progress when using virtual threads */
+  private Semaphore virtualPermits = null;
+  /** How much work is running on virtual threads */
+  private AtomicInteger virtualActive = null;
+  /** How much work has been rejected */
+  private AtomicLong rejections = null;
+
+  public void init() {
+    rejections = new AtomicLong();
+
+    if (useVirtualThreads) {
+      virtualThreadFactory = createVirtualThreadFactory();
+      if (virtualThreadFactory != null) {
+        virtualPermits = new Semaphore(poolSize + queueSize);
+        virtualActive = new AtomicInteger();
+        logger.info("Back-channel work will run on virtual threads");
+        return;
+      }
+      logger.info("Virtual threads aren't supported by this JVM, using a thread pool");
+    }
+
+    final AtomicInteger threadCount = new AtomicInteger();
+    pool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                                  new ArrayBlockingQueue<Runnable>(queueSize),
+                                  new ThreadFactory() {
+                                    public Thread newThread(Runnable runnable) {
+                                      Thread thread = new Thread(runnable, THREAD_NAME_PREFIX + threadCount.incrementAndGet());
+                                      thread.setDaemon(true);
+                                      return thread;
+                                    }
+                                  });
+    pool.allowCoreThreadTimeOut(true);
+  }
+
+  public void destroy() {
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Runs some back-channel work
+   *
+   * @param work the work to run
+   * @throws RejectedExecutionException if there's no room for the work
+   */
+  public void execute(final Runnable work) {
+    if (virtualThreadFactory != null) {
+      if (!virtualPermits.tryAcquire()) {
+        reject();
+      }
+      virtualActive.incrementAndGet();
+      virtualThreadFactory.newThread(new Runnable() {
+        public void run() {
+          try {
+            work.run();
+          }
+          finally {
+            virtualActive.decrementAndGet();
+            virtualPermits.release();
+          }
+        }
+      }).start();
+    }
+    else {
+      try {
+        pool.execute(work);
+      }
+      catch(RejectedExecutionException ree) {
+        reject();
+      }
+    }
+  }
+
+  private void reject() {
+    rejections.incrementAndGet();
+    logger.warn("Back-channel executor is saturated, rejecting work");
+    throw new RejectedExecutionException("Back-channel executor is saturated");
+  }
+
+  /**
+   * Uses Thread.ofVirtual(), if the JVM has it, to make a factory for named virtual threads.
+   * We're built for JVMs that don't have virtual threads so it has to be done by reflection.
+   *
+   * @return the factory or null if the JVM doesn't support virtual threads
+   */
+  private ThreadFactory createVirtualThreadFactory() {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Method name = builderClass.getMethod("name", String.class, long.class);
+      builder = name.invoke(builder, THREAD_NAME_PREFIX, 1L);
+      return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+    }
+    catch(Exception e) {
+      return null;
+    }
+  }
+
+  // Metrics
+  public int getQueueDepth() { return (pool == null) ? 0 : pool.getQueue().size(); }
+  public int getActiveCount() { return (pool == null) ? virtualActive.get() : pool.getActiveCount(); }
+  public long getRejections() { return rejections.get(); }
+  public boolean isUsingVirtualThreads() { return virtualThreadFactory != null; }
+
+  public void setPoolSize(int poolSize) { this.poolSize = poolSize; }
+  public void setQueueSize(int queueSize) { this.queueSize = queueSize; }
+  public void setUseVirtualThreads(boolean useVirtualThreads) { this.useVirtualThreads = useVirtualThreads; }
+}
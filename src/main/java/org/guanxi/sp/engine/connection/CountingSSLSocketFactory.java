@@ -0,0 +1,76 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.connection;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Wraps an SSLSocketFactory so the handshakes on the sockets it creates can be counted
+ */
+class CountingSSLSocketFactory extends SSLSocketFactory {
+  private final SSLSocketFactory factory;
+  private final HandshakeCounter counter;
+
+  CountingSSLSocketFactory(SSLSocketFactory factory, HandshakeCounter counter) {
+    this.factory = factory;
+    this.counter = counter;
+  }
+
+  public String[] getDefaultCipherSuites() {
+    return factory.getDefaultCipherSuites();
+  }
+
+  public String[] getSupportedCipherSuites() {
+    return factory.getSupportedCipherSuites();
+  }
+
+  public Socket createSocket() throws IOException {
+    return watch(factory.createSocket());
+  }
+
+  public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+    return watch(factory.createSocket(socket, host, port, autoClose));
+  }
+
+  public Socket createSocket(String host, int port) throws IOException {
+    return watch(factory.createSocket(host, port));
+  }
+
+  public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+    return watch(factory.createSocket(host, port, localHost, localPort));
+  }
+
+  public Socket createSocket(InetAddress host, int port) throws IOException {
+    return watch(factory.createSocket(host, port));
+  }
+
+  public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+    return watch(factory.createSocket(address, port, localAddress, localPort));
+  }
+
+  private Socket watch(Socket socket) {
+    if (socket instanceof SSLSocket) {
+      counter.watch((SSLSocket)socket);
+    }
+    return socket;
+  }
+}
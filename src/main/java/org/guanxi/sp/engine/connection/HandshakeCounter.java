@@ -0,0 +1,55 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.connection;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the TLS sockets the back-channel opens and the handshakes done on them.
+ * A handshake is counted as resumed if it's session was created before the socket was.
+ */
+class HandshakeCounter {
+  private final AtomicLong sockets = new AtomicLong();
+  private final AtomicLong handshakes = new AtomicLong();
+  private final AtomicLong resumedHandshakes = new AtomicLong();
+
+  /**
+   * Starts counting the handshakes on a new socket
+   *
+   * @param socket the new socket
+   */
+  void watch(SSLSocket socket) {
+    sockets.incrementAndGet();
+    final long created = System.currentTimeMillis();
+    socket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+      public void handshakeCompleted(HandshakeCompletedEvent event) {
+        handshakes.incrementAndGet();
+        if (event.getSession().getCreationTime() < created) {
+          resumedHandshakes.incrementAndGet();
+        }
+      }
+    });
+  }
+
+  long getSockets() { return sockets.get(); }
+  long getHandshakes() { return handshakes.get(); }
+  long getResumedHandshakes() { return resumedHandshakes.get(); }
+}
@@ -0,0 +1,283 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.connection;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+
+import javax.net.ssl.*;
+import java.io.File;
+import java.io.FileInputStream;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds ready built SSLSocketFactories for the back-channel, keyed on client key and
+ * truststore. Each one remembers the identity (path, modification time and size) of the
+ * keystore and truststore it was built from. A background timer rebuilds any that are
+ * out of date, and callers that change a keystore or truststore can have the factories
+ * that use it rebuilt straight away. A rebuilt factory replaces the old one in a single
+ * step so connections never see a half built one.
+ */
+public class SSLContextCache {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(SSLContextCache.class.getName());
+  /** The type of keystore the Engine uses */
+  private static final String KEYSTORE_TYPE = "JKS";
+  /** Accepts any server certificate so it can be extracted and checked by the caller */
+  private static final TrustManager[] PROBING_TRUST_MANAGERS = new TrustManager[] {
+    new X509TrustManager() {
+      public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+      public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+      public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
+    }
+  };
+
+  /** How often, in seconds, to check whether keystores and truststores have changed */
+  private int checkInterval = 60;
+  /** The socket factories */
+  private ConcurrentHashMap<String, Entry> entries = null;
+  /** Runs the check task */
+  private Timer checkTimer = null;
+  /** Counts the handshakes done by all the socket factories */
+  private HandshakeCounter handshakeCounter = null;
+  /** How many times an SSLContext has been built */
+  private AtomicLong builds = null;
+
+  public void init() {
+    entries = new ConcurrentHashMap<String, Entry>();
+    handshakeCounter = new HandshakeCounter();
+    builds = new AtomicLong();
+
+    checkTimer = new Timer("SSLContextCacheCheck", true);
+    checkTimer.schedule(new TimerTask() {
+      public void run() {
+        refresh();
+      }
+    }, checkInterval * 1000L, checkInterval * 1000L);
+  }
+
+  public void destroy() {
+    if (checkTimer != null) {
+      checkTimer.cancel();
+    }
+  }
+
+  /**
+   * Gets the socket factory that presents a client key and trusts the servers in a truststore
+   *
+   * @param alias the alias of the client key in the keystore
+   * @param keystore full path of the keystore that holds the client key
+   * @param keystorePassword the password for the keystore and the client key
+   * @param truststore full path of the truststore
+   * @param truststorePassword the password for the truststore
+   * @param probing true to accept any server certificate
+   * @return the socket factory
+   * @throws GuanxiException if the socket factory can't be built
+   */
+  public SSLSocketFactory getSocketFactory(String alias, String keystore, String keystorePassword,
+                                           String truststore, String truststorePassword,
+                                           boolean probing) throws GuanxiException {
+    String key = alias + "|" + keystore + "|" + (probing ? "PROBING" : truststore);
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = build(new Entry(alias, keystore, keystorePassword, truststore, truststorePassword, probing));
+      Entry existing = entries.putIfAbsent(key, entry);
+      if (existing != null) {
+        entry = existing;
+      }
+    }
+    return entry.socketFactory;
+  }
+
+  /**
+   * Rebuilds the socket factories that use a keystore or truststore. Call this after
+   * changing the file so the next connection sees the change.
+   *
+   * @param file full path of the keystore or truststore that has changed
+   */
+  public void invalidate(String file) {
+    for (String key : entries.keySet()) {
+      Entry entry = entries.get(key);
+      if ((entry != null) && (entry.uses(file))) {
+        rebuild(key, entry);
+      }
+    }
+  }
+
+  /**
+   * Rebuilds the socket factories whose keystore or truststore has changed on disk
+   */
+  void refresh() {
+    for (String key : entries.keySet()) {
+      Entry entry = entries.get(key);
+      if ((entry != null) && (!entry.isCurrent())) {
+        rebuild(key, entry);
+      }
+    }
+  }
+
+  /**
+   * Replaces a socket factory with a new one. If the new one can't be built the old one is kept.
+   */
+  private void rebuild(String key, Entry entry) {
+    try {
+      entries.replace(key, entry, build(entry));
+      logger.info("Rebuilt SSLContext for " + entry.alias + " from " + entry.keystore);
+    }
+    catch(GuanxiException ge) {
+      logger.error("Can't rebuild SSLContext for " + entry.alias + " from " + entry.keystore, ge);
+    }
+  }
+
+  /**
+   * Builds a socket factory from the current contents of an entry's keystore and truststore
+   *
+   * @param entry the entry to build
+   * @return a new entry with the socket factory
+   * @throws GuanxiException if an error occurs
+   */
+  private Entry build(Entry entry) throws GuanxiException {
+    try {
+      // Take the identities first so any change made while we're loading is picked up next time
+      FileIdentity keystoreIdentity = new FileIdentity(entry.keystore);
+      FileIdentity truststoreIdentity = entry.probing ? null : new FileIdentity(entry.truststore);
+
+      KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+      kmf.init(loadKeyStore(entry.keystore, entry.keystorePassword), entry.keystorePassword.toCharArray());
+      KeyManager[] keyManagers = kmf.getKeyManagers();
+      for (int c=0; c < keyManagers.length; c++) {
+        if (keyManagers[c] instanceof X509KeyManager) {
+          keyManagers[c] = new AliasKeyManager((X509KeyManager)keyManagers[c], entry.alias);
+        }
+      }
+
+      TrustManager[] trustManagers = null;
+      if (entry.probing) {
+        trustManagers = PROBING_TRUST_MANAGERS;
+      }
+      else {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(loadKeyStore(entry.truststore, entry.truststorePassword));
+        trustManagers = tmf.getTrustManagers();
+      }
+
+      SSLContext sslContext = SSLContext.getInstance("TLS");
+      sslContext.init(keyManagers, trustManagers, null);
+      builds.incrementAndGet();
+
+      logger.debug("Built SSLContext for " + entry.alias + " from " + entry.keystore);
+
+      return new Entry(entry, keystoreIdentity, truststoreIdentity,
+                       new CountingSSLSocketFactory(sslContext.getSocketFactory(), handshakeCounter));
+    }
+    catch(Exception e) {
+      throw new GuanxiException(e);
+    }
+  }
+
+  private KeyStore loadKeyStore(String file, String password) throws Exception {
+    KeyStore keyStore = KeyStore.getInstance(KEYSTORE_TYPE);
+    FileInputStream fis = new FileInputStream(file);
+    try {
+      keyStore.load(fis, password.toCharArray());
+    }
+    finally {
+      fis.close();
+    }
+    return keyStore;
+  }
+
+  // Metrics
+  public int size() { return entries.size(); }
+  public long getBuilds() { return builds.get(); }
+  public long getSockets() { return handshakeCounter.getSockets(); }
+  public long getHandshakes() { return handshakeCounter.getHandshakes(); }
+  public long getResumedHandshakes() { return handshakeCounter.getResumedHandshakes(); }
+
+  public void setCheckInterval(int checkInterval) { this.checkInterval = checkInterval; }
+
+  /** The path, modification time and size of a file */
+  private static final class FileIdentity {
+    final String path;
+    final long lastModified;
+    final long length;
+
+    FileIdentity(String path) {
+      File file = new File(path);
+      this.path = path;
+      this.lastModified = file.lastModified();
+      this.length = file.length();
+    }
+
+    boolean isCurrent() {
+      File file = new File(path);
+      return (file.lastModified() == lastModified) && (file.length() == length);
+    }
+  }
+
+  /** A socket factory and what it was built from */
+  private static final class Entry {
+    final String alias;
+    final String keystore;
+    final String keystorePassword;
+    final String truststore;
+    final String truststorePassword;
+    final boolean probing;
+    final FileIdentity keystoreIdentity;
+    final FileIdentity truststoreIdentity;
+    final SSLSocketFactory socketFactory;
+
+    Entry(String alias, String keystore, String keystorePassword,
+          String truststore, String truststorePassword, boolean probing) {
+      this.alias = alias;
+      this.keystore = keystore;
+      this.keystorePassword = keystorePassword;
+      this.truststore = truststore;
+      this.truststorePassword = truststorePassword;
+      this.probing = probing;
+      this.keystoreIdentity = null;
+      this.truststoreIdentity = null;
+      this.socketFactory = null;
+    }
+
+    Entry(Entry entry, FileIdentity keystoreIdentity, FileIdentity truststoreIdentity, SSLSocketFactory socketFactory) {
+      this.alias = entry.alias;
+      this.keystore = entry.keystore;
+      this.keystorePassword = entry.keystorePassword;
+      this.truststore = entry.truststore;
+      this.truststorePassword = entry.truststorePassword;
+      this.probing = entry.probing;
+      this.keystoreIdentity = keystoreIdentity;
+      this.truststoreIdentity = truststoreIdentity;
+      this.socketFactory = socketFactory;
+    }
+
+    boolean uses(String file) {
+      return keystore.equals(file) || ((!probing) && truststore.equals(file));
+    }
+
+    boolean isCurrent() {
+      return keystoreIdentity.isCurrent() && ((truststoreIdentity == null) || truststoreIdentity.isCurrent());
+    }
+  }
+}
@@ -31,6 +31,7 @@ import org.guanxi.xal.saml_2_0.metadata.*;
 import org.guanxi.xal.saml2.metadata.GuanxiGuardServiceDocument;
 import org.guanxi.xal.saml2.metadata.GuardRoleDescriptorExtensions;
 import org.guanxi.sp.engine.Config;
+import org.guanxi.sp.engine.guard.GuardRegistry;
 import org.guanxi.xal.w3.xmldsig.KeyInfoType;
 import org.guanxi.xal.w3.xmldsig.X509DataType;
 import org.springframework.web.servlet.mvc.SimpleFormController;
@@ -565,8 +566,9 @@ public class RegisterGuardFormController extends SimpleFormController {
       EntityDescriptorDocument edDoc = EntityDescriptorDocument.Factory.parse(new File(guardMetadataFile));
       EntityDescriptorType entityDescriptor = edDoc.getEntityDescriptor();
 
-      // Bung the Guard's SAML2 EntityDescriptor in the session under the Guard's entityID
-      getServletContext().setAttribute(entityDescriptor.getEntityID(), entityDescriptor);
+      // Register the Guard with the main Engine under the Guard's entityID
+      GuardRegistry guardRegistry = (GuardRegistry)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_GUARD_REGISTRY);
+      guardRegistry.register(entityDescriptor);
 
       logger.info("CA loaded new Guard : " + entityDescriptor.getEntityID());
 
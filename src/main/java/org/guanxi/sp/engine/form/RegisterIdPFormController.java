@@ -27,6 +27,9 @@ import org.guanxi.common.entity.EntityFarm;
 import org.guanxi.common.entity.EntityManager;
 import org.guanxi.common.metadata.Metadata;
 import org.guanxi.sp.engine.Config;
+import org.guanxi.sp.engine.idp.IdPRegistry;
+import org.guanxi.sp.engine.trust.TrustDecisionCache;
+import org.guanxi.sp.engine.trust.TrustMaterialIndex;
 import org.apache.xmlbeans.XmlOptions;
 
 import javax.servlet.ServletException;
@@ -88,6 +91,14 @@ public class RegisterIdPFormController extends SimpleFormController {
     metadataHandler.setPrivateData(loadedIdPDocument.getEntityDescriptor());
     manager.addMetadata(metadataHandler);
 
+    // The IdP may have been registered before, with a different certificate
+    TrustMaterialIndex trustMaterialIndex = (TrustMaterialIndex)config.getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_TRUST_MATERIAL_INDEX);
+    trustMaterialIndex.index(loadedIdPDocument.getEntityDescriptor(), null);
+    IdPRegistry idpRegistry = (IdPRegistry)config.getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_IDP_REGISTRY);
+    idpRegistry.register(loadedIdPDocument.getEntityDescriptor());
+    TrustDecisionCache trustDecisionCache = (TrustDecisionCache)config.getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_TRUST_DECISION_CACHE);
+    trustDecisionCache.invalidate(loadedIdPDocument.getEntityDescriptor().getEntityID());
+
     ModelAndView mAndV = new ModelAndView();
     mAndV.setViewName(getSuccessView());
     mAndV.getModel().put("message",
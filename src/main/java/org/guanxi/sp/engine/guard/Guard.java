@@ -0,0 +1,79 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.guard;
+
+import org.guanxi.xal.saml2.metadata.GuardRoleDescriptorExtensions;
+
+/**
+ * Immutable view of a Guard's metadata. The GuanxiGuardService node is resolved once,
+ * when the Guard is registered, so the request path only ever does a map lookup to
+ * find out where a Guard lives.
+ */
+public final class Guard {
+  /** The Guard's entityID */
+  private final String entityID;
+  /** The Guard's session verifier service */
+  private final String verifierURL;
+  /** The Guard's attribute consumer service */
+  private final String attributeConsumerServiceURL;
+  /** The Guard's Podder */
+  private final String podderURL;
+  /** Full path to the Guard's keystore */
+  private final String keystore;
+  /** The password for the Guard's keystore and private key */
+  private final String keystorePassword;
+  /** Whether the Guard is using HTTPS for any of it's endpoints */
+  private final boolean secure;
+  /** The GuanxiGuardService node the above was resolved from */
+  private final GuardRoleDescriptorExtensions nativeMetadata;
+
+  /**
+   * Resolves a Guard from it's native metadata
+   *
+   * @param entityID the Guard's entityID
+   * @param nativeMetadata the GuanxiGuardService node from the Guard's SAML2 EntityDescriptor
+   */
+  public Guard(String entityID, GuardRoleDescriptorExtensions nativeMetadata) {
+    this.entityID = entityID;
+    this.nativeMetadata = nativeMetadata;
+    verifierURL = nativeMetadata.getVerifierURL();
+    attributeConsumerServiceURL = nativeMetadata.getAttributeConsumerServiceURL();
+    podderURL = nativeMetadata.getPodderURL();
+    keystore = nativeMetadata.getKeystore();
+    keystorePassword = nativeMetadata.getKeystorePassword();
+    secure = verifierURL.toLowerCase().startsWith("https")                 ||
+             attributeConsumerServiceURL.toLowerCase().startsWith("https") ||
+             podderURL.toLowerCase().startsWith("https");
+  }
+
+  public String getEntityID() { return entityID; }
+  public String getVerifierURL() { return verifierURL; }
+  public String getAttributeConsumerServiceURL() { return attributeConsumerServiceURL; }
+  public String getPodderURL() { return podderURL; }
+  public String getKeystore() { return keystore; }
+  public String getKeystorePassword() { return keystorePassword; }
+  public boolean isSecure() { return secure; }
+
+  /**
+   * The GuanxiGuardService node is still needed by the profile services. It must
+   * be treated as read only as it's shared by all requests for the Guard.
+   *
+   * @return the GuanxiGuardService node the Guard was resolved from
+   */
+  public GuardRoleDescriptorExtensions getNativeMetadata() { return nativeMetadata; }
+}
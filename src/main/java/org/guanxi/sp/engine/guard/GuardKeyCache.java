@@ -0,0 +1,179 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.guard;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the decoded private key and certificate chain of each Guard, keyed on the
+ * Guard's entityID. Opening a JKS keystore means disk I/O and PBE key derivation so we
+ * only do it when a Guard is first seen or when it's keystore file changes on disk.
+ */
+public class GuardKeyCache {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(GuardKeyCache.class.getName());
+  /** The type of keystore the Engine creates for Guards */
+  private static final String KEYSTORE_TYPE = "JKS";
+  /** The cached key material, keyed on Guard entityID */
+  private ConcurrentHashMap<String, KeyMaterial> cache = null;
+  /** How many times we found valid key material in the cache */
+  private AtomicLong hits = null;
+  /** How many times we had to load key material from a keystore */
+  private AtomicLong misses = null;
+
+  public void init() {
+    cache = new ConcurrentHashMap<String, KeyMaterial>();
+    hits = new AtomicLong();
+    misses = new AtomicLong();
+  }
+
+  /**
+   * Gets the key material for a Guard. The Guard's private key is stored in it's keystore
+   * under the Guard's entityID.
+   *
+   * @param guard the Guard whose key material is required
+   * @return the Guard's private key and certificate chain
+   * @throws GuanxiException if the keystore can't be loaded or has no key for the Guard
+   */
+  public KeyMaterial getKeyMaterial(Guard guard) throws GuanxiException {
+    File keystoreFile = new File(guard.getKeystore());
+    long lastModified = keystoreFile.lastModified();
+    long length = keystoreFile.length();
+
+    KeyMaterial keyMaterial = cache.get(guard.getEntityID());
+    if ((keyMaterial != null) && (keyMaterial.isCurrent(guard.getKeystore(), lastModified, length))) {
+      hits.incrementAndGet();
+      return keyMaterial;
+    }
+
+    misses.incrementAndGet();
+    keyMaterial = load(guard, lastModified, length);
+    cache.put(guard.getEntityID(), keyMaterial);
+    return keyMaterial;
+  }
+
+  /**
+   * Removes a Guard's key material from the cache
+   *
+   * @param entityID the Guard's entityID
+   */
+  public void invalidate(String entityID) {
+    cache.remove(entityID);
+  }
+
+  /**
+   * Loads a Guard's key material from it's keystore
+   *
+   * @param guard the Guard whose key material is required
+   * @param lastModified the modification time of the keystore when we checked it
+   * @param length the size of the keystore when we checked it
+   * @return the Guard's key material
+   * @throws GuanxiException if an error occurs
+   */
+  private KeyMaterial load(Guard guard, long lastModified, long length) throws GuanxiException {
+    FileInputStream fis = null;
+    try {
+      char[] password = guard.getKeystorePassword().toCharArray();
+      KeyStore guardKeystore = KeyStore.getInstance(KEYSTORE_TYPE);
+      fis = new FileInputStream(guard.getKeystore());
+      guardKeystore.load(fis, password);
+
+      PrivateKey privateKey = (PrivateKey)guardKeystore.getKey(guard.getEntityID(), password);
+      if (privateKey == null) {
+        throw new GuanxiException("No private key for Guard '" + guard.getEntityID() + "' in " + guard.getKeystore());
+      }
+
+      Certificate[] chain = guardKeystore.getCertificateChain(guard.getEntityID());
+      X509Certificate[] x509Chain = new X509Certificate[(chain == null) ? 0 : chain.length];
+      for (int c=0; c < x509Chain.length; c++) {
+        x509Chain[c] = (X509Certificate)chain[c];
+      }
+
+      logger.info("Loaded key material for Guard : " + guard.getEntityID());
+
+      return new KeyMaterial(guard.getKeystore(), lastModified, length, privateKey, x509Chain);
+    }
+    catch(GuanxiException ge) {
+      throw ge;
+    }
+    catch(Exception e) {
+      throw new GuanxiException(e);
+    }
+    finally {
+      if (fis != null) {
+        try {
+          fis.close();
+        }
+        catch(IOException ioe) {
+          // Nothing we can do about it
+        }
+      }
+    }
+  }
+
+  // Metrics
+  public long getHits() { return hits.get(); }
+  public long getMisses() { return misses.get(); }
+  public int getSize() { return cache.size(); }
+
+  /**
+   * A Guard's private key and certificate chain, along with the identity of the
+   * keystore file they were loaded from.
+   */
+  public static final class KeyMaterial {
+    private final String keystore;
+    private final long lastModified;
+    private final long length;
+    private final PrivateKey privateKey;
+    private final X509Certificate[] certificateChain;
+
+    KeyMaterial(String keystore, long lastModified, long length, PrivateKey privateKey, X509Certificate[] certificateChain) {
+      this.keystore = keystore;
+      this.lastModified = lastModified;
+      this.length = length;
+      this.privateKey = privateKey;
+      this.certificateChain = certificateChain;
+    }
+
+    /**
+     * Determines whether the key material was loaded from the keystore as it is now
+     *
+     * @param keystore full path of the Guard's keystore
+     * @param lastModified the current modification time of the keystore
+     * @param length the current size of the keystore
+     * @return true if the keystore hasn't changed since the key material was loaded
+     */
+    boolean isCurrent(String keystore, long lastModified, long length) {
+      return this.keystore.equals(keystore) && (this.lastModified == lastModified) && (this.length == length);
+    }
+
+    public PrivateKey getPrivateKey() { return privateKey; }
+    public X509Certificate[] getCertificateChain() { return certificateChain.clone(); }
+  }
+}
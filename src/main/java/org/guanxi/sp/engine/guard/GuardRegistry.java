@@ -0,0 +1,91 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.guard;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.sp.Util;
+import org.guanxi.xal.saml2.metadata.GuardRoleDescriptorExtensions;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds all the Guards the Engine knows about, keyed on their entityID.
+ * Guards are resolved when they're registered so finding one on the request path
+ * is a single map lookup with no XML work.
+ */
+public class GuardRegistry {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(GuardRegistry.class.getName());
+  /** The registered Guards, keyed on their entityID */
+  private ConcurrentHashMap<String, Guard> guards = null;
+
+  public void init() {
+    guards = new ConcurrentHashMap<String, Guard>();
+  }
+
+  /**
+   * Resolves a Guard from it's SAML2 metadata and registers it, replacing any Guard
+   * already registered under the same entityID.
+   *
+   * @param guardDescriptor the Guard's SAML2 EntityDescriptor
+   * @return the resolved Guard
+   * @throws GuanxiException if the metadata doesn't contain a GuanxiGuardService node
+   */
+  public Guard register(EntityDescriptorType guardDescriptor) throws GuanxiException {
+    GuardRoleDescriptorExtensions guardNativeMetadata = Util.getGuardNativeMetadata(guardDescriptor);
+    if (guardNativeMetadata == null) {
+      throw new GuanxiException("No GuanxiGuardService in metadata for Guard '" + guardDescriptor.getEntityID() + "'");
+    }
+
+    Guard guard = new Guard(guardDescriptor.getEntityID(), guardNativeMetadata);
+    guards.put(guard.getEntityID(), guard);
+
+    logger.debug("Registered Guard : " + guard.getEntityID());
+
+    return guard;
+  }
+
+  /**
+   * Removes a Guard from the registry
+   *
+   * @param entityID the Guard's entityID
+   */
+  public void unregister(String entityID) {
+    guards.remove(entityID);
+  }
+
+  /**
+   * Finds a Guard
+   *
+   * @param entityID the Guard's entityID
+   * @return the Guard or null if it isn't registered
+   */
+  public Guard getGuard(String entityID) {
+    if (entityID == null) return null;
+    return guards.get(entityID);
+  }
+
+  /**
+   * @return the number of registered Guards
+   */
+  public int size() {
+    return guards.size();
+  }
+}
@@ -0,0 +1,145 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.idp;
+
+import org.apache.log4j.Logger;
+import org.apache.xmlbeans.XmlException;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.metadata.impl.GuanxiSAML2MetadataImpl;
+import org.guanxi.xal.saml_2_0.metadata.AttributeAuthorityDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorDocument;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An entity handler that keeps an entity's metadata as compressed XML rather than as XMLBeans.
+ * The login path uses the IdP records and the trust material index, so the whole EntityDescriptor
+ * is only needed by the odd trust engine fallback. It's parsed back out on demand, through the
+ * shared MaterialisedMetadataCache, so a federation of tens of thousands of entities only keeps
+ * a few hundred of them as XMLBeans at any one time.
+ */
+public class CompressedSAML2MetadataImpl extends GuanxiSAML2MetadataImpl {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(CompressedSAML2MetadataImpl.class.getName());
+  /** The entity's entityID */
+  private String entityID = null;
+  /** The entity's EntityDescriptor, deflated */
+  private byte[] compressedDescriptor = null;
+
+  /**
+   * Compresses an EntityDescriptor. Anything else is handled as normal.
+   *
+   * @param privateData the entity's metadata
+   */
+  public void setPrivateData(Object privateData) {
+    if (!(privateData instanceof EntityDescriptorType)) {
+      super.setPrivateData(privateData);
+      return;
+    }
+
+    EntityDescriptorType entityDescriptor = (EntityDescriptorType)privateData;
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    try {
+      // Save it as a document so a descriptor copied out of an aggregate keeps it's element name
+      EntityDescriptorDocument entityDocument = EntityDescriptorDocument.Factory.newInstance();
+      entityDocument.setEntityDescriptor(entityDescriptor);
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater);
+      entityDocument.save(out);
+      out.close();
+
+      entityID = entityDescriptor.getEntityID();
+      compressedDescriptor = compressed.toByteArray();
+      MaterialisedMetadataCache.getShared().remove(this);
+    }
+    catch(IOException ioe) {
+      logger.error("Could not compress the metadata for " + entityDescriptor.getEntityID() + ", keeping it as it is", ioe);
+      entityID = null;
+      compressedDescriptor = null;
+      super.setPrivateData(privateData);
+    }
+    finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * @return the entity's EntityDescriptor, parsed from it's compressed XML if it isn't
+   * already cached. It must be treated as read only. null if it can't be parsed.
+   */
+  public Object getPrivateData() {
+    if (compressedDescriptor == null) {
+      return super.getPrivateData();
+    }
+
+    try {
+      return MaterialisedMetadataCache.getShared().get(this);
+    }
+    catch(GuanxiException ge) {
+      logger.error("Could not parse the compressed metadata for " + entityID, ge);
+      return null;
+    }
+  }
+
+  public String getEntityID() {
+    return (compressedDescriptor == null) ? super.getEntityID() : entityID;
+  }
+
+  public String getAttributeAuthorityURL() {
+    if (compressedDescriptor == null) {
+      return super.getAttributeAuthorityURL();
+    }
+
+    EntityDescriptorType entityDescriptor = (EntityDescriptorType)getPrivateData();
+    if (entityDescriptor == null) return null;
+    AttributeAuthorityDescriptorType[] aaDescriptors = entityDescriptor.getAttributeAuthorityDescriptorArray();
+    if ((aaDescriptors.length == 0) || (aaDescriptors[0].getAttributeServiceArray().length == 0)) return null;
+    return aaDescriptors[0].getAttributeServiceArray()[0].getLocation();
+  }
+
+  /**
+   * Parses the entity's EntityDescriptor from it's compressed XML
+   *
+   * @return a new EntityDescriptor
+   * @throws GuanxiException if it can't be parsed
+   */
+  EntityDescriptorType materialise() throws GuanxiException {
+    try {
+      return EntityDescriptorDocument.Factory.parse(new InflaterInputStream(new ByteArrayInputStream(compressedDescriptor))).getEntityDescriptor();
+    }
+    catch(XmlException xe) {
+      throw new GuanxiException(xe);
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+
+  /**
+   * @return how many bytes the compressed metadata takes up, 0 if it isn't compressed
+   */
+  public int getCompressedSize() {
+    return (compressedDescriptor == null) ? 0 : compressedDescriptor.length;
+  }
+}
@@ -0,0 +1,145 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.idp;
+
+import org.guanxi.common.definitions.SAML;
+import org.guanxi.xal.saml_2_0.metadata.AttributeAuthorityDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.EndpointType;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.IDPSSODescriptorType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Immutable view of the parts of an IdP's metadata the login path uses. It's resolved
+ * once, when the metadata is loaded, so finding out where to send a user or which
+ * Attribute Authority to query is a map lookup with no XMLBeans in sight.
+ */
+public final class IdP {
+  /** The Shibboleth 1.x SSO binding */
+  public static final String SHIBBOLETH_AUTHN_REQUEST_BINDING = "urn:mace:shibboleth:1.0:profiles:AuthnRequest";
+  /** The bindings we recognise, so the ones in the metadata can be matched exactly */
+  private static final String[] KNOWN_BINDINGS = {SAML.SAML2_BINDING_HTTP_POST, SAML.SAML2_BINDING_HTTP_REDIRECT,
+                                                  SHIBBOLETH_AUTHN_REQUEST_BINDING};
+  /** Orders endpoints by binding */
+  private static final Comparator<Endpoint> BINDING_ORDER = new Comparator<Endpoint>() {
+    public int compare(Endpoint e1, Endpoint e2) {
+      return e1.getBinding().compareTo(e2.getBinding());
+    }
+  };
+
+  /** The IdP's entityID */
+  private final String entityID;
+  /** The IdP's SSO services sorted by binding, in metadata order within a binding */
+  private final Endpoint[] singleSignOnServices;
+  /** The first SAML2 HTTP-POST or HTTP-Redirect SSO service in the metadata */
+  private final Endpoint webBrowserSSOService;
+  /** The IdP's Attribute Authority */
+  private final String attributeAuthorityURL;
+
+  /**
+   * Resolves an IdP from it's SAML2 metadata
+   *
+   * @param entityDescriptor the IdP's SAML2 EntityDescriptor
+   */
+  public IdP(EntityDescriptorType entityDescriptor) {
+    entityID = entityDescriptor.getEntityID().intern();
+
+    ArrayList<Endpoint> ssos = new ArrayList<Endpoint>();
+    Endpoint webBrowserSSO = null;
+    for (IDPSSODescriptorType idpDescriptor : entityDescriptor.getIDPSSODescriptorArray()) {
+      for (EndpointType ssoService : idpDescriptor.getSingleSignOnServiceArray()) {
+        Endpoint sso = new Endpoint(ssoService.getBinding(), ssoService.getLocation());
+        ssos.add(sso);
+        if ((webBrowserSSO == null) &&
+            ((sso.getBinding().equals(SAML.SAML2_BINDING_HTTP_POST)) || (sso.getBinding().equals(SAML.SAML2_BINDING_HTTP_REDIRECT)))) {
+          webBrowserSSO = sso;
+        }
+      }
+    }
+    singleSignOnServices = ssos.toArray(new Endpoint[ssos.size()]);
+    // Arrays.sort is stable so metadata order is kept within a binding
+    Arrays.sort(singleSignOnServices, BINDING_ORDER);
+    webBrowserSSOService = webBrowserSSO;
+
+    String aaURL = null;
+    AttributeAuthorityDescriptorType[] aaDescriptors = entityDescriptor.getAttributeAuthorityDescriptorArray();
+    if ((aaDescriptors.length > 0) && (aaDescriptors[0].getAttributeServiceArray().length > 0)) {
+      aaURL = aaDescriptors[0].getAttributeServiceArray()[0].getLocation();
+    }
+    attributeAuthorityURL = aaURL;
+  }
+
+  /**
+   * Finds the IdP's SSO service for a binding
+   *
+   * @param binding the binding
+   * @return the first SSO service in the metadata with the binding or null if there isn't one
+   */
+  public Endpoint getSingleSignOnService(String binding) {
+    int low = 0, high = singleSignOnServices.length;
+    // Find the first endpoint with the binding, not just any of them
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (singleSignOnServices[middle].getBinding().compareTo(binding) < 0) low = middle + 1;
+      else high = middle;
+    }
+    return ((low < singleSignOnServices.length) && (singleSignOnServices[low].getBinding().equals(binding))) ?
+           singleSignOnServices[low] : null;
+  }
+
+  /**
+   * Matches a binding from the metadata to one of the bindings we know, ignoring case,
+   * so every IdP shares the same String for it
+   *
+   * @param binding the binding from the metadata
+   * @return the binding we know or the metadata's binding if we don't know it
+   */
+  private static String binding(String binding) {
+    for (String knownBinding : KNOWN_BINDINGS) {
+      if (knownBinding.equalsIgnoreCase(binding)) return knownBinding;
+    }
+    return binding.intern();
+  }
+
+  public String getEntityID() { return entityID; }
+  public Endpoint[] getSingleSignOnServices() { return singleSignOnServices.clone(); }
+  public Endpoint getWebBrowserSSOService() { return webBrowserSSOService; }
+  public boolean supportsSAML2() { return webBrowserSSOService != null; }
+  public String getAttributeAuthorityURL() { return attributeAuthorityURL; }
+
+  /**
+   * An SSO service's binding and location
+   */
+  public static final class Endpoint {
+    /** The binding, shared by all IdPs */
+    private final String binding;
+    /** Where the service lives */
+    private final String location;
+
+    Endpoint(String binding, String location) {
+      this.binding = binding(binding);
+      this.location = location;
+    }
+
+    public String getBinding() { return binding; }
+    public String getLocation() { return location; }
+  }
+}
@@ -0,0 +1,83 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.idp;
+
+import org.apache.log4j.Logger;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds all the IdPs the Engine knows about, keyed on their entityID, whether they came
+ * from a federation's metadata or were registered locally. IdPs are resolved when their
+ * metadata is loaded so the profile services and consumer services don't have to walk
+ * the XMLBeans for every login.
+ */
+public class IdPRegistry {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(IdPRegistry.class.getName());
+  /** The registered IdPs, keyed on their entityID */
+  private ConcurrentHashMap<String, IdP> idps = null;
+
+  public void init() {
+    idps = new ConcurrentHashMap<String, IdP>();
+  }
+
+  /**
+   * Resolves an IdP from it's SAML2 metadata and registers it, replacing any IdP
+   * already registered under the same entityID.
+   *
+   * @param idpDescriptor the IdP's SAML2 EntityDescriptor
+   * @return the resolved IdP
+   */
+  public IdP register(EntityDescriptorType idpDescriptor) {
+    IdP idp = new IdP(idpDescriptor);
+    idps.put(idp.getEntityID(), idp);
+
+    logger.debug("Registered IdP : " + idp.getEntityID());
+
+    return idp;
+  }
+
+  /**
+   * Removes an IdP from the registry
+   *
+   * @param entityID the IdP's entityID
+   */
+  public void unregister(String entityID) {
+    idps.remove(entityID);
+  }
+
+  /**
+   * Finds an IdP
+   *
+   * @param entityID the IdP's entityID
+   * @return the IdP or null if it isn't registered
+   */
+  public IdP getIdP(String entityID) {
+    if (entityID == null) return null;
+    return idps.get(entityID);
+  }
+
+  /**
+   * @return the number of registered IdPs
+   */
+  public int size() {
+    return idps.size();
+  }
+}
@@ -0,0 +1,111 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.idp;
+
+import org.guanxi.common.GuanxiException;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small LRU of the EntityDescriptors that have been parsed back out of compressed metadata
+ * handlers, for the few paths that still need the whole of an entity's metadata. The entity
+ * managers create their handlers by class name so they can't have the cache injected. They all
+ * share the one returned by getShared, which is configured as a bean in bootstrap.xml.
+ */
+public class MaterialisedMetadataCache {
+  /** The cache all compressed metadata handlers use */
+  private static final MaterialisedMetadataCache shared = new MaterialisedMetadataCache();
+
+  /** The most descriptors to keep parsed */
+  private int maxEntries = 256;
+  /** The parsed descriptors, least recently used first, keyed on the handler they came from */
+  private LinkedHashMap<CompressedSAML2MetadataImpl, EntityDescriptorType> descriptors = null;
+  /** How many descriptors were found already parsed */
+  private AtomicLong hits = null;
+  /** How many descriptors had to be parsed */
+  private AtomicLong misses = null;
+
+  /**
+   * @return the cache all compressed metadata handlers use
+   */
+  public static MaterialisedMetadataCache getShared() {
+    return shared;
+  }
+
+  public MaterialisedMetadataCache() {
+    descriptors = new LinkedHashMap<CompressedSAML2MetadataImpl, EntityDescriptorType>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<CompressedSAML2MetadataImpl, EntityDescriptorType> eldest) {
+        return size() > maxEntries;
+      }
+    };
+    hits = new AtomicLong();
+    misses = new AtomicLong();
+  }
+
+  /**
+   * Gets a handler's descriptor, parsing it if it isn't in the cache. The descriptor is
+   * shared by everyone using the handler so it must be treated as read only.
+   *
+   * @param handler the compressed metadata handler
+   * @return the handler's EntityDescriptor
+   * @throws GuanxiException if the descriptor can't be parsed
+   */
+  public EntityDescriptorType get(CompressedSAML2MetadataImpl handler) throws GuanxiException {
+    EntityDescriptorType descriptor = null;
+    synchronized(descriptors) {
+      descriptor = descriptors.get(handler);
+    }
+    if (descriptor != null) {
+      hits.incrementAndGet();
+      return descriptor;
+    }
+
+    // Parse outside the lock. If two threads race for the same entity the last one wins.
+    misses.incrementAndGet();
+    descriptor = handler.materialise();
+    synchronized(descriptors) {
+      descriptors.put(handler, descriptor);
+    }
+    return descriptor;
+  }
+
+  /**
+   * Drops a handler's descriptor, when it's metadata changes
+   *
+   * @param handler the compressed metadata handler
+   */
+  public void remove(CompressedSAML2MetadataImpl handler) {
+    synchronized(descriptors) {
+      descriptors.remove(handler);
+    }
+  }
+
+  // Metrics
+  public long getHits() { return hits.get(); }
+  public long getMisses() { return misses.get(); }
+  public int getSize() {
+    synchronized(descriptors) {
+      return descriptors.size();
+    }
+  }
+
+  public void setMaxEntries(int maxEntries) { this.maxEntries = maxEntries; }
+}
@@ -0,0 +1,165 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.job;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Finds out whether a federation's metadata has changed since it was last accepted, without
+ * keeping the document. Over HTTP the request is conditional on the ETag and Last-Modified of
+ * the last accepted document, so an unchanged aggregate costs a 304. If the server sends the
+ * document anyway, it's streamed through a digest and compared with the last accepted one.
+ * The document can also be saved to a file on the way through, so it doesn't have to be
+ * downloaded again to be parsed.
+ */
+public class ConditionalMetadataFetcher {
+  /** The digest used on the whole document */
+  private static final String DIGEST_ALGORITHM = "SHA-256";
+  /** How long, in milliseconds, to wait for the server */
+  private int timeout = 60000;
+
+  /** What the fetch found out */
+  public enum Outcome { NOT_MODIFIED, UNCHANGED, CHANGED }
+
+  /**
+   * Checks a metadata source against what was last accepted from it
+   *
+   * @param metadataURL where the metadata lives
+   * @param previous what was last accepted from the source
+   * @return the outcome, along with the validators and digest of the document if it was read
+   * @throws IOException if the metadata can't be read
+   */
+  public Result fetch(String metadataURL, MetadataDigests previous) throws IOException {
+    return fetch(metadataURL, previous, null);
+  }
+
+  /**
+   * Checks a metadata source against what was last accepted from it, saving the document if it's read
+   *
+   * @param metadataURL where the metadata lives
+   * @param previous what was last accepted from the source
+   * @param saveTo where to save the document if it's read. Can be null
+   * @return the outcome, along with the validators and digest of the document if it was read
+   * @throws IOException if the metadata can't be read or saved
+   */
+  public Result fetch(String metadataURL, MetadataDigests previous, File saveTo) throws IOException {
+    URLConnection connection = new URL(metadataURL).openConnection();
+    connection.setConnectTimeout(timeout);
+    connection.setReadTimeout(timeout);
+
+    HttpURLConnection httpConnection = null;
+    if (connection instanceof HttpURLConnection) {
+      httpConnection = (HttpURLConnection)connection;
+      if (previous.getETag() != null) {
+        httpConnection.setRequestProperty("If-None-Match", previous.getETag());
+      }
+      if (previous.getLastModified() > 0) {
+        httpConnection.setIfModifiedSince(previous.getLastModified());
+      }
+    }
+
+    try {
+      if ((httpConnection != null) && (httpConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)) {
+        return new Result(Outcome.NOT_MODIFIED, previous.getETag(), previous.getLastModified(), previous.getDocumentDigest());
+      }
+      if ((httpConnection != null) && (httpConnection.getResponseCode() != HttpURLConnection.HTTP_OK)) {
+        throw new IOException("Server returned " + httpConnection.getResponseCode() + " for " + metadataURL);
+      }
+
+      byte[] digest = digest(connection.getInputStream(), saveTo);
+      Outcome outcome = Arrays.equals(digest, previous.getDocumentDigest()) ? Outcome.UNCHANGED : Outcome.CHANGED;
+      return new Result(outcome, connection.getHeaderField("ETag"), connection.getLastModified(), digest);
+    }
+    finally {
+      if (httpConnection != null) {
+        httpConnection.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Reads a document through a digest
+   *
+   * @param in the document
+   * @param saveTo where to save the document. Can be null
+   * @return the SHA-256 digest of the document
+   * @throws IOException if the document can't be read or saved
+   */
+  private byte[] digest(InputStream in, File saveTo) throws IOException {
+    OutputStream out = null;
+    try {
+      DigestInputStream digestStream = new DigestInputStream(in, MessageDigest.getInstance(DIGEST_ALGORITHM));
+      if (saveTo != null) {
+        out = new BufferedOutputStream(new FileOutputStream(saveTo));
+      }
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = digestStream.read(buffer)) != -1) {
+        if (out != null) {
+          out.write(buffer, 0, read);
+        }
+      }
+      return digestStream.getMessageDigest().digest();
+    }
+    catch(NoSuchAlgorithmException nsae) {
+      throw new IOException(nsae.getMessage());
+    }
+    finally {
+      in.close();
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+
+  public void setTimeout(int timeout) { this.timeout = timeout; }
+
+  /**
+   * The outcome of a fetch and what's needed to make the next one conditional
+   */
+  public static final class Result {
+    private final Outcome outcome;
+    private final String eTag;
+    private final long lastModified;
+    private final byte[] documentDigest;
+
+    Result(Outcome outcome, String eTag, long lastModified, byte[] documentDigest) {
+      this.outcome = outcome;
+      this.eTag = eTag;
+      this.lastModified = lastModified;
+      this.documentDigest = documentDigest;
+    }
+
+    public Outcome getOutcome() { return outcome; }
+    public String getETag() { return eTag; }
+    public long getLastModified() { return lastModified; }
+    public byte[] getDocumentDigest() { return documentDigest; }
+  }
+}
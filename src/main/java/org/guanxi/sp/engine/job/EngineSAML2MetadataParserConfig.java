@@ -0,0 +1,32 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.job;
+
+import org.guanxi.common.job.SAML2MetadataParserConfig;
+
+/**
+ * The Engine's settings for a SAML2 metadata parser job, on top of the common ones
+ */
+public class EngineSAML2MetadataParserConfig extends SAML2MetadataParserConfig {
+  /** Whether to read the metadata one entity at a time rather than as a whole document */
+  private boolean streaming = false;
+
+  public boolean isStreaming() { return streaming; }
+
+  public void setStreaming(boolean streaming) { this.streaming = streaming; }
+}
@@ -0,0 +1,146 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.job;
+
+import org.apache.xmlbeans.XmlObject;
+import org.guanxi.common.GuanxiException;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+
+/**
+ * The content digests of the entities loaded from a metadata source, kept between runs of the
+ * metadata parser so it can tell which entities have been added, removed or modified. It also
+ * holds the validators and digest of the last accepted document, so an unchanged document can
+ * be skipped altogether, and counts which stages of the parser have been skipped.
+ */
+public class MetadataDigests {
+  /** What a refresh can do to an entity */
+  public enum Change { ADDED, MODIFIED, UNCHANGED, REMOVED }
+  /** The digest used on the metadata */
+  private static final String DIGEST_ALGORITHM = "SHA-256";
+  /** The digest of each entity's EntityDescriptor, keyed on entityID */
+  private HashMap<String, byte[]> entityDigests = new HashMap<String, byte[]>();
+  /** The digest of the federation's Extensions, which hold the CA list */
+  private byte[] extensionsDigest = null;
+  /** The ETag of the last accepted document */
+  private String eTag = null;
+  /** The Last-Modified time of the last accepted document */
+  private long lastModified = 0;
+  /** The digest of the whole of the last accepted document */
+  private byte[] documentDigest = null;
+  /** How many times each stage of the parser has been skipped */
+  private long[] skips = new long[SAML2MetadataParser.Stage.values().length];
+  /** The stages skipped by the last run */
+  private EnumSet<SAML2MetadataParser.Stage> lastSkipped = EnumSet.noneOf(SAML2MetadataParser.Stage.class);
+  /** How many entities each change happened to in the last refresh */
+  private int[] lastChanges = new int[Change.values().length];
+
+  /**
+   * Works out the digest of a piece of metadata
+   *
+   * @param metadata the metadata. Can be null
+   * @return the SHA-256 digest of the metadata's XML, or an empty digest if there's no metadata
+   * @throws GuanxiException if the digest can't be worked out
+   */
+  public static byte[] digest(XmlObject metadata) throws GuanxiException {
+    if (metadata == null) return new byte[0];
+    try {
+      return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(metadata.xmlText().getBytes("UTF-8"));
+    }
+    catch(NoSuchAlgorithmException nsae) {
+      throw new GuanxiException(nsae);
+    }
+    catch(UnsupportedEncodingException uee) {
+      throw new GuanxiException(uee);
+    }
+  }
+
+  /**
+   * @param entityID the entityID of an entity
+   * @param digest the digest of the entity's current EntityDescriptor
+   * @return true if the entity was loaded last time with the same content
+   */
+  public boolean isUnchanged(String entityID, byte[] digest) {
+    return Arrays.equals(entityDigests.get(entityID), digest);
+  }
+
+  /**
+   * @param entityID the entityID of an entity
+   * @return true if the entity was loaded last time
+   */
+  public boolean contains(String entityID) {
+    return entityDigests.containsKey(entityID);
+  }
+
+  /**
+   * Remembers the document the parser has just accepted
+   *
+   * @param fetched the outcome of fetching the document
+   */
+  public synchronized void accept(ConditionalMetadataFetcher.Result fetched) {
+    eTag = fetched.getETag();
+    lastModified = fetched.getLastModified();
+    documentDigest = fetched.getDocumentDigest();
+    lastSkipped = EnumSet.noneOf(SAML2MetadataParser.Stage.class);
+  }
+
+  /**
+   * Records the stages a run of the parser skipped
+   *
+   * @param skipped the stages that were skipped
+   */
+  public synchronized void recordSkipped(EnumSet<SAML2MetadataParser.Stage> skipped) {
+    for (SAML2MetadataParser.Stage stage : skipped) {
+      skips[stage.ordinal()]++;
+    }
+    lastSkipped = EnumSet.copyOf(skipped);
+  }
+
+  /**
+   * Records what a refresh of the metadata did to the entities
+   *
+   * @param added how many entities were new
+   * @param modified how many entities were reloaded
+   * @param unchanged how many entities kept the handler they had
+   * @param removed how many entities were no longer in the metadata
+   */
+  public synchronized void recordChanges(int added, int modified, int unchanged, int removed) {
+    lastChanges[Change.ADDED.ordinal()] = added;
+    lastChanges[Change.MODIFIED.ordinal()] = modified;
+    lastChanges[Change.UNCHANGED.ordinal()] = unchanged;
+    lastChanges[Change.REMOVED.ordinal()] = removed;
+  }
+
+  public byte[] getExtensionsDigest() { return extensionsDigest; }
+  public String getETag() { return eTag; }
+  public long getLastModified() { return lastModified; }
+  public byte[] getDocumentDigest() { return documentDigest; }
+
+  // Metrics
+  public synchronized long getSkips(SAML2MetadataParser.Stage stage) { return skips[stage.ordinal()]; }
+  public synchronized EnumSet<SAML2MetadataParser.Stage> getLastSkipped() { return EnumSet.copyOf(lastSkipped); }
+  public synchronized int getLastChanges(Change change) { return lastChanges[change.ordinal()]; }
+
+  public void setEntityDigests(HashMap<String, byte[]> entityDigests) { this.entityDigests = entityDigests; }
+  public void setExtensionsDigest(byte[] extensionsDigest) { this.extensionsDigest = extensionsDigest; }
+}
@@ -17,7 +17,11 @@
 package org.guanxi.sp.engine.job;
 
 import org.guanxi.common.trust.TrustUtils;
+import org.guanxi.sp.engine.Config;
+import org.guanxi.sp.engine.idp.IdPRegistry;
 import org.guanxi.sp.engine.service.saml2.DiscoveryFeedManager;
+import org.guanxi.sp.engine.trust.TrustDecisionCache;
+import org.guanxi.sp.engine.trust.TrustMaterialIndex;
 import org.guanxi.xal.saml_2_0.metadata.LocalizedNameType;
 import org.quartz.Job;
 import org.quartz.JobExecutionContext;
@@ -31,90 +35,283 @@ import org.guanxi.common.job.SAML2MetadataParserConfig;
 import org.guanxi.common.job.GuanxiJobConfig;
 import org.guanxi.common.job.ShibbolethSAML2MetadataParser;
 
+import java.io.File;
+import java.io.IOException;
 import java.security.PublicKey;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
 
 public class SAML2MetadataParser extends ShibbolethSAML2MetadataParser implements Job {
+  /** The stages of a run that can be skipped when the metadata hasn't changed */
+  public enum Stage { DOWNLOAD, VERIFY, PARSE, APPLY }
+
   public SAML2MetadataParser() {}
 
   public void execute(JobExecutionContext context) throws JobExecutionException {
     // Get our custom config
     config = (SAML2MetadataParserConfig)context.getJobDetail().getJobDataMap().get(GuanxiJobConfig.JOB_KEY_JOB_CONFIG);
 
-    init();
-
-    // Only proceed if we loaded the metadata from either the URL or the cache
-    if (doc == null) {
-      logger.error("No metadata available");
-      return;
+    // What we accepted from this source last time
+    String digestsKey = Config.CONTEXT_ATTR_ENGINE_METADATA_DIGESTS + config.getKey();
+    MetadataDigests previousDigests = (MetadataDigests)config.getServletContext().getAttribute(digestsKey);
+    if (previousDigests == null) {
+      previousDigests = new MetadataDigests();
+      config.getServletContext().setAttribute(digestsKey, previousDigests);
     }
 
-    if (config.getSigned()) {
-      try {
-        PublicKey metadataKey = getX509FromMetadataSignature().getPublicKey();
-        PublicKey fedKey = TrustUtils.pem2x509(config.getPemLocation()).getPublicKey();
-        if (!TrustUtils.compareKeys(metadataKey, fedKey)) {
-          logger.error("Metadata fingerprint failed verification");
-          return;
-        }
-      }
-      catch(GuanxiException ge) {
-        logger.error(ge);
-        return;
+    // When streaming, the document is saved as it's checked so it only has to be downloaded once
+    boolean streaming = (config instanceof EngineSAML2MetadataParserConfig) &&
+                        (((EngineSAML2MetadataParserConfig)config).isStreaming());
+    File download = streaming ? new File(config.getMetadataCacheFile() + ".download") : null;
+
+    // Don't verify, parse and apply the metadata again if it hasn't changed
+    ConditionalMetadataFetcher.Result fetched = null;
+    try {
+      fetched = new ConditionalMetadataFetcher().fetch(config.getMetadataURL(), previousDigests, download);
+    }
+    catch(IOException ioe) {
+      logger.warn("Could not find out whether the metadata has changed, loading it anyway", ioe);
+    }
+    if ((fetched != null) && (fetched.getOutcome() != ConditionalMetadataFetcher.Outcome.CHANGED)) {
+      EnumSet<Stage> skipped = (fetched.getOutcome() == ConditionalMetadataFetcher.Outcome.NOT_MODIFIED) ?
+                               EnumSet.allOf(Stage.class) : EnumSet.of(Stage.VERIFY, Stage.PARSE, Stage.APPLY);
+      previousDigests.recordSkipped(skipped);
+      logger.info("Metadata from " + config.getMetadataURL() + " is " + fetched.getOutcome() + ", skipped " + skipped);
+      if (download != null) {
+        download.delete();
       }
+      return;
+    }
 
-      if (!verifyMetadataSignature()) {
-        logger.error("Metadata signature failed verification"); 
+    if (streaming) {
+      if (!loadStreaming((fetched != null) ? download : null)) {
         return;
       }
     }
-
-    loadAndCacheEntities();
+    else if (!loadDocument()) {
+      return;
+    }
 
     EntityManager manager = loadEntityManager(Guanxi.CONTEXT_ATTR_ENGINE_ENTITY_FARM);
 
     DiscoveryFeedManager discoveryFeedManager = (DiscoveryFeedManager)config.getServletContext().getAttribute(Guanxi.CONTEXT_ATTR_ENGINE_DISCOVERY_FEED_MANAGER);
+    TrustDecisionCache trustDecisionCache = (TrustDecisionCache)config.getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_TRUST_DECISION_CACHE);
+    TrustMaterialIndex trustMaterialIndex = (TrustMaterialIndex)config.getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_TRUST_MATERIAL_INDEX);
+    IdPRegistry idpRegistry = (IdPRegistry)config.getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_IDP_REGISTRY);
 
     try {
-      // Store the new entity IDs for cleaning out old ones later
-      ArrayList<String> newEntityIDs = new ArrayList<String>();
+      // Store the new entity digests for cleaning out old entities and for the next run
+      HashMap<String, byte[]> newEntityDigests = new HashMap<String, byte[]>();
+      int added = 0, modified = 0, unchanged = 0, removed = 0;
 
       if (!loadCAListFromMetadata(manager)) {
         logger.error("No CA list in metadata");
       }
 
+      // Decode the federation's CAs once for all the entities in the metadata
+      TrustMaterialIndex.FederationCAs federationCAs = null;
+      if (trustMaterialIndex != null) {
+        federationCAs = trustMaterialIndex.loadFederationCAs(doc.getEntitiesDescriptor().getExtensions());
+      }
+
+      // If the CA list has changed, every entity's trust material has to be rebuilt
+      byte[] extensionsDigest = MetadataDigests.digest(doc.getEntitiesDescriptor().getExtensions());
+      boolean casChanged = !Arrays.equals(extensionsDigest, previousDigests.getExtensionsDigest());
+
       for (EntityDescriptorType entityDescriptor : entityDescriptors) {
         // Look for Identity Providers
         if (entityDescriptor.getIDPSSODescriptorArray().length > 0) {
-          logger.info("Loading IdP metadata for : " + entityDescriptor.getEntityID());
+          String entityID = entityDescriptor.getEntityID();
+          byte[] digest = MetadataDigests.digest(entityDescriptor);
+          newEntityDigests.put(entityID, digest);
+
+          // Unchanged entities keep the Metadata handler they already have
+          if ((!casChanged) && (previousDigests.isUnchanged(entityID, digest)) && (manager.getMetadata(entityID) != null)) {
+            unchanged++;
+            continue;
+          }
+
+          if (previousDigests.contains(entityID)) {
+            logger.info("Reloading IdP metadata for : " + entityID);
+            modified++;
+          }
+          else {
+            logger.info("Loading IdP metadata for : " + entityID);
+            added++;
+          }
+
+          /* Copy the entity out of the aggregate so that, as it's handler may now outlive many
+           * runs, it doesn't keep the whole of this run's document alive.
+           */
+          EntityDescriptorType entityCopy = (EntityDescriptorType)entityDescriptor.copy();
 
           Metadata metadataHandler = manager.createNewEntityHandler();
           // This will include AttributeAuthorityDescriptor nodes
-          metadataHandler.setPrivateData(entityDescriptor);
+          metadataHandler.setPrivateData(entityCopy);
 
           manager.addMetadata(metadataHandler);
+          // Decode the trust material now rather than on every login
+          if (trustMaterialIndex != null) {
+            trustMaterialIndex.index(entityCopy, federationCAs);
+          }
 
-          newEntityIDs.add(entityDescriptor.getEntityID());
+          // Resolve what the login path needs from the metadata
+          if (idpRegistry != null) {
+            idpRegistry.register(entityCopy);
+          }
+
+          // Anything we decided about the old metadata no longer holds
+          if (trustDecisionCache != null) {
+            trustDecisionCache.invalidate(entityID);
+          }
 
           // SAML2 Discovery Service feed
-          addEntityToDiscoveryFeed(entityDescriptor, discoveryFeedManager);
+          deleteEntityFromDiscoveryFeed(entityID, discoveryFeedManager);
+          addEntityToDiscoveryFeed(entityCopy, discoveryFeedManager);
         }
       }
 
       // Remove expired entities from the manager
       String[] oldEntityIDs = manager.getEntityIDs();
       for (String oldEntityID : oldEntityIDs) {
-        if (!newEntityIDs.contains(oldEntityID)) {
+        if (!newEntityDigests.containsKey(oldEntityID)) {
           manager.removeMetadata(oldEntityID);
+          if (trustMaterialIndex != null) {
+            trustMaterialIndex.remove(oldEntityID);
+          }
+          if (idpRegistry != null) {
+            idpRegistry.unregister(oldEntityID);
+          }
+          if (trustDecisionCache != null) {
+            trustDecisionCache.invalidate(oldEntityID);
+          }
           deleteEntityFromDiscoveryFeed(oldEntityID, discoveryFeedManager);
+          removed++;
         }
       }
+
+      // Remember what we loaded for next time
+      previousDigests.setEntityDigests(newEntityDigests);
+      previousDigests.setExtensionsDigest(extensionsDigest);
+      if (fetched != null) {
+        previousDigests.accept(fetched);
+      }
+      previousDigests.recordChanges(added, modified, unchanged, removed);
+
+      logger.info("Metadata refreshed from " + config.getMetadataURL() + " : " + added + " added, " + modified + " modified, " +
+                  removed + " removed, " + unchanged + " unchanged");
     }
     catch(GuanxiException ge) {
       logger.error("Could not get an entity handler from the metadata manager", ge);
     }
   }
 
+  /**
+   * Loads the metadata as a whole document, verifying its signature if it's signed
+   *
+   * @return true if the metadata was loaded
+   */
+  private boolean loadDocument() {
+    init();
+
+    // Only proceed if we loaded the metadata from either the URL or the cache
+    if (doc == null) {
+      logger.error("No metadata available");
+      return false;
+    }
+
+    if (config.getSigned()) {
+      try {
+        PublicKey metadataKey = getX509FromMetadataSignature().getPublicKey();
+        PublicKey fedKey = TrustUtils.pem2x509(config.getPemLocation()).getPublicKey();
+        if (!TrustUtils.compareKeys(metadataKey, fedKey)) {
+          logger.error("Metadata fingerprint failed verification");
+          return false;
+        }
+      }
+      catch(GuanxiException ge) {
+        logger.error(ge);
+        return false;
+      }
+
+      if (!verifyMetadataSignature()) {
+        logger.error("Metadata signature failed verification"); 
+        return false;
+      }
+    }
+
+    loadAndCacheEntities();
+    return true;
+  }
+
+  /**
+   * Loads the metadata one entity at a time, keeping only the IdPs. A freshly downloaded
+   * copy replaces the cached one once it's been read, otherwise the cached copy is used.
+   * Signed metadata is verified against the federation's key as it's read and isn't
+   * used, or cached, unless the signature is valid.
+   *
+   * @param download the metadata just downloaded from the URL. Can be null
+   * @return true if the metadata was loaded
+   */
+  private boolean loadStreaming(File download) {
+    File cacheFile = new File(config.getMetadataCacheFile());
+    StreamingMetadataReader reader = null;
+    if (config.getSigned()) {
+      try {
+        reader = new StreamingMetadataReader(TrustUtils.pem2x509(config.getPemLocation()).getPublicKey());
+      }
+      catch(GuanxiException ge) {
+        logger.error("Could not load the metadata signing key from " + config.getPemLocation(), ge);
+        if (download != null) {
+          download.delete();
+        }
+        return false;
+      }
+    }
+    else {
+      reader = new StreamingMetadataReader();
+    }
+
+    boolean loaded = false;
+    if (download != null) {
+      try {
+        reader.read(download);
+        cacheFile.delete();
+        if (!download.renameTo(cacheFile)) {
+          logger.warn("Could not cache the metadata in " + cacheFile.getPath());
+        }
+        loaded = true;
+      }
+      catch(GuanxiException ge) {
+        logger.error("Could not read the metadata from " + config.getMetadataURL() + ", trying the cache", ge);
+      }
+      finally {
+        download.delete();
+      }
+    }
+
+    if ((!loaded) && (cacheFile.exists())) {
+      try {
+        reader.read(cacheFile);
+        loaded = true;
+      }
+      catch(GuanxiException ge) {
+        logger.error("Could not read the cached metadata from " + cacheFile.getPath(), ge);
+      }
+    }
+
+    if (!loaded) {
+      logger.error("No metadata available");
+      return false;
+    }
+
+    doc = reader.getEntitiesDescriptorDocument();
+    entityDescriptors = reader.getIdPs();
+    logger.info("Streamed " + entityDescriptors.length + " IdPs out of " + reader.getEntitiesRead() + " entities");
+    return true;
+  }
+
   /**
    * Adds an IdP to the list of entities the Embedded Discovery Service will display
    *
@@ -122,7 +319,7 @@ public class SAML2MetadataParser extends ShibbolethSAML2MetadataParser implement
    * @param manager the DiscoveryFeedManager to use
    */
   private void addEntityToDiscoveryFeed(EntityDescriptorType entityDescriptor, DiscoveryFeedManager manager) {
-    if (entityDescriptor.getOrganization() != null) {
+    if ((manager != null) && (entityDescriptor.getOrganization() != null)) {
       manager.addEntity(entityDescriptor.getEntityID());
       
       LocalizedNameType[] orgs = entityDescriptor.getOrganization().getOrganizationDisplayNameArray();
@@ -133,6 +330,6 @@ public class SAML2MetadataParser extends ShibbolethSAML2MetadataParser implement
   }
 
   private void deleteEntityFromDiscoveryFeed(String entityID, DiscoveryFeedManager manager) {
-    manager.deleteEntity(entityID);
+    if (manager != null) manager.deleteEntity(entityID);
   }
 }
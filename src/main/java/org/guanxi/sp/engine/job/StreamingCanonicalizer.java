@@ -0,0 +1,327 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.job;
+
+import org.guanxi.common.GuanxiException;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Canonicalises a document as it's read, one StAX event at a time, so a signed metadata aggregate
+ * can be digested without building it's DOM. It implements the enveloped signature transform
+ * followed by exclusive or inclusive canonicalisation, which is what federations sign their
+ * aggregates with. The ds:Signature that's a child of the document element is left out.
+ */
+public class StreamingCanonicalizer {
+  /** Exclusive XML canonicalisation */
+  public static final String EXCLUSIVE = "http://www.w3.org/2001/10/xml-exc-c14n#";
+  /** Exclusive XML canonicalisation, keeping comments */
+  public static final String EXCLUSIVE_WITH_COMMENTS = "http://www.w3.org/2001/10/xml-exc-c14n#WithComments";
+  /** Inclusive XML canonicalisation */
+  public static final String INCLUSIVE = "http://www.w3.org/TR/2001/REC-xml-c14n-20010315";
+  /** Inclusive XML canonicalisation, keeping comments */
+  public static final String INCLUSIVE_WITH_COMMENTS = "http://www.w3.org/TR/2001/REC-xml-c14n-20010315#WithComments";
+  /** The XML Signature namespace */
+  private static final String NS_DSIG = "http://www.w3.org/2000/09/xmldsig#";
+  /** Orders attributes by namespace URI and then local name */
+  private static final Comparator<String[]> ATTRIBUTE_ORDER = new Comparator<String[]>() {
+    public int compare(String[] a1, String[] a2) {
+      int order = a1[0].compareTo(a2[0]);
+      return (order != 0) ? order : a1[1].compareTo(a2[1]);
+    }
+  };
+
+  /** Where the canonical form goes, as UTF-8 */
+  private Writer out = null;
+  /** Whether only the namespaces an element uses are output */
+  private boolean exclusive = false;
+  /** Whether comments are output */
+  private boolean withComments = false;
+  /** Namespace prefixes that are treated inclusively by exclusive canonicalisation */
+  private Set<String> inclusivePrefixes = null;
+  /** The namespaces in scope and the namespaces output for each open element */
+  private LinkedList<Frame> frames = null;
+  /** How deep we are inside the enveloped signature, 0 if we're not in it */
+  private int signatureDepth = 0;
+  /** Whether the document element has ended */
+  private boolean afterDocumentElement = false;
+
+  /**
+   * @param algorithm the canonicalisation algorithm's URI
+   * @param inclusiveNamespaces the PrefixList of an exclusive canonicalisation's InclusiveNamespaces. Can be null
+   * @param out where to write the canonical form
+   * @throws GuanxiException if the algorithm isn't supported
+   */
+  public StreamingCanonicalizer(String algorithm, String inclusiveNamespaces, OutputStream out) throws GuanxiException {
+    if (EXCLUSIVE.equals(algorithm) || EXCLUSIVE_WITH_COMMENTS.equals(algorithm)) {
+      exclusive = true;
+    }
+    else if (!(INCLUSIVE.equals(algorithm) || INCLUSIVE_WITH_COMMENTS.equals(algorithm))) {
+      throw new GuanxiException("Unsupported canonicalization algorithm : " + algorithm);
+    }
+    withComments = algorithm.endsWith("#WithComments");
+
+    inclusivePrefixes = new HashSet<String>();
+    if ((exclusive) && (inclusiveNamespaces != null)) {
+      for (String prefix : inclusiveNamespaces.trim().split("\\s+")) {
+        if (prefix.length() > 0) {
+          inclusivePrefixes.add(prefix.equals("#default") ? "" : prefix);
+        }
+      }
+    }
+
+    try {
+      this.out = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+
+    frames = new LinkedList<Frame>();
+  }
+
+  /**
+   * Canonicalises the event the reader is on
+   *
+   * @param reader the document
+   * @throws IOException if the canonical form can't be written
+   */
+  public void event(XMLStreamReader reader) throws IOException {
+    switch (reader.getEventType()) {
+      case XMLStreamConstants.START_ELEMENT:
+        if (signatureDepth > 0) {
+          signatureDepth++;
+        }
+        else if ((frames.size() == 1) && (NS_DSIG.equals(reader.getNamespaceURI())) && ("Signature".equals(reader.getLocalName()))) {
+          signatureDepth = 1;
+        }
+        else {
+          startElement(reader);
+        }
+        break;
+      case XMLStreamConstants.END_ELEMENT:
+        if (signatureDepth > 0) {
+          signatureDepth--;
+        }
+        else {
+          out.write("</");
+          out.write(qName(reader.getPrefix(), reader.getLocalName()));
+          out.write('>');
+          frames.removeLast();
+          afterDocumentElement = frames.isEmpty();
+        }
+        break;
+      case XMLStreamConstants.CHARACTERS:
+      case XMLStreamConstants.SPACE:
+      case XMLStreamConstants.CDATA:
+        // Text outside the document element isn't part of the canonical form
+        if ((signatureDepth == 0) && (!frames.isEmpty())) {
+          writeText(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+        }
+        break;
+      case XMLStreamConstants.COMMENT:
+        if ((signatureDepth == 0) && (withComments)) {
+          writeOutsideDocumentElement("<!--" + reader.getText() + "-->");
+        }
+        break;
+      case XMLStreamConstants.PROCESSING_INSTRUCTION:
+        if (signatureDepth == 0) {
+          String data = reader.getPIData();
+          writeOutsideDocumentElement("<?" + reader.getPITarget() + (((data == null) || (data.length() == 0)) ? "" : " " + data) + "?>");
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Writes out anything that's waiting to be written. This must be called once the document has been read.
+   *
+   * @throws IOException if the canonical form can't be written
+   */
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * Writes the start tag the reader is on, with the namespace declarations it needs and it's
+   * attributes in canonical order
+   *
+   * @param reader the document, on a start tag
+   * @throws IOException if the canonical form can't be written
+   */
+  private void startElement(XMLStreamReader reader) throws IOException {
+    Frame parent = frames.isEmpty() ? new Frame(new HashMap<String, String>(), new HashMap<String, String>()) : frames.getLast();
+
+    Map<String, String> inScope = parent.inScope;
+    if (reader.getNamespaceCount() > 0) {
+      inScope = new HashMap<String, String>(inScope);
+      for (int c=0; c < reader.getNamespaceCount(); c++) {
+        inScope.put(nullToEmpty(reader.getNamespacePrefix(c)), nullToEmpty(reader.getNamespaceURI(c)));
+      }
+    }
+
+    // The namespace declarations this element needs that an ancestor hasn't already output
+    TreeMap<String, String> namespaces = new TreeMap<String, String>();
+    if (exclusive) {
+      addNamespace(nullToEmpty(reader.getPrefix()), inScope, parent.output, namespaces);
+      for (int c=0; c < reader.getAttributeCount(); c++) {
+        String prefix = nullToEmpty(reader.getAttributePrefix(c));
+        if ((prefix.length() > 0) && (!prefix.equals("xml"))) {
+          addNamespace(prefix, inScope, parent.output, namespaces);
+        }
+      }
+      for (String prefix : inclusivePrefixes) {
+        if ((prefix.length() == 0) || (inScope.containsKey(prefix))) {
+          addNamespace(prefix, inScope, parent.output, namespaces);
+        }
+      }
+    }
+    else {
+      addNamespace("", inScope, parent.output, namespaces);
+      for (String prefix : inScope.keySet()) {
+        addNamespace(prefix, inScope, parent.output, namespaces);
+      }
+    }
+
+    Map<String, String> output = parent.output;
+    if (!namespaces.isEmpty()) {
+      output = new HashMap<String, String>(output);
+      output.putAll(namespaces);
+    }
+
+    out.write('<');
+    out.write(qName(reader.getPrefix(), reader.getLocalName()));
+    for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+      out.write((namespace.getKey().length() == 0) ? " xmlns" : " xmlns:" + namespace.getKey());
+      writeAttributeValue(namespace.getValue());
+    }
+
+    String[][] attributes = new String[reader.getAttributeCount()][];
+    for (int c=0; c < attributes.length; c++) {
+      attributes[c] = new String[] {nullToEmpty(reader.getAttributeNamespace(c)), reader.getAttributeLocalName(c),
+                                    qName(reader.getAttributePrefix(c), reader.getAttributeLocalName(c)),
+                                    reader.getAttributeValue(c)};
+    }
+    Arrays.sort(attributes, ATTRIBUTE_ORDER);
+    for (String[] attribute : attributes) {
+      out.write(' ');
+      out.write(attribute[2]);
+      writeAttributeValue(attribute[3]);
+    }
+    out.write('>');
+
+    frames.addLast(new Frame(inScope, output));
+  }
+
+  /**
+   * Adds a namespace declaration to the ones an element needs, if the nearest ancestor that was
+   * output didn't already declare it the same way. An empty default namespace only needs to be
+   * declared if an ancestor declared a different one.
+   *
+   * @param prefix the namespace prefix, "" for the default namespace
+   * @param inScope the namespaces in scope at the element
+   * @param output the namespaces already declared by the element's ancestors
+   * @param namespaces the declarations the element needs
+   */
+  private void addNamespace(String prefix, Map<String, String> inScope, Map<String, String> output, Map<String, String> namespaces) {
+    String uri = nullToEmpty(inScope.get(prefix));
+    if (!uri.equals(nullToEmpty(output.get(prefix)))) {
+      namespaces.put(prefix, uri);
+    }
+  }
+
+  /**
+   * Writes a comment or processing instruction, which are separated from the document
+   * element by a line feed if they come before or after it
+   *
+   * @param node the comment or processing instruction
+   * @throws IOException if the canonical form can't be written
+   */
+  private void writeOutsideDocumentElement(String node) throws IOException {
+    if (afterDocumentElement) out.write('\n');
+    out.write(node);
+    if ((frames.isEmpty()) && (!afterDocumentElement)) out.write('\n');
+  }
+
+  private void writeText(char[] text, int start, int length) throws IOException {
+    for (int c=start; c < start + length; c++) {
+      switch (text[c]) {
+        case '&': out.write("&amp;"); break;
+        case '<': out.write("&lt;"); break;
+        case '>': out.write("&gt;"); break;
+        case '\r': out.write("&#xD;"); break;
+        default: out.write(text[c]); break;
+      }
+    }
+  }
+
+  private void writeAttributeValue(String value) throws IOException {
+    out.write("=\"");
+    for (int c=0; c < value.length(); c++) {
+      char ch = value.charAt(c);
+      switch (ch) {
+        case '&': out.write("&amp;"); break;
+        case '<': out.write("&lt;"); break;
+        case '"': out.write("&quot;"); break;
+        case '\t': out.write("&#x9;"); break;
+        case '\n': out.write("&#xA;"); break;
+        case '\r': out.write("&#xD;"); break;
+        default: out.write(ch); break;
+      }
+    }
+    out.write('"');
+  }
+
+  private String qName(String prefix, String localName) {
+    return ((prefix == null) || (prefix.length() == 0)) ? localName : prefix + ":" + localName;
+  }
+
+  private String nullToEmpty(String value) {
+    return (value == null) ? "" : value;
+  }
+
+  /**
+   * The namespaces in scope at an open element and the ones that have been
+   * declared in the canonical form by it and it's ancestors
+   */
+  private static class Frame {
+    Map<String, String> inScope = null;
+    Map<String, String> output = null;
+
+    Frame(Map<String, String> inScope, Map<String, String> output) {
+      this.inScope = inScope;
+      this.output = output;
+    }
+  }
+}
@@ -0,0 +1,374 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.job;
+
+import org.apache.xmlbeans.XmlException;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.xal.saml_2_0.metadata.EntitiesDescriptorDocument;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorDocument;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Reads a federation's metadata aggregate one EntityDescriptor at a time, keeping only the IdPs.
+ * Each entity is copied out of the stream into a small buffer while we look for an IDPSSODescriptor,
+ * and only an IdP's buffer is turned into XMLBeans, so the memory a refresh needs is bounded by the
+ * largest single entity rather than the whole aggregate. The root EntitiesDescriptor and it's
+ * Extensions, which hold the federation's CA list, are kept as a document with no entities in it.
+ * Signed aggregates are verified as they're read and nothing that was read is kept unless the
+ * signature is valid.
+ */
+public class StreamingMetadataReader {
+  /** The SAML2 metadata namespace */
+  private static final String NS_METADATA = "urn:oasis:names:tc:SAML:2.0:metadata";
+  /** The IdPs in the aggregate */
+  private ArrayList<EntityDescriptorType> idps = new ArrayList<EntityDescriptorType>();
+  /** The root EntitiesDescriptor and it's Extensions */
+  private EntitiesDescriptorDocument entitiesDescriptorDocument = null;
+  /** How many entities the aggregate had, IdP or not */
+  private int entitiesRead = 0;
+  /** The key the aggregate must be signed with, or null if it isn't signed */
+  private PublicKey verificationKey = null;
+
+  /**
+   * Reads unsigned aggregates
+   */
+  public StreamingMetadataReader() {}
+
+  /**
+   * Reads signed aggregates
+   *
+   * @param verificationKey the key the aggregate must be signed with
+   */
+  public StreamingMetadataReader(PublicKey verificationKey) {
+    this.verificationKey = verificationKey;
+  }
+
+  /**
+   * Reads an aggregate from a file
+   *
+   * @param metadataFile the aggregate
+   * @throws GuanxiException if the aggregate can't be read or it's signature isn't valid
+   */
+  public void read(File metadataFile) throws GuanxiException {
+    clear();
+
+    // The signature is at the top of the aggregate so it can be checked before the entities are read
+    StreamingSignatureVerifier verifier = null;
+    if (verificationKey != null) {
+      verifier = new StreamingSignatureVerifier(verificationKey);
+      verifier.readSignature(metadataFile);
+    }
+
+    InputStream in = null;
+    try {
+      in = new BufferedInputStream(new FileInputStream(metadataFile));
+      read(in, verifier);
+      if (verifier != null) {
+        verifier.verifyDigest();
+      }
+    }
+    catch(GuanxiException ge) {
+      clear();
+      throw ge;
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+    finally {
+      if (in != null) {
+        try {
+          in.close();
+        }
+        catch(IOException ioe) {
+          // Nothing we can do about it
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads an aggregate
+   *
+   * @param in the aggregate
+   * @throws GuanxiException if the aggregate can't be read, or it's signed as a signed
+   * aggregate has to be read from a file
+   */
+  public void read(InputStream in) throws GuanxiException {
+    if (verificationKey != null) {
+      throw new GuanxiException("A signed aggregate can only be verified when it's read from a file");
+    }
+    read(in, null);
+  }
+
+  /**
+   * Reads an aggregate, passing everything in it to a verifier
+   *
+   * @param in the aggregate
+   * @param verifier digests the aggregate as it's read. Can be null
+   * @throws GuanxiException if the aggregate can't be read
+   */
+  private void read(InputStream in, StreamingSignatureVerifier verifier) throws GuanxiException {
+    clear();
+    ArrayList<EntityDescriptorType> streamedIdPs = new ArrayList<EntityDescriptorType>();
+
+    try {
+      XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+      inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+      inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+      inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+      XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+
+      // The namespaces declared by each EntitiesDescriptor we're inside, which entities inherit
+      LinkedList<Map<String, String>> scopes = new LinkedList<Map<String, String>>();
+      ByteArrayOutputStream root = null;
+      XMLStreamWriter rootWriter = null;
+
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          if (isMetadata(reader, "EntityDescriptor")) {
+            entitiesRead++;
+            ByteArrayOutputStream entity = new ByteArrayOutputStream();
+            XMLStreamWriter entityWriter = XMLOutputFactory.newInstance().createXMLStreamWriter(entity, "UTF-8");
+            entityWriter.writeStartDocument("UTF-8", "1.0");
+            boolean isIdP = copyElement(reader, entityWriter, inScope(scopes), verifier);
+            entityWriter.writeEndDocument();
+            entityWriter.close();
+            if (isIdP) {
+              streamedIdPs.add(EntityDescriptorDocument.Factory.parse(new ByteArrayInputStream(entity.toByteArray())).getEntityDescriptor());
+            }
+          }
+          else if (isMetadata(reader, "EntitiesDescriptor")) {
+            digest(reader, verifier);
+            HashMap<String, String> declared = new HashMap<String, String>();
+            for (int c=0; c < reader.getNamespaceCount(); c++) {
+              declared.put(prefix(reader.getNamespacePrefix(c)), reader.getNamespaceURI(c));
+            }
+            if (scopes.isEmpty()) {
+              // Keep the root, without it's entities
+              root = new ByteArrayOutputStream();
+              rootWriter = XMLOutputFactory.newInstance().createXMLStreamWriter(root, "UTF-8");
+              rootWriter.writeStartDocument("UTF-8", "1.0");
+              writeStartElement(reader, rootWriter, new HashMap<String, String>());
+            }
+            scopes.addLast(declared);
+          }
+          else if ((scopes.size() == 1) && (isMetadata(reader, "Extensions"))) {
+            // The federation's own Extensions, with the CA list
+            copyElement(reader, rootWriter, new HashMap<String, String>(), verifier);
+          }
+          else {
+            // Anything else at the aggregate level, such as it's Signature, isn't needed
+            skipElement(reader, verifier);
+          }
+        }
+        else if (event == XMLStreamConstants.END_ELEMENT) {
+          // Only an EntitiesDescriptor can end here as everything else has been consumed
+          digest(reader, verifier);
+          scopes.removeLast();
+        }
+        else {
+          digest(reader, verifier);
+        }
+      }
+      reader.close();
+
+      if (rootWriter == null) {
+        throw new GuanxiException("No EntitiesDescriptor in the metadata");
+      }
+      rootWriter.writeEndElement();
+      rootWriter.writeEndDocument();
+      rootWriter.close();
+      EntitiesDescriptorDocument rootDocument = EntitiesDescriptorDocument.Factory.parse(new ByteArrayInputStream(root.toByteArray()));
+
+      // Only keep what we read if all of it could be read
+      idps = streamedIdPs;
+      entitiesDescriptorDocument = rootDocument;
+    }
+    catch(XMLStreamException xse) {
+      throw new GuanxiException(xse);
+    }
+    catch(XmlException xe) {
+      throw new GuanxiException(xe);
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+  }
+
+  /**
+   * Copies the element the reader is on, and everything in it, to a writer. The reader is left
+   * on the element's end tag.
+   *
+   * @param reader the reader, on a start tag
+   * @param writer where to copy the element to
+   * @param inherited the namespaces the element inherits from outside the copy
+   * @param verifier digests the element as it's copied. Can be null
+   * @return true if the element is, or contains, an IDPSSODescriptor
+   * @throws XMLStreamException if an error occurs
+   * @throws IOException if the element can't be digested
+   */
+  private boolean copyElement(XMLStreamReader reader, XMLStreamWriter writer, Map<String, String> inherited,
+                              StreamingSignatureVerifier verifier) throws XMLStreamException, IOException {
+    boolean isIdP = false;
+    int depth = 0;
+    do {
+      digest(reader, verifier);
+      switch (reader.getEventType()) {
+        case XMLStreamConstants.START_ELEMENT:
+          if (isMetadata(reader, "IDPSSODescriptor")) isIdP = true;
+          writeStartElement(reader, writer, (depth == 0) ? inherited : new HashMap<String, String>());
+          depth++;
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          writer.writeEndElement();
+          depth--;
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.SPACE:
+          writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+          break;
+        case XMLStreamConstants.CDATA:
+          writer.writeCData(reader.getText());
+          break;
+        case XMLStreamConstants.COMMENT:
+          writer.writeComment(reader.getText());
+          break;
+        default:
+          break;
+      }
+      if (depth > 0) reader.next();
+    } while (depth > 0);
+    return isIdP;
+  }
+
+  /**
+   * Writes the start tag the reader is on, with it's namespace declarations and attributes
+   *
+   * @param reader the reader, on a start tag
+   * @param writer where to write the start tag
+   * @param inherited namespaces to declare as well as the element's own, unless it overrides them
+   * @throws XMLStreamException if an error occurs
+   */
+  private void writeStartElement(XMLStreamReader reader, XMLStreamWriter writer, Map<String, String> inherited) throws XMLStreamException {
+    writer.writeStartElement(prefix(reader.getPrefix()), reader.getLocalName(), nullToEmpty(reader.getNamespaceURI()));
+
+    HashMap<String, String> namespaces = new HashMap<String, String>(inherited);
+    for (int c=0; c < reader.getNamespaceCount(); c++) {
+      namespaces.put(prefix(reader.getNamespacePrefix(c)), nullToEmpty(reader.getNamespaceURI(c)));
+    }
+    for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+      if (namespace.getKey().length() == 0) {
+        writer.writeDefaultNamespace(namespace.getValue());
+      }
+      else {
+        writer.writeNamespace(namespace.getKey(), namespace.getValue());
+      }
+    }
+
+    for (int c=0; c < reader.getAttributeCount(); c++) {
+      String namespace = reader.getAttributeNamespace(c);
+      if ((namespace == null) || (namespace.length() == 0)) {
+        writer.writeAttribute(reader.getAttributeLocalName(c), reader.getAttributeValue(c));
+      }
+      else {
+        writer.writeAttribute(prefix(reader.getAttributePrefix(c)), namespace, reader.getAttributeLocalName(c), reader.getAttributeValue(c));
+      }
+    }
+  }
+
+  /**
+   * Moves the reader past the element it's on without keeping anything. The reader is left
+   * on the element's end tag.
+   *
+   * @param reader the reader, on a start tag
+   * @param verifier digests the element as it's skipped. Can be null
+   * @throws XMLStreamException if an error occurs
+   * @throws IOException if the element can't be digested
+   */
+  private void skipElement(XMLStreamReader reader, StreamingSignatureVerifier verifier) throws XMLStreamException, IOException {
+    digest(reader, verifier);
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      digest(reader, verifier);
+      if (event == XMLStreamConstants.START_ELEMENT) depth++;
+      else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+    }
+  }
+
+  /**
+   * Forgets everything that was read, so a failed read leaves no IdPs
+   */
+  private void clear() {
+    idps = new ArrayList<EntityDescriptorType>();
+    entitiesDescriptorDocument = null;
+    entitiesRead = 0;
+  }
+
+  private void digest(XMLStreamReader reader, StreamingSignatureVerifier verifier) throws IOException {
+    if (verifier != null) verifier.digest(reader);
+  }
+
+  /**
+   * @param scopes the namespaces declared by each EntitiesDescriptor we're inside
+   * @return the namespaces in scope, innermost winning
+   */
+  private Map<String, String> inScope(LinkedList<Map<String, String>> scopes) {
+    HashMap<String, String> namespaces = new HashMap<String, String>();
+    for (Map<String, String> scope : scopes) {
+      namespaces.putAll(scope);
+    }
+    return namespaces;
+  }
+
+  private boolean isMetadata(XMLStreamReader reader, String localName) {
+    return NS_METADATA.equals(reader.getNamespaceURI()) && localName.equals(reader.getLocalName());
+  }
+
+  private String prefix(String prefix) {
+    return (prefix == null) ? "" : prefix;
+  }
+
+  private String nullToEmpty(String value) {
+    return (value == null) ? "" : value;
+  }
+
+  public EntityDescriptorType[] getIdPs() { return idps.toArray(new EntityDescriptorType[idps.size()]); }
+  public EntitiesDescriptorDocument getEntitiesDescriptorDocument() { return entitiesDescriptorDocument; }
+  public int getEntitiesRead() { return entitiesRead; }
+}
@@ -0,0 +1,388 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.job;
+
+import org.apache.xml.security.c14n.CanonicalizationException;
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.apache.xml.security.c14n.InvalidCanonicalizerException;
+import org.apache.xml.security.exceptions.Base64DecodingException;
+import org.apache.xml.security.utils.Base64;
+import org.guanxi.common.GuanxiException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Verifies the enveloped signature on a metadata aggregate without building the aggregate's DOM.
+ * The Signature is read from the top of the document first and it's SignedInfo checked against
+ * the federation's key. The document is then fed through, one StAX event at a time, while it's
+ * being read, and the digest of it's canonical form is compared with the Reference's DigestValue
+ * once the document has been read. Only the aggregate's document element can be signed, by a
+ * single Reference, with the enveloped signature transform and a canonicalisation.
+ */
+public class StreamingSignatureVerifier {
+  /** The XML Signature namespace */
+  private static final String NS_DSIG = "http://www.w3.org/2000/09/xmldsig#";
+  /** The enveloped signature transform */
+  private static final String TRANSFORM_ENVELOPED_SIGNATURE = "http://www.w3.org/2000/09/xmldsig#enveloped-signature";
+  /** The digest algorithms we support and their JCA names */
+  private static final Map<String, String> DIGEST_ALGORITHMS = new HashMap<String, String>();
+  /** The signature algorithms we support and their JCA names */
+  private static final Map<String, String> SIGNATURE_ALGORITHMS = new HashMap<String, String>();
+  static {
+    DIGEST_ALGORITHMS.put("http://www.w3.org/2000/09/xmldsig#sha1", "SHA-1");
+    DIGEST_ALGORITHMS.put("http://www.w3.org/2001/04/xmlenc#sha256", "SHA-256");
+    DIGEST_ALGORITHMS.put("http://www.w3.org/2001/04/xmldsig-more#sha384", "SHA-384");
+    DIGEST_ALGORITHMS.put("http://www.w3.org/2001/04/xmlenc#sha512", "SHA-512");
+    SIGNATURE_ALGORITHMS.put("http://www.w3.org/2000/09/xmldsig#rsa-sha1", "SHA1withRSA");
+    SIGNATURE_ALGORITHMS.put("http://www.w3.org/2001/04/xmldsig-more#rsa-sha256", "SHA256withRSA");
+    SIGNATURE_ALGORITHMS.put("http://www.w3.org/2001/04/xmldsig-more#rsa-sha384", "SHA384withRSA");
+    SIGNATURE_ALGORITHMS.put("http://www.w3.org/2001/04/xmldsig-more#rsa-sha512", "SHA512withRSA");
+  }
+
+  /** The key the document must be signed with */
+  private PublicKey verificationKey = null;
+  /** Digests the document's canonical form as it's read */
+  private MessageDigest digest = null;
+  /** The Reference's DigestValue */
+  private byte[] expectedDigest = null;
+  /** Canonicalises the document as it's read */
+  private StreamingCanonicalizer canonicalizer = null;
+
+  /**
+   * @param verificationKey the key the document must be signed with
+   */
+  public StreamingSignatureVerifier(PublicKey verificationKey) {
+    this.verificationKey = verificationKey;
+    org.apache.xml.security.Init.init();
+  }
+
+  /**
+   * Reads the Signature at the top of a signed document and verifies it's SignedInfo. The document
+   * is only read as far as the end of the Signature.
+   *
+   * @param signedFile the signed document
+   * @throws GuanxiException if the document isn't signed, it's signature can't be streamed
+   * or the SignedInfo wasn't signed with the verification key
+   */
+  public void readSignature(File signedFile) throws GuanxiException {
+    InputStream in = null;
+    try {
+      in = new BufferedInputStream(new FileInputStream(signedFile));
+      readSignature(in);
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+    finally {
+      if (in != null) {
+        try {
+          in.close();
+        }
+        catch(IOException ioe) {
+          // Nothing we can do about it
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the Signature at the top of a signed document and verifies it's SignedInfo
+   *
+   * @param in the signed document
+   * @throws GuanxiException if the document isn't signed, it's signature can't be streamed
+   * or the SignedInfo wasn't signed with the verification key
+   */
+  public void readSignature(InputStream in) throws GuanxiException {
+    try {
+      XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+      inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+      inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+      inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+      XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+
+      reader.nextTag();
+      String documentID = reader.getAttributeValue(null, "ID");
+      HashMap<String, String> documentNamespaces = new HashMap<String, String>();
+      for (int c=0; c < reader.getNamespaceCount(); c++) {
+        documentNamespaces.put(nullToEmpty(reader.getNamespacePrefix(c)), nullToEmpty(reader.getNamespaceURI(c)));
+      }
+
+      // The Signature must be the first thing in the document element
+      if ((reader.nextTag() != XMLStreamConstants.START_ELEMENT) ||
+          (!NS_DSIG.equals(reader.getNamespaceURI())) || (!"Signature".equals(reader.getLocalName()))) {
+        throw new GuanxiException("The metadata isn't signed");
+      }
+
+      DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+      documentBuilderFactory.setNamespaceAware(true);
+      Document signatureDocument = documentBuilderFactory.newDocumentBuilder().newDocument();
+      buildElement(reader, signatureDocument, documentNamespaces);
+      reader.close();
+
+      verifySignedInfo(signatureDocument.getDocumentElement(), documentID);
+    }
+    catch(XMLStreamException xse) {
+      throw new GuanxiException(xse);
+    }
+    catch(ParserConfigurationException pce) {
+      throw new GuanxiException(pce);
+    }
+  }
+
+  /**
+   * Digests the event the reader is on. Every event in the document must be passed
+   * in, in order, once the Signature has been read.
+   *
+   * @param reader the signed document
+   * @throws IOException if the event can't be digested
+   */
+  public void digest(XMLStreamReader reader) throws IOException {
+    canonicalizer.event(reader);
+  }
+
+  /**
+   * Checks the digest of the document that was read against the signature's DigestValue
+   *
+   * @throws GuanxiException if the document isn't the one that was signed
+   */
+  public void verifyDigest() throws GuanxiException {
+    try {
+      canonicalizer.flush();
+    }
+    catch(IOException ioe) {
+      throw new GuanxiException(ioe);
+    }
+    if (!MessageDigest.isEqual(digest.digest(), expectedDigest)) {
+      throw new GuanxiException("Metadata digest failed verification");
+    }
+  }
+
+  /**
+   * Checks the SignatureValue against the verification key and gets ready to digest
+   * the document the way the Reference says
+   *
+   * @param signature the Signature element
+   * @param documentID the ID of the document element
+   * @throws GuanxiException if the signature isn't valid or can't be streamed
+   */
+  private void verifySignedInfo(Element signature, String documentID) throws GuanxiException {
+    Element signedInfo = child(signature, "SignedInfo");
+    Element canonicalizationMethod = child(signedInfo, "CanonicalizationMethod");
+    Element signatureMethod = child(signedInfo, "SignatureMethod");
+    Element[] references = children(signedInfo, "Reference");
+
+    // The signature must cover the whole document and nothing else
+    if (references.length != 1) {
+      throw new GuanxiException("The metadata signature has " + references.length + " references");
+    }
+    Element reference = references[0];
+    String uri = reference.getAttribute("URI");
+    if (!((uri.length() == 0) || ((documentID != null) && (uri.equals("#" + documentID))))) {
+      throw new GuanxiException("The metadata signature doesn't cover the metadata : " + uri);
+    }
+
+    // Only the enveloped signature transform followed by a canonicalisation can be streamed
+    String referenceCanonicalization = StreamingCanonicalizer.INCLUSIVE;
+    String referenceInclusiveNamespaces = null;
+    Element[] transforms = (child(reference, "Transforms") != null) ? children(child(reference, "Transforms"), "Transform") : new Element[0];
+    if ((transforms.length == 0) || (transforms.length > 2) || (!TRANSFORM_ENVELOPED_SIGNATURE.equals(transforms[0].getAttribute("Algorithm")))) {
+      throw new GuanxiException("The metadata signature's transforms can't be streamed");
+    }
+    if (transforms.length == 2) {
+      referenceCanonicalization = transforms[1].getAttribute("Algorithm");
+      referenceInclusiveNamespaces = inclusiveNamespaces(transforms[1]);
+    }
+
+    String digestAlgorithm = DIGEST_ALGORITHMS.get(algorithm(child(reference, "DigestMethod")));
+    String signatureAlgorithm = SIGNATURE_ALGORITHMS.get(algorithm(signatureMethod));
+    if ((digestAlgorithm == null) || (signatureAlgorithm == null)) {
+      throw new GuanxiException("Unsupported metadata signature algorithm : " + algorithm(signatureMethod) +
+                                " / " + algorithm(child(reference, "DigestMethod")));
+    }
+
+    try {
+      expectedDigest = Base64.decode(text(reference, "DigestValue"));
+      byte[] signatureValue = Base64.decode(text(signature, "SignatureValue"));
+
+      // Inclusive canonicalisation doesn't take a PrefixList at all
+      Canonicalizer signedInfoCanonicalizer = Canonicalizer.getInstance(algorithm(canonicalizationMethod));
+      String signedInfoInclusiveNamespaces = inclusiveNamespaces(canonicalizationMethod);
+      byte[] canonicalSignedInfo = (signedInfoInclusiveNamespaces == null) ? signedInfoCanonicalizer.canonicalizeSubtree(signedInfo) :
+                                   signedInfoCanonicalizer.canonicalizeSubtree(signedInfo, signedInfoInclusiveNamespaces);
+      Signature verifier = Signature.getInstance(signatureAlgorithm);
+      verifier.initVerify(verificationKey);
+      verifier.update(canonicalSignedInfo);
+      if (!verifier.verify(signatureValue)) {
+        throw new GuanxiException("Metadata signature failed verification");
+      }
+
+      digest = MessageDigest.getInstance(digestAlgorithm);
+    }
+    catch(GeneralSecurityException gse) {
+      throw new GuanxiException(gse);
+    }
+    catch(Base64DecodingException bde) {
+      throw new GuanxiException(bde);
+    }
+    catch(InvalidCanonicalizerException ice) {
+      throw new GuanxiException(ice);
+    }
+    catch(CanonicalizationException ce) {
+      throw new GuanxiException(ce);
+    }
+
+    // The digest is worked out as the document is read
+    canonicalizer = new StreamingCanonicalizer(referenceCanonicalization, referenceInclusiveNamespaces,
+                                               new DigestOutputStream(new OutputStream() {
+                                                 public void write(int b) {}
+                                                 public void write(byte[] b, int off, int len) {}
+                                               }, digest));
+  }
+
+  /**
+   * Builds a DOM copy of the element the reader is on. The reader is left on the element's end tag.
+   *
+   * @param reader the reader, on a start tag
+   * @param document the document to add the copy to
+   * @param inherited the namespaces the element inherits from it's ancestors
+   * @throws XMLStreamException if an error occurs
+   */
+  private void buildElement(XMLStreamReader reader, Document document, Map<String, String> inherited) throws XMLStreamException {
+    Node parent = document;
+    int depth = 0;
+    do {
+      switch (reader.getEventType()) {
+        case XMLStreamConstants.START_ELEMENT:
+          Element element = document.createElementNS(emptyToNull(reader.getNamespaceURI()), qName(reader.getPrefix(), reader.getLocalName()));
+          HashMap<String, String> namespaces = new HashMap<String, String>((depth == 0) ? inherited : new HashMap<String, String>());
+          for (int c=0; c < reader.getNamespaceCount(); c++) {
+            namespaces.put(nullToEmpty(reader.getNamespacePrefix(c)), nullToEmpty(reader.getNamespaceURI(c)));
+          }
+          for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+            element.setAttributeNS("http://www.w3.org/2000/xmlns/", (namespace.getKey().length() == 0) ? "xmlns" : "xmlns:" + namespace.getKey(),
+                                   namespace.getValue());
+          }
+          for (int c=0; c < reader.getAttributeCount(); c++) {
+            element.setAttributeNS(emptyToNull(reader.getAttributeNamespace(c)),
+                                   qName(reader.getAttributePrefix(c), reader.getAttributeLocalName(c)),
+                                   reader.getAttributeValue(c));
+          }
+          parent.appendChild(element);
+          parent = element;
+          depth++;
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          parent = parent.getParentNode();
+          depth--;
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.SPACE:
+        case XMLStreamConstants.CDATA:
+          parent.appendChild(document.createTextNode(reader.getText()));
+          break;
+        case XMLStreamConstants.COMMENT:
+          parent.appendChild(document.createComment(reader.getText()));
+          break;
+        default:
+          break;
+      }
+      if (depth > 0) reader.next();
+    } while (depth > 0);
+  }
+
+  /**
+   * @param transform a Transform or CanonicalizationMethod
+   * @return the PrefixList of it's InclusiveNamespaces, or null if it doesn't have one
+   */
+  private String inclusiveNamespaces(Element transform) {
+    for (Node child = transform.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if ((child instanceof Element) && ("InclusiveNamespaces".equals(child.getLocalName())) &&
+          (StreamingCanonicalizer.EXCLUSIVE.equals(child.getNamespaceURI()))) {
+        return ((Element)child).getAttribute("PrefixList");
+      }
+    }
+    return null;
+  }
+
+  private Element child(Element parent, String localName) throws GuanxiException {
+    Element[] children = children(parent, localName);
+    return (children.length > 0) ? children[0] : null;
+  }
+
+  private Element[] children(Element parent, String localName) throws GuanxiException {
+    if (parent == null) {
+      throw new GuanxiException("The metadata signature has no " + localName);
+    }
+    ArrayList<Element> children = new ArrayList<Element>();
+    for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if ((child instanceof Element) && (NS_DSIG.equals(child.getNamespaceURI())) && (localName.equals(child.getLocalName()))) {
+        children.add((Element)child);
+      }
+    }
+    return children.toArray(new Element[children.size()]);
+  }
+
+  private String text(Element parent, String localName) throws GuanxiException {
+    Element child = child(parent, localName);
+    if (child == null) {
+      throw new GuanxiException("The metadata signature has no " + localName);
+    }
+    return child.getTextContent();
+  }
+
+  private String algorithm(Element method) throws GuanxiException {
+    if (method == null) {
+      throw new GuanxiException("The metadata signature is missing an algorithm");
+    }
+    return method.getAttribute("Algorithm");
+  }
+
+  private String qName(String prefix, String localName) {
+    return ((prefix == null) || (prefix.length() == 0)) ? localName : prefix + ":" + localName;
+  }
+
+  private String nullToEmpty(String value) {
+    return (value == null) ? "" : value;
+  }
+
+  private String emptyToNull(String value) {
+    return ((value == null) || (value.length() == 0)) ? null : value;
+  }
+}
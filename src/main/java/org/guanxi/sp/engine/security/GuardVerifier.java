@@ -20,21 +20,23 @@ import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
 import org.springframework.web.context.ServletContextAware;
 import org.springframework.context.MessageSource;
 import org.apache.log4j.Logger;
-import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
-import org.guanxi.xal.saml2.metadata.GuardRoleDescriptorExtensions;
 import org.guanxi.common.definitions.Guanxi;
-import org.guanxi.common.EntityConnection;
 import org.guanxi.common.GuanxiException;
-import org.guanxi.sp.Util;
 import org.guanxi.sp.engine.Config;
+import org.guanxi.sp.engine.connection.BackChannelClient;
+import org.guanxi.sp.engine.connection.BackChannelConnection;
+import org.guanxi.sp.engine.guard.Guard;
+import org.guanxi.sp.engine.guard.GuardRegistry;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.security.cert.X509Certificate;
 import java.security.KeyStore;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 
 /**
  * Verification process for a Guard
@@ -79,8 +81,9 @@ public class GuardVerifier extends HandlerInterceptorAdapter implements ServletC
       return false;
     }
 
-    EntityDescriptorType guardEntityDescriptor = (EntityDescriptorType)servletContext.getAttribute(guardID);
-    if (guardEntityDescriptor == null) {
+    GuardRegistry guardRegistry = (GuardRegistry)servletContext.getAttribute(Config.CONTEXT_ATTR_ENGINE_GUARD_REGISTRY);
+    Guard guard = guardRegistry.getGuard(guardID);
+    if (guard == null) {
       logger.error("Guard '" + guardID + "' not found in metadata repository");
       request.setAttribute("error", messages.getMessage("engine.error.no.guard.metadata", null, request.getLocale()));
       request.setAttribute("message", messages.getMessage("engine.error.no.guard.metadata", null, request.getLocale()));
@@ -97,46 +100,55 @@ public class GuardVerifier extends HandlerInterceptorAdapter implements ServletC
       return false;
     }
 
-    // Load the GuanxiGuardService node from the metadata
-    GuardRoleDescriptorExtensions guardNativeMetadata = Util.getGuardNativeMetadata(guardEntityDescriptor);
+    BackChannelClient backChannelClient = (BackChannelClient)servletContext.getAttribute(Config.CONTEXT_ATTR_ENGINE_BACK_CHANNEL_CLIENT);
 
     // Build the REST URL to verify the Guard's session
-    String queryString = guardNativeMetadata.getVerifierURL() + "?" +
+    String queryString = guard.getVerifierURL() + "?" +
                          Guanxi.SESSION_VERIFIER_PARAM_SESSION_ID + "=" +
                          sessionID;
 
     // If we haven't already checked the Guard for secure comms, do it now
     if (servletContext.getAttribute(guardID + "SECURE_CHECK_DONE_SP") == null) {
-      // Load up the Guard's native metadata...
-      GuardRoleDescriptorExtensions guardExt = Util.getGuardNativeMetadata(guardEntityDescriptor);
-
-      // ...and see if it's using HTTPS
+      // See if the Guard is using HTTPS
       try {
-        if (Util.isGuardSecure(guardExt)) {
+        if (guard.isSecure()) {
           logger.info("Probing for Guard certificate for : " + guardID);
 
           /* If the Guard is using HTTPS then we'll need to connect to it, extract it's
            * certificate and add it to our truststore. To do that, we'll need to use our
            * own keystore to let the Guard authenticate us.
            */
-          EntityConnection guardConnection = new EntityConnection(queryString,
-                                                                  config.getCertificateAlias(), // alias of cert
-                                                                  config.getKeystore(),
-                                                                  config.getKeystorePassword(),
-                                                                  config.getTrustStore(),
-                                                                  config.getTrustStorePassword(),
-                                                                  EntityConnection.PROBING_ON);
-          X509Certificate guardX509 = guardConnection.getServerCertificate();
+          BackChannelConnection guardConnection = backChannelClient.openConnection(queryString,
+                                                                                   config.getCertificateAlias(), // alias of cert
+                                                                                   config.getKeystore(),
+                                                                                   config.getKeystorePassword(),
+                                                                                   config.getTrustStore(),
+                                                                                   config.getTrustStorePassword(),
+                                                                                   true);
+          X509Certificate guardX509 = null;
+          try {
+            guardConnection.connect();
+            guardX509 = guardConnection.getServerCertificate();
+          }
+          finally {
+            guardConnection.close();
+          }
 
           // We've got the Guard's X509 so add it to our truststore...
           KeyStore engineTrustStore = KeyStore.getInstance("jks");
-          engineTrustStore.load(new FileInputStream(config.getTrustStore()),
-                                config.getTrustStorePassword().toCharArray());
+          FileInputStream fis = new FileInputStream(config.getTrustStore());
+          try {
+            engineTrustStore.load(fis, config.getTrustStorePassword().toCharArray());
+          }
+          finally {
+            fis.close();
+          }
           // ...under it's Subject DN as an alias...
           engineTrustStore.setCertificateEntry(guardID, guardX509);
           // ...and rewrite the trust store
-          engineTrustStore.store(new FileOutputStream(config.getTrustStore()),
-                                 config.getTrustStorePassword().toCharArray());
+          writeTrustStore(engineTrustStore, config);
+          // ...and make sure the back-channel trusts the Guard from now on
+          backChannelClient.keyMaterialChanged(config.getTrustStore());
 
           // Mark Guard as having been checked for secure comms
           servletContext.setAttribute(guardID + "SECURE_CHECK_DONE_SP", "SECURE");
@@ -160,16 +172,28 @@ public class GuardVerifier extends HandlerInterceptorAdapter implements ServletC
     // Verify that the Guard actually sent the request
     String verificationResult = null;
     try {
-      EntityConnection verifierService = new EntityConnection(queryString,
-                                                              config.getCertificateAlias(), // alias of cert
-                                                              config.getKeystore(),
-                                                              config.getKeystorePassword(),
-                                                              config.getTrustStore(),
-                                                              config.getTrustStorePassword(),
-                                                              EntityConnection.PROBING_OFF);
-      verifierService.setDoOutput(true);
-      verifierService.connect();
-      verificationResult = verifierService.getContentAsString();
+      BackChannelConnection verifierService = backChannelClient.openConnection(queryString,
+                                                                               config.getCertificateAlias(), // alias of cert
+                                                                               config.getKeystore(),
+                                                                               config.getKeystorePassword(),
+                                                                               config.getTrustStore(),
+                                                                               config.getTrustStorePassword(),
+                                                                               false);
+      try {
+        verifierService.setDoOutput(true);
+        verifierService.connect();
+        verificationResult = verifierService.getContentAsString();
+      }
+      finally {
+        verifierService.close();
+      }
+    }
+    catch(IOException ioe) {
+      logger.error("Guard '" + guardID + "' error during verification : ", ioe);
+      request.setAttribute("error", messages.getMessage("engine.error.guard.comms.failed", null, request.getLocale()));
+      request.setAttribute("message", messages.getMessage("engine.error.guard.comms.failed", null, request.getLocale()));
+      request.getRequestDispatcher(errorPage).forward(request, response);
+      return false;
     }
     catch(GuanxiException ge) {
       logger.error("Guard '" + guardID + "' error during verification : ", ge);
@@ -188,14 +212,40 @@ public class GuardVerifier extends HandlerInterceptorAdapter implements ServletC
       return false;
     }
 
-    /* Convert the Guard's session ID to an Engine session ID and store the Guard's GuanxiGuardService
-     * node under it.
+    /* The Guard is verified. The profile service it's talking to will store the Guard
+     * against it's session if the profile needs it.
      */
-    servletContext.setAttribute(sessionID.replaceAll("GUARD", "ENGINE"), guardEntityDescriptor);
-
     return true;
   }
 
+  /**
+   * Rewrites the Engine's truststore. The new truststore is written to a temporary file
+   * which then replaces the old one, so nothing ever reads a partly written truststore.
+   *
+   * @param trustStore the new contents of the truststore
+   * @param config the Engine config
+   * @throws Exception if an error occurs
+   */
+  private void writeTrustStore(KeyStore trustStore, Config config) throws Exception {
+    File trustStoreFile = new File(config.getTrustStore());
+    File tempFile = File.createTempFile(trustStoreFile.getName(), ".tmp", trustStoreFile.getParentFile());
+    FileOutputStream fos = new FileOutputStream(tempFile);
+    try {
+      trustStore.store(fos, config.getTrustStorePassword().toCharArray());
+    }
+    finally {
+      fos.close();
+    }
+    if (!tempFile.renameTo(trustStoreFile)) {
+      // Some platforms won't rename over an existing file
+      trustStoreFile.delete();
+      if (!tempFile.renameTo(trustStoreFile)) {
+        tempFile.delete();
+        throw new IOException("Can't replace truststore " + trustStoreFile.getPath());
+      }
+    }
+  }
+
   // Setters
   public void setMessages(MessageSource messages) { this.messages = messages; }
   public void setErrorPage(String errorPage) { this.errorPage = errorPage; }
@@ -0,0 +1,261 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.security;
+
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the IDs of the SAML Responses and Assertions the Engine has accepted so they
+ * can't be used again. An ID is remembered until the message's NotOnOrAfter, plus an
+ * allowance for clock skew, has passed.
+ *
+ * To keep memory flat, IDs are held as 64 bit hashes of the issuer and ID. Each hash is
+ * filed in a bucket of timeBucket seconds according to when it expires, and the buckets
+ * form a ring covering maxTimeToLive. Each bucket is an open addressing set of primitive
+ * longs, so nothing is boxed, and a lookup checks every bucket in the ring. When a
+ * bucket's time has passed, its hashes are forgotten in one go, so expiring an entry
+ * costs the same however many there are.
+ */
+public class ReplayCache {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(ReplayCache.class.getName());
+  /** How long, in seconds, to remember a message that doesn't say when it expires */
+  private int defaultTimeToLive = 300;
+  /** The longest, in seconds, we'll remember any message, whatever its NotOnOrAfter says */
+  private int maxTimeToLive = 3600;
+  /** How far, in seconds, the IdPs' clocks are allowed to be ahead of ours */
+  private int clockSkew = 180;
+  /** How many seconds each bucket covers */
+  private int timeBucket = 60;
+  /** The hashes by when they expire */
+  private Bucket[] buckets = null;
+  /** The number of the bucket that expires next. Buckets are numbered by time so the ring index is number % length */
+  private long nextBucket = 0;
+  /** How many messages have been checked */
+  private long checks = 0;
+  /** How many replays have been caught */
+  private long hits = 0;
+
+  public void init() {
+    // One more bucket than the longest time covers, so the bucket being filled is never the one being expired
+    buckets = new Bucket[((maxTimeToLive + clockSkew) / timeBucket) + 2];
+    for (int c=0; c < buckets.length; c++) {
+      buckets[c] = newBucket();
+    }
+    nextBucket = currentTime() / (timeBucket * 1000L);
+  }
+
+  /**
+   * Records that a message has been accepted, unless it has been seen before
+   *
+   * @param issuer the entityID or providerId of the IdP that issued the message
+   * @param id the ID of the Response or Assertion
+   * @param notOnOrAfter when the message expires, in milliseconds, or 0 if it doesn't say
+   * @return true if the message hasn't been seen before, false if it's a replay
+   */
+  public synchronized boolean checkAndRecord(String issuer, String id, long notOnOrAfter) {
+    long now = currentTime();
+    expire(now);
+    checks++;
+
+    long hash = hash(issuer, id);
+    if (isRecorded(hash)) {
+      hits++;
+      logger.warn("Replayed message " + id + " from " + issuer);
+      return false;
+    }
+
+    long expires = (notOnOrAfter > 0) ? notOnOrAfter : now + (defaultTimeToLive * 1000L);
+    expires = Math.max(expires, now);
+    expires = Math.min(expires, now + (maxTimeToLive * 1000L)) + (clockSkew * 1000L);
+
+    buckets[(int)((expires / (timeBucket * 1000L)) % buckets.length)].add(hash);
+    return true;
+  }
+
+  /**
+   * Determines whether a message has already been accepted, without recording it. Use this
+   * to turn away replays before a message has been verified.
+   *
+   * @param issuer the entityID or providerId of the IdP that issued the message
+   * @param id the ID of the Response or Assertion
+   * @return true if the message has been seen before
+   */
+  public synchronized boolean contains(String issuer, String id) {
+    expire(currentTime());
+    return isRecorded(hash(issuer, id));
+  }
+
+  /**
+   * Determines whether a hash is in any of the buckets
+   *
+   * @param hash the hash of the issuer and ID
+   * @return true if the hash has been recorded
+   */
+  private boolean isRecorded(long hash) {
+    for (Bucket bucket : buckets) {
+      if (bucket.contains(hash)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Forgets the hashes in all the buckets whose time has passed
+   *
+   * @param now the current time, in milliseconds
+   */
+  private void expire(long now) {
+    long currentBucket = now / (timeBucket * 1000L);
+    // If we've been idle for longer than the ring covers, each bucket only needs emptying once
+    if (currentBucket - nextBucket > buckets.length) {
+      nextBucket = currentBucket - buckets.length;
+    }
+    while (nextBucket < currentBucket) {
+      buckets[(int)(nextBucket % buckets.length)].clear();
+      nextBucket++;
+    }
+  }
+
+  /**
+   * @return a new, empty bucket
+   */
+  Bucket newBucket() {
+    return new Bucket();
+  }
+
+  /**
+   * @return the current time, in milliseconds
+   */
+  long currentTime() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Hashes an issuer and ID into 64 bits with FNV-1a
+   *
+   * @param issuer the issuer
+   * @param id the ID
+   * @return the hash
+   */
+  private long hash(String issuer, String id) {
+    long hash = 0xcbf29ce484222325L;
+    String key = issuer + "!" + id;
+    for (int c=0; c < key.length(); c++) {
+      hash ^= key.charAt(c);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /**
+   * @return the number of IDs being remembered
+   */
+  public synchronized int getSize() {
+    expire(currentTime());
+    int size = 0;
+    for (Bucket bucket : buckets) {
+      size += bucket.size;
+    }
+    return size;
+  }
+
+  /**
+   * @return the number of messages that have been checked
+   */
+  public synchronized long getChecks() {
+    return checks;
+  }
+
+  /**
+   * @return the number of replays that have been caught
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * The hashes that expire in one timeBucket, in an open addressing set of longs with
+   * linear probing. An empty slot is 0, so a hash of 0 is recorded separately.
+   */
+  static class Bucket {
+    private static final int INITIAL_CAPACITY = 32;
+    long[] slots = new long[INITIAL_CAPACITY];
+    int size = 0;
+    boolean hasZero = false;
+
+    boolean contains(long hash) {
+      if (hash == 0) return hasZero;
+      int mask = slots.length - 1;
+      for (int slot = index(hash, mask); slots[slot] != 0; slot = (slot + 1) & mask) {
+        if (slots[slot] == hash) return true;
+      }
+      return false;
+    }
+
+    /** Adds a hash that isn't already in the bucket */
+    void add(long hash) {
+      if (hash == 0) {
+        hasZero = true;
+        size++;
+        return;
+      }
+      // Keep the table at most half full so probes stay short
+      if ((size + 1) * 2 > slots.length) {
+        long[] old = slots;
+        slots = new long[old.length * 2];
+        for (long oldHash : old) {
+          if (oldHash != 0) insert(oldHash);
+        }
+      }
+      insert(hash);
+      size++;
+    }
+
+    void clear() {
+      size = 0;
+      hasZero = false;
+      // Don't hold on to the space a burst of logins needed
+      if (slots.length > 1024) {
+        slots = new long[INITIAL_CAPACITY];
+      }
+      else {
+        Arrays.fill(slots, 0);
+      }
+    }
+
+    private void insert(long hash) {
+      int mask = slots.length - 1;
+      int slot = index(hash, mask);
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = hash;
+    }
+
+    private static int index(long hash, int mask) {
+      return (int)(hash ^ (hash >>> 32)) & mask;
+    }
+  }
+
+  public void setDefaultTimeToLive(int defaultTimeToLive) { this.defaultTimeToLive = defaultTimeToLive; }
+  public void setMaxTimeToLive(int maxTimeToLive) { this.maxTimeToLive = maxTimeToLive; }
+  public void setClockSkew(int clockSkew) { this.clockSkew = clockSkew; }
+  public void setTimeBucket(int timeBucket) { this.timeBucket = timeBucket; }
+}
@@ -19,25 +19,31 @@ package org.guanxi.sp.engine.security.shibboleth;
 import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
 import org.springframework.web.context.ServletContextAware;
 import org.springframework.context.MessageSource;
-import org.guanxi.common.Utils;
+import org.guanxi.common.GuanxiException;
 import org.guanxi.common.entity.EntityFarm;
 import org.guanxi.common.entity.EntityManager;
 import org.guanxi.common.definitions.Guanxi;
 import org.guanxi.common.definitions.Shibboleth;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.trust.TrustUtils;
 import org.guanxi.xal.saml_1_0.protocol.ResponseDocument;
 import org.guanxi.xal.saml_1_0.protocol.ResponseType;
 import org.guanxi.xal.saml_1_0.assertion.AssertionType;
 import org.guanxi.xal.saml_1_0.assertion.AuthenticationStatementType;
 import org.guanxi.sp.engine.Config;
+import org.guanxi.sp.engine.security.ReplayCache;
+import org.guanxi.sp.engine.trust.TrustDecisionCache;
+import org.guanxi.sp.engine.binding.InboundMessageDecoder;
 import org.apache.log4j.Logger;
 import org.apache.xmlbeans.XmlOptions;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.ServletContext;
-import java.io.StringReader;
+import java.io.InputStream;
 import java.io.StringWriter;
 import java.io.IOException;
+import java.security.cert.X509Certificate;
 import java.util.HashMap;
 
 /**
@@ -88,7 +94,14 @@ public class IdPVerifier extends HandlerInterceptorAdapter implements ServletCon
       }
 
       // Parse the SAML Response containing the AuthenticationStatement coming from the IdP
-      responseDocument = ResponseDocument.Factory.parse(new StringReader(Utils.decodeBase64(request.getParameter("SAMLResponse"))));
+      InboundMessageDecoder decoder = (InboundMessageDecoder)servletContext.getAttribute(Config.CONTEXT_ATTR_ENGINE_INBOUND_MESSAGE_DECODER);
+      InputStream decodedResponse = decoder.decode(request.getParameter("SAMLResponse"), false);
+      try {
+        responseDocument = ResponseDocument.Factory.parse(decodedResponse);
+      }
+      finally {
+        decodedResponse.close();
+      }
 
       dumpSAML(responseDocument);
 
@@ -125,7 +138,7 @@ public class IdPVerifier extends HandlerInterceptorAdapter implements ServletCon
     if (manager.getMetadata(idpProviderID) != null) {
       // Apply the trust rules to the entity
       if (manager.getTrustEngine() != null) {
-        if (manager.getTrustEngine().trustEntity(manager.getMetadata(idpProviderID), responseDocument)) {
+        if (trustIdP(manager, idpProviderID, responseDocument)) {
           request.setAttribute(Config.REQUEST_ATTRIBUTE_IDP_METADATA, manager.getMetadata(idpProviderID));
         }
         else {
@@ -145,9 +158,87 @@ public class IdPVerifier extends HandlerInterceptorAdapter implements ServletCon
       return false;
     }
 
+    // Make sure the AuthenticationStatement hasn't been used before
+    if (!isNewResponse(samlResponse, idpProviderID)) {
+      request.setAttribute("error", messages.getMessage("engine.error.replayed.response", null,
+                                                        "The IdP's response has already been used", request.getLocale()));
+      request.setAttribute("message", idpProviderID);
+      request.getRequestDispatcher(errorPage).forward(request, response);
+      return false;
+    }
+
     return true;
   }
 
+  /**
+   * Applies the trust rules of the IdP's EntityManager to a signed Response. The signature is
+   * always verified but the decision about the signing certificate is only made once for each
+   * certificate the IdP uses, until it's metadata is reloaded.
+   *
+   * @param manager the EntityManager that holds the IdP's metadata
+   * @param idpProviderID the providerId of the IdP
+   * @param responseDocument the Response from the IdP
+   * @return true if the IdP is trusted
+   * @throws GuanxiException if the signing certificate can't be fingerprinted
+   */
+  private boolean trustIdP(EntityManager manager, String idpProviderID, ResponseDocument responseDocument) throws GuanxiException {
+    Metadata idpMetadata = manager.getMetadata(idpProviderID);
+    X509Certificate x509 = TrustUtils.getX509CertFromSignature(responseDocument);
+    if (x509 == null) {
+      // Nothing to key a decision on so leave it all to the trust engine
+      return manager.getTrustEngine().trustEntity(idpMetadata, responseDocument);
+    }
+
+    if (!TrustUtils.verifySignature(responseDocument)) {
+      return false;
+    }
+
+    TrustDecisionCache trustDecisionCache = (TrustDecisionCache)servletContext.getAttribute(Config.CONTEXT_ATTR_ENGINE_TRUST_DECISION_CACHE);
+    return trustDecisionCache.trustEntity(manager.getTrustEngine(), idpMetadata, x509, responseDocument, null);
+  }
+
+  /**
+   * Records the IDs of a Response and its Assertions in the replay cache
+   *
+   * @param samlResponse the Response from the IdP
+   * @param idpProviderID the providerId of the IdP
+   * @return false if the Response or any of its Assertions has been seen before
+   */
+  private boolean isNewResponse(ResponseType samlResponse, String idpProviderID) {
+    ReplayCache replayCache = (ReplayCache)servletContext.getAttribute(Config.CONTEXT_ATTR_ENGINE_REPLAY_CACHE);
+    AssertionType[] assertions = samlResponse.getAssertionArray();
+
+    // The Response lasts as long as its longest lived Assertion
+    long responseNotOnOrAfter = 0;
+    for (AssertionType assertion : assertions) {
+      responseNotOnOrAfter = Math.max(responseNotOnOrAfter, getNotOnOrAfter(assertion));
+    }
+
+    boolean isNew = true;
+    if (samlResponse.getResponseID() != null) {
+      isNew = replayCache.checkAndRecord(idpProviderID, samlResponse.getResponseID(), responseNotOnOrAfter);
+    }
+    for (AssertionType assertion : assertions) {
+      if (assertion.getAssertionID() != null) {
+        isNew &= replayCache.checkAndRecord(idpProviderID, assertion.getAssertionID(), getNotOnOrAfter(assertion));
+      }
+    }
+    return isNew;
+  }
+
+  /**
+   * Works out when an Assertion expires
+   *
+   * @param assertion the Assertion
+   * @return the Assertion's Conditions NotOnOrAfter, in milliseconds, or 0 if it doesn't have one
+   */
+  private long getNotOnOrAfter(AssertionType assertion) {
+    if ((assertion.getConditions() != null) && (assertion.getConditions().getNotOnOrAfter() != null)) {
+      return assertion.getConditions().getNotOnOrAfter().getTimeInMillis();
+    }
+    return 0;
+  }
+
   /**
    * Dumps the SAML response from the IdP to the logs
    *
@@ -21,12 +21,13 @@ import org.guanxi.common.GuanxiException;
 import org.guanxi.common.definitions.Guanxi;
 import org.guanxi.common.definitions.SAML;
 import org.guanxi.common.entity.EntityFarm;
-import org.guanxi.common.entity.EntityManager;
-import org.guanxi.common.metadata.Metadata;
-import org.guanxi.sp.Util;
-import org.guanxi.xal.saml2.metadata.GuardRoleDescriptorExtensions;
-import org.guanxi.xal.saml_2_0.metadata.EndpointType;
-import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.guanxi.sp.engine.Config;
+import org.guanxi.sp.engine.guard.Guard;
+import org.guanxi.sp.engine.guard.GuardRegistry;
+import org.guanxi.sp.engine.idp.IdP;
+import org.guanxi.sp.engine.idp.IdPRegistry;
+import org.guanxi.sp.engine.service.saml2.SAML2ProfileService;
+import org.guanxi.sp.engine.session.EngineSessionStore;
 import org.springframework.context.MessageSource;
 import org.springframework.web.context.ServletContextAware;
 import org.springframework.web.servlet.ModelAndView;
@@ -101,9 +102,10 @@ public class GenericProfileService extends MultiActionController implements Serv
       idpEntityID = request.getParameter("edsEntityID");
     }
 
-    // Get the Guard's metadata, previously loaded by the Bootstrapper
-    EntityDescriptorType guardEntityDescriptor = (EntityDescriptorType)getServletContext().getAttribute(guardID);
-    if (guardEntityDescriptor == null) {
+    // Get the Guard, previously registered by the Bootstrapper
+    GuardRegistry guardRegistry = (GuardRegistry)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_GUARD_REGISTRY);
+    Guard guard = guardRegistry.getGuard(guardID);
+    if (guard == null) {
       logger.error("Guard '" + guardID + "' not found in metadata repository");
       ModelAndView mAndV = new ModelAndView();
       mAndV.setViewName(errorView);
@@ -111,19 +113,22 @@ public class GenericProfileService extends MultiActionController implements Serv
                                                                     null, request.getLocale()));
       return mAndV;
     }
-    
-    // Load the GuanxiGuardService node from the metadata
-    GuardRoleDescriptorExtensions guardNativeMetadata = Util.getGuardNativeMetadata(guardEntityDescriptor);
-
-    /* Convert the Guard's session ID to an Engine session ID and store the Guard's GuanxiGuardService
-     * node under it. This will be deleted from the context once the SAML round trip has been processed
-     * and the attributes sent to the Guard.
-     */
-    getServletContext().setAttribute(guardSessionID.replaceAll("GUARD", "ENGINE"), guardEntityDescriptor);
 
     EntityFarm farm = (EntityFarm)getServletContext().getAttribute(Guanxi.CONTEXT_ATTR_ENGINE_ENTITY_FARM);
     try {
-      return getProfileService(request, farm, idpEntityID).doProfile(request, guardID, guardSessionID, guardNativeMetadata, idpEntityID, farm);
+      ProfileService profileService = getProfileService(request, farm, idpEntityID);
+
+      /* Convert the Guard's session ID to an Engine session ID and store the Guard under it.
+       * This will be deleted from the store once the SAML round trip has been processed
+       * and the attributes sent to the Guard. A SAML2 profile using signed RelayState
+       * carries the Guard with it so there's nothing to store.
+       */
+      if (!((profileService instanceof SAML2ProfileService) && (((SAML2ProfileService)profileService).isStatelessRelayState()))) {
+        EngineSessionStore sessionStore = (EngineSessionStore)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_SESSION_STORE);
+        sessionStore.put(guardSessionID.replaceAll("GUARD", "ENGINE"), guard.getEntityID());
+      }
+
+      return profileService.doProfile(request, guardID, guardSessionID, guard.getNativeMetadata(), idpEntityID, farm);
     }
     catch(GuanxiException ge) {
       logger.error("Profile Service error: ", ge);
@@ -164,24 +169,15 @@ public class GenericProfileService extends MultiActionController implements Serv
     // By now we have an IdP entityID
 
     // Load the metadata for the IdP
-    EntityManager manager = farm.getEntityManagerForID(idpEntityID);
-    if (manager == null) {
-      throw new GuanxiException("Could not find manager for IdP '" + idpEntityID);
-    }
-    Metadata entityMetadata = manager.getMetadata(idpEntityID);
-    if (entityMetadata == null) {
+    IdPRegistry idpRegistry = (IdPRegistry)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_IDP_REGISTRY);
+    IdP idp = idpRegistry.getIdP(idpEntityID);
+    if (idp == null) {
       throw new GuanxiException("Could not find metadata for IdP " + idpEntityID);
     }
-    EntityDescriptorType saml2Metadata = (EntityDescriptorType)entityMetadata.getPrivateData();
 
     // Look for SAML2 endpoints
-    EndpointType[] ssos = saml2Metadata.getIDPSSODescriptorArray(0).getSingleSignOnServiceArray();
-    for (EndpointType sso : ssos) {
-      String binding = sso.getBinding();
-      if ((binding.equals(SAML.SAML2_BINDING_HTTP_POST)) ||
-          (binding.equals(SAML.SAML2_BINDING_HTTP_REDIRECT))) {
-        return saml2ProfileService;
-      }
+    if (idp.supportsSAML2()) {
+      return saml2ProfileService;
     }
 
     // If we get here, SAML2 isn't supported so use Shibboleth
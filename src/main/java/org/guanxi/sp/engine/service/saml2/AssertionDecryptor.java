@@ -0,0 +1,182 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.service.saml2;
+
+import org.apache.log4j.Logger;
+import org.apache.xml.security.encryption.EncryptedData;
+import org.apache.xml.security.encryption.EncryptedKey;
+import org.apache.xml.security.encryption.XMLCipher;
+import org.apache.xml.security.keys.KeyInfo;
+import org.apache.xml.security.utils.EncryptionConstants;
+import org.apache.xmlbeans.XmlBeans;
+import org.apache.xmlbeans.XmlObject;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.definitions.SAML;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.security.Key;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Decrypts the EncryptedAssertions in a SAML2 Response. Everything is done in the one DOM:
+ * the Response's EncryptedAssertion elements are found in a single pass over its children,
+ * each secret key is unwrapped with the Guard's private key only once however many
+ * EncryptedData elements use it, and the same two ciphers are used throughout. Any
+ * EncryptedData inside a decrypted Assertion, such as an EncryptedID, is decrypted too.
+ * The DOM must be one XMLBeans created, so the decrypted Response can be handed back as
+ * XMLBeans without being parsed again.
+ *
+ * Instances are thread safe.
+ */
+public class AssertionDecryptor {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(AssertionDecryptor.class.getName());
+
+  /**
+   * Decrypts the EncryptedAssertions in a Response, in place
+   *
+   * @param response the Response as DOM, from XmlObject.newDomNode()
+   * @param privateKey the Guard's private key, which the IdP used to wrap the secret keys
+   * @return the decrypted Response, which shares the DOM's XMLBeans store
+   * @throws GuanxiException if the Response can't be decrypted
+   */
+  public XmlObject decrypt(Document response, PrivateKey privateKey) throws GuanxiException {
+    try {
+      XMLCipher keyCipher = XMLCipher.getInstance();
+      keyCipher.init(XMLCipher.UNWRAP_MODE, privateKey);
+      XMLCipher dataCipher = XMLCipher.getInstance();
+      HashMap<String, Key> secretKeys = new HashMap<String, Key>();
+
+      for (Node child = response.getDocumentElement().getFirstChild(); child != null; child = child.getNextSibling()) {
+        if (isElement(child, SAML.NS_SAML_20_ASSERTION, "EncryptedAssertion")) {
+          decryptWithin(response, (Element)child, keyCipher, dataCipher, secretKeys);
+        }
+      }
+
+      return XmlBeans.nodeToXmlObject(response);
+    }
+    catch(GuanxiException ge) {
+      throw ge;
+    }
+    catch(Exception e) {
+      logger.error("Problem decrypting the response", e);
+      throw new GuanxiException(e);
+    }
+  }
+
+  /**
+   * Decrypts all the EncryptedData in an element, including any that turns up in decrypted content
+   *
+   * @param document the Response
+   * @param element the element to decrypt
+   * @param keyCipher unwraps the secret keys
+   * @param dataCipher decrypts the data
+   * @param secretKeys the secret keys unwrapped so far, by their wrapped value
+   * @throws Exception if an error occurs
+   */
+  private void decryptWithin(Document document, Element element, XMLCipher keyCipher, XMLCipher dataCipher,
+                             HashMap<String, Key> secretKeys) throws Exception {
+    List<Element> encryptedDataElements = new ArrayList<Element>();
+    findEncryptedData(element, encryptedDataElements);
+    while (!encryptedDataElements.isEmpty()) {
+      for (Element encryptedDataElement : encryptedDataElements) {
+        Element parent = (Element)encryptedDataElement.getParentNode();
+        // The cipher has to be decrypting to load the data, even before it has the key
+        dataCipher.init(XMLCipher.DECRYPT_MODE, null);
+        EncryptedData encryptedData = dataCipher.loadEncryptedData(document, encryptedDataElement);
+        String algorithm = encryptedData.getEncryptionMethod().getAlgorithm();
+
+        dataCipher.init(XMLCipher.DECRYPT_MODE, getSecretKey(document, encryptedData, parent, algorithm, keyCipher, secretKeys));
+        dataCipher.doFinal(document, encryptedDataElement);
+      }
+
+      // Decrypted content can itself contain encrypted content
+      encryptedDataElements.clear();
+      findEncryptedData(element, encryptedDataElements);
+    }
+  }
+
+  /**
+   * Unwraps the secret key that was used to encrypt some data, unless we already have it
+   *
+   * @param document the Response
+   * @param encryptedData the data the key was used for
+   * @param parent the element containing the data, which might hold the EncryptedKey instead of the KeyInfo
+   * @param algorithm the algorithm the data was encrypted with
+   * @param keyCipher unwraps the secret keys
+   * @param secretKeys the secret keys unwrapped so far, by their wrapped value
+   * @return the secret key
+   * @throws Exception if there's no key or it can't be unwrapped
+   */
+  private Key getSecretKey(Document document, EncryptedData encryptedData, Element parent, String algorithm,
+                           XMLCipher keyCipher, HashMap<String, Key> secretKeys) throws Exception {
+    EncryptedKey encryptedKey = null;
+    KeyInfo keyInfo = encryptedData.getKeyInfo();
+    if (keyInfo != null) {
+      encryptedKey = keyInfo.itemEncryptedKey(0);
+    }
+    if (encryptedKey == null) {
+      // SAML allows the EncryptedKey to sit alongside the EncryptedData
+      for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+        if (isElement(child, EncryptionConstants.EncryptionSpecNS, EncryptionConstants._TAG_ENCRYPTEDKEY)) {
+          encryptedKey = keyCipher.loadEncryptedKey(document, (Element)child);
+          break;
+        }
+      }
+    }
+    if (encryptedKey == null) {
+      throw new GuanxiException("No EncryptedKey for EncryptedData");
+    }
+
+    String wrappedKey = encryptedKey.getCipherData().getCipherValue().getValue();
+    Key secretKey = secretKeys.get(wrappedKey);
+    if (secretKey == null) {
+      secretKey = keyCipher.decryptKey(encryptedKey, algorithm);
+      secretKeys.put(wrappedKey, secretKey);
+    }
+    return secretKey;
+  }
+
+  /**
+   * Finds the outermost EncryptedData elements in an element
+   *
+   * @param element the element to search
+   * @param found where to put the EncryptedData elements
+   */
+  private void findEncryptedData(Element element, List<Element> found) {
+    for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (isElement(child, EncryptionConstants.EncryptionSpecNS, EncryptionConstants._TAG_ENCRYPTEDDATA)) {
+        found.add((Element)child);
+      }
+      else if (child.getNodeType() == Node.ELEMENT_NODE) {
+        findEncryptedData((Element)child, found);
+      }
+    }
+  }
+
+  private boolean isElement(Node node, String namespaceURI, String localName) {
+    return (node.getNodeType() == Node.ELEMENT_NODE) &&
+           namespaceURI.equals(node.getNamespaceURI()) &&
+           localName.equals(node.getLocalName());
+  }
+}
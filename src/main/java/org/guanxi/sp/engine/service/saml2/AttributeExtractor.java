@@ -0,0 +1,424 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.engine.service.saml2;
+
+import org.guanxi.common.Bag;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.definitions.EduPerson;
+import org.guanxi.common.definitions.EduPersonOID;
+import org.guanxi.common.definitions.SAML;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Builds a Bag of attributes from a SAML2 Response in a single pass over the XML, without
+ * creating XMLBeans objects or DOM nodes for the Assertions and their attributes.
+ *
+ * The rules are the same as the ones WebBrowserSSOAuthConsumerService used to apply to the
+ * XMLBeans objects:
+ * - only the first AttributeStatement in each Assertion is used
+ * - processing stops at the first Assertion with no AttributeStatement
+ * - the Subject's NameID is added under subjectNameIDAttributeName
+ * - basic attributes are added under their Name
+ * - X500/LDAP attributes are added under their FriendlyName, Name and OID, with the
+ *   Scope appended to scoped values and the NameID and its qualifiers extracted from
+ *   eduPersonTargetedID
+ * Where the XMLBeans code would fail on a malformed value, so does this.
+ *
+ * Instances are thread safe.
+ */
+public class AttributeExtractor {
+  /** The element in the Response that holds a decrypted Assertion */
+  private static final String ENCRYPTED_ASSERTION = "EncryptedAssertion";
+
+  /** Add a Subject/NameID to the bag of attributes under this name */
+  private String subjectNameIDAttributeName = null;
+
+  /**
+   * @param subjectNameIDAttributeName the name to add the Subject's NameID under
+   */
+  public AttributeExtractor(String subjectNameIDAttributeName) {
+    this.subjectNameIDAttributeName = subjectNameIDAttributeName;
+  }
+
+  /**
+   * Adds the attributes in a SAML2 Response to a Bag
+   *
+   * @param reader the Response, positioned at the start of the document or the Response element
+   * @param encrypted true if the Response's Assertions were encrypted, in which case only the
+   * decrypted Assertions inside its EncryptedAssertion elements are used. Otherwise only the
+   * Assertion elements in the Response are used.
+   * @param bag the Bag to add the attributes to
+   * @throws GuanxiException if the Response can't be read or an attribute is malformed
+   */
+  public void extract(XMLStreamReader reader, boolean encrypted, Bag bag) throws GuanxiException {
+    try {
+      while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+        reader.next();
+      }
+
+      // Work through the Response's children
+      while (nextChild(reader)) {
+        if (!encrypted && isSAML(reader, "Assertion")) {
+          if (!readAssertion(reader, bag)) {
+            return;
+          }
+        }
+        else if (encrypted && isSAML(reader, ENCRYPTED_ASSERTION)) {
+          while (nextChild(reader)) {
+            if (isSAML(reader, "Assertion")) {
+              if (!readAssertion(reader, bag)) {
+                return;
+              }
+            }
+            else {
+              skip(reader);
+            }
+          }
+        }
+        else {
+          skip(reader);
+        }
+      }
+    }
+    catch(XMLStreamException xse) {
+      throw new GuanxiException(xse);
+    }
+    finally {
+      try {
+        reader.close();
+      }
+      catch(XMLStreamException xse) {
+        // Nothing more to read anyway
+      }
+    }
+  }
+
+  /**
+   * Reads an Assertion. The Subject's NameID is only added once we know the Assertion
+   * has an AttributeStatement.
+   *
+   * @param reader positioned at the start of the Assertion
+   * @param bag the Bag to add the attributes to
+   * @return false if the Assertion had no AttributeStatement
+   * @throws XMLStreamException if an error occurs
+   * @throws GuanxiException if an attribute is malformed
+   */
+  private boolean readAssertion(XMLStreamReader reader, Bag bag) throws XMLStreamException, GuanxiException {
+    String nameID = null;
+    boolean hasNameID = false;
+    boolean hasAttributeStatement = false;
+
+    while (nextChild(reader)) {
+      if (isSAML(reader, "Subject")) {
+        while (nextChild(reader)) {
+          if (isSAML(reader, "NameID")) {
+            nameID = reader.getElementText();
+            hasNameID = true;
+          }
+          else {
+            skip(reader);
+          }
+        }
+      }
+      else if (isSAML(reader, "AttributeStatement") && !hasAttributeStatement) {
+        hasAttributeStatement = true;
+        if (hasNameID) {
+          bag.addAttribute(subjectNameIDAttributeName, nameID);
+        }
+        while (nextChild(reader)) {
+          if (isSAML(reader, "Attribute")) {
+            readAttribute(reader, bag);
+          }
+          else {
+            skip(reader);
+          }
+        }
+      }
+      else {
+        skip(reader);
+      }
+    }
+
+    return hasAttributeStatement;
+  }
+
+  /**
+   * Reads an Attribute and adds its values to the Bag
+   *
+   * @param reader positioned at the start of the Attribute
+   * @param bag the Bag to add the values to
+   * @throws XMLStreamException if an error occurs
+   * @throws GuanxiException if the attribute is malformed
+   */
+  private void readAttribute(XMLStreamReader reader, Bag bag) throws XMLStreamException, GuanxiException {
+    String name = getAttribute(reader, "Name");
+    String nameFormat = getAttribute(reader, "NameFormat");
+    String friendlyName = getAttribute(reader, "FriendlyName");
+    boolean hasFriendlyName = ((friendlyName != null) && (friendlyName.length() > 0));
+
+    if (nameFormat == null) {
+      throw new GuanxiException("Attribute " + name + " has no NameFormat");
+    }
+
+    if (nameFormat.equals(SAML.SAML2_ATTRIBUTE_PROFILE_BASIC)) {
+      while (nextChild(reader)) {
+        if (isSAML(reader, "AttributeValue")) {
+          AttributeValue value = readValue(reader, false);
+          if (!value.hasChildren) {
+            throw new GuanxiException("Attribute " + name + " has an empty value");
+          }
+          bag.addAttribute(name, value.firstChildValue);
+        }
+        else {
+          skip(reader);
+        }
+      }
+    }
+    else if (nameFormat.equals(SAML.SAML2_ATTRIBUTE_PROFILE_X500_LDAP)) {
+      if (name == null) {
+        throw new GuanxiException("X500/LDAP attribute has no Name");
+      }
+      // Remove the prefix from the attribute name
+      String attributeOID = name.replaceAll(EduPersonOID.ATTRIBUTE_NAME_PREFIX, "");
+      boolean targetedID = attributeOID.equals(EduPersonOID.OID_EDUPERSON_TARGETED_ID);
+
+      while (nextChild(reader)) {
+        if (!isSAML(reader, "AttributeValue")) {
+          skip(reader);
+          continue;
+        }
+
+        AttributeValue value = readValue(reader, targetedID);
+
+        // Is it a scoped attribute?
+        if (value.scope != null) {
+          if (!value.hasChildren) {
+            throw new GuanxiException("Attribute " + name + " has an empty scoped value");
+          }
+          String attrValue = value.firstChildValue;
+          attrValue += EduPerson.EDUPERSON_SCOPED_DELIMITER;
+          attrValue += value.scope;
+          if (hasFriendlyName) {
+            bag.addAttribute(friendlyName, attrValue);
+          }
+          bag.addAttribute(name, attrValue);
+          bag.addAttribute(attributeOID, attrValue);
+        }
+        // What about eduPersonTargetedID?
+        else if (targetedID) {
+          if (value.nameID != null) {
+            if (hasFriendlyName) {
+              bag.addAttribute(friendlyName, value.nameID);
+            }
+            bag.addAttribute(name, value.nameID);
+            bag.addAttribute(attributeOID, value.nameID);
+            bag.addAttribute("namequalifier", value.nameQualifier);
+            bag.addAttribute("spnamequalifier", value.spNameQualifier);
+          }
+          else if (value.hasChildren) {
+            throw new GuanxiException("Attribute " + name + " has no NameID");
+          }
+        }
+        else if (value.firstChildValue != null) {
+          if (hasFriendlyName) {
+            bag.addAttribute(friendlyName, value.firstChildValue);
+          }
+          bag.addAttribute(name, value.firstChildValue);
+          bag.addAttribute(attributeOID, value.firstChildValue);
+        }
+      }
+    }
+    else {
+      skip(reader);
+    }
+  }
+
+  /**
+   * Reads an AttributeValue. Only the parts the attribute rules need are kept: the value of
+   * its first child node, which is the text it starts with, its Scope and, for
+   * eduPersonTargetedID, its first NameID.
+   *
+   * @param reader positioned at the start of the AttributeValue
+   * @param targetedID true to look for a NameID
+   * @return the AttributeValue
+   * @throws XMLStreamException if an error occurs
+   */
+  private AttributeValue readValue(XMLStreamReader reader, boolean targetedID) throws XMLStreamException {
+    AttributeValue value = new AttributeValue();
+
+    // Only an unqualified Scope counts
+    for (int c=0; c < reader.getAttributeCount(); c++) {
+      if (reader.getAttributeLocalName(c).equals(EduPerson.EDUPERSON_SCOPE_ATTRIBUTE) &&
+          isEmpty(reader.getAttributePrefix(c))) {
+        value.scope = reader.getAttributeValue(c);
+        break;
+      }
+    }
+
+    StringBuilder firstText = null;
+    boolean readingFirstChild = true;
+    int event = reader.next();
+    while (event != XMLStreamConstants.END_ELEMENT) {
+      boolean isText = ((event == XMLStreamConstants.CHARACTERS) ||
+                        (event == XMLStreamConstants.CDATA) ||
+                        (event == XMLStreamConstants.SPACE));
+
+      if (readingFirstChild) {
+        if (isText) {
+          // The text may arrive in several pieces but it's still one node
+          if (firstText == null) {
+            firstText = new StringBuilder();
+          }
+          firstText.append(reader.getText());
+        }
+        else {
+          if (firstText == null) {
+            if (event == XMLStreamConstants.COMMENT) {
+              value.firstChildValue = reader.getText();
+            }
+            else if (event == XMLStreamConstants.PROCESSING_INSTRUCTION) {
+              value.firstChildValue = reader.getPIData();
+            }
+          }
+          readingFirstChild = false;
+        }
+      }
+
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        if (targetedID && (value.nameID == null) && reader.getLocalName().equals("NameID")) {
+          value.nameQualifier = getAttribute(reader, "NameQualifier");
+          value.spNameQualifier = getAttribute(reader, "SPNameQualifier");
+          value.nameID = readStringValue(reader);
+        }
+        else {
+          skip(reader);
+        }
+      }
+
+      if (isText || (event == XMLStreamConstants.START_ELEMENT) ||
+          (event == XMLStreamConstants.COMMENT) || (event == XMLStreamConstants.PROCESSING_INSTRUCTION)) {
+        value.hasChildren = true;
+      }
+
+      event = reader.next();
+    }
+
+    if (firstText != null) {
+      value.firstChildValue = firstText.toString();
+    }
+    return value;
+  }
+
+  /**
+   * Moves to the next child element of the current element
+   *
+   * @param reader positioned in the content of an element
+   * @return true if positioned at the start of a child element, false if at the end of the element
+   * @throws XMLStreamException if an error occurs
+   */
+  private boolean nextChild(XMLStreamReader reader) throws XMLStreamException {
+    while (true) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        return true;
+      }
+      if ((event == XMLStreamConstants.END_ELEMENT) || (event == XMLStreamConstants.END_DOCUMENT)) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Skips the current element and everything in it
+   *
+   * @param reader positioned at the start of the element
+   * @throws XMLStreamException if an error occurs
+   */
+  private void skip(XMLStreamReader reader) throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      }
+      else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
+  /**
+   * Reads all the text in the current element, including the text of any elements in it
+   *
+   * @param reader positioned at the start of the element
+   * @return the text
+   * @throws XMLStreamException if an error occurs
+   */
+  private String readStringValue(XMLStreamReader reader) throws XMLStreamException {
+    StringBuilder text = new StringBuilder();
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if ((event == XMLStreamConstants.CHARACTERS) || (event == XMLStreamConstants.CDATA) || (event == XMLStreamConstants.SPACE)) {
+        text.append(reader.getText());
+      }
+      else if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      }
+      else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+    return text.toString();
+  }
+
+  private boolean isSAML(XMLStreamReader reader, String localName) {
+    return SAML.NS_SAML_20_ASSERTION.equals(reader.getNamespaceURI()) && reader.getLocalName().equals(localName);
+  }
+
+  private String getAttribute(XMLStreamReader reader, String localName) {
+    for (int c=0; c < reader.getAttributeCount(); c++) {
+      if (reader.getAttributeLocalName(c).equals(localName) && isEmpty(reader.getAttributeNamespace(c))) {
+        return reader.getAttributeValue(c);
+      }
+    }
+    return null;
+  }
+
+  private boolean isEmpty(String value) {
+    return (value == null) || (value.length() == 0);
+  }
+
+  /**
+   * The parts of an AttributeValue the attribute rules need
+   */
+  private static class AttributeValue {
+    /** Whether the AttributeValue has any content */
+    boolean hasChildren = false;
+    /** The value of its first child node, which is null if that's an element */
+    String firstChildValue = null;
+    /** The unqualified Scope attribute */
+    String scope = null;
+    /** The eduPersonTargetedID NameID and its qualifiers */
+    String nameID = null;
+    String nameQualifier = null;
+    String spNameQualifier = null;
+  }
+}
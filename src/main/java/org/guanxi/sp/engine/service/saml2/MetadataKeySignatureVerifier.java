@@ -0,0 +1,132 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.service.saml2;
+
+import org.apache.log4j.Logger;
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.signature.XMLSignatureException;
+import org.apache.xml.security.utils.Constants;
+import org.apache.xml.security.utils.IdResolver;
+import org.apache.xmlbeans.XmlObject;
+import org.guanxi.sp.engine.trust.TrustMaterialIndex;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.security.PublicKey;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies the signature on a SAML2 message directly against the signing keys in the
+ * issuer's metadata. If one of them made the signature the issuer is trusted without having
+ * to parse the certificate in the signature's KeyInfo or run it through the trust engine.
+ * If none of them did the caller falls back to trusting the certificate in the signature.
+ */
+public class MetadataKeySignatureVerifier {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(MetadataKeySignatureVerifier.class.getName());
+  /** Whether to try the metadata keys at all */
+  private boolean enabled = true;
+  /** Where the issuers' signing keys come from */
+  private TrustMaterialIndex trustMaterialIndex = null;
+  /** How many signatures were verified with a metadata key */
+  private AtomicLong directVerifications = null;
+  /** How many signatures had to be left to the certificate in the signature */
+  private AtomicLong fallbacks = null;
+
+  public void init() {
+    org.apache.xml.security.Init.init();
+    directVerifications = new AtomicLong();
+    fallbacks = new AtomicLong();
+  }
+
+  /**
+   * Verifies the enveloped signature on a message with the issuer's metadata keys
+   *
+   * @param signedMessage the message, whose document element carries the signature
+   * @param issuer the entityID of the message's Issuer
+   * @return true if the signature is valid and was made with one of the issuer's metadata keys.
+   * false if the caller must verify the signature some other way
+   */
+  public boolean verify(XmlObject signedMessage, String issuer) {
+    if (enabled) {
+      TrustMaterialIndex.EntityTrustMaterial material = trustMaterialIndex.get(issuer);
+      if ((material != null) && (material.getPublicKeys().length > 0)) {
+        if (verify(((Document)signedMessage.newDomNode()).getDocumentElement(), material.getPublicKeys(), issuer)) {
+          directVerifications.incrementAndGet();
+          return true;
+        }
+      }
+    }
+
+    fallbacks.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Tries each of the issuer's keys against the signature on a message
+   *
+   * @param message the message element
+   * @param publicKeys the issuer's metadata keys
+   * @param issuer the entityID of the message's Issuer
+   * @return true if one of the keys verifies the signature
+   */
+  private boolean verify(Element message, PublicKey[] publicKeys, String issuer) {
+    Element signatureElement = null;
+    for (Node child = message.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if ((Constants.SignatureSpecNS.equals(child.getNamespaceURI())) && ("Signature".equals(child.getLocalName()))) {
+        signatureElement = (Element)child;
+        break;
+      }
+    }
+    if (signatureElement == null) return false;
+
+    try {
+      // The signature must cover the whole message and nothing else
+      String id = message.getAttribute("ID");
+      if (id.length() == 0) return false;
+      IdResolver.registerElementById(message, id);
+      XMLSignature signature = new XMLSignature(signatureElement, "");
+      if ((signature.getSignedInfo().getLength() != 1) || (!("#" + id).equals(signature.getSignedInfo().item(0).getURI()))) {
+        return false;
+      }
+
+      for (PublicKey publicKey : publicKeys) {
+        try {
+          if (signature.checkSignatureValue(publicKey)) return true;
+        }
+        catch(XMLSignatureException xse) {
+          // Not the right type of key for the signature so try the next one
+        }
+      }
+    }
+    catch(XMLSecurityException xse) {
+      logger.warn("Could not verify the signature with the metadata keys of : " + issuer, xse);
+    }
+
+    return false;
+  }
+
+  // Metrics
+  public long getDirectVerifications() { return directVerifications.get(); }
+  public long getFallbacks() { return fallbacks.get(); }
+
+  public void setEnabled(boolean enabled) { this.enabled = enabled; }
+  public void setTrustMaterialIndex(TrustMaterialIndex trustMaterialIndex) { this.trustMaterialIndex = trustMaterialIndex; }
+}
@@ -0,0 +1,216 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.service.saml2;
+
+import org.apache.log4j.Logger;
+import org.apache.xml.security.exceptions.Base64DecodingException;
+import org.apache.xml.security.utils.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Encodes the Guard that started a SAML2 login into the RelayState sent to the IdP, so
+ * the Engine doesn't have to remember it. The RelayState is a URL safe base64 token made
+ * up of the Guard's entityID, the Guard's session ID and the time the token was issued,
+ * followed by an HMAC-SHA256 of them made with the Engine's RelayState key.
+ *
+ * All the Engine nodes must use the same key. If no key is configured a random one is
+ * created, which only works when there's a single Engine node.
+ */
+public class RelayStateCodec {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(RelayStateCodec.class.getName());
+  /** The MAC algorithm */
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+  /** How many bytes of the MAC we keep in the token */
+  private static final int MAC_LENGTH = 16;
+  /** Version of the token format */
+  private static final int VERSION = 1;
+  /** The longest RelayState we'll try to decode. Real tokens are a fraction of this */
+  private static final int MAX_LENGTH = 1024;
+  /** Whether the Engine should use signed RelayState tokens */
+  private boolean enabled = false;
+  /** The shared secret used to MAC the tokens */
+  private String key = null;
+  /** How long, in seconds, a token is valid for */
+  private int maxAge = 1800;
+  /** The MAC key */
+  private SecretKeySpec macKey = null;
+
+  public void init() {
+    byte[] keyBytes = null;
+    if (key != null) {
+      try {
+        keyBytes = key.getBytes("UTF-8");
+      }
+      catch(UnsupportedEncodingException uee) {
+        // UTF-8 is always supported
+      }
+    }
+    if ((keyBytes == null) || (keyBytes.length == 0)) {
+      if (enabled) {
+        logger.warn("No RelayState key configured. Using a random key which only works with a single Engine node");
+      }
+      keyBytes = new byte[32];
+      new SecureRandom().nextBytes(keyBytes);
+    }
+    macKey = new SecretKeySpec(keyBytes, MAC_ALGORITHM);
+  }
+
+  /**
+   * Creates a RelayState token
+   *
+   * @param guardEntityID the entityID of the Guard that started the login
+   * @param guardSessionID the Guard's session ID
+   * @return the RelayState token
+   */
+  public String encode(String guardEntityID, String guardSessionID) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(VERSION);
+      out.writeInt((int)(System.currentTimeMillis() / 1000));
+      out.writeUTF(guardEntityID);
+      out.writeUTF(guardSessionID);
+      out.write(mac(bytes.toByteArray()));
+      out.flush();
+      return toBase64URL(bytes.toByteArray());
+    }
+    catch(IOException ioe) {
+      // Can't happen writing to memory
+      throw new IllegalStateException(ioe);
+    }
+  }
+
+  /**
+   * Verifies a RelayState token and extracts the Guard from it
+   *
+   * @param relayState the RelayState token
+   * @return the Guard's entityID and session ID or null if the codec is disabled or the token
+   * is invalid or has expired
+   */
+  public RelayState decode(String relayState) {
+    if ((!enabled) || (relayState == null) || (relayState.length() > MAX_LENGTH)) return null;
+
+    byte[] token = fromBase64URL(relayState);
+    if ((token == null) || (token.length <= MAC_LENGTH)) return null;
+
+    byte[] payload = new byte[token.length - MAC_LENGTH];
+    byte[] tokenMAC = new byte[MAC_LENGTH];
+    System.arraycopy(token, 0, payload, 0, payload.length);
+    System.arraycopy(token, payload.length, tokenMAC, 0, MAC_LENGTH);
+    if (!MessageDigest.isEqual(mac(payload), tokenMAC)) {
+      logger.warn("RelayState failed verification");
+      return null;
+    }
+
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+      if (in.readByte() != VERSION) return null;
+      long issued = in.readInt() & 0xffffffffL;
+      RelayState state = new RelayState(in.readUTF(), in.readUTF(), issued * 1000);
+
+      long age = System.currentTimeMillis() - state.getIssued();
+      if ((age < 0) || (age > (maxAge * 1000L))) {
+        logger.warn("RelayState for Guard '" + state.getGuardEntityID() + "' has expired");
+        return null;
+      }
+
+      return state;
+    }
+    catch(IOException ioe) {
+      return null;
+    }
+  }
+
+  /**
+   * MACs some data
+   *
+   * @param data the data to MAC
+   * @return the truncated MAC of the data
+   */
+  private byte[] mac(byte[] data) {
+    try {
+      Mac mac = Mac.getInstance(MAC_ALGORITHM);
+      mac.init(macKey);
+      byte[] fullMAC = mac.doFinal(data);
+      byte[] truncatedMAC = new byte[MAC_LENGTH];
+      System.arraycopy(fullMAC, 0, truncatedMAC, 0, MAC_LENGTH);
+      return truncatedMAC;
+    }
+    catch(GeneralSecurityException gse) {
+      throw new IllegalStateException(gse);
+    }
+  }
+
+  private String toBase64URL(byte[] data) {
+    StringBuilder b64 = new StringBuilder();
+    for (char c : Base64.encode(data).toCharArray()) {
+      if (c == '+') b64.append('-');
+      else if (c == '/') b64.append('_');
+      else if ((c != '=') && (!Character.isWhitespace(c))) b64.append(c);
+    }
+    return b64.toString();
+  }
+
+  private byte[] fromBase64URL(String data) {
+    StringBuilder b64 = new StringBuilder(data.length() + 2);
+    for (char c : data.toCharArray()) {
+      if (c == '-') b64.append('+');
+      else if (c == '_') b64.append('/');
+      else b64.append(c);
+    }
+    while ((b64.length() % 4) != 0) {
+      b64.append('=');
+    }
+    try {
+      return Base64.decode(b64.toString());
+    }
+    catch(Base64DecodingException bde) {
+      return null;
+    }
+  }
+
+  public boolean isEnabled() { return enabled; }
+
+  public void setEnabled(boolean enabled) { this.enabled = enabled; }
+  public void setKey(String key) { this.key = key; }
+  public void setMaxAge(int maxAge) { this.maxAge = maxAge; }
+
+  /** The Guard that started a login, as carried in a RelayState token */
+  public static final class RelayState {
+    private final String guardEntityID;
+    private final String guardSessionID;
+    private final long issued;
+
+    RelayState(String guardEntityID, String guardSessionID, long issued) {
+      this.guardEntityID = guardEntityID;
+      this.guardSessionID = guardSessionID;
+      this.issued = issued;
+    }
+
+    public String getGuardEntityID() { return guardEntityID; }
+    public String getGuardSessionID() { return guardSessionID; }
+    public long getIssued() { return issued; }
+  }
+}
@@ -0,0 +1,257 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.service.saml2;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.entity.EntityFarm;
+import org.guanxi.common.entity.EntityManager;
+import org.guanxi.sp.engine.Config;
+import org.guanxi.sp.engine.security.ReplayCache;
+import org.guanxi.xal.saml_2_0.assertion.AssertionType;
+import org.guanxi.xal.saml_2_0.assertion.AudienceRestrictionType;
+import org.guanxi.xal.saml_2_0.assertion.ConditionsType;
+import org.guanxi.xal.saml_2_0.assertion.SubjectConfirmationType;
+import org.guanxi.xal.saml_2_0.protocol.ResponseDocument;
+import org.guanxi.xal.saml_2_0.protocol.ResponseType;
+import org.springframework.web.context.ServletContextAware;
+
+import javax.servlet.ServletContext;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Validates a SAML2 Response in order of cost, so the cheap checks turn away junk and stale
+ * posts before anything reaches the signature verification or decryption. The stages are:
+ *
+ * SIZE - the encoded and decoded size of the Response, enforced by the InboundMessageDecoder
+ * ISSUER - the Issuer must be an IdP we have metadata for
+ * DESTINATION - the Response and SubjectConfirmations must be for us and the Assertions for the Guard
+ * TIME_WINDOW - the Response must be recent and the Assertions' Conditions current
+ * REPLAY - the Response and Assertions mustn't have been accepted before
+ * SIGNATURE - the signature must be from a trusted IdP
+ * DECRYPTION - the Assertions must decrypt with the Guard's private key
+ *
+ * The validator runs the stages up to REPLAY. The caller runs SIGNATURE and DECRYPTION and reports
+ * the outcome, along with that of SIZE, so that every stage has it's own counters.
+ */
+public class ResponseValidator implements ServletContextAware {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(ResponseValidator.class.getName());
+  /** The ServletContext, passed to us by Spring as we are ServletContextAware */
+  private ServletContext servletContext = null;
+  /** Our assertion consumer service URL. If set, the Destination and Recipients must match it */
+  private String assertionConsumerServiceURL = null;
+  /** How old, in seconds, a Response can be */
+  private int maxResponseAge = 300;
+  /** How far, in seconds, the IdPs' clocks are allowed to be out from ours */
+  private int clockSkew = 180;
+  /** How many Responses passed each stage */
+  private AtomicLongArray passed = null;
+  /** How many Responses were rejected at each stage */
+  private AtomicLongArray rejected = null;
+
+  /** The validation stages, cheapest first */
+  public enum Stage { SIZE, ISSUER, DESTINATION, TIME_WINDOW, REPLAY, SIGNATURE, DECRYPTION }
+
+  // Called by Spring as we are ServletContextAware
+  public void setServletContext(ServletContext servletContext) { this.servletContext = servletContext; }
+
+  public void init() {
+    passed = new AtomicLongArray(Stage.values().length);
+    rejected = new AtomicLongArray(Stage.values().length);
+
+    if ((assertionConsumerServiceURL == null) || (assertionConsumerServiceURL.length() == 0)) {
+      logger.warn("No assertion consumer service URL, Responses will be accepted whatever their Destination and Recipients");
+    }
+  }
+
+  /**
+   * Runs the cheap stages against a Response
+   *
+   * @param responseDocument the Response from the IdP
+   * @param guardEntityID the entityID of the Guard the Response is for
+   * @return the stage that rejected the Response or null if it passed them all
+   */
+  public Stage validate(ResponseDocument responseDocument, String guardEntityID) {
+    ResponseType samlResponse = responseDocument.getResponse();
+    String issuer = (samlResponse.getIssuer() == null) ? null : samlResponse.getIssuer().getStringValue();
+
+    if (!isKnownIssuer(issuer)) {
+      return reject(Stage.ISSUER, issuer);
+    }
+    passed(Stage.ISSUER);
+
+    if (!isForUs(samlResponse, guardEntityID)) {
+      return reject(Stage.DESTINATION, issuer);
+    }
+    passed(Stage.DESTINATION);
+
+    if (!isCurrent(samlResponse)) {
+      return reject(Stage.TIME_WINDOW, issuer);
+    }
+    passed(Stage.TIME_WINDOW);
+
+    if (isReplay(samlResponse, issuer)) {
+      return reject(Stage.REPLAY, issuer);
+    }
+    passed(Stage.REPLAY);
+
+    return null;
+  }
+
+  /**
+   * Records that a Response passed a stage
+   *
+   * @param stage the stage
+   */
+  public void passed(Stage stage) {
+    passed.incrementAndGet(stage.ordinal());
+  }
+
+  /**
+   * Records that a Response was rejected at a stage
+   *
+   * @param stage the stage
+   */
+  public void rejected(Stage stage) {
+    rejected.incrementAndGet(stage.ordinal());
+  }
+
+  /**
+   * Records and logs a rejection
+   *
+   * @param stage the stage that rejected the Response
+   * @param issuer the Issuer of the Response
+   * @return the stage
+   */
+  private Stage reject(Stage stage, String issuer) {
+    rejected(stage);
+    logger.warn("Response from " + issuer + " failed the " + stage + " check");
+    return stage;
+  }
+
+  /**
+   * @param issuer the Issuer of the Response
+   * @return true if we have metadata for the Issuer
+   */
+  private boolean isKnownIssuer(String issuer) {
+    if (issuer == null) return false;
+    EntityFarm farm = (EntityFarm)servletContext.getAttribute(Guanxi.CONTEXT_ATTR_ENGINE_ENTITY_FARM);
+    EntityManager manager = farm.getEntityManagerForID(issuer);
+    return (manager != null) && (manager.getMetadata(issuer) != null);
+  }
+
+  /**
+   * @param samlResponse the Response
+   * @param guardEntityID the entityID of the Guard the Response is for
+   * @return true if the Response was sent to us and it's Assertions are for the Guard
+   */
+  private boolean isForUs(ResponseType samlResponse, String guardEntityID) {
+    if (!isOurURL(samlResponse.getDestination())) return false;
+
+    // Encrypted Assertions are checked by the Guard once they're decrypted
+    for (AssertionType assertion : samlResponse.getAssertionArray()) {
+      if (assertion.getSubject() != null) {
+        for (SubjectConfirmationType confirmation : assertion.getSubject().getSubjectConfirmationArray()) {
+          if ((confirmation.getSubjectConfirmationData() != null) &&
+              (!isOurURL(confirmation.getSubjectConfirmationData().getRecipient()))) {
+            return false;
+          }
+        }
+      }
+
+      if (assertion.getConditions() != null) {
+        for (AudienceRestrictionType audienceRestriction : assertion.getConditions().getAudienceRestrictionArray()) {
+          if (!Arrays.asList(audienceRestriction.getAudienceArray()).contains(guardEntityID)) return false;
+        }
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * @param url a Destination or Recipient
+   * @return true if there's no URL, we haven't been told ours or it's ours
+   */
+  private boolean isOurURL(String url) {
+    if ((url == null) || (assertionConsumerServiceURL == null) || (assertionConsumerServiceURL.length() == 0)) return true;
+    return url.equals(assertionConsumerServiceURL);
+  }
+
+  /**
+   * @param samlResponse the Response
+   * @return true if the Response is recent and it's Assertions are current
+   */
+  private boolean isCurrent(ResponseType samlResponse) {
+    long now = System.currentTimeMillis();
+    long skew = clockSkew * 1000L;
+
+    if (samlResponse.getIssueInstant() != null) {
+      long issued = samlResponse.getIssueInstant().getTimeInMillis();
+      if ((issued > now + skew) || (issued < now - (maxResponseAge * 1000L) - skew)) return false;
+    }
+
+    for (AssertionType assertion : samlResponse.getAssertionArray()) {
+      ConditionsType conditions = assertion.getConditions();
+      if (conditions != null) {
+        if ((conditions.getNotBefore() != null) && (conditions.getNotBefore().getTimeInMillis() > now + skew)) return false;
+        if ((conditions.getNotOnOrAfter() != null) && (conditions.getNotOnOrAfter().getTimeInMillis() <= now - skew)) return false;
+      }
+
+      if (assertion.getSubject() != null) {
+        for (SubjectConfirmationType confirmation : assertion.getSubject().getSubjectConfirmationArray()) {
+          if (confirmation.getSubjectConfirmationData() != null) {
+            Calendar notOnOrAfter = confirmation.getSubjectConfirmationData().getNotOnOrAfter();
+            if ((notOnOrAfter != null) && (notOnOrAfter.getTimeInMillis() <= now - skew)) return false;
+          }
+        }
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Looks for the Response and Assertions in the replay cache without recording them. They're
+   * only recorded once the signature has been verified, so a forged copy of a Response can't
+   * lock out the real one.
+   *
+   * @param samlResponse the Response
+   * @param issuer the Issuer of the Response
+   * @return true if the Response or any of it's Assertions has been accepted before
+   */
+  private boolean isReplay(ResponseType samlResponse, String issuer) {
+    ReplayCache replayCache = (ReplayCache)servletContext.getAttribute(Config.CONTEXT_ATTR_ENGINE_REPLAY_CACHE);
+    if ((samlResponse.getID() != null) && (replayCache.contains(issuer, samlResponse.getID()))) return true;
+    for (AssertionType assertion : samlResponse.getAssertionArray()) {
+      if ((assertion.getID() != null) && (replayCache.contains(issuer, assertion.getID()))) return true;
+    }
+    return false;
+  }
+
+  // Metrics
+  public long getPassed(Stage stage) { return passed.get(stage.ordinal()); }
+  public long getRejected(Stage stage) { return rejected.get(stage.ordinal()); }
+
+  public void setAssertionConsumerServiceURL(String assertionConsumerServiceURL) { this.assertionConsumerServiceURL = assertionConsumerServiceURL; }
+  public void setMaxResponseAge(int maxResponseAge) { this.maxResponseAge = maxResponseAge; }
+  public void setClockSkew(int clockSkew) { this.clockSkew = clockSkew; }
+}
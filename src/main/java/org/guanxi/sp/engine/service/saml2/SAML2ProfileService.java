@@ -22,14 +22,12 @@ import org.guanxi.common.GuanxiException;
 import org.guanxi.common.Utils;
 import org.guanxi.common.definitions.SAML;
 import org.guanxi.common.entity.EntityFarm;
-import org.guanxi.common.entity.EntityManager;
-import org.guanxi.common.metadata.Metadata;
 import org.guanxi.common.security.SecUtilsConfig;
+import org.guanxi.sp.engine.idp.IdP;
+import org.guanxi.sp.engine.idp.IdPRegistry;
 import org.guanxi.sp.engine.service.generic.ProfileService;
 import org.guanxi.xal.saml2.metadata.GuardRoleDescriptorExtensions;
 import org.guanxi.xal.saml_2_0.assertion.NameIDType;
-import org.guanxi.xal.saml_2_0.metadata.EndpointType;
-import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
 import org.guanxi.xal.saml_2_0.protocol.AuthnRequestDocument;
 import org.guanxi.xal.saml_2_0.protocol.AuthnRequestType;
 import org.springframework.web.servlet.ModelAndView;
@@ -54,6 +52,10 @@ public class SAML2ProfileService implements ProfileService {
   private String httpRedirectView = null;
   /** The default endpoint for receiving SAML Response messages */
   private String assertionConsumerServiceURL = null;
+  /** Creates signed RelayState tokens */
+  private RelayStateCodec relayStateCodec = null;
+  /** The IdPs the Engine knows about */
+  private IdPRegistry idpRegistry = null;
 
   /** @see org.guanxi.sp.engine.service.generic.ProfileService#init() */
   public void init() {}
@@ -64,37 +66,27 @@ public class SAML2ProfileService implements ProfileService {
                                 String entityID, EntityFarm farm) throws GuanxiException {
     ModelAndView mAndV = new ModelAndView();
 
-    String relayState = guardSessionID.replaceAll("GUARD", "ENGINE");
-
-    // Load the metadata for the IdP
-    EntityManager manager = farm.getEntityManagerForID(entityID);
-    if (manager == null) {
-      logger.error("Could not find manager for IdP '" + entityID);
-      throw new GuanxiException("Could not find manager for IdP " + entityID);
+    String relayState = null;
+    if (isStatelessRelayState()) {
+      // The Guard travels in the RelayState so the Engine doesn't need to remember it
+      relayState = relayStateCodec.encode(guardID, guardSessionID);
     }
-    Metadata entityMetadata = manager.getMetadata(entityID);
-    if (entityMetadata == null) {
-      logger.error("Could not find manager for IdP " + entityID);
-      throw new GuanxiException("Could not find metadata for IdP " + entityID);
+    else {
+      relayState = guardSessionID.replaceAll("GUARD", "ENGINE");
     }
-    EntityDescriptorType saml2Metadata = (EntityDescriptorType)entityMetadata.getPrivateData();
-
-    String wbssoURL = null;
-    String binding = null;
-    EndpointType[] ssos = saml2Metadata.getIDPSSODescriptorArray(0).getSingleSignOnServiceArray();
-    for (EndpointType sso : ssos) {
-      if ((sso.getBinding().equalsIgnoreCase(SAML.SAML2_BINDING_HTTP_POST)) ||
-          (sso.getBinding().equalsIgnoreCase(SAML.SAML2_BINDING_HTTP_REDIRECT))) {
-        wbssoURL = sso.getLocation();
-        if (sso.getBinding().equalsIgnoreCase(SAML.SAML2_BINDING_HTTP_POST)) binding = SAML.SAML2_BINDING_HTTP_POST;
-        else if (sso.getBinding().equalsIgnoreCase(SAML.SAML2_BINDING_HTTP_REDIRECT)) binding = SAML.SAML2_BINDING_HTTP_REDIRECT;
-        break;
-      }
+
+    // Find out where the IdP does WBSSO
+    IdP idp = idpRegistry.getIdP(entityID);
+    if (idp == null) {
+      logger.error("Could not find metadata for IdP " + entityID);
+      throw new GuanxiException("Could not find metadata for IdP " + entityID);
     }
-    if (wbssoURL == null) {
+    if (!idp.supportsSAML2()) {
       logger.error("IdP does not support WBSSO " + entityID);
       throw new GuanxiException("IdP does not support WBSSO " + entityID);
     }
+    String wbssoURL = idp.getWebBrowserSSOService().getLocation();
+    String binding = idp.getWebBrowserSSOService().getBinding();
 
     // Create an AuthnRequest
     AuthnRequestDocument authnRequestDoc = AuthnRequestDocument.Factory.newInstance();
@@ -190,8 +182,19 @@ public class SAML2ProfileService implements ProfileService {
     return mAndV;
   }
 
+  /**
+   * Determines whether the Guard is sent to the IdP in a signed RelayState token
+   *
+   * @return true if the Engine doesn't need to store the Guard while the user is at the IdP
+   */
+  public boolean isStatelessRelayState() {
+    return (relayStateCodec != null) && (relayStateCodec.isEnabled());
+  }
+
   // Setters
   public void setHttpPOSTView(String httpPOSTView) { this.httpPOSTView = httpPOSTView; }
   public void setHttpRedirectView(String httpRedirectView) { this.httpRedirectView = httpRedirectView; }
   public void setAssertionConsumerServiceURL(String assertionConsumerServiceURL) { this.assertionConsumerServiceURL = assertionConsumerServiceURL; }
+  public void setRelayStateCodec(RelayStateCodec relayStateCodec) { this.relayStateCodec = relayStateCodec; }
+  public void setIdpRegistry(IdPRegistry idpRegistry) { this.idpRegistry = idpRegistry; }
 }
@@ -16,50 +16,48 @@
 
 package org.guanxi.sp.engine.service.saml2;
 
-import org.apache.xmlbeans.XmlObject;
 import org.guanxi.common.Bag;
-import org.guanxi.common.definitions.EduPerson;
-import org.guanxi.common.definitions.EduPersonOID;
-import org.guanxi.xal.saml_2_0.assertion.*;
 import org.springframework.web.servlet.mvc.multiaction.MultiActionController;
 import org.springframework.web.context.ServletContextAware;
 import org.springframework.context.MessageSource;
 import org.apache.log4j.Logger;
+import org.apache.xmlbeans.GDate;
 import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
 import org.apache.xmlbeans.XmlOptions;
-import org.apache.xml.security.utils.EncryptionConstants;
-import org.apache.xml.security.encryption.XMLCipher;
-import org.apache.xml.security.encryption.XMLEncryptionException;
-import org.apache.xml.security.encryption.EncryptedData;
-import org.apache.xml.security.encryption.EncryptedKey;
 import org.guanxi.common.GuanxiException;
 import org.guanxi.common.Utils;
-import org.guanxi.common.EntityConnection;
 import org.guanxi.common.entity.EntityFarm;
 import org.guanxi.common.entity.EntityManager;
 import org.guanxi.common.trust.TrustUtils;
 import org.guanxi.common.metadata.Metadata;
 import org.guanxi.common.definitions.SAML;
 import org.guanxi.common.definitions.Guanxi;
-import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.guanxi.xal.saml_2_0.assertion.AssertionType;
 import org.guanxi.xal.saml_2_0.protocol.ResponseDocument;
-import org.guanxi.xal.w3.xmlenc.EncryptedKeyDocument;
-import org.guanxi.xal.saml2.metadata.GuardRoleDescriptorExtensions;
-import org.guanxi.sp.Util;
+import org.guanxi.xal.saml_2_0.protocol.ResponseType;
 import org.guanxi.sp.engine.Config;
+import org.guanxi.sp.engine.binding.InboundMessageDecoder;
+import org.guanxi.sp.engine.binding.MessageTooLargeException;
+import org.guanxi.sp.engine.connection.BackChannelClient;
+import org.guanxi.sp.engine.connection.BackChannelConnection;
+import org.guanxi.sp.engine.guard.Guard;
+import org.guanxi.sp.engine.guard.GuardKeyCache;
+import org.guanxi.sp.engine.guard.GuardRegistry;
+import org.guanxi.sp.engine.security.ReplayCache;
+import org.guanxi.sp.engine.trust.TrustDecisionCache;
+import org.guanxi.sp.engine.session.EngineSession;
+import org.guanxi.sp.engine.session.EngineSessionStore;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.net.URLEncoder;
 
@@ -83,8 +81,23 @@ public class WebBrowserSSOAuthConsumerService extends MultiActionController impl
   private boolean logResponse = false;
   /** Add a Subject/NameID to the bag of attributes under this name */
   private String subjectNameIDAttributeName = null;
-
-  public void init() {}
+  /** Where we get the Guards' private keys from */
+  private GuardKeyCache guardKeyCache = null;
+  /** Decodes signed RelayState tokens */
+  private RelayStateCodec relayStateCodec = null;
+  /** Builds the Bag of attributes from the Response */
+  private AttributeExtractor attributeExtractor = null;
+  /** Decrypts encrypted Responses */
+  private AssertionDecryptor assertionDecryptor = null;
+  /** Verifies signatures with the IdP's metadata keys */
+  private MetadataKeySignatureVerifier metadataKeySignatureVerifier = null;
+  /** Runs the cheap checks on a Response before the crypto */
+  private ResponseValidator responseValidator = null;
+
+  public void init() {
+    attributeExtractor = new AttributeExtractor(subjectNameIDAttributeName);
+    assertionDecryptor = new AssertionDecryptor();
+  }
 
   public void destroy() {}
 
@@ -104,30 +117,83 @@ public class WebBrowserSSOAuthConsumerService extends MultiActionController impl
     String guardSession = request.getParameter("RelayState");
     String b64SAMLResponse = request.getParameter("SAMLResponse");
 
-    if ((getServletContext().getAttribute(guardSession.replaceAll("GUARD", "ENGINE")) == null)) {
-      response.setContentType("text/html");
-      PrintWriter out = response.getWriter();
-      out.println("Metadata error<br /><br />");
-      out.println("Not a valid session");
-      out.flush();
-      out.close();
+    EngineSessionStore sessionStore = (EngineSessionStore)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_SESSION_STORE);
+    GuardRegistry guardRegistry = (GuardRegistry)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_GUARD_REGISTRY);
+    Guard guard = null;
+    boolean statelessRelayState = false;
+
+    // A signed RelayState carries the Guard with it...
+    if ((relayStateCodec != null) && (relayStateCodec.isEnabled()) && (guardSession != null)) {
+      RelayStateCodec.RelayState relayState = relayStateCodec.decode(guardSession);
+      if (relayState != null) {
+        guard = guardRegistry.getGuard(relayState.getGuardEntityID());
+        guardSession = relayState.getGuardSessionID();
+        statelessRelayState = true;
+      }
+    }
+
+    /* ...otherwise we previously changed the Guard session ID to an Engine one. Claiming the
+     * session means no other request, on this or any other Engine node, can process it.
+     */
+    String claimedSessionID = null;
+    if ((!statelessRelayState) && (guardSession != null)) {
+      EngineSession engineSession = sessionStore.claim(guardSession.replaceAll("GUARD", "ENGINE"));
+      if (engineSession != null) {
+        claimedSessionID = guardSession.replaceAll("GUARD", "ENGINE");
+        guard = guardRegistry.getGuard(engineSession.getGuardEntityID());
+      }
+    }
+
+    if (guard == null) {
+      if (claimedSessionID != null) sessionStore.release(claimedSessionID);
+      showError(response, "Metadata error", "Not a valid session");
       return;
     }
 
-    // We previously changed the Guard session ID to an Engine one...
-    EntityDescriptorType guardEntityDescriptor = (EntityDescriptorType)getServletContext().getAttribute(guardSession.replaceAll("GUARD", "ENGINE"));
     // ...so now change it back as it will be passed to the Guard
     guardSession = guardSession.replaceAll("ENGINE", "GUARD");
 
+    // Until the response has passed validation it mustn't use up the login
+    boolean validated = false;
     try {
       // Decode and unmarshall the response from the IdP
       ResponseDocument responseDocument = null;
-      if (request.getMethod().equalsIgnoreCase("post")) {
-        responseDocument = ResponseDocument.Factory.parse(new StringReader(Utils.decodeBase64(b64SAMLResponse)));
+      InboundMessageDecoder decoder = (InboundMessageDecoder)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_INBOUND_MESSAGE_DECODER);
+      InputStream decodedResponse = null;
+      try {
+        // The Redirect binding deflates the response before encoding it
+        decodedResponse = decoder.decode(b64SAMLResponse, !request.getMethod().equalsIgnoreCase("post"));
+      }
+      catch(MessageTooLargeException mtle) {
+        responseValidator.rejected(ResponseValidator.Stage.SIZE);
+        showError(response, "Validation error", mtle.getMessage());
+        return;
       }
-      else {
-        byte[] decodedRequest = Utils.decodeBase64b(b64SAMLResponse);
-        responseDocument = ResponseDocument.Factory.parse(Utils.inflate(decodedRequest, Utils.RFC1951_NO_WRAP));
+      // The decoder is lazy so the size bound is usually only reached while parsing
+      try {
+        responseDocument = ResponseDocument.Factory.parse(decodedResponse);
+      }
+      catch(MessageTooLargeException mtle) {
+        responseValidator.rejected(ResponseValidator.Stage.SIZE);
+        showError(response, "Validation error", mtle.getMessage());
+        return;
+      }
+      catch(XmlException xe) {
+        if (!(xe.getCause() instanceof MessageTooLargeException)) throw xe;
+        responseValidator.rejected(ResponseValidator.Stage.SIZE);
+        showError(response, "Validation error", xe.getCause().getMessage());
+        return;
+      }
+      finally {
+        decodedResponse.close();
+      }
+      responseValidator.passed(ResponseValidator.Stage.SIZE);
+
+      // Run the cheap checks first so junk and stale responses never reach the crypto
+      ResponseValidator.Stage failedStage = responseValidator.validate(responseDocument, guard.getEntityID());
+      if (failedStage != null) {
+        showError(response, "Validation error", "The response failed the " + failedStage + " check");
+        return;
       }
       String idpProviderId = responseDocument.getResponse().getIssuer().getStringValue();
 
@@ -155,67 +221,68 @@ public class WebBrowserSSOAuthConsumerService extends MultiActionController impl
       }
 
       // Do the trust
-      if (responseDocument.getResponse().getSignature() != null) {
-        if (!TrustUtils.verifySignature(responseDocument)) {
-          throw new GuanxiException("Trust failed");
-        }
-        EntityFarm farm = (EntityFarm)getServletContext().getAttribute(Guanxi.CONTEXT_ATTR_ENGINE_ENTITY_FARM);
-        EntityManager manager = farm.getEntityManagerForID(idpProviderId);
-        X509Certificate x509 = TrustUtils.getX509CertFromSignature(responseDocument);
-        if (x509 != null) {
-          Metadata idpMetadata = manager.getMetadata(idpProviderId);
-          if (!manager.getTrustEngine().trustEntity(idpMetadata, x509)) {
-            throw new GuanxiException("Trust failed");
-          }
-        }
-        else {
-          throw new GuanxiException("No X509 from signature");
-        }
+      if (!isTrusted(responseDocument, idpProviderId)) {
+        responseValidator.rejected(ResponseValidator.Stage.SIGNATURE);
+        showError(response, "Trust error", "Trust failed");
+        return;
+      }
+      responseValidator.passed(ResponseValidator.Stage.SIGNATURE);
+
+      // Now we know who sent it, record the Response so it can't be used again
+      if (!isNewResponse(responseDocument, idpProviderId)) {
+        responseValidator.rejected(ResponseValidator.Stage.REPLAY);
+        showError(response, "Replay error", "This response has already been used");
+        return;
       }
 
-      /* Load up the Guard's private key. We need this to decrypt the secret key
+      /* Get the Guard's private key. We need this to decrypt the secret key
        * which was used to encrypt the attributes.
        */
-      KeyStore guardKeystore = KeyStore.getInstance("JKS");
-      GuardRoleDescriptorExtensions guardNativeMetadata = Util.getGuardNativeMetadata(guardEntityDescriptor);
-      FileInputStream fis = new FileInputStream(guardNativeMetadata.getKeystore());
-      guardKeystore.load(fis, guardNativeMetadata.getKeystorePassword().toCharArray());
-      fis.close();
-      PrivateKey guardPrivateKey = (PrivateKey)guardKeystore.getKey(guardEntityDescriptor.getEntityID(), guardNativeMetadata.getKeystorePassword().toCharArray());
-
-      // Decrypt the response if required
-      if (isEncrypted(responseDocument)) {
+      PrivateKey guardPrivateKey = guardKeyCache.getKeyMaterial(guard).getPrivateKey();
+
+      // Decrypt the response if required. For decryption, we need to be in DOM land
+      XmlObject samlResponse = responseDocument;
+      boolean encrypted = isEncrypted(responseDocument);
+      if (encrypted) {
         try {
-          responseDocument = decryptResponse(responseDocument, xmlOptions, guardPrivateKey);
+          samlResponse = assertionDecryptor.decrypt((Document)responseDocument.newDomNode(xmlOptions), guardPrivateKey);
         }
         catch(GuanxiException ge) {
-          response.setContentType("text/html");
-          PrintWriter out = response.getWriter();
-          out.println("Decryption error<br /><br />");
-          out.println(ge.getMessage());
-          out.flush();
-          out.close();
+          responseValidator.rejected(ResponseValidator.Stage.DECRYPTION);
+          showError(response, "Decryption error", ge.getMessage());
+          return;
+        }
+        responseValidator.passed(ResponseValidator.Stage.DECRYPTION);
+
+        // The Assertions' IDs could only be recorded once we could see them
+        if (!isNewDecryptedAssertions(samlResponse, idpProviderId)) {
+          responseValidator.rejected(ResponseValidator.Stage.REPLAY);
+          showError(response, "Replay error", "This response has already been used");
           return;
         }
       }
 
+      validated = true;
       Config config = (Config)getServletContext().getAttribute(Guanxi.CONTEXT_ATTR_ENGINE_CONFIG);
-      processGuardConnection(guardNativeMetadata.getAttributeConsumerServiceURL(),
-              guardEntityDescriptor.getEntityID(),
-              guardNativeMetadata.getKeystore(),
-              guardNativeMetadata.getKeystorePassword(),
+      processGuardConnection(guard.getAttributeConsumerServiceURL(),
+              guard.getEntityID(),
+              guard.getKeystore(),
+              guard.getKeystorePassword(),
               config.getTrustStore(),
               config.getTrustStorePassword(),
-              responseDocument,
+              samlResponse,
+              encrypted,
               guardSession);
 
       /* Stop replay attacks.
        * If another message comes in with the same RelayState we won't be able
-       * to find the Guard metadata it refers to as we've deleted it.
+       * to claim the session it refers to as we've deleted it.
        */
-      getServletContext().removeAttribute(guardSession.replaceAll("GUARD", "ENGINE"));
+      if (!statelessRelayState) {
+        sessionStore.remove(guardSession.replaceAll("GUARD", "ENGINE"));
+      }
 
-      response.sendRedirect(guardNativeMetadata.getPodderURL() + "?id=" + guardSession);
+      response.sendRedirect(guard.getPodderURL() + "?id=" + guardSession);
     }
     catch(XmlException xe) {
       logger.error(xe);
@@ -223,191 +290,190 @@ public class WebBrowserSSOAuthConsumerService extends MultiActionController impl
     catch(Exception e) {
       logger.error(e);
     }
+    finally {
+      if ((!validated) && (claimedSessionID != null)) {
+        sessionStore.release(claimedSessionID);
+      }
+    }
   }
 
   private String processGuardConnection(String acsURL, String entityID, String keystoreFile, String keystorePassword,
                                         String truststoreFile, String truststorePassword,
-                                        ResponseDocument responseDocument, String guardSession) throws GuanxiException, IOException {
-    EntityConnection connection;
-
-    Bag bag = getBag(responseDocument, guardSession);
+                                        XmlObject samlResponse, boolean encrypted,
+                                        String guardSession) throws GuanxiException, IOException {
+    Bag bag = getBag(samlResponse, encrypted, guardSession);
 
     // Initialise the connection to the Guard's attribute consumer service
-    connection = new EntityConnection(acsURL, entityID,
-                                      keystoreFile, keystorePassword,
-                                      truststoreFile, truststorePassword,
-                                      EntityConnection.PROBING_OFF);
-    connection.setDoOutput(true);
-    connection.connect();
-
-    // Send the data to the Guard in an explicit POST variable
-    String json = URLEncoder.encode(Guanxi.REQUEST_PARAMETER_SAML_ATTRIBUTES, "UTF-8") + "=" + URLEncoder.encode(bag.toJSON(), "UTF-8");
+    BackChannelClient backChannelClient = (BackChannelClient)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_BACK_CHANNEL_CLIENT);
+    BackChannelConnection connection = backChannelClient.openConnection(acsURL, entityID,
+                                                                        keystoreFile, keystorePassword,
+                                                                        truststoreFile, truststorePassword,
+                                                                        false);
+    try {
+      connection.setDoOutput(true);
+      connection.connect();
 
-    OutputStreamWriter wr = new OutputStreamWriter(connection.getOutputStream());
-    wr.write(json);
-    wr.flush();
-    wr.close();
+      // Send the data to the Guard in an explicit POST variable
+      String json = URLEncoder.encode(Guanxi.REQUEST_PARAMETER_SAML_ATTRIBUTES, "UTF-8") + "=" + URLEncoder.encode(bag.toJSON(), "UTF-8");
 
-    //os.close();
+      OutputStreamWriter wr = new OutputStreamWriter(connection.getOutputStream());
+      wr.write(json);
+      wr.flush();
+      wr.close();
 
-    // ...and read the response from the Guard
-    return new String(Utils.read(connection.getInputStream()));
+      // ...and read the response from the Guard
+      return connection.getContentAsString();
+    }
+    finally {
+      connection.close();
+    }
   }
 
 
   /**
    * Constructs a Bag of attributes from the SAML Response
    *
-   * @param responseDocument The SAML Response containing the attributes
+   * @param samlResponse The SAML Response containing the attributes, decrypted if it was encrypted
+   * @param encrypted true if the Response was encrypted
    * @param guardSession the Guard's session ID
    * @return Bag of attributes
    * @throws GuanxiException if an error occurred
    */
-  private Bag getBag(ResponseDocument responseDocument, String guardSession) throws GuanxiException {
+  private Bag getBag(XmlObject samlResponse, boolean encrypted, String guardSession) throws GuanxiException {
     Bag bag = new Bag();
     bag.setSessionID(guardSession);
-    
-    try {
-      bag.setSamlResponse(Utils.base64(responseDocument.toString().getBytes()));
+    bag.setSamlResponse(Utils.base64(samlResponse.toString().getBytes()));
 
-      AssertionType[] assertions = null;
-      if (isEncrypted(responseDocument)) {
-        assertions = getAssertionsFromDecryptedResponse(responseDocument);
-      }
-      else {
-        assertions = responseDocument.getResponse().getAssertionArray();
-      }
+    // Stream the attributes straight out of the Response rather than going through the XMLBeans objects
+    attributeExtractor.extract(samlResponse.newXMLStreamReader(), encrypted, bag);
 
-      for (AssertionType assertion : assertions) {
-        if (assertion.getAttributeStatementArray().length == 0) {
-          // No attributes available
-          return bag;
-        }
+    return bag;
+  }
 
-        if (assertion.getSubject() != null) {
-          if (assertion.getSubject().getNameID() != null) {
-            bag.addAttribute(subjectNameIDAttributeName, assertion.getSubject().getNameID().getStringValue());
-          }
-        }
+  /**
+   * Decides whether to trust a Response. If one of the IdP's metadata keys made the signature
+   * we trust the IdP, otherwise we verify the signature with the certificate it carries and
+   * trust the certificate. Unsigned Responses are left to the Guard.
+   *
+   * @param responseDocument the Response from the IdP
+   * @param idpProviderId the entityID of the IdP
+   * @return true if the Response is trusted
+   * @throws GuanxiException if an error occurs
+   */
+  private boolean isTrusted(ResponseDocument responseDocument, String idpProviderId) throws GuanxiException {
+    if (responseDocument.getResponse().getSignature() == null) return true;
+    if (metadataKeySignatureVerifier.verify(responseDocument, idpProviderId)) return true;
 
-        AttributeStatementType attributeStatement = assertion.getAttributeStatementArray(0);
-        AttributeType[] attributes = attributeStatement.getAttributeArray();
-
-        String attributeOID = null;
-        for (AttributeType attribute : attributes) {
-          if (attribute.getNameFormat().equals(SAML.SAML2_ATTRIBUTE_PROFILE_BASIC)) {
-            XmlObject[] attributeValues = attribute.getAttributeValueArray();
-            for (int cc=0; cc < attributeValues.length; cc++) {
-              String attrValue = attributeValues[cc].getDomNode().getFirstChild().getNodeValue();
-              bag.addAttribute(attribute.getName(), attrValue);
-            }
-          }
-          else if (attribute.getNameFormat().equals(SAML.SAML2_ATTRIBUTE_PROFILE_X500_LDAP)) {
-            // Remove the prefix from the attribute name
-            attributeOID = attribute.getName().replaceAll(EduPersonOID.ATTRIBUTE_NAME_PREFIX, "");
-
-            XmlObject[] attributeValues = attribute.getAttributeValueArray();
-            for (int cc=0; cc < attributeValues.length; cc++) {
-              // Is it a scoped attribute?
-              if (attributeValues[cc].getDomNode().getAttributes().getNamedItem(EduPerson.EDUPERSON_SCOPE_ATTRIBUTE) != null) {
-                String attrValue = attributeValues[cc].getDomNode().getFirstChild().getNodeValue();
-                attrValue += EduPerson.EDUPERSON_SCOPED_DELIMITER;
-                attrValue += attributeValues[cc].getDomNode().getAttributes().getNamedItem(EduPerson.EDUPERSON_SCOPE_ATTRIBUTE).getNodeValue();
-                if (attributeHasFriendlyName(attribute)) {
-                  bag.addAttribute(attribute.getFriendlyName(), attrValue);
-                }
-                bag.addAttribute(attribute.getName(), attrValue);
-                bag.addAttribute(attributeOID, attrValue);
-              }
-              // What about eduPersonTargetedID?
-              else if (attributeOID.equals(EduPersonOID.OID_EDUPERSON_TARGETED_ID)) {
-                NodeList attrValueNodes = attributeValues[cc].getDomNode().getChildNodes();
-                Node attrValueNode = null;
-                for (int c=0; c < attrValueNodes.getLength(); c++) {
-                  attrValueNode = attrValueNodes.item(c);
-                  if (attrValueNode.getLocalName() != null) {
-                    if (attrValueNode.getLocalName().equals("NameID"))
-                      break;
-                  }
-                }
-                if (attrValueNode != null) {
-                  NameIDDocument nameIDDoc = NameIDDocument.Factory.parse(attrValueNode);
-                  if (attributeHasFriendlyName(attribute)) {
-                    bag.addAttribute(attribute.getFriendlyName(), nameIDDoc.getNameID().getStringValue());
-                  }
-                  bag.addAttribute(attribute.getName(), nameIDDoc.getNameID().getStringValue());
-                  bag.addAttribute(attributeOID, nameIDDoc.getNameID().getStringValue());
-                  bag.addAttribute("namequalifier", nameIDDoc.getNameID().getNameQualifier());
-                  bag.addAttribute("spnamequalifier", nameIDDoc.getNameID().getSPNameQualifier());
-                }
-              }
-              else {
-                if (attributeValues[cc].getDomNode().getFirstChild() != null) {
-                  if (attributeValues[cc].getDomNode().getFirstChild().getNodeValue() != null) {
-                    if (attributeHasFriendlyName(attribute)) {
-                      bag.addAttribute(attribute.getFriendlyName(), attributeValues[cc].getDomNode().getFirstChild().getNodeValue());
-                    }
-                    bag.addAttribute(attribute.getName(), attributeValues[cc].getDomNode().getFirstChild().getNodeValue());
-                    bag.addAttribute(attributeOID, attributeValues[cc].getDomNode().getFirstChild().getNodeValue());
-                  }
-                }
-              }
-            } // for (int cc=0; cc < obj.length; cc++)
-          } // else if (attribute.getNameFormat().equals(SAML.SAML2_ATTRIBUTE_PROFILE_X500_LDAP)) {
-        } // for (AttributeType attribute : attributes)
-      } // for (EncryptedElementType assertion : assertions)
-
-      return bag;
+    if (!TrustUtils.verifySignature(responseDocument)) {
+      logger.error("Signature failed verification for " + idpProviderId);
+      return false;
     }
-    catch(XmlException xe) {
-      throw new GuanxiException(xe.getMessage());
+    X509Certificate x509 = TrustUtils.getX509CertFromSignature(responseDocument);
+    if (x509 == null) {
+      logger.error("No X509 from signature for " + idpProviderId);
+      return false;
     }
+
+    EntityFarm farm = (EntityFarm)getServletContext().getAttribute(Guanxi.CONTEXT_ATTR_ENGINE_ENTITY_FARM);
+    EntityManager manager = farm.getEntityManagerForID(idpProviderId);
+    Metadata idpMetadata = manager.getMetadata(idpProviderId);
+    TrustDecisionCache trustDecisionCache = (TrustDecisionCache)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_TRUST_DECISION_CACHE);
+    return trustDecisionCache.trustEntity(manager.getTrustEngine(), idpMetadata, x509);
   }
 
   /**
-   * Determines whether an Attribute has a FriendlyName
+   * Shows an error to the browser
    *
-   * @param attribute the Attribute
-   * @return true if it has a FriendlyName, otherwise false
+   * @param response the response to write the error to
+   * @param heading what went wrong
+   * @param message why it went wrong
+   * @throws IOException if an error occurs
    */
-  private boolean attributeHasFriendlyName(AttributeType attribute) {
-    return ((attribute.getFriendlyName() != null) &&
-            (attribute.getFriendlyName().length() > 0));
+  private void showError(HttpServletResponse response, String heading, String message) throws IOException {
+    response.setContentType("text/html");
+    PrintWriter out = response.getWriter();
+    out.println(heading + "<br /><br />");
+    out.println(message);
+    out.flush();
+    out.close();
   }
 
   /**
-   * Extracts the Assertions from a decrypted SAML2 Response
+   * Records the IDs of a Response and its Assertions in the replay cache
    *
-   * @param decryptedResponse the Response which contains the Assertions
-   * @return array of AssertionType objects or null
+   * @param responseDocument the Response from the IdP
+   * @param idpProviderId the entityID of the IdP
+   * @return false if the Response or any of its Assertions has been seen before
    */
-  private AssertionType[] getAssertionsFromDecryptedResponse(ResponseDocument decryptedResponse) {
-    try {
-      ArrayList<AssertionType> assertions = new ArrayList<AssertionType>();
-
-      EncryptedElementType[] encryptedElements = decryptedResponse.getResponse().getEncryptedAssertionArray();
-
-      for (EncryptedElementType encryptedElement : encryptedElements) {
-        NodeList nodes = encryptedElement.getDomNode().getChildNodes();
-        Node assertionNode = null;
-        for (int c=0; c < nodes.getLength(); c++) {
-          assertionNode = nodes.item(c);
-          if (assertionNode.getLocalName() != null) {
-            if (assertionNode.getLocalName().equals("Assertion")) {
-              assertions.add(AssertionDocument.Factory.parse(assertionNode).getAssertion());
-            }
-          }
+  private boolean isNewResponse(ResponseDocument responseDocument, String idpProviderId) {
+    ReplayCache replayCache = (ReplayCache)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_REPLAY_CACHE);
+    ResponseType samlResponse = responseDocument.getResponse();
+    AssertionType[] assertions = samlResponse.getAssertionArray();
+
+    // The Response lasts as long as its longest lived Assertion
+    long responseNotOnOrAfter = 0;
+    for (AssertionType assertion : assertions) {
+      responseNotOnOrAfter = Math.max(responseNotOnOrAfter, getNotOnOrAfter(assertion));
+    }
+
+    boolean isNew = true;
+    if (samlResponse.getID() != null) {
+      isNew = replayCache.checkAndRecord(idpProviderId, samlResponse.getID(), responseNotOnOrAfter);
+    }
+    for (AssertionType assertion : assertions) {
+      if (assertion.getID() != null) {
+        isNew &= replayCache.checkAndRecord(idpProviderId, assertion.getID(), getNotOnOrAfter(assertion));
+      }
+    }
+    return isNew;
+  }
+
+  /**
+   * Records the IDs of the Assertions that were encrypted in a Response in the replay cache.
+   * The Response's own ID and any plain Assertions were recorded before decryption.
+   *
+   * @param decryptedResponse the decrypted Response
+   * @param idpProviderId the entityID of the IdP
+   * @return false if any of the decrypted Assertions has been seen before
+   */
+  private boolean isNewDecryptedAssertions(XmlObject decryptedResponse, String idpProviderId) {
+    ReplayCache replayCache = (ReplayCache)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_REPLAY_CACHE);
+    NodeList assertions = ((Document)decryptedResponse.getDomNode()).getElementsByTagNameNS(SAML.NS_SAML_20_ASSERTION, "Assertion");
+
+    boolean isNew = true;
+    for (int c=0; c < assertions.getLength(); c++) {
+      Element assertion = (Element)assertions.item(c);
+      if ((!"EncryptedAssertion".equals(assertion.getParentNode().getLocalName())) ||
+          (!assertion.hasAttribute("ID"))) {
+        continue;
+      }
+
+      long notOnOrAfter = 0;
+      NodeList conditions = assertion.getElementsByTagNameNS(SAML.NS_SAML_20_ASSERTION, "Conditions");
+      if ((conditions.getLength() > 0) && (((Element)conditions.item(0)).hasAttribute("NotOnOrAfter"))) {
+        try {
+          notOnOrAfter = new GDate(((Element)conditions.item(0)).getAttribute("NotOnOrAfter")).getDate().getTime();
         }
-        if (assertionNode == null) {
-          continue;
+        catch(IllegalArgumentException iae) {
+          // The cache's default time to live will do
         }
       }
-
-      return assertions.toArray(new AssertionType[assertions.size()]);
+      isNew &= replayCache.checkAndRecord(idpProviderId, assertion.getAttribute("ID"), notOnOrAfter);
     }
-    catch(XmlException xe) {
-      return null;
+    return isNew;
+  }
+
+  /**
+   * Works out when an Assertion expires
+   *
+   * @param assertion the Assertion
+   * @return the Assertion's Conditions NotOnOrAfter, in milliseconds, or 0 if it doesn't have one
+   */
+  private long getNotOnOrAfter(AssertionType assertion) {
+    if ((assertion.getConditions() != null) && (assertion.getConditions().getNotOnOrAfter() != null)) {
+      return assertion.getConditions().getNotOnOrAfter().getTimeInMillis();
     }
+    return 0;
   }
 
   /**
@@ -421,79 +487,6 @@ public class WebBrowserSSOAuthConsumerService extends MultiActionController impl
             (responseDoc.getResponse().getEncryptedAssertionArray().length > 0));
   }
 
-  /**
-   * Decrypts a SAML2 Web Browser SSO Response from an IdP
-   *
-   * @param encryptedResponse The encrypted Response
-   * @param xmlOptions XmlOptions describing namesapces in the Response
-   * @param privateKey the Guard's private key used to decrypt the Response
-   * @return decrypted Response
-   */
-  private ResponseDocument decryptResponse(ResponseDocument encryptedResponse, XmlOptions xmlOptions, PrivateKey privateKey) throws GuanxiException {
-    try {
-      // For decryption, we need to be in DOM land
-      Document rawSAMLResponseDoc = (Document)encryptedResponse.newDomNode(xmlOptions);
-
-      /* XMLBeans doesn't give us access to the embedded encryption key for some reason
-       * so we need to break out to DOM and back again.
-       */
-      NodeList nodes = encryptedResponse.getResponse().getEncryptedAssertionArray(0).getEncryptedData().getKeyInfo().getDomNode().getChildNodes();
-      Node node = null;
-      for (int c=0; c < nodes.getLength(); c++) {
-        node = nodes.item(c);
-        if (node.getLocalName() != null) {
-          if (node.getLocalName().equals("EncryptedKey")) break;
-        }
-      }
-      EncryptedKeyDocument encKeyDoc = EncryptedKeyDocument.Factory.parse(node, xmlOptions);
-
-      // Get a handle on the encypted data in DOM land
-      String namespaceURI = EncryptionConstants.EncryptionSpecNS;
-      String localName = EncryptionConstants._TAG_ENCRYPTEDDATA;
-
-      // Recurse through the decryption process
-      NodeList encyptedDataNodes = rawSAMLResponseDoc.getElementsByTagNameNS(namespaceURI, localName);
-      while (encyptedDataNodes.getLength() > 0) {
-        Element encryptedDataElement = (Element)encyptedDataNodes.item(0);
-
-        /* This block unwraps and decrypts the secret key. The IdP first encrypts the attributes
-         * using a secret key. It then encrypts that secret key using the public key of the Guard.
-         * So the first step is to use the Guard's private key to decrypt the secret key.
-         */
-        String algorithm = encKeyDoc.getEncryptedKey().getEncryptionMethod().getAlgorithm();
-        XMLCipher xmlCipher = XMLCipher.getInstance();
-        xmlCipher.init(XMLCipher.UNWRAP_MODE, privateKey);
-        EncryptedData encryptedData = xmlCipher.loadEncryptedData(rawSAMLResponseDoc, encryptedDataElement);
-        EncryptedKey encryptedKey = encryptedData.getKeyInfo().itemEncryptedKey(0);
-        Key decryptedSecretKey = xmlCipher.decryptKey(encryptedKey, algorithm);
-
-        // This block uses the decrypted secret key to decrypt the attributes
-        Key secretKey = new SecretKeySpec(decryptedSecretKey.getEncoded(), "AES");
-        XMLCipher xmlDecryptCipher = XMLCipher.getInstance();
-        xmlDecryptCipher.init(XMLCipher.DECRYPT_MODE, secretKey);
-        xmlDecryptCipher.doFinal(rawSAMLResponseDoc, encryptedDataElement);
-
-        // Any more encryption to handle?
-        encyptedDataNodes = rawSAMLResponseDoc.getElementsByTagNameNS(namespaceURI, localName);
-      }
-
-      // And back to XMLBeans for that nice API!
-      return ResponseDocument.Factory.parse(rawSAMLResponseDoc);
-    }
-    catch(XmlException xe) {
-      logger.error("XML problem decrypting the response", xe);
-      throw new GuanxiException(xe);
-    }
-    catch(XMLEncryptionException xee) {
-      logger.error("XML problem decrypting the response", xee);
-      throw new GuanxiException(xee);
-    }
-    catch(Exception e) {
-      logger.error("Problem decrypting the response", e);
-      throw new GuanxiException(e);
-    }
-  }
-
   // Setters
   public void setMessages(MessageSource messages) { this.messages = messages; }
   public void setPodderView(String podderView) { this.podderView = podderView; }
@@ -501,4 +494,8 @@ public class WebBrowserSSOAuthConsumerService extends MultiActionController impl
   public void setErrorViewDisplayVar(String errorViewDisplayVar) { this.errorViewDisplayVar = errorViewDisplayVar; }
   public void setLogResponse(boolean logResponse) { this.logResponse = logResponse; }
   public void setSubjectNameIDAttributeName(String subjectNameIDAttributeName) { this.subjectNameIDAttributeName = subjectNameIDAttributeName; }
+  public void setGuardKeyCache(GuardKeyCache guardKeyCache) { this.guardKeyCache = guardKeyCache; }
+  public void setRelayStateCodec(RelayStateCodec relayStateCodec) { this.relayStateCodec = relayStateCodec; }
+  public void setMetadataKeySignatureVerifier(MetadataKeySignatureVerifier metadataKeySignatureVerifier) { this.metadataKeySignatureVerifier = metadataKeySignatureVerifier; }
+  public void setResponseValidator(ResponseValidator responseValidator) { this.responseValidator = responseValidator; }
 }
@@ -17,16 +17,17 @@
 package org.guanxi.sp.engine.service.shibboleth;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URLEncoder;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
-import java.util.Comparator;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 
 import org.apache.log4j.Logger;
 import org.guanxi.common.GuanxiException;
@@ -35,11 +36,17 @@ import org.guanxi.common.entity.EntityManager;
 import org.guanxi.common.definitions.Guanxi;
 import org.guanxi.common.definitions.Shibboleth;
 import org.guanxi.common.metadata.IdPMetadata;
-import org.guanxi.sp.Util;
 import org.guanxi.sp.engine.Config;
-import org.guanxi.xal.saml2.metadata.GuardRoleDescriptorExtensions;
+import org.guanxi.sp.engine.connection.BackChannelClient;
+import org.guanxi.sp.engine.connection.BackChannelExecutor;
+import org.guanxi.sp.engine.guard.Guard;
+import org.guanxi.sp.engine.guard.GuardRegistry;
+import org.guanxi.sp.engine.idp.IdP;
+import org.guanxi.sp.engine.idp.IdPRegistry;
+import org.guanxi.sp.engine.session.EngineSession;
+import org.guanxi.sp.engine.session.EngineSessionStore;
+import org.guanxi.sp.engine.trust.TrustDecisionCache;
 import org.guanxi.xal.saml_1_0.protocol.ResponseType;
-import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
 import org.springframework.web.context.ServletContextAware;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.multiaction.MultiActionController;
@@ -57,11 +64,31 @@ import org.springframework.context.MessageSource;
  */
 public class AuthConsumerService extends MultiActionController implements ServletContextAware {
   private static final Logger logger = Logger.getLogger(AuthConsumerService.class.getName());
+  /** What the user sees if there's no room to process their login */
+  private static final String BUSY_MESSAGE = "The service is very busy at the moment. Please try logging in again in a few minutes.";
+  /** How often to look for the outcome of a login that's being processed by another Engine node, in milliseconds */
+  private static final long SHARED_STATUS_POLL_INTERVAL = 250;
+  /** The variable the please wait page uses for how many seconds to wait before coming back */
+  private static final String REFRESH_DELAY_KEY = "refreshDelay";
 
   /** The view to redirect to if no error occur */
   private String podderView = null;
   /** The view to use to display any errors */
   private String errorView = null;
+  /** The view to use to display the please wait message */
+  private String processView = null;
+  /** How long acs waits for the login to finish before sending the browser to the complete page, in milliseconds */
+  private int fastPathBudget = 500;
+  /** How many logins have been handed to the back-channel executor */
+  private AtomicLong logins = new AtomicLong();
+  /** How many of those finished within fastPathBudget */
+  private AtomicLong fastPathLogins = new AtomicLong();
+  /** How long the complete page waits for the login to finish before showing progress, in seconds */
+  private int completionTimeout = 2;
+  /** The most requests the complete page will hold on to at once. Others are shown progress straight away */
+  private int maxCompletionWaiters = 50;
+  /** Limits the number of requests held by the complete page */
+  private Semaphore completionWaiters = null;
   /** The variable to use in the error view to display the error */
   private String errorViewDisplayVar = null;
   /**
@@ -69,23 +96,19 @@ public class AuthConsumerService extends MultiActionController implements Servle
    * of the error explaining the likely cause.
    */
   private String errorViewSimpleVar;
-  /**
-   * This is the map of the processing thread associated with each session.
-   */
-  private static Map<HttpSession, AuthConsumerServiceThread> threads;
+  /** The processing thread associated with each login, by the Guard's session ID */
+  private FlowRegistry flowRegistry = null;
   /** The localised messages to use */
   private MessageSource messages = null;
+  /** Runs the AA and Guard conversations */
+  private BackChannelExecutor backChannelExecutor = null;
 
   /**
-   * This initialises the threads map which will be used to hold the AA conversation
-   * threads by session.
+   * Initialises the service. The processing threads are held by the FlowRegistry
+   * so there's only the limit on waiting requests to set up.
    */
   public void init() {
-	  threads = new TreeMap<HttpSession, AuthConsumerServiceThread>(new Comparator<HttpSession>(){
-	    public int compare(HttpSession one, HttpSession two) {
-	      return one.getId().compareTo(two.getId());
-	    }
-	  });
+    completionWaiters = new Semaphore(maxCompletionWaiters);
   } //init
 
   /**
@@ -96,20 +119,22 @@ public class AuthConsumerService extends MultiActionController implements Servle
 
   /**
    * This is the handler for the initial /shibb/acs page. This receives the
-   * browser after it has visited the IdP and it spawns a thread associated
-   * with the collection of attributes. It then redirects the user to the
-   * process page which checks the status of the thread and displays a please
-   * wait message, or forwards the user, as appropriate.
+   * browser after it has visited the IdP and it hands the collection of
+   * attributes to the back-channel executor. If that finishes within fastPathBudget
+   * the user is forwarded straight to the Podder. Otherwise it redirects the user to
+   * the complete page which waits for the thread to finish and forwards the user,
+   * or displays a please wait message if it takes too long.
    *
    * @param request Servlet request
    * @param response Servlet response
+   * @return an error view if the login failed, otherwise null as the response has been handled
    * @throws IOException if an error occurs
    * @throws GuanxiException if an error occurs
    * @throws KeyStoreException if an error occurs
    * @throws NoSuchAlgorithmException if an error occurs
    * @throws CertificateException if an error occurs
    */
-  public void acs(HttpServletRequest request, HttpServletResponse response) throws IOException, GuanxiException, KeyStoreException, NoSuchAlgorithmException, CertificateException {
+  public ModelAndView acs(HttpServletRequest request, HttpServletResponse response) throws IOException, GuanxiException, KeyStoreException, NoSuchAlgorithmException, CertificateException {
     /* When a Guard initially set up a session with the Engine, it passed its session ID to
     * the Engine's WAYF Location web service. The Guard then passed the session ID to the
     * WAYF/IdP via the target parameter. So now it should come back here and we can
@@ -120,32 +145,95 @@ public class AuthConsumerService extends MultiActionController implements Servle
     Config config = (Config)getServletContext().getAttribute(Guanxi.CONTEXT_ATTR_ENGINE_CONFIG);
 
     /* When the Engine received the Guard's session, it munged it to an Engine session and
-     * associated the Guard session ID with the Guard's ID. So now dereference the Guard's
-     * session ID to get its ID and load it's metadata
+     * associated the Guard session ID with the Guard's ID. So now claim the session, so the
+     * response can't be processed again on this or any other Engine node, and dereference
+     * it to get the Guard. The session stays in the store until the outcome of the login
+     * has been shown to the browser, which might be by another Engine node.
      */
-    EntityDescriptorType guardEntityDescriptor = (EntityDescriptorType)getServletContext().getAttribute(guardSession.replaceAll("GUARD", "ENGINE"));
-    GuardRoleDescriptorExtensions guardNativeMetadata = Util.getGuardNativeMetadata(guardEntityDescriptor);
+    EngineSessionStore sessionStore = (EngineSessionStore)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_SESSION_STORE);
+    EngineSession engineSession = (guardSession == null) ? null : sessionStore.claim(guardSession.replaceAll("GUARD", "ENGINE"));
+    Guard guard = (engineSession == null) ? null : getGuard(guardSession);
+    if (guard == null) {
+      logger.error("No Guard for session : " + guardSession);
+      response.setContentType("text/html");
+      PrintWriter out = response.getWriter();
+      out.println("Metadata error<br /><br />");
+      out.println("Not a valid session");
+      out.flush();
+      out.close();
+      return null;
+    }
 
     IdPMetadata idpMetadata = (IdPMetadata)request.getAttribute(Config.REQUEST_ATTRIBUTE_IDP_METADATA);
     EntityFarm farm = (EntityFarm)getServletContext().getAttribute(Guanxi.CONTEXT_ATTR_ENGINE_ENTITY_FARM);
     EntityManager manager = farm.getEntityManagerForID(idpMetadata.getEntityID());
 
+    // The AA was resolved when the IdP's metadata was loaded
+    IdPRegistry idpRegistry = (IdPRegistry)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_IDP_REGISTRY);
+    IdP idp = idpRegistry.getIdP(idpMetadata.getEntityID());
+    String aaURL = (idp != null) ? idp.getAttributeAuthorityURL() : idpMetadata.getAttributeAuthorityURL();
+
     AuthConsumerServiceThread thread = null;
     thread = new AuthConsumerServiceThread(this, guardSession,
-                                           guardNativeMetadata.getAttributeConsumerServiceURL(),
-                                           idpMetadata.getAttributeAuthorityURL(),
+                                           guard.getAttributeConsumerServiceURL(),
+                                           aaURL,
                                            getPodderURL(guardSession, config),
-                                           guardEntityDescriptor.getEntityID(),
-                                           guardNativeMetadata.getKeystore(), guardNativeMetadata.getKeystorePassword(),
+                                           guard.getEntityID(),
+                                           guard.getKeystore(), guard.getKeystorePassword(),
                                            config.getTrustStore(), config.getTrustStorePassword(),
                                            (String)request.getAttribute(Config.REQUEST_ATTRIBUTE_IDP_PROVIDER_ID),
                                            (String)request.getAttribute(Config.REQUEST_ATTRIBUTE_IDP_NAME_IDENTIFIER),
                                            (ResponseType)request.getAttribute(Config.REQUEST_ATTRIBUTE_SAML_RESPONSE),
                                            messages, request, manager);
-    new Thread(thread).start();
-    threads.put(request.getSession(true), thread);
+    // The Guard's session ID is the flow ID, as the browser already carries it in the URL
+    if (!flowRegistry.put(guardSession, thread)) {
+      return busy(guard, guardSession);
+    }
+    try {
+      backChannelExecutor.execute(thread);
+    }
+    catch(RejectedExecutionException ree) {
+      flowRegistry.remove(guardSession);
+      return busy(guard, guardSession);
+    }
+    logins.incrementAndGet();
+
+    // The AA and Guard usually answer quickly, in which case the browser can skip the complete page
+    if (fastPathBudget > 0) {
+      try {
+        thread.awaitCompletion(fastPathBudget);
+      }
+      catch(InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      if (thread.isCompleted()) {
+        fastPathLogins.incrementAndGet();
+        collected(guardSession);
+        return showOutcome(thread.getStatus(), response);
+      }
+    }
 
-    response.sendRedirect("process");
+    // Pass the session along so any Engine node can report the outcome
+    response.sendRedirect("complete?" + Shibboleth.TARGET_FORM_PARAM + "=" + URLEncoder.encode(guardSession, "UTF-8"));
+    return null;
+  }
+
+  /**
+   * Fails a login that there's no room to process
+   *
+   * @param guard the Guard the login is for
+   * @param guardSession the Guard's session ID
+   * @return the error view
+   */
+  @SuppressWarnings("unchecked")
+  private ModelAndView busy(Guard guard, String guardSession) {
+    logger.error("Too busy to process login for Guard '" + guard.getEntityID() + "'");
+    loginCompleted(guardSession, false, BUSY_MESSAGE);
+    ModelAndView mAndV = new ModelAndView();
+    mAndV.setViewName(errorView);
+    mAndV.getModel().put(errorViewDisplayVar, BUSY_MESSAGE);
+    mAndV.getModel().put(errorViewSimpleVar, BUSY_MESSAGE);
+    return mAndV;
   }
 
   /**
@@ -157,9 +245,182 @@ public class AuthConsumerService extends MultiActionController implements Servle
    * @throws GuanxiException if an error occurs
    */
   protected String getPodderURL(String sessionID, Config config) throws GuanxiException {
-	  EntityDescriptorType guardEntityDescriptor = (EntityDescriptorType)getServletContext().getAttribute(sessionID.replaceAll("GUARD", "ENGINE"));
-	  GuardRoleDescriptorExtensions guardNativeMetadata = Util.getGuardNativeMetadata(guardEntityDescriptor);
-	  return guardNativeMetadata.getPodderURL();
+	  Guard guard = getGuard(sessionID);
+	  return guard.getPodderURL();
+  }
+
+  /**
+   * Finds the Guard that's working on a session
+   *
+   * @param sessionID the Guard's session ID
+   * @return the Guard or null if the session isn't in progress
+   */
+  protected Guard getGuard(String sessionID) {
+    EngineSessionStore sessionStore = (EngineSessionStore)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_SESSION_STORE);
+    GuardRegistry guardRegistry = (GuardRegistry)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_GUARD_REGISTRY);
+    EngineSession engineSession = sessionStore.get(sessionID.replaceAll("GUARD", "ENGINE"));
+    return (engineSession == null) ? null : guardRegistry.getGuard(engineSession.getGuardEntityID());
+  }
+
+  /**
+   * @return the client the processing threads use to talk to the AA and the Guard
+   */
+  BackChannelClient getBackChannelClient() {
+    return (BackChannelClient)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_BACK_CHANNEL_CLIENT);
+  }
+
+  /**
+   * @return the decisions the trust engines have made about IdP certificates
+   */
+  TrustDecisionCache getTrustDecisionCache() {
+    return (TrustDecisionCache)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_TRUST_DECISION_CACHE);
+  }
+
+  /**
+   * Called by the processing thread when it has finished so the outcome can be reported
+   * by whichever Engine node the browser polls.
+   *
+   * @param sessionID the Guard's session ID
+   * @param successful true if the attributes were sent to the Guard
+   * @param result the Podder URL if successful, otherwise the error message
+   */
+  protected void loginCompleted(String sessionID, boolean successful, String result) {
+    EngineSessionStore sessionStore = (EngineSessionStore)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_SESSION_STORE);
+    sessionStore.complete(sessionID.replaceAll("GUARD", "ENGINE"), successful, result);
+  }
+
+  /**
+   * Called when the outcome of a login has been shown to the browser, so its state is no
+   * longer needed. Abandoned logins are swept by the registry and the session store.
+   *
+   * @param sessionID the Guard's session ID
+   */
+  private void collected(String sessionID) {
+    flowRegistry.remove(sessionID);
+    ((EngineSessionStore)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_SESSION_STORE)).remove(sessionID.replaceAll("GUARD", "ENGINE"));
+  }
+
+  /**
+   * Shows the final outcome of a login. A successful login is redirected straight to
+   * the Podder rather than going through the Podder redirector page.
+   *
+   * @param status the final status of the login
+   * @param response the HttpServletResponse
+   * @return the ModelAndView or null if the user has been redirected to the Podder
+   * @throws IOException if an error occurs
+   */
+  private ModelAndView showOutcome(ModelAndView status, HttpServletResponse response) throws IOException {
+    if (podderView.equals(status.getViewName())) {
+      response.sendRedirect((String)status.getModel().get("podderURL"));
+      return null;
+    }
+    return status;
+  }
+
+  /**
+   * Reports the outcome of a login that's being processed by another Engine node
+   *
+   * @param sessionID the Guard's session ID
+   * @return the ModelAndView or null if the login isn't known to the session store
+   */
+  @SuppressWarnings("unchecked")
+  private ModelAndView getSharedStatus(String sessionID) {
+    EngineSessionStore sessionStore = (EngineSessionStore)getServletContext().getAttribute(Config.CONTEXT_ATTR_ENGINE_SESSION_STORE);
+    String engineSessionID = sessionID.replaceAll("GUARD", "ENGINE");
+    EngineSession engineSession = sessionStore.get(engineSessionID);
+    if (engineSession == null) {
+      return null;
+    }
+
+    ModelAndView mAndV = new ModelAndView();
+    switch (engineSession.getState()) {
+      case COMPLETED:
+        sessionStore.remove(engineSessionID);
+        mAndV.setViewName(podderView);
+        mAndV.getModel().put("podderURL", engineSession.getResult());
+        break;
+      case FAILED:
+        sessionStore.remove(engineSessionID);
+        mAndV.setViewName(errorView);
+        mAndV.getModel().put(errorViewDisplayVar, engineSession.getResult());
+        mAndV.getModel().put(errorViewSimpleVar, engineSession.getResult());
+        break;
+      default:
+        // Still being processed so keep the browser waiting
+        mAndV.addObject(AuthConsumerServiceThread.progressPercentKey, Integer.valueOf(50));
+    }
+    return mAndV;
+  }
+
+  /**
+   * Waits for the outcome of a login that's being processed by another Engine node
+   *
+   * @param sessionID the Guard's session ID
+   * @param timeout the maximum time to wait, in milliseconds
+   * @return the ModelAndView or null if the login isn't known to the session store
+   * @throws InterruptedException if the request thread is interrupted while waiting
+   */
+  private ModelAndView awaitSharedStatus(String sessionID, long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    ModelAndView mAndV = getSharedStatus(sessionID);
+    while ((mAndV != null) && (mAndV.getViewName() == null) && (System.currentTimeMillis() < deadline)) {
+      Thread.sleep(Math.min(SHARED_STATUS_POLL_INTERVAL, Math.max(1, deadline - System.currentTimeMillis())));
+      mAndV = getSharedStatus(sessionID);
+    }
+    return mAndV;
+  }
+
+  /**
+   * This is the handler for the /shibb/complete page. Rather than have the browser poll
+   * the process page, this holds on to the request until the thread associated with it
+   * has finished, or completionTimeout passes. Each held request ties up a container
+   * thread, so no more than maxCompletionWaiters are held at once and the rest see the
+   * please wait page straight away. If the login succeeded the user is sent straight
+   * to the Podder. If it's still in progress the please wait page is displayed, which
+   * comes back here, straight away if the request was held or after completionTimeout
+   * if it wasn't, so busy browsers don't come back in a tight loop.
+   *
+   * @param request  the HttpServletRequest
+   * @param response the HttpServletResponse
+   * @return the ModelAndView or null if the user has been redirected to the Podder
+   * @throws IOException if an error occurs
+   */
+  public ModelAndView complete(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String guardSession = request.getParameter(Shibboleth.TARGET_FORM_PARAM);
+    AuthConsumerServiceThread thread = (guardSession == null) ? null : flowRegistry.get(guardSession);
+
+    ModelAndView mAndV = null;
+    boolean held = false;
+    if (((thread != null) || (guardSession != null)) && (completionWaiters.tryAcquire())) {
+      held = true;
+      try {
+        if (thread != null) {
+          thread.awaitCompletion(completionTimeout * 1000L);
+        }
+        else {
+          mAndV = awaitSharedStatus(guardSession, completionTimeout * 1000L);
+        }
+      }
+      catch(InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      finally {
+        completionWaiters.release();
+      }
+    }
+
+    if (mAndV == null) {
+      // Either this node has the thread or it's an error that process will report
+      mAndV = process(request, response);
+    }
+
+    if (mAndV.getViewName() == null) {
+      // Still in progress. The progress objects are shared so don't name the view on them
+      ModelAndView progress = new ModelAndView(processView, mAndV.getModel());
+      progress.addObject(REFRESH_DELAY_KEY, Integer.valueOf(held ? 0 : Math.max(1, completionTimeout)));
+      return progress;
+    }
+    return showOutcome(mAndV, response);
   }
 
   /**
@@ -174,10 +435,19 @@ public class AuthConsumerService extends MultiActionController implements Servle
   @SuppressWarnings("unchecked")
   public ModelAndView process(HttpServletRequest request, HttpServletResponse response) {
     AuthConsumerServiceThread thread;
-    HttpSession session;
+    String guardSession = request.getParameter(Shibboleth.TARGET_FORM_PARAM);
+
+    thread = (guardSession == null) ? null : flowRegistry.get(guardSession);
 
-    session = request.getSession(false);
-    if ( session == null ) {
+    // If the login isn't being processed on this node, see if another node has it
+    if ((thread == null) && (guardSession != null)) {
+      ModelAndView mAndV = getSharedStatus(guardSession);
+      if (mAndV != null) {
+        return mAndV;
+      }
+    }
+
+    if ( guardSession == null ) {
       ModelAndView mAndV;
 
       mAndV = new ModelAndView();
@@ -187,7 +457,6 @@ public class AuthConsumerService extends MultiActionController implements Servle
       return mAndV;
     }
 
-    thread = threads.get(session);
     if ( thread == null ) {
       ModelAndView mAndV;
 
@@ -198,11 +467,33 @@ public class AuthConsumerService extends MultiActionController implements Servle
       return mAndV;
     }
     if ( thread.isCompleted() ) {
-      threads.remove(session); // TODO: Periodic unloading of expired threads?
+      collected(guardSession);
     }
     return thread.getStatus();
   }
 
+  /**
+   * @return the number of logins that have been handed to the back-channel executor
+   */
+  public long getLogins() {
+    return logins.get();
+  }
+
+  /**
+   * @return the number of logins that finished within fastPathBudget
+   */
+  public long getFastPathLogins() {
+    return fastPathLogins.get();
+  }
+
+  /**
+   * @return the fraction of logins that finished within fastPathBudget
+   */
+  public double getFastPathRatio() {
+    long total = logins.get();
+    return (total == 0) ? 0 : (double)fastPathLogins.get() / total;
+  }
+
   /**
    * This is the name of the podder jsp page. This will be used
    * to set the Guard cookie.
@@ -221,6 +512,15 @@ public class AuthConsumerService extends MultiActionController implements Servle
   public void setPodderView(String podderView) {
     this.podderView = podderView;
   }
+  /**
+   * This is the name of the please wait jsp page. This will be used
+   * by the complete page if the AA process is taking a while.
+   *
+   * @param processView the processView to set
+   */
+  public void setProcessView(String processView) {
+    this.processView = processView;
+  }
   /**
    * This is the name of the error jsp page. This will be used
    * to display any issues that arise during the AA process.
@@ -277,4 +577,9 @@ public class AuthConsumerService extends MultiActionController implements Servle
   }
 
   public void setMessages(MessageSource messages) { this.messages = messages; }
+  public void setBackChannelExecutor(BackChannelExecutor backChannelExecutor) { this.backChannelExecutor = backChannelExecutor; }
+  public void setCompletionTimeout(int completionTimeout) { this.completionTimeout = completionTimeout; }
+  public void setMaxCompletionWaiters(int maxCompletionWaiters) { this.maxCompletionWaiters = maxCompletionWaiters; }
+  public void setFlowRegistry(FlowRegistry flowRegistry) { this.flowRegistry = flowRegistry; }
+  public void setFastPathBudget(int fastPathBudget) { this.fastPathBudget = fastPathBudget; }
 }
@@ -31,7 +31,6 @@ import org.apache.log4j.Logger;
 import org.apache.xmlbeans.XmlException;
 import org.apache.xmlbeans.XmlObject;
 import org.guanxi.common.Bag;
-import org.guanxi.common.EntityConnection;
 import org.guanxi.common.GuanxiException;
 import org.guanxi.common.Utils;
 import org.guanxi.common.definitions.EduPerson;
@@ -39,6 +38,7 @@ import org.guanxi.common.metadata.Metadata;
 import org.guanxi.common.entity.EntityManager;
 import org.guanxi.common.definitions.Shibboleth;
 import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.sp.engine.connection.BackChannelConnection;
 import org.guanxi.xal.saml_1_0.assertion.*;
 import org.guanxi.xal.saml_1_0.protocol.*;
 import org.guanxi.xal.soap.Body;
@@ -267,6 +267,7 @@ public class AuthConsumerServiceThread implements Runnable {
    */
   private synchronized void setCompleted(boolean completed) {
     this.completed = completed;
+    notifyAll();
   }
   /**
    * This reads the completed flag. When this has been set to true this thread
@@ -278,6 +279,23 @@ public class AuthConsumerServiceThread implements Runnable {
   public synchronized boolean isCompleted() {
     return completed;
   }
+  /**
+   * This blocks the calling thread until this thread has concluded or the
+   * timeout passes, whichever comes first.
+   * 
+   * @param timeout the maximum time to wait, in milliseconds
+   * @return if this thread has finished and can be discarded
+   * @throws InterruptedException if the calling thread is interrupted while waiting
+   */
+  public synchronized boolean awaitCompletion(long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    long remaining = timeout;
+    while (!completed && (remaining > 0)) {
+      wait(remaining);
+      remaining = deadline - System.currentTimeMillis();
+    }
+    return completed;
+  }
   
 
   /**
@@ -345,31 +363,37 @@ public class AuthConsumerServiceThread implements Runnable {
    */
   private String processAAConnection(String aaURL, String entityID, String keystoreFile, String keystorePassword, String truststoreFile, 
 		  							                 String truststorePassword, EnvelopeDocument soapRequest) throws GuanxiException, IOException, KeyStoreException, NoSuchAlgorithmException, CertificateException {
-    EntityConnection connection = new EntityConnection(aaURL, entityID,
-                                                       keystoreFile, keystorePassword,
-                                                       truststoreFile, truststorePassword,
-                                                       EntityConnection.PROBING_ON);
-
-    connection.setDoOutput(true);
-    connection.setRequestProperty("Content-type", "text/xml");
-    connection.setRequestProperty("SOAPAction", "http://www.oasis-open.org/committees/security");
-    connection.connect();
+    BackChannelConnection connection = parent.getBackChannelClient().openConnection(aaURL, entityID,
+                                                                             keystoreFile, keystorePassword,
+                                                                             truststoreFile, truststorePassword,
+                                                                             true);
+    try {
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Content-type", "text/xml");
+      connection.setRequestProperty("SOAPAction", "http://www.oasis-open.org/committees/security");
+      connection.connect();
 
-    // Do the trust
-    X509Certificate x509 = connection.getServerCertificate();
-    if (x509 != null) {
-      Metadata idpMetadata = manager.getMetadata(idpProviderId);
-      idpMetadata.setHostName(new URL(aaURL).getHost());
-      if (!manager.getTrustEngine().trustEntity(idpMetadata, x509)) {
-        throw new GuanxiException("Trust failed");
+      // Do the trust
+      X509Certificate x509 = connection.getServerCertificate();
+      if (x509 != null) {
+        Metadata idpMetadata = manager.getMetadata(idpProviderId);
+        String aaHost = new URL(aaURL).getHost();
+        idpMetadata.setHostName(aaHost);
+        // The AA's certificate is checked against the host it came from so that's part of the decision
+        if (!parent.getTrustDecisionCache().trustEntity(manager.getTrustEngine(), idpMetadata, x509, x509, aaHost)) {
+          throw new GuanxiException("Trust failed");
+        }
+      }
+      else {
+        throw new GuanxiException("No X509 from connection");
       }
+
+      soapRequest.save(connection.getOutputStream());
+      return connection.getContentAsString();
     }
-    else {
-      throw new GuanxiException("No X509 from connection");
+    finally {
+      connection.close();
     }
-
-    soapRequest.save(connection.getOutputStream());
-    return new String(Utils.read(connection.getInputStream()));
   }
   
   /**
@@ -419,8 +443,8 @@ public class AuthConsumerServiceThread implements Runnable {
    * @param soapRequest         The request that will be sent to the Guard
    * @param guardSession        The Guard's session ID
    * @return                    A string containing the response from the guard
-   * @throws GuanxiException    If there is a problem creating the EntityConnection or setting the attributes on it
-   * @throws IOException        If there is a problem using the EntityConnection to read or write data
+   * @throws GuanxiException    If there is a problem creating the connection or setting the attributes on it
+   * @throws IOException        If there is a problem using the connection to read or write data
    */
   private String processGuardConnection(String acsURL, String entityID, String keystoreFile, String keystorePassword,
                                         String truststoreFile, String truststorePassword,
@@ -429,22 +453,27 @@ public class AuthConsumerServiceThread implements Runnable {
     Bag bag = getBag(responseDoc, guardSession);
     
     // Initialise the connection to the Guard's attribute consumer service
-    EntityConnection connection = new EntityConnection(acsURL, entityID, keystoreFile, keystorePassword,
-                                                       truststoreFile, truststorePassword,
-                                                       EntityConnection.PROBING_OFF);
-    connection.setDoOutput(true);
-    connection.connect();
+    BackChannelConnection connection = parent.getBackChannelClient().openConnection(acsURL, entityID, keystoreFile, keystorePassword,
+                                                                             truststoreFile, truststorePassword,
+                                                                             false);
+    try {
+      connection.setDoOutput(true);
+      connection.connect();
 
-    // Send the data to the Guard in an explicit POST variable
-    String json = URLEncoder.encode(Guanxi.REQUEST_PARAMETER_SAML_ATTRIBUTES, "UTF-8") + "=" + URLEncoder.encode(bag.toJSON(), "UTF-8");
+      // Send the data to the Guard in an explicit POST variable
+      String json = URLEncoder.encode(Guanxi.REQUEST_PARAMETER_SAML_ATTRIBUTES, "UTF-8") + "=" + URLEncoder.encode(bag.toJSON(), "UTF-8");
 
-    OutputStreamWriter wr = new OutputStreamWriter(connection.getOutputStream());
-    wr.write(json);
-    wr.flush();
-    wr.close();
+      OutputStreamWriter wr = new OutputStreamWriter(connection.getOutputStream());
+      wr.write(json);
+      wr.flush();
+      wr.close();
 
-    // ...and read the response from the Guard
-    return new String(Utils.read(connection.getInputStream()));
+      // ...and read the response from the Guard
+      return connection.getContentAsString();
+    }
+    finally {
+      connection.close();
+    }
   }
 
   /**
@@ -489,8 +518,7 @@ public class AuthConsumerServiceThread implements Runnable {
                            "correct and that the Attribute Authority accepts the client" +
                            "certificate of this Service Provider.");
       
-      setStatus(mAndV);
-      setCompleted(true);
+      finish(mAndV, false, (String)mAndV.getModel().get(parent.getErrorViewSimpleVar()));
       return;
     }
     
@@ -512,8 +540,7 @@ public class AuthConsumerServiceThread implements Runnable {
                            "There was a problem parsing the response from the Attribute " +
                            "Authority. Check that the Attribute Authority URL is correct.");
       
-      setStatus(mAndV);
-      setCompleted(true);
+      finish(mAndV, false, (String)mAndV.getModel().get(parent.getErrorViewSimpleVar()));
       return;
     }
     
@@ -529,8 +556,7 @@ public class AuthConsumerServiceThread implements Runnable {
                            "There was a problem communicating with the Guard. Check " +
                            "that the Guard is running.");
       
-      setStatus(mAndV);
-      setCompleted(true);
+      finish(mAndV, false, (String)mAndV.getModel().get(parent.getErrorViewSimpleVar()));
       return;
     }
     
@@ -538,6 +564,19 @@ public class AuthConsumerServiceThread implements Runnable {
     mAndV.setViewName(parent.getPodderView());
     mAndV.getModel().put("podderURL", podderURL + "?id=" + guardSession);
     
+    finish(mAndV, true, podderURL + "?id=" + guardSession);
+  }
+
+  /**
+   * Sets the final status of this thread. The outcome is passed to the parent first
+   * so it's available to other Engine nodes before this thread is marked as completed.
+   *
+   * @param mAndV the final status of this thread
+   * @param successful true if the attributes were sent to the Guard
+   * @param result the Podder URL if successful, otherwise the error message
+   */
+  private void finish(ModelAndView mAndV, boolean successful, String result) {
+    parent.loginCompleted(guardSession, successful, result);
     setStatus(mAndV);
     setCompleted(true);
   }
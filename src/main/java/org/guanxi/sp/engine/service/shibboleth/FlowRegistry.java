@@ -0,0 +1,193 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+package org.guanxi.sp.engine.service.shibboleth;
+
+import org.apache.log4j.Logger;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the AuthConsumerServiceThread for each Shibboleth login that's in flight on this
+ * Engine node, keyed by the flow ID that the browser carries in the URL. Flows are
+ * removed when their outcome has been shown to the browser. Flows the browser abandons
+ * are removed by a background timer once their time to live has passed.
+ */
+public class FlowRegistry {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(FlowRegistry.class.getName());
+  /** How long, in seconds, a flow is kept waiting for the browser to collect its outcome */
+  private int timeToLive = 600;
+  /** The maximum number of flows we'll hold */
+  private int maxFlows = 10000;
+  /** How often, in seconds, to remove expired flows */
+  private int sweepInterval = 60;
+  /** The flows, by flow ID */
+  private ConcurrentHashMap<String, Flow> flows = null;
+  /** How many flows are held. Kept separately so the cap can't be overshot */
+  private AtomicInteger liveFlows = null;
+  /** How many flows have expired without the browser collecting their outcome */
+  private AtomicLong expiredFlows = null;
+  /** How many flows have been turned away because the registry was full */
+  private AtomicLong rejections = null;
+  /** Runs the sweep task */
+  private Timer sweepTimer = null;
+
+  public void init() {
+    flows = new ConcurrentHashMap<String, Flow>();
+    liveFlows = new AtomicInteger();
+    expiredFlows = new AtomicLong();
+    rejections = new AtomicLong();
+
+    sweepTimer = new Timer("FlowRegistrySweep", true);
+    sweepTimer.schedule(new TimerTask() {
+      public void run() {
+        sweep();
+      }
+    }, sweepInterval * 1000L, sweepInterval * 1000L);
+  }
+
+  public void destroy() {
+    if (sweepTimer != null) {
+      sweepTimer.cancel();
+    }
+  }
+
+  /**
+   * Registers a flow
+   *
+   * @param flowID the ID of the flow
+   * @param thread the thread that's processing the flow
+   * @return false if the registry is full or the flow is already registered
+   */
+  public boolean put(String flowID, AuthConsumerServiceThread thread) {
+    if (liveFlows.incrementAndGet() > maxFlows) {
+      liveFlows.decrementAndGet();
+      rejections.incrementAndGet();
+      logger.warn("Flow registry full, rejecting flow : " + flowID);
+      return false;
+    }
+    if (flows.putIfAbsent(flowID, new Flow(thread, System.currentTimeMillis() + (timeToLive * 1000L))) != null) {
+      liveFlows.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Finds the thread that's processing a flow
+   *
+   * @param flowID the ID of the flow
+   * @return the thread or null if the flow isn't registered or has expired
+   */
+  public AuthConsumerServiceThread get(String flowID) {
+    Flow flow = flows.get(flowID);
+    if (flow == null) {
+      return null;
+    }
+    if (flow.hasExpired(System.currentTimeMillis())) {
+      expire(flowID, flow);
+      return null;
+    }
+    return flow.thread;
+  }
+
+  /**
+   * Removes a flow once its outcome has been shown to the browser
+   *
+   * @param flowID the ID of the flow
+   */
+  public void remove(String flowID) {
+    if (flows.remove(flowID) != null) {
+      liveFlows.decrementAndGet();
+    }
+  }
+
+  /**
+   * Removes all the flows whose time to live has passed
+   */
+  public void sweep() {
+    long now = System.currentTimeMillis();
+    for (Iterator<Map.Entry<String, Flow>> entries = flows.entrySet().iterator(); entries.hasNext();) {
+      Map.Entry<String, Flow> entry = entries.next();
+      if (entry.getValue().hasExpired(now)) {
+        expire(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Removes an expired flow, unless another thread got there first
+   *
+   * @param flowID the ID of the flow
+   * @param flow the flow that has expired
+   */
+  private void expire(String flowID, Flow flow) {
+    if (flows.remove(flowID, flow)) {
+      liveFlows.decrementAndGet();
+      expiredFlows.incrementAndGet();
+      logger.debug("Flow expired : " + flowID);
+    }
+  }
+
+  /**
+   * @return the number of flows that are held
+   */
+  public int getLiveFlows() {
+    return liveFlows.get();
+  }
+
+  /**
+   * @return the number of flows that have expired without their outcome being collected
+   */
+  public long getExpiredFlows() {
+    return expiredFlows.get();
+  }
+
+  /**
+   * @return the number of flows that have been rejected because the registry was full
+   */
+  public long getRejections() {
+    return rejections.get();
+  }
+
+  /**
+   * A flow's thread and when the flow expires
+   */
+  private static class Flow {
+    final AuthConsumerServiceThread thread;
+    final long expires;
+
+    Flow(AuthConsumerServiceThread thread, long expires) {
+      this.thread = thread;
+      this.expires = expires;
+    }
+
+    boolean hasExpired(long now) {
+      return now > expires;
+    }
+  }
+
+  public void setTimeToLive(int timeToLive) { this.timeToLive = timeToLive; }
+  public void setMaxFlows(int maxFlows) { this.maxFlows = maxFlows; }
+  public void setSweepInterval(int sweepInterval) { this.sweepInterval = sweepInterval; }
+}
@@ -19,12 +19,10 @@ package org.guanxi.sp.engine.service.shibboleth;
 import org.apache.log4j.Logger;
 import org.guanxi.common.GuanxiException;
 import org.guanxi.common.entity.EntityFarm;
-import org.guanxi.common.entity.EntityManager;
-import org.guanxi.common.metadata.Metadata;
+import org.guanxi.sp.engine.idp.IdP;
+import org.guanxi.sp.engine.idp.IdPRegistry;
 import org.guanxi.sp.engine.service.generic.ProfileService;
 import org.guanxi.xal.saml2.metadata.GuardRoleDescriptorExtensions;
-import org.guanxi.xal.saml_2_0.metadata.EndpointType;
-import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
 import org.springframework.web.servlet.ModelAndView;
 
 import javax.servlet.http.HttpServletRequest;
@@ -48,6 +46,8 @@ public class ShibbolethProfileService implements ProfileService {
   private String wayfViewJSP = null;
   /** The Shibboleth Attribute Consumer service for the Engine */
   private String attributeConsumerService = null;
+  /** The IdPs the Engine knows about */
+  private IdPRegistry idpRegistry = null;
 
   /** @see org.guanxi.sp.engine.service.generic.ProfileService#init() */
   public void init() {}
@@ -63,15 +63,11 @@ public class ShibbolethProfileService implements ProfileService {
     String wayfForGuard = null;
     String defaultWAYFLocation = null;
     if (entityID != null) {
-      EntityManager manager = farm.getEntityManagerForID(entityID);
-      Metadata idpMetadata = manager.getMetadata(entityID);
-      EntityDescriptorType saml2Metadata = (EntityDescriptorType)idpMetadata.getPrivateData();
-      EndpointType[] ssoServices = saml2Metadata.getIDPSSODescriptorArray(0).getSingleSignOnServiceArray();
-      for (EndpointType ssoService : ssoServices) {
-        if (ssoService.getBinding().equals("urn:mace:shibboleth:1.0:profiles:AuthnRequest")) {
-          wayfForGuard = ssoService.getLocation();
-          logger.info("Guard '" + guardID + "' obtained WAYFless location : " + wayfForGuard);
-        }
+      IdP idp = idpRegistry.getIdP(entityID);
+      IdP.Endpoint ssoService = (idp == null) ? null : idp.getSingleSignOnService(IdP.SHIBBOLETH_AUTHN_REQUEST_BINDING);
+      if (ssoService != null) {
+        wayfForGuard = ssoService.getLocation();
+        logger.info("Guard '" + guardID + "' obtained WAYFless location : " + wayfForGuard);
       }
     }
 
@@ -110,4 +106,5 @@ public class ShibbolethProfileService implements ProfileService {
   public void setWayfs(HashMap<String, String> wayfs) { this.wayfs = wayfs; }
   public void setWayfViewJSP(String wayfViewJSP) { this.wayfViewJSP = wayfViewJSP; }
   public void setAttributeConsumerService(String attributeConsumerService) { this.attributeConsumerService = attributeConsumerService; }
+  public void setIdpRegistry(IdPRegistry idpRegistry) { this.idpRegistry = idpRegistry; }
 }
@@ -0,0 +1,116 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.session;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The state of a login in progress. This only holds the Guard's entityID and
+ * the outcome of the login so it can be shared between Engine nodes cheaply.
+ */
+public final class EngineSession {
+  /** Version of the serialized form */
+  private static final int VERSION = 1;
+
+  /** Where a login has got to */
+  public enum State {
+    /** Waiting for the IdP's response */
+    PENDING,
+    /** An Engine node is processing the IdP's response */
+    PROCESSING,
+    /** The attributes have been sent to the Guard */
+    COMPLETED,
+    /** Processing the IdP's response failed */
+    FAILED
+  }
+
+  private final String guardEntityID;
+  private final State state;
+  /** The URL to send the browser to when COMPLETED, or the error message when FAILED */
+  private final String result;
+  /** When the login expires, in milliseconds since the epoch */
+  private final long expires;
+
+  public EngineSession(String guardEntityID, State state, String result, long expires) {
+    this.guardEntityID = guardEntityID;
+    this.state = state;
+    this.result = result;
+    this.expires = expires;
+  }
+
+  /**
+   * Creates a copy of this login in a new state. The expiry time doesn't change.
+   *
+   * @param state the new state
+   * @param result the result of the login or null if it hasn't finished
+   * @return the login in it's new state
+   */
+  public EngineSession withState(State state, String result) {
+    return new EngineSession(guardEntityID, state, result, expires);
+  }
+
+  public boolean hasExpired(long now) {
+    return now >= expires;
+  }
+
+  /**
+   * Writes the login in it's compact form
+   *
+   * @param out where to write the login
+   * @throws IOException if an error occurs
+   */
+  public void writeTo(DataOutputStream out) throws IOException {
+    out.writeByte(VERSION);
+    out.writeUTF(guardEntityID);
+    out.writeByte(state.ordinal());
+    out.writeBoolean(result != null);
+    if (result != null) {
+      out.writeUTF(result);
+    }
+    out.writeLong(expires);
+  }
+
+  /**
+   * Reads a login written by writeTo
+   *
+   * @param in where to read the login from
+   * @return the login
+   * @throws IOException if the login can't be read
+   */
+  public static EngineSession readFrom(DataInputStream in) throws IOException {
+    int version = in.readByte();
+    if (version != VERSION) {
+      throw new IOException("Unknown session version : " + version);
+    }
+    String guardEntityID = in.readUTF();
+    int state = in.readByte();
+    if ((state < 0) || (state >= State.values().length)) {
+      throw new IOException("Unknown session state : " + state);
+    }
+    String result = in.readBoolean() ? in.readUTF() : null;
+    long expires = in.readLong();
+    return new EngineSession(guardEntityID, State.values()[state], result, expires);
+  }
+
+  public String getGuardEntityID() { return guardEntityID; }
+  public State getState() { return state; }
+  public String getResult() { return result; }
+  public long getExpires() { return expires; }
+}
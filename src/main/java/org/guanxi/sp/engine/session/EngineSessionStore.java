@@ -0,0 +1,94 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.session;
+
+/**
+ * Holds the state of logins that are in progress. When a Guard starts a login, it's
+ * session ID is converted to an Engine session ID and the Guard's entityID is stored
+ * under it until the IdP's response has been processed. Entries that are never
+ * completed are expired by the store.
+ *
+ * Implementations that share their state let any Engine node complete a login that
+ * another node started, so browsers don't have to be pinned to one node.
+ */
+public interface EngineSessionStore {
+  /**
+   * Starts a login
+   *
+   * @param engineSessionID the Engine session ID
+   * @param guardEntityID the entityID of the Guard that started the login
+   */
+  public void put(String engineSessionID, String guardEntityID);
+
+  /**
+   * Finds a login
+   *
+   * @param engineSessionID the Engine session ID
+   * @return the login or null if it doesn't exist or has expired
+   */
+  public EngineSession get(String engineSessionID);
+
+  /**
+   * Moves a PENDING login to PROCESSING. Only one caller, on any node, can claim a login
+   * so this stops the IdP's response being processed more than once.
+   *
+   * @param engineSessionID the Engine session ID
+   * @return the login as it was before it was claimed, or null if there is no PENDING login
+   */
+  public EngineSession claim(String engineSessionID);
+
+  /**
+   * Moves a PROCESSING login back to PENDING. This is for a response that was claimed
+   * but then failed validation, so a junk or forged response can't use up the login.
+   *
+   * @param engineSessionID the Engine session ID
+   */
+  public void release(String engineSessionID);
+
+  /**
+   * Records the outcome of a login that was claimed
+   *
+   * @param engineSessionID the Engine session ID
+   * @param successful true if the attributes were sent to the Guard
+   * @param result the URL to send the browser to if successful, otherwise the error message
+   */
+  public void complete(String engineSessionID, boolean successful, String result);
+
+  /**
+   * Removes a login
+   *
+   * @param engineSessionID the Engine session ID
+   * @return the login or null if it doesn't exist or has expired
+   */
+  public EngineSession remove(String engineSessionID);
+
+  /**
+   * @return the number of logins in the store
+   */
+  public int size();
+
+  /**
+   * @return the number of logins removed to keep the store within it's maximum size
+   */
+  public long getEvictions();
+
+  /**
+   * @return the number of logins removed because their time to live expired
+   */
+  public long getExpirations();
+}
@@ -0,0 +1,445 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.session;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An EngineSessionStore that keeps each session in a small file in a directory shared by
+ * all the Engine nodes, e.g. on a shared filesystem. Files are replaced by renaming a
+ * temporary file over them so readers never see a partly written session, and a session
+ * is changed by first taking it's file, i.e. renaming it aside, which only one node can do. When there are more than
+ * maxSessions files the least recently updated ones are evicted.
+ */
+public class FileEngineSessionStore implements EngineSessionStore {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(FileEngineSessionStore.class.getName());
+  /** The extension of session files */
+  private static final String SESSION_EXTENSION = ".session";
+  /** The extension of files that are being written */
+  private static final String TEMP_EXTENSION = ".tmp";
+  /** The extension of session files that have been claimed */
+  private static final String CLAIM_EXTENSION = ".claim";
+  /** How many times to try to take a session file that another request has taken */
+  private static final int TAKE_ATTEMPTS = 20;
+  /** How long, in milliseconds, to wait between attempts to take a session file */
+  private static final long TAKE_RETRY_INTERVAL = 5;
+  /** How many puts can go by before the directory is counted again, to catch sessions added by other nodes */
+  private static final int COUNT_INTERVAL = 100;
+  /** Characters for hex encoding session file names */
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  /** The directory shared by all Engine nodes */
+  private String directory = null;
+  /** How long, in seconds, a session can wait for the IdP's response */
+  private int timeToLive = 1800;
+  /** The maximum number of sessions the directory will hold */
+  private int maxSessions = 10000;
+  /** How often, in seconds, to remove expired sessions */
+  private int expiryInterval = 60;
+  /** The session directory */
+  private File sessionDir = null;
+  /** Makes the names of claimed files unique */
+  private SecureRandom random = null;
+  /** Runs the expiry task */
+  private Timer expiryTimer = null;
+  /**
+   * Roughly how many sessions are in the directory. Other nodes add sessions too, so it's
+   * counted again on every expiry run, every COUNT_INTERVAL puts and when the store looks full.
+   */
+  private AtomicInteger sessionCount = null;
+  /** How many puts there have been on this node */
+  private AtomicLong puts = null;
+  /** How many sessions have been evicted to make room for new ones */
+  private AtomicLong evictions = null;
+  /** How many sessions have expired */
+  private AtomicLong expirations = null;
+
+  public void init() {
+    sessionDir = new File(directory);
+    if (!sessionDir.exists()) {
+      if (!sessionDir.mkdirs()) {
+        logger.error("Can't create session directory : " + directory);
+      }
+    }
+    random = new SecureRandom();
+    sessionCount = new AtomicInteger(size());
+    puts = new AtomicLong();
+    evictions = new AtomicLong();
+    expirations = new AtomicLong();
+
+    expiryTimer = new Timer("EngineSessionStoreExpiry", true);
+    expiryTimer.schedule(new TimerTask() {
+      public void run() {
+        expire();
+      }
+    }, expiryInterval * 1000L, expiryInterval * 1000L);
+  }
+
+  public void destroy() {
+    if (expiryTimer != null) {
+      expiryTimer.cancel();
+    }
+  }
+
+  /** @see EngineSessionStore#put(String, String) */
+  public void put(String engineSessionID, String guardEntityID) {
+    EngineSession session = new EngineSession(guardEntityID, EngineSession.State.PENDING, null,
+                                              System.currentTimeMillis() + (timeToLive * 1000L));
+    File sessionFile = sessionFile(engineSessionID);
+    write(sessionFile, session);
+    if ((sessionCount.incrementAndGet() > maxSessions) || ((puts.incrementAndGet() % COUNT_INTERVAL) == 0)) {
+      evict(sessionFile);
+    }
+  }
+
+  /** @see EngineSessionStore#get(String) */
+  public EngineSession get(String engineSessionID) {
+    if (engineSessionID == null) return null;
+    File sessionFile = sessionFile(engineSessionID);
+    EngineSession session = read(sessionFile);
+    if ((session != null) && (session.hasExpired(System.currentTimeMillis()))) {
+      if (sessionFile.delete()) {
+        expirations.incrementAndGet();
+      }
+      return null;
+    }
+    return session;
+  }
+
+  /** @see EngineSessionStore#claim(String) */
+  public EngineSession claim(String engineSessionID) {
+    if (engineSessionID == null) return null;
+    File sessionFile = sessionFile(engineSessionID);
+    File claimedFile = takeFile(sessionFile);
+    if (claimedFile == null) return null;
+
+    EngineSession session = read(claimedFile);
+    if ((session == null) || (session.hasExpired(System.currentTimeMillis()))) {
+      claimedFile.delete();
+      return null;
+    }
+    if (session.getState() != EngineSession.State.PENDING) {
+      // Not ours to claim so put it back
+      claimedFile.renameTo(sessionFile);
+      return null;
+    }
+
+    write(sessionFile, session.withState(EngineSession.State.PROCESSING, null));
+    claimedFile.delete();
+    return session;
+  }
+
+  /** @see EngineSessionStore#release(String) */
+  public void release(String engineSessionID) {
+    if (engineSessionID == null) return;
+    File sessionFile = sessionFile(engineSessionID);
+    File claimedFile = awaitFile(sessionFile);
+    if (claimedFile == null) return;
+
+    EngineSession session = read(claimedFile);
+    if ((session == null) || (session.hasExpired(System.currentTimeMillis()))) {
+      claimedFile.delete();
+      return;
+    }
+    if (session.getState() != EngineSession.State.PROCESSING) {
+      claimedFile.renameTo(sessionFile);
+      return;
+    }
+
+    write(sessionFile, session.withState(EngineSession.State.PENDING, null));
+    claimedFile.delete();
+  }
+
+  /** @see EngineSessionStore#complete(String, boolean, String) */
+  public void complete(String engineSessionID, boolean successful, String result) {
+    if (engineSessionID == null) return;
+    // Take the file so a claim or release that's putting back it's copy can't overwrite the outcome
+    File sessionFile = sessionFile(engineSessionID);
+    File claimedFile = awaitFile(sessionFile);
+    EngineSession session = (claimedFile == null) ? null : read(claimedFile);
+    if ((session == null) || (session.hasExpired(System.currentTimeMillis()))) {
+      if (claimedFile != null) {
+        claimedFile.delete();
+      }
+      logger.warn("Session expired before it completed : " + engineSessionID);
+      return;
+    }
+
+    write(sessionFile, session.withState(successful ? EngineSession.State.COMPLETED : EngineSession.State.FAILED, result));
+    claimedFile.delete();
+  }
+
+  /** @see EngineSessionStore#remove(String) */
+  public EngineSession remove(String engineSessionID) {
+    if (engineSessionID == null) return null;
+    File claimedFile = takeFile(sessionFile(engineSessionID));
+    if (claimedFile == null) return null;
+    EngineSession session = read(claimedFile);
+    claimedFile.delete();
+    if ((session == null) || (session.hasExpired(System.currentTimeMillis()))) return null;
+    return session;
+  }
+
+  /** @see EngineSessionStore#size() */
+  public int size() {
+    String[] sessionFiles = sessionDir.list(new SuffixFilter(SESSION_EXTENSION));
+    return (sessionFiles == null) ? 0 : sessionFiles.length;
+  }
+
+  /** @see EngineSessionStore#getEvictions() */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /** @see EngineSessionStore#getExpirations() */
+  public long getExpirations() {
+    return expirations.get();
+  }
+
+  /**
+   * Removes expired sessions, along with temporary and claimed files left behind
+   * by nodes that stopped part way through an update.
+   */
+  void expire() {
+    long now = System.currentTimeMillis();
+    File[] files = sessionDir.listFiles();
+    if (files == null) return;
+
+    int expired = 0;
+    int remaining = 0;
+    for (File file : files) {
+      if (file.getName().endsWith(SESSION_EXTENSION)) {
+        EngineSession session = read(file);
+        if ((session != null) && (session.hasExpired(now)) && (file.delete())) {
+          expired++;
+        }
+        else {
+          remaining++;
+        }
+      }
+      else if (file.lastModified() + (timeToLive * 1000L) < now) {
+        file.delete();
+      }
+    }
+
+    if (expired > 0) {
+      expirations.addAndGet(expired);
+      logger.debug("Expired " + expired + " sessions");
+    }
+    sessionCount.set(remaining);
+  }
+
+  /**
+   * Counts the sessions in the directory and removes the least recently updated ones until
+   * it's back within maxSessions. Only one thread on a node evicts at a time.
+   *
+   * @param newSessionFile the file of the session being added, which is never evicted
+   */
+  synchronized void evict(File newSessionFile) {
+    File[] files = sessionDir.listFiles(new SuffixFilter(SESSION_EXTENSION));
+    if (files == null) return;
+    sessionCount.set(files.length);
+    if (files.length <= maxSessions) return;
+
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File file1, File file2) {
+        long modified1 = file1.lastModified();
+        long modified2 = file2.lastModified();
+        return (modified1 < modified2) ? -1 : ((modified1 == modified2) ? 0 : 1);
+      }
+    });
+    int remaining = files.length;
+    for (int c=0; (c < files.length) && (remaining > maxSessions); c++) {
+      // Modification times can be coarse so the new session might sort among the oldest
+      if (files[c].equals(newSessionFile)) continue;
+      if (files[c].delete()) {
+        evictions.incrementAndGet();
+        logger.warn("Session store full, evicting session file : " + files[c].getName());
+      }
+      // If another node got there first the file has gone anyway
+      remaining--;
+    }
+    sessionCount.set(remaining);
+  }
+
+  /**
+   * Gets the file for a session. Session IDs are hashed so they're safe to use
+   * as file names.
+   *
+   * @param engineSessionID the Engine session ID
+   * @return the session's file
+   */
+  private File sessionFile(String engineSessionID) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(engineSessionID.getBytes("UTF-8"));
+      char[] name = new char[digest.length * 2];
+      for (int c=0; c < digest.length; c++) {
+        name[c * 2] = HEX[(digest[c] >> 4) & 0x0f];
+        name[(c * 2) + 1] = HEX[digest[c] & 0x0f];
+      }
+      return new File(sessionDir, new String(name) + SESSION_EXTENSION);
+    }
+    catch(NoSuchAlgorithmException nsae) {
+      throw new IllegalStateException(nsae);
+    }
+    catch(UnsupportedEncodingException uee) {
+      throw new IllegalStateException(uee);
+    }
+  }
+
+  /**
+   * Takes a session file out of the store by renaming it. If several nodes try to take the
+   * same file at the same time only one of them will succeed.
+   *
+   * @param sessionFile the session's file
+   * @return the renamed file or null if the file couldn't be taken
+   */
+  private File takeFile(File sessionFile) {
+    File claimedFile = new File(sessionDir, sessionFile.getName() + "." + Long.toHexString(random.nextLong()) + CLAIM_EXTENSION);
+    return sessionFile.renameTo(claimedFile) ? claimedFile : null;
+  }
+
+  /**
+   * Takes a session file out of the store, waiting briefly if another request has it
+   *
+   * @param sessionFile the session's file
+   * @return the renamed file or null if the file couldn't be taken
+   */
+  private File awaitFile(File sessionFile) {
+    File claimedFile = takeFile(sessionFile);
+    for (int attempt = 1; (claimedFile == null) && (attempt < TAKE_ATTEMPTS) && (pause()); attempt++) {
+      claimedFile = takeFile(sessionFile);
+    }
+    return claimedFile;
+  }
+
+  /**
+   * Waits before trying to take a session file again
+   *
+   * @return false if the thread was interrupted so the caller should give up
+   */
+  private boolean pause() {
+    try {
+      Thread.sleep(TAKE_RETRY_INTERVAL);
+      return true;
+    }
+    catch(InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Reads a session from it's file
+   *
+   * @param file the session's file
+   * @return the session or null if the file doesn't exist or can't be read
+   */
+  private EngineSession read(File file) {
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      return EngineSession.readFrom(in);
+    }
+    catch(FileNotFoundException fnfe) {
+      return null;
+    }
+    catch(IOException ioe) {
+      logger.error("Can't read session file " + file.getName(), ioe);
+      return null;
+    }
+    finally {
+      close(in);
+    }
+  }
+
+  /**
+   * Writes a session to it's file. The session is written to a temporary file which is
+   * then renamed over the session's file.
+   *
+   * @param file the session's file
+   * @param session the session to write
+   */
+  private void write(File file, EngineSession session) {
+    File tempFile = null;
+    DataOutputStream out = null;
+    try {
+      tempFile = File.createTempFile(file.getName(), TEMP_EXTENSION, sessionDir);
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      session.writeTo(out);
+      out.close();
+      out = null;
+      if (!tempFile.renameTo(file)) {
+        // Some platforms won't rename over an existing file
+        file.delete();
+        if (!tempFile.renameTo(file)) {
+          throw new IOException("Can't rename " + tempFile.getName() + " to " + file.getName());
+        }
+      }
+    }
+    catch(IOException ioe) {
+      logger.error("Can't write session file " + file.getName(), ioe);
+      if (tempFile != null) {
+        tempFile.delete();
+      }
+    }
+    finally {
+      close(out);
+    }
+  }
+
+  private void close(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      }
+      catch(IOException ioe) {
+        // Nothing we can do about it
+      }
+    }
+  }
+
+  public void setDirectory(String directory) { this.directory = directory; }
+  public void setTimeToLive(int timeToLive) { this.timeToLive = timeToLive; }
+  public void setMaxSessions(int maxSessions) { this.maxSessions = maxSessions; }
+  public void setExpiryInterval(int expiryInterval) { this.expiryInterval = expiryInterval; }
+
+  /** Lists the files with a particular extension */
+  private static final class SuffixFilter implements FilenameFilter {
+    private final String suffix;
+
+    SuffixFilter(String suffix) {
+      this.suffix = suffix;
+    }
+
+    public boolean accept(File dir, String name) {
+      return name.endsWith(suffix);
+    }
+  }
+}
@@ -0,0 +1,197 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.session;
+
+import org.apache.log4j.Logger;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An EngineSessionStore that keeps sessions in memory, for an Engine that runs on a
+ * single node. Every session has the same time to live so the sessions are held in
+ * the order they were created, which means the oldest session is always the first to
+ * expire and the first to be evicted when the store is full. A background timer
+ * removes expired sessions.
+ */
+public class MemoryEngineSessionStore implements EngineSessionStore {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(MemoryEngineSessionStore.class.getName());
+  /** How long, in seconds, a session can wait for the IdP's response */
+  private int timeToLive = 1800;
+  /** The maximum number of sessions we'll hold */
+  private int maxSessions = 10000;
+  /** How often, in seconds, to remove expired sessions */
+  private int expiryInterval = 60;
+  /** The sessions, oldest first */
+  private LinkedHashMap<String, EngineSession> sessions = null;
+  /** Runs the expiry task */
+  private Timer expiryTimer = null;
+  /** How many sessions have been evicted to make room for new ones */
+  private AtomicLong evictions = null;
+  /** How many sessions have expired */
+  private AtomicLong expirations = null;
+
+  public void init() {
+    evictions = new AtomicLong();
+    expirations = new AtomicLong();
+    sessions = new LinkedHashMap<String, EngineSession>() {
+      protected boolean removeEldestEntry(Map.Entry<String, EngineSession> eldest) {
+        if (size() > maxSessions) {
+          evictions.incrementAndGet();
+          logger.warn("Session store full, evicting session : " + eldest.getKey());
+          return true;
+        }
+        return false;
+      }
+    };
+
+    expiryTimer = new Timer("EngineSessionStoreExpiry", true);
+    expiryTimer.schedule(new TimerTask() {
+      public void run() {
+        expire();
+      }
+    }, expiryInterval * 1000L, expiryInterval * 1000L);
+  }
+
+  public void destroy() {
+    if (expiryTimer != null) {
+      expiryTimer.cancel();
+    }
+  }
+
+  /** @see EngineSessionStore#put(String, String) */
+  public void put(String engineSessionID, String guardEntityID) {
+    EngineSession session = new EngineSession(guardEntityID, EngineSession.State.PENDING, null,
+                                              System.currentTimeMillis() + (timeToLive * 1000L));
+    synchronized(sessions) {
+      // Remove any previous session first so this one moves to the end of the queue
+      sessions.remove(engineSessionID);
+      sessions.put(engineSessionID, session);
+    }
+  }
+
+  /** @see EngineSessionStore#get(String) */
+  public EngineSession get(String engineSessionID) {
+    if (engineSessionID == null) return null;
+    synchronized(sessions) {
+      return getUnexpired(engineSessionID);
+    }
+  }
+
+  /** @see EngineSessionStore#claim(String) */
+  public EngineSession claim(String engineSessionID) {
+    if (engineSessionID == null) return null;
+    synchronized(sessions) {
+      EngineSession session = getUnexpired(engineSessionID);
+      if ((session == null) || (session.getState() != EngineSession.State.PENDING)) return null;
+      // Replacing the value of an existing key doesn't change it's position in the queue
+      sessions.put(engineSessionID, session.withState(EngineSession.State.PROCESSING, null));
+      return session;
+    }
+  }
+
+  /** @see EngineSessionStore#release(String) */
+  public void release(String engineSessionID) {
+    if (engineSessionID == null) return;
+    synchronized(sessions) {
+      EngineSession session = getUnexpired(engineSessionID);
+      if ((session == null) || (session.getState() != EngineSession.State.PROCESSING)) return;
+      sessions.put(engineSessionID, session.withState(EngineSession.State.PENDING, null));
+    }
+  }
+
+  /** @see EngineSessionStore#complete(String, boolean, String) */
+  public void complete(String engineSessionID, boolean successful, String result) {
+    if (engineSessionID == null) return;
+    synchronized(sessions) {
+      EngineSession session = getUnexpired(engineSessionID);
+      if (session == null) {
+        logger.warn("Session expired before it completed : " + engineSessionID);
+        return;
+      }
+      sessions.put(engineSessionID, session.withState(successful ? EngineSession.State.COMPLETED : EngineSession.State.FAILED, result));
+    }
+  }
+
+  /** @see EngineSessionStore#remove(String) */
+  public EngineSession remove(String engineSessionID) {
+    if (engineSessionID == null) return null;
+    synchronized(sessions) {
+      EngineSession session = sessions.remove(engineSessionID);
+      if ((session == null) || (session.hasExpired(System.currentTimeMillis()))) return null;
+      return session;
+    }
+  }
+
+  /** @see EngineSessionStore#size() */
+  public int size() {
+    synchronized(sessions) {
+      return sessions.size();
+    }
+  }
+
+  /**
+   * Removes expired sessions. As the sessions are held oldest first we can stop
+   * as soon as we find one that hasn't expired.
+   */
+  void expire() {
+    long now = System.currentTimeMillis();
+    int expired = 0;
+    synchronized(sessions) {
+      Iterator<EngineSession> it = sessions.values().iterator();
+      while (it.hasNext()) {
+        if (!it.next().hasExpired(now)) break;
+        it.remove();
+        expired++;
+      }
+    }
+    if (expired > 0) {
+      expirations.addAndGet(expired);
+      logger.debug("Expired " + expired + " sessions");
+    }
+  }
+
+  /**
+   * Gets a session, removing it if it has expired. Callers must hold the lock on sessions.
+   *
+   * @param engineSessionID the Engine session ID
+   * @return the session or null if it doesn't exist or has expired
+   */
+  private EngineSession getUnexpired(String engineSessionID) {
+    EngineSession session = sessions.get(engineSessionID);
+    if (session == null) return null;
+    if (session.hasExpired(System.currentTimeMillis())) {
+      sessions.remove(engineSessionID);
+      expirations.incrementAndGet();
+      return null;
+    }
+    return session;
+  }
+
+  public long getEvictions() { return evictions.get(); }
+  public long getExpirations() { return expirations.get(); }
+
+  public void setTimeToLive(int timeToLive) { this.timeToLive = timeToLive; }
+  public void setMaxSessions(int maxSessions) { this.maxSessions = maxSessions; }
+  public void setExpiryInterval(int expiryInterval) { this.expiryInterval = expiryInterval; }
+}
@@ -0,0 +1,175 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.trust;
+
+import org.apache.log4j.Logger;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.trust.TrustEngine;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the decisions a TrustEngine has made about an entity's certificates, keyed on the
+ * entity's entityID and the SHA-256 fingerprint of the certificate. An IdP signs with the same
+ * handful of certificates over and over so once a certificate has been through the PKIX and key
+ * checks against the entity's metadata we don't need to do them again until the metadata changes.
+ * Decisions are discarded when the metadata they were made against is replaced, either by a call
+ * to invalidate or when the EntityManager hands out a different Metadata object for the entity.
+ */
+public class TrustDecisionCache {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(TrustDecisionCache.class.getName());
+  /** The digest used to fingerprint certificates */
+  private static final String FINGERPRINT_ALGORITHM = "SHA-256";
+  /** The decisions for each entity, keyed on entityID */
+  private ConcurrentHashMap<String, EntityDecisions> cache = null;
+  /** How many decisions we'll remember for an entity */
+  private int maxDecisionsPerEntity = 32;
+  /** How many times we found a decision in the cache */
+  private AtomicLong hits = null;
+  /** How many times we had to ask the TrustEngine */
+  private AtomicLong misses = null;
+
+  public void init() {
+    cache = new ConcurrentHashMap<String, EntityDecisions>();
+    hits = new AtomicLong();
+    misses = new AtomicLong();
+  }
+
+  /**
+   * Decides whether to trust a certificate presented by an entity, passing the certificate
+   * to the TrustEngine if there's no decision in the cache.
+   *
+   * @param trustEngine the TrustEngine of the entity's EntityManager
+   * @param metadata the entity's metadata
+   * @param x509 the certificate the entity presented
+   * @return true if the entity is trusted
+   * @throws GuanxiException if the certificate can't be fingerprinted
+   */
+  public boolean trustEntity(TrustEngine trustEngine, Metadata metadata, X509Certificate x509) throws GuanxiException {
+    return trustEntity(trustEngine, metadata, x509, x509, null);
+  }
+
+  /**
+   * Decides whether to trust an entity, passing entityData to the TrustEngine if there's no decision
+   * in the cache for the certificate the entity presented.
+   *
+   * @param trustEngine the TrustEngine of the entity's EntityManager
+   * @param metadata the entity's metadata
+   * @param x509 the certificate the entity presented
+   * @param entityData what the TrustEngine needs to make the decision
+   * @param scope anything else the decision depends on, such as the host the certificate came from. Can be null
+   * @return true if the entity is trusted
+   * @throws GuanxiException if the certificate can't be fingerprinted
+   */
+  public boolean trustEntity(TrustEngine trustEngine, Metadata metadata, X509Certificate x509,
+                             Object entityData, String scope) throws GuanxiException {
+    String key = (scope == null) ? fingerprint(x509) : scope + "!" + fingerprint(x509);
+
+    EntityDecisions decisions = getDecisions(metadata);
+    Boolean decision = decisions.get(key);
+    if (decision != null) {
+      hits.incrementAndGet();
+      return decision;
+    }
+
+    misses.incrementAndGet();
+    boolean trusted = trustEngine.trustEntity(metadata, entityData);
+    if (decisions.size() < maxDecisionsPerEntity) {
+      decisions.put(key, trusted);
+    }
+    return trusted;
+  }
+
+  /**
+   * Forgets all the decisions made about an entity. Call this whenever the entity's metadata is replaced.
+   *
+   * @param entityID the entityID of the entity
+   */
+  public void invalidate(String entityID) {
+    cache.remove(entityID);
+  }
+
+  /**
+   * Gets the decisions made against an entity's current metadata
+   *
+   * @param metadata the entity's current metadata
+   * @return the decisions made against the metadata
+   */
+  private EntityDecisions getDecisions(Metadata metadata) {
+    EntityDecisions decisions = cache.get(metadata.getEntityID());
+    if ((decisions == null) || (decisions.metadata != metadata)) {
+      if (decisions != null) {
+        logger.info("Metadata changed, discarding trust decisions for : " + metadata.getEntityID());
+      }
+      decisions = new EntityDecisions(metadata);
+      cache.put(metadata.getEntityID(), decisions);
+    }
+    return decisions;
+  }
+
+  /**
+   * Works out the fingerprint of a certificate
+   *
+   * @param x509 the certificate
+   * @return the hex encoded SHA-256 digest of the certificate's DER encoding
+   * @throws GuanxiException if the certificate can't be encoded
+   */
+  private String fingerprint(X509Certificate x509) throws GuanxiException {
+    try {
+      byte[] digest = MessageDigest.getInstance(FINGERPRINT_ALGORITHM).digest(x509.getEncoded());
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+        hex.append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    }
+    catch(NoSuchAlgorithmException nsae) {
+      throw new GuanxiException(nsae);
+    }
+    catch(CertificateEncodingException cee) {
+      throw new GuanxiException(cee);
+    }
+  }
+
+  // Metrics
+  public long getHits() { return hits.get(); }
+  public long getMisses() { return misses.get(); }
+  public int getSize() { return cache.size(); }
+
+  public void setMaxDecisionsPerEntity(int maxDecisionsPerEntity) { this.maxDecisionsPerEntity = maxDecisionsPerEntity; }
+
+  /**
+   * The decisions made about an entity's certificates, along with the metadata they were made against
+   */
+  private static final class EntityDecisions extends ConcurrentHashMap<String, Boolean> {
+    private static final long serialVersionUID = 1L;
+    private final Metadata metadata;
+
+    EntityDecisions(Metadata metadata) {
+      this.metadata = metadata;
+    }
+  }
+}
@@ -0,0 +1,334 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.trust;
+
+import org.apache.log4j.Logger;
+import org.apache.xml.security.utils.Base64;
+import org.apache.xmlbeans.XmlObject;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.KeyDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.KeyTypes;
+import org.guanxi.xal.saml_2_0.metadata.RoleDescriptorType;
+import org.guanxi.xal.w3.xmldsig.X509DataType;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.security.auth.x500.X500Principal;
+import java.io.ByteArrayInputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.CertPathBuilder;
+import java.security.cert.CertPathBuilderException;
+import java.security.cert.CertStore;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the trust material of each entity, decoded from it's metadata when the metadata is loaded.
+ * Trust engines read the certificates, public keys and federation CAs from here rather than
+ * decoding base64 certificates out of the metadata and building PKIX structures on every login.
+ */
+public class TrustMaterialIndex {
+  /** Our logger */
+  private static final Logger logger = Logger.getLogger(TrustMaterialIndex.class.getName());
+  /** The XML Signature namespace, which the CA certificates in a federation's metadata are in */
+  private static final String XMLDSIG_NS = "http://www.w3.org/2000/09/xmldsig#";
+  /** The type of certificates we decode */
+  private static final String CERTIFICATE_TYPE = "X.509";
+  /** The trust material of each entity, keyed on entityID */
+  private ConcurrentHashMap<String, EntityTrustMaterial> index = null;
+
+  public void init() {
+    index = new ConcurrentHashMap<String, EntityTrustMaterial>();
+  }
+
+  /**
+   * Decodes the signing certificates and KeyNames of an entity's IdP and AA roles and adds them to the index,
+   * replacing anything already there for the entity.
+   *
+   * @param entityDescriptor the entity's metadata
+   * @param federationCAs the CAs of the federation the metadata came from. Can be null
+   * @return the entity's trust material
+   */
+  public EntityTrustMaterial index(EntityDescriptorType entityDescriptor, FederationCAs federationCAs) {
+    ArrayList<X509Certificate> certificates = new ArrayList<X509Certificate>();
+    HashSet<String> keyNames = new HashSet<String>();
+
+    ArrayList<RoleDescriptorType> roles = new ArrayList<RoleDescriptorType>();
+    roles.addAll(Arrays.asList(entityDescriptor.getIDPSSODescriptorArray()));
+    roles.addAll(Arrays.asList(entityDescriptor.getAttributeAuthorityDescriptorArray()));
+    for (RoleDescriptorType role : roles) {
+      for (KeyDescriptorType keyDescriptor : role.getKeyDescriptorArray()) {
+        // Encryption keys can't vouch for a signature or a connection
+        if ((keyDescriptor.isSetUse()) && (keyDescriptor.getUse() == KeyTypes.ENCRYPTION)) continue;
+        if (keyDescriptor.getKeyInfo() == null) continue;
+
+        keyNames.addAll(Arrays.asList(keyDescriptor.getKeyInfo().getKeyNameArray()));
+        for (X509DataType x509Data : keyDescriptor.getKeyInfo().getX509DataArray()) {
+          for (byte[] encoded : x509Data.getX509CertificateArray()) {
+            try {
+              certificates.add(decode(encoded));
+            }
+            catch(GuanxiException ge) {
+              logger.warn("Ignoring an undecodable certificate for : " + entityDescriptor.getEntityID(), ge);
+            }
+          }
+        }
+      }
+    }
+
+    EntityTrustMaterial material = new EntityTrustMaterial(certificates, keyNames, federationCAs);
+    index.put(entityDescriptor.getEntityID(), material);
+    return material;
+  }
+
+  /**
+   * Gets the trust material of an entity
+   *
+   * @param entityID the entityID of the entity
+   * @return the entity's trust material or null if it hasn't been indexed
+   */
+  public EntityTrustMaterial get(String entityID) {
+    return index.get(entityID);
+  }
+
+  /**
+   * Removes an entity's trust material from the index
+   *
+   * @param entityID the entityID of the entity
+   */
+  public void remove(String entityID) {
+    index.remove(entityID);
+  }
+
+  /**
+   * Decodes the CA certificates listed in the Extensions of a federation's metadata
+   *
+   * @param extensions the Extensions of the federation's EntitiesDescriptor
+   * @return the federation's CAs or null if there aren't any
+   */
+  public FederationCAs loadFederationCAs(XmlObject extensions) {
+    if (extensions == null) return null;
+
+    ArrayList<X509Certificate> cas = new ArrayList<X509Certificate>();
+    NodeList nodes = ((org.w3c.dom.Element)extensions.getDomNode()).getElementsByTagNameNS(XMLDSIG_NS, "X509Certificate");
+    for (int c=0; c < nodes.getLength(); c++) {
+      Node node = nodes.item(c);
+      try {
+        cas.add(decode(Base64.decode(node.getTextContent())));
+      }
+      catch(Exception e) {
+        logger.warn("Ignoring an undecodable CA certificate in the federation metadata", e);
+      }
+    }
+
+    if (cas.size() == 0) return null;
+
+    try {
+      return new FederationCAs(cas);
+    }
+    catch(GuanxiException ge) {
+      logger.error("Could not build the federation trust anchors", ge);
+      return null;
+    }
+  }
+
+  // Metrics
+  public int getSize() { return index.size(); }
+
+  /**
+   * Decodes a DER encoded certificate
+   *
+   * @param encoded the DER encoding of the certificate
+   * @return the certificate
+   * @throws GuanxiException if the certificate can't be decoded
+   */
+  private static X509Certificate decode(byte[] encoded) throws GuanxiException {
+    try {
+      return (X509Certificate)CertificateFactory.getInstance(CERTIFICATE_TYPE).generateCertificate(new ByteArrayInputStream(encoded));
+    }
+    catch(CertificateException ce) {
+      throw new GuanxiException(ce);
+    }
+  }
+
+  /**
+   * The CAs listed in a federation's metadata, ready for PKIX path building. Every listed CA is
+   * a trust anchor and they're all in the CertStore so paths can run through several of them.
+   */
+  public static final class FederationCAs {
+    private final Set<TrustAnchor> trustAnchors;
+    private final CertStore certStore;
+
+    FederationCAs(List<X509Certificate> cas) throws GuanxiException {
+      HashSet<TrustAnchor> anchors = new HashSet<TrustAnchor>();
+      for (X509Certificate ca : cas) {
+        anchors.add(new TrustAnchor(ca, null));
+      }
+      trustAnchors = anchors;
+
+      try {
+        certStore = CertStore.getInstance("Collection", new CollectionCertStoreParameters(new ArrayList<X509Certificate>(cas)));
+      }
+      catch(InvalidAlgorithmParameterException iape) {
+        throw new GuanxiException(iape);
+      }
+      catch(NoSuchAlgorithmException nsae) {
+        throw new GuanxiException(nsae);
+      }
+    }
+
+    /**
+     * Determines whether a certificate chains to one of the CAs
+     *
+     * @param x509 the certificate
+     * @return true if a valid path can be built from the certificate to one of the CAs
+     */
+    public boolean isValidPath(X509Certificate x509) {
+      try {
+        X509CertSelector target = new X509CertSelector();
+        target.setCertificate(x509);
+        PKIXBuilderParameters parameters = new PKIXBuilderParameters(trustAnchors, target);
+        parameters.addCertStore(certStore);
+        parameters.addCertStore(CertStore.getInstance("Collection", new CollectionCertStoreParameters(Arrays.asList(x509))));
+        // Federation metadata doesn't carry CRLs
+        parameters.setRevocationEnabled(false);
+        CertPathBuilder.getInstance("PKIX").build(parameters);
+        return true;
+      }
+      catch(CertPathBuilderException cpbe) {
+        logger.debug("No valid path for : " + x509.getSubjectX500Principal().getName(), cpbe);
+        return false;
+      }
+      catch(Exception e) {
+        logger.error("Could not build a path for : " + x509.getSubjectX500Principal().getName(), e);
+        return false;
+      }
+    }
+
+    public int getSize() { return trustAnchors.size(); }
+  }
+
+  /**
+   * The decoded trust material of an entity
+   */
+  public static final class EntityTrustMaterial {
+    private final X509Certificate[] certificates;
+    private final PublicKey[] publicKeys;
+    private final byte[][] encodedPublicKeys;
+    private final Set<String> keyNames;
+    private final FederationCAs federationCAs;
+
+    EntityTrustMaterial(Collection<X509Certificate> certificates, Set<String> keyNames, FederationCAs federationCAs) {
+      this.certificates = certificates.toArray(new X509Certificate[certificates.size()]);
+      this.publicKeys = new PublicKey[this.certificates.length];
+      this.encodedPublicKeys = new byte[this.certificates.length][];
+      for (int c=0; c < this.certificates.length; c++) {
+        publicKeys[c] = this.certificates[c].getPublicKey();
+        encodedPublicKeys[c] = publicKeys[c].getEncoded();
+      }
+      this.keyNames = keyNames;
+      this.federationCAs = federationCAs;
+    }
+
+    /**
+     * Determines whether the entity's metadata vouches for a certificate, either by containing it's
+     * public key or by naming it in a KeyName and the certificate chaining to one of the federation's CAs.
+     *
+     * @param x509 the certificate the entity presented
+     * @return true if the certificate can be trusted for the entity
+     */
+    public boolean trusts(X509Certificate x509) {
+      if (hasPublicKey(x509.getPublicKey())) return true;
+      return (federationCAs != null) && (isNamed(x509)) && (federationCAs.isValidPath(x509));
+    }
+
+    /**
+     * Determines whether a public key is one of the entity's
+     *
+     * @param publicKey the public key
+     * @return true if the entity's metadata contains the key
+     */
+    public boolean hasPublicKey(PublicKey publicKey) {
+      byte[] encoded = publicKey.getEncoded();
+      for (byte[] encodedPublicKey : encodedPublicKeys) {
+        if (Arrays.equals(encodedPublicKey, encoded)) return true;
+      }
+      return false;
+    }
+
+    /**
+     * Determines whether a certificate's subject DN, CN or a DNS subjectAltName matches
+     * one of the entity's KeyNames
+     *
+     * @param x509 the certificate
+     * @return true if one of the certificate's names is a KeyName
+     */
+    private boolean isNamed(X509Certificate x509) {
+      if (keyNames.isEmpty()) return false;
+
+      String dn = x509.getSubjectX500Principal().getName(X500Principal.RFC2253);
+      if (keyNames.contains(dn)) return true;
+
+      try {
+        for (Rdn rdn : new LdapName(dn).getRdns()) {
+          if ((rdn.getType().equalsIgnoreCase("CN")) && (keyNames.contains(rdn.getValue().toString()))) return true;
+        }
+      }
+      catch(InvalidNameException ine) {
+        // Fall through to the subjectAltNames
+      }
+
+      try {
+        if (x509.getSubjectAlternativeNames() != null) {
+          for (List<?> altName : x509.getSubjectAlternativeNames()) {
+            // 2 is a dNSName
+            if ((((Integer)altName.get(0)) == 2) && (keyNames.contains(altName.get(1)))) return true;
+          }
+        }
+      }
+      catch(CertificateParsingException cpe) {
+        return false;
+      }
+
+      return false;
+    }
+
+    public X509Certificate[] getCertificates() { return certificates.clone(); }
+    public PublicKey[] getPublicKeys() { return publicKeys.clone(); }
+    public FederationCAs getFederationCAs() { return federationCAs; }
+  }
+}
@@ -0,0 +1,66 @@
+//: "The contents of this file are subject to the Mozilla Public License
+//: Version 1.1 (the "License"); you may not use this file except in
+//: compliance with the License. You may obtain a copy of the License at
+//: http://www.mozilla.org/MPL/
+//:
+//: Software distributed under the License is distributed on an "AS IS"
+//: basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+//: License for the specific language governing rights and limitations
+//: under the License.
+//:
+//: The Original Code is Guanxi (http://www.guanxi.uhi.ac.uk).
+//:
+//: The Initial Developer of the Original Code is Alistair Young alistair@codebrane.com
+//: All Rights Reserved.
+//:
+
+
+package org.guanxi.sp.engine.trust.impl;
+
+import org.apache.xmlbeans.XmlObject;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.common.trust.TrustUtils;
+import org.guanxi.common.trust.impl.ShibbolethTrustEngineImpl;
+import org.guanxi.sp.engine.trust.TrustMaterialIndex;
+
+import java.security.cert.X509Certificate;
+
+/**
+ * Shibboleth trust engine that first tries the trust material decoded when the entity's metadata
+ * was loaded. If the index can't vouch for the entity the decision is left to the metadata itself.
+ *
+ * @author alistair
+ */
+public class IndexedShibbolethTrustEngineImpl extends ShibbolethTrustEngineImpl {
+  /** The decoded trust material of each entity */
+  private TrustMaterialIndex trustMaterialIndex = null;
+
+  public IndexedShibbolethTrustEngineImpl() {
+    super();
+  }
+
+  /** @see org.guanxi.common.trust.TrustEngine#trustEntity(org.guanxi.common.metadata.Metadata, Object) */
+  public boolean trustEntity(Metadata entityMetadata, Object entityData) {
+    TrustMaterialIndex.EntityTrustMaterial material = trustMaterialIndex.get(entityMetadata.getEntityID());
+    if (material != null) {
+      X509Certificate x509 = null;
+      if (entityData instanceof X509Certificate) {
+        x509 = (X509Certificate)entityData;
+      }
+      else if (entityData instanceof XmlObject) {
+        x509 = TrustUtils.getX509CertFromSignature((XmlObject)entityData);
+        if ((x509 != null) && (!TrustUtils.verifySignature((XmlObject)entityData))) {
+          return false;
+        }
+      }
+
+      if ((x509 != null) && (material.trusts(x509))) {
+        return true;
+      }
+    }
+
+    return super.trustEntity(entityMetadata, entityData);
+  }
+
+  public void setTrustMaterialIndex(TrustMaterialIndex trustMaterialIndex) { this.trustMaterialIndex = trustMaterialIndex; }
+}
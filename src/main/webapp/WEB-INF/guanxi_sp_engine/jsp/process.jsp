@@ -9,7 +9,8 @@
   <head>
     <title><fmt:message key="processing.page.title"/></title>
     <link rel="stylesheet" type="text/css" href="../css/default.css"/>
-    <meta http-equiv="refresh" content="1"/>
+    <c:url var="completeURL" value="complete"><c:param name="TARGET" value="${param.TARGET}"/></c:url>
+    <meta http-equiv="refresh" content="<c:out value="${refreshDelay}" default="1"/>; url=<c:out value="${completeURL}"/>"/>
     <style type="text/css">
       <!--
       body {
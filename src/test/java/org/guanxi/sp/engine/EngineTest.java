@@ -6,11 +6,23 @@
 package org.guanxi.sp.engine;
 
 import org.springframework.mock.web.MockServletContext;
+import org.springframework.web.context.support.XmlWebApplicationContext;
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.entity.EntityFarm;
+import org.guanxi.common.entity.EntityManager;
+import org.guanxi.common.job.GuanxiJobConfig;
+import org.guanxi.common.job.SAML2MetadataParserConfig;
+import org.guanxi.sp.engine.job.SAML2MetadataParser;
 import org.junit.BeforeClass;
+import org.quartz.*;
+import org.quartz.impl.StdSchedulerFactory;
+import org.quartz.impl.calendar.BaseCalendar;
+import org.quartz.spi.TriggerFiredBundle;
 import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
 
 public abstract class EngineTest {
   protected static MockServletContext servletContext = null;
@@ -32,4 +44,56 @@ public abstract class EngineTest {
     
     servletContext = new MockServletContext(engineHome);
   }
+
+  /**
+   * Loads the metadata parser and entity farm from Spring and points them at a test metadata
+   * file. The farm is published in the servlet context.
+   *
+   * @param metadataURL the URL of the test metadata
+   * @return the Spring context holding the parser config and the farm
+   */
+  protected static XmlWebApplicationContext loadMetadataContext(String metadataURL) {
+    XmlWebApplicationContext ctx = new XmlWebApplicationContext();
+    ctx.setConfigLocations(metadataConfigFiles);
+    ctx.setServletContext(servletContext);
+    ctx.refresh();
+
+    SAML2MetadataParserConfig config = (SAML2MetadataParserConfig)ctx.getBean("spUKFederationMetadataParser");
+    config.setMetadataURL(metadataURL);
+    config.setWho("TEST");
+    config.setKey("TEST_KEY");
+    config.setCronLine("10 0/59 * * * ?");
+    config.setServletContext(servletContext);
+    config.setSigned(false);
+    config.init();
+
+    EntityFarm farm = (EntityFarm)ctx.getBean("spEntityFarm");
+    HashMap<String, EntityManager> managers = new HashMap<String, EntityManager>();
+    managers.put(metadataURL, (EntityManager)ctx.getBean("spSAML2EntityManager"));
+    farm.setEntityManagers(managers);
+    servletContext.setAttribute(Guanxi.CONTEXT_ATTR_ENGINE_ENTITY_FARM, farm);
+
+    return ctx;
+  }
+
+  /**
+   * Runs the metadata parser job once, as the scheduler would
+   *
+   * @param ctx the Spring context from loadMetadataContext
+   * @throws Exception if the job can't be run
+   */
+  protected static void runMetadataParser(XmlWebApplicationContext ctx) throws Exception {
+    SAML2MetadataParserConfig config = (SAML2MetadataParserConfig)ctx.getBean("spUKFederationMetadataParser");
+
+    JobDetail jobDetail = new JobDetail(config.getKey(), Scheduler.DEFAULT_GROUP, SAML2MetadataParser.class);
+    JobDataMap jobDataMap = new JobDataMap();
+    jobDataMap.put(GuanxiJobConfig.JOB_KEY_JOB_CONFIG, config);
+    jobDetail.setJobDataMap(jobDataMap);
+
+    Trigger trigger = new CronTrigger(config.getKey(), Scheduler.DEFAULT_GROUP);
+    Scheduler scheduler = new StdSchedulerFactory().getScheduler();
+    TriggerFiredBundle bundle = new TriggerFiredBundle(jobDetail, trigger, new BaseCalendar(),
+                                                       false, null, null, null, null);
+    new SAML2MetadataParser().execute(new JobExecutionContext(scheduler, bundle, new SAML2MetadataParser()));
+  }
 }
@@ -8,12 +8,18 @@ package org.guanxi.sp.engine;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.guanxi.sp.engine.trust.TrustTestSuite;
+import org.guanxi.sp.engine.session.SessionTestSuite;
+import org.guanxi.sp.engine.saml2.SAML2TestSuite;
+import org.guanxi.sp.engine.job.JobTestSuite;
+import org.guanxi.sp.engine.security.SecurityTestSuite;
+import org.guanxi.sp.engine.binding.BindingTestSuite;
 
 /**
  * This is the root of all tests. It will invoke the various test suites that handle
  * testing of the various Engine subsystems.
  */
 @RunWith(Suite.class)
-@Suite.SuiteClasses( { TrustTestSuite.class} )
+@Suite.SuiteClasses( { TrustTestSuite.class, SessionTestSuite.class, SAML2TestSuite.class, JobTestSuite.class,
+                         SecurityTestSuite.class, BindingTestSuite.class } )
 public class EngineTestSuite {
 }
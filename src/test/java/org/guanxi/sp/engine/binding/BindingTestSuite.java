@@ -0,0 +1,14 @@
+/* CVS Header
+   $
+   $
+*/
+
+package org.guanxi.sp.engine.binding;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+@RunWith(Suite.class)
+@Suite.SuiteClasses( { InboundMessageDecoderTest.class } )
+public class BindingTestSuite {
+}
@@ -0,0 +1,228 @@
+/* CVS Header
+   $
+   $
+*/
+
+package org.guanxi.sp.engine.binding;
+
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
+import org.guanxi.sp.engine.EngineTest;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Checks the base64 decoding and size limits on the messages the IdPs send via the browser
+ */
+public class InboundMessageDecoderTest extends EngineTest {
+  @Test
+  public void decodesWithAndWithoutPadding() throws IOException {
+    assertEquals("A", decode("QQ=="));
+    assertEquals("A", decode("QQ"));
+    assertEquals("AB", decode("QUI="));
+    assertEquals("AB", decode("QUI"));
+    assertEquals("ABC", decode("QUJD"));
+    assertEquals("ABCD", decode("QUJDRA=="));
+    assertEquals("", decode(""));
+  }
+
+  @Test
+  public void ignoresWhitespaceAndLineBreaks() throws IOException {
+    assertEquals("ABCD", decode(" QU\r\nJD\tRA\n==\r\n"));
+    assertEquals("ABCDEF", decode("QUJD\nREVG\n"));
+  }
+
+  @Test
+  public void rejectsDataAfterPadding() {
+    assertInvalid("QQ==QUJD", "Data after base64 padding");
+    assertInvalid("QQ=Q", "Invalid base64");
+  }
+
+  @Test
+  public void rejectsInvalidCharacters() {
+    assertInvalid("QU!D", "Invalid base64");
+    assertInvalid("QUJ\u00e9", "Invalid base64");
+    assertInvalid("QU-_", "Invalid base64");
+  }
+
+  @Test
+  public void rejectsASingleTrailingCharacter() {
+    assertInvalid("QUJDR", "Truncated base64");
+  }
+
+  @Test
+  public void boundedStreamStopsAtTheLimit() throws IOException {
+    AtomicLong rejections = new AtomicLong();
+    byte[] buffer = new byte[16];
+
+    InputStream in = new BoundedInputStream(new ByteArrayInputStream(new byte[10]), 10, rejections);
+    assertEquals(10, in.read(buffer, 0, buffer.length));
+    assertEquals(-1, in.read());
+    assertEquals(0, rejections.get());
+
+    in = new BoundedInputStream(new ByteArrayInputStream(new byte[11]), 10, rejections);
+    try {
+      in.read(buffer, 0, buffer.length);
+      fail("Read past the limit");
+    }
+    catch(MessageTooLargeException mtle) {
+      assertEquals(1, rejections.get());
+    }
+  }
+
+  @Test
+  public void encodedLengthIsCheckedBeforeDecoding() throws IOException {
+    InboundMessageDecoder decoder = new InboundMessageDecoder();
+    decoder.setMaxDecodedSize(30);
+
+    // 30 bytes is 40 base64 characters, plus one for line breaks
+    decoder.decode(repeat('A', 41), false).close();
+    assertEquals(0, decoder.getRejections());
+    try {
+      decoder.decode(repeat('A', 42), false);
+      fail("Encoded message was too long");
+    }
+    catch(MessageTooLargeException mtle) {
+      assertEquals(1, decoder.getRejections());
+    }
+
+    try {
+      decoder.decode(null, false);
+      fail("No message");
+    }
+    catch(IOException ioe) {
+      assertFalse(ioe instanceof MessageTooLargeException);
+    }
+  }
+
+  @Test
+  public void postMessageTooLargeIsFoundWhileParsing() throws Exception {
+    InboundMessageDecoder decoder = new InboundMessageDecoder();
+    decoder.setMaxDecodedSize(1024);
+
+    // Just over the limit when decoded but short enough to get past the encoded length check
+    String encoded = base64(message(1040).getBytes("UTF-8"));
+    assertParseTooLarge(decoder.decode(encoded, false));
+    assertEquals(1, decoder.getRejections());
+
+    // A message within the limit parses
+    assertNotNull(parse(decoder.decode(base64(message(1000).getBytes("UTF-8")), false)));
+  }
+
+  @Test
+  public void redirectMessageTooLargeIsFoundWhileParsing() throws Exception {
+    InboundMessageDecoder decoder = new InboundMessageDecoder();
+    decoder.setMaxDecodedSize(1024);
+
+    // Deflated, a big message is small enough to get past the encoded length check
+    String encoded = base64(deflate(message(100000).getBytes("UTF-8")));
+    assertTrue(encoded.length() < 1024);
+    assertParseTooLarge(decoder.decode(encoded, true));
+    assertEquals(1, decoder.getRejections());
+
+    assertNotNull(parse(decoder.decode(base64(deflate(message(1000).getBytes("UTF-8"))), true)));
+  }
+
+  private String decode(String encoded) throws IOException {
+    InputStream in = new Base64DecodingInputStream(encoded);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != -1) {
+      out.write(b);
+    }
+    return out.toString("UTF-8");
+  }
+
+  private void assertInvalid(String encoded, String error) {
+    try {
+      decode(encoded);
+      fail("Decoded invalid base64 : " + encoded);
+    }
+    catch(IOException ioe) {
+      assertTrue(ioe.getMessage(), ioe.getMessage().startsWith(error));
+    }
+  }
+
+  /**
+   * Parses a message the way the ACSs do, which is where a lazily decoded message is found to be too large
+   */
+  private void assertParseTooLarge(InputStream in) throws Exception {
+    try {
+      parse(in);
+      fail("Parsed a message that was too large");
+    }
+    catch(MessageTooLargeException mtle) {
+      // Reported directly...
+    }
+    catch(XmlException xe) {
+      // ...or by the parser
+      assertTrue(xe.getCause() instanceof MessageTooLargeException);
+    }
+  }
+
+  private XmlObject parse(InputStream in) throws Exception {
+    try {
+      return XmlObject.Factory.parse(in);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return a SAML Response of roughly the given size
+   */
+  private String message(int size) {
+    StringBuilder message = new StringBuilder("<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_r1\">");
+    while (message.length() < size - 20) {
+      message.append("<a>b</a>");
+    }
+    message.append("</samlp:Response>");
+    return message.toString();
+  }
+
+  private byte[] deflate(byte[] data) {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    deflater.setInput(data);
+    deflater.finish();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    while (!deflater.finished()) {
+      out.write(buffer, 0, deflater.deflate(buffer));
+    }
+    deflater.end();
+    return out.toByteArray();
+  }
+
+  private String repeat(char c, int count) {
+    char[] chars = new char[count];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+
+  /**
+   * @return the data base64 encoded on a single line, with padding
+   */
+  private String base64(byte[] data) {
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    StringBuilder encoded = new StringBuilder();
+    for (int c=0; c < data.length; c += 3) {
+      int bits = (data[c] & 0xff) << 16;
+      if (c + 1 < data.length) bits |= (data[c + 1] & 0xff) << 8;
+      if (c + 2 < data.length) bits |= data[c + 2] & 0xff;
+      encoded.append(alphabet.charAt((bits >> 18) & 0x3f));
+      encoded.append(alphabet.charAt((bits >> 12) & 0x3f));
+      encoded.append((c + 1 < data.length) ? alphabet.charAt((bits >> 6) & 0x3f) : '=');
+      encoded.append((c + 2 < data.length) ? alphabet.charAt(bits & 0x3f) : '=');
+    }
+    return encoded.toString();
+  }
+}
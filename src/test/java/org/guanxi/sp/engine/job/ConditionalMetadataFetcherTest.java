@@ -0,0 +1,124 @@
+/* CVS Header
+   $
+   $
+*/
+
+package org.guanxi.sp.engine.job;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.guanxi.sp.engine.EngineTest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+/**
+ * Checks that an unchanged federation metadata document is spotted, either by the server
+ * answering a conditional request with a 304 or by the document's digest.
+ */
+public class ConditionalMetadataFetcherTest extends EngineTest {
+  private static final String ETAG = "\"v1\"";
+
+  private HttpServer server = null;
+  private String metadataURL = null;
+  /** What the stand-in federation server is serving */
+  private volatile byte[] metadata = null;
+  /** Whether the stand-in honours If-None-Match */
+  private volatile boolean conditional = true;
+  /** How many full documents the stand-in has sent */
+  private volatile int documentsSent = 0;
+
+  @Before
+  public void startServer() throws IOException {
+    metadata = "<EntitiesDescriptor>one</EntitiesDescriptor>".getBytes("UTF-8");
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/metadata.xml", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        if ((conditional) && (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match")))) {
+          exchange.sendResponseHeaders(304, -1);
+        }
+        else {
+          exchange.getResponseHeaders().set("ETag", ETAG);
+          exchange.sendResponseHeaders(200, metadata.length);
+          OutputStream out = exchange.getResponseBody();
+          out.write(metadata);
+          out.close();
+          documentsSent++;
+        }
+        exchange.close();
+      }
+    });
+    server.start();
+    metadataURL = "http://127.0.0.1:" + server.getAddress().getPort() + "/metadata.xml";
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  public void notModifiedOverHTTP() throws Exception {
+    ConditionalMetadataFetcher fetcher = new ConditionalMetadataFetcher();
+    MetadataDigests digests = new MetadataDigests();
+
+    ConditionalMetadataFetcher.Result fetched = fetcher.fetch(metadataURL, digests);
+    assertEquals(ConditionalMetadataFetcher.Outcome.CHANGED, fetched.getOutcome());
+    assertEquals(ETAG, fetched.getETag());
+    digests.accept(fetched);
+
+    fetched = fetcher.fetch(metadataURL, digests);
+    assertEquals(ConditionalMetadataFetcher.Outcome.NOT_MODIFIED, fetched.getOutcome());
+    assertEquals(1, documentsSent);
+  }
+
+  @Test
+  public void unchangedDigest() throws Exception {
+    conditional = false;
+    ConditionalMetadataFetcher fetcher = new ConditionalMetadataFetcher();
+    MetadataDigests digests = new MetadataDigests();
+    digests.accept(fetcher.fetch(metadataURL, digests));
+
+    assertEquals(ConditionalMetadataFetcher.Outcome.UNCHANGED, fetcher.fetch(metadataURL, digests).getOutcome());
+
+    metadata = "<EntitiesDescriptor>two</EntitiesDescriptor>".getBytes("UTF-8");
+    assertEquals(ConditionalMetadataFetcher.Outcome.CHANGED, fetcher.fetch(metadataURL, digests).getOutcome());
+  }
+
+  @Test
+  public void unchangedFile() throws Exception {
+    File file = File.createTempFile("metadata", ".xml");
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(metadata);
+      out.close();
+
+      ConditionalMetadataFetcher fetcher = new ConditionalMetadataFetcher();
+      MetadataDigests digests = new MetadataDigests();
+      digests.accept(fetcher.fetch(file.toURI().toString(), digests));
+      assertEquals(ConditionalMetadataFetcher.Outcome.UNCHANGED, fetcher.fetch(file.toURI().toString(), digests).getOutcome());
+    }
+    finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void skippedStagesAreCounted() {
+    MetadataDigests digests = new MetadataDigests();
+    digests.recordSkipped(java.util.EnumSet.allOf(SAML2MetadataParser.Stage.class));
+    digests.recordSkipped(java.util.EnumSet.of(SAML2MetadataParser.Stage.VERIFY, SAML2MetadataParser.Stage.PARSE,
+                                               SAML2MetadataParser.Stage.APPLY));
+    assertEquals(1, digests.getSkips(SAML2MetadataParser.Stage.DOWNLOAD));
+    assertEquals(2, digests.getSkips(SAML2MetadataParser.Stage.APPLY));
+    assertFalse(digests.getLastSkipped().contains(SAML2MetadataParser.Stage.DOWNLOAD));
+  }
+}
@@ -0,0 +1,17 @@
+/* CVS Header
+   $
+   $
+*/
+
+package org.guanxi.sp.engine.job;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+@RunWith(Suite.class)
+@Suite.SuiteClasses( { ConditionalMetadataFetcherTest.class,
+                        StreamingSignatureVerifierTest.class,
+                        StreamingMetadataReaderTest.class,
+                        SAML2MetadataParserTest.class } )
+public class JobTestSuite {
+}
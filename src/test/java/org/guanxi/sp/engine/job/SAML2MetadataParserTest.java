@@ -0,0 +1,215 @@
+/* CVS Header
+   $
+   $
+*/
+
+package org.guanxi.sp.engine.job;
+
+import org.guanxi.common.definitions.Guanxi;
+import org.guanxi.common.entity.EntityManager;
+import org.guanxi.common.job.SAML2MetadataParserConfig;
+import org.guanxi.common.metadata.Metadata;
+import org.guanxi.sp.engine.Config;
+import org.guanxi.sp.engine.EngineTest;
+import org.guanxi.sp.engine.idp.IdP;
+import org.guanxi.sp.engine.idp.IdPRegistry;
+import org.guanxi.sp.engine.service.saml2.DiscoveryFeedManager;
+import org.guanxi.sp.engine.trust.TrustDecisionCache;
+import org.guanxi.sp.engine.trust.TrustMaterialIndex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.springframework.web.context.support.XmlWebApplicationContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.security.cert.X509Certificate;
+
+/**
+ * Runs the metadata parser over a federation's metadata and then over a modified copy of it,
+ * checking only the entities that changed are reloaded and that everything derived from the
+ * old metadata of a modified or removed entity is thrown away.
+ */
+public class SAML2MetadataParserTest extends EngineTest {
+  /** Left alone in the modified metadata */
+  private static final String UNCHANGED = "GUANXI-1235342852";
+  /** Given another KeyName in the modified metadata */
+  private static final String MODIFIED = "GUANXI--1182852605";
+  /** Taken out of the modified metadata */
+  private static final String REMOVED = "urn:bond:hq";
+  /** Only in the modified metadata */
+  private static final String ADDED = "https://added.example.ac.uk/idp";
+
+  private XmlWebApplicationContext ctx = null;
+  private File metadataFile = null;
+  private String metadata = null;
+  private EntityManager manager = null;
+  private TrustDecisionCache trustDecisionCache = null;
+  private TrustMaterialIndex trustMaterialIndex = null;
+  private IdPRegistry idpRegistry = null;
+
+  @Before
+  public void init() throws Exception {
+    metadata = readResource("/metadata.xml");
+    metadataFile = File.createTempFile("guanxi-refreshed-metadata", ".xml");
+
+    trustDecisionCache = new TrustDecisionCache();
+    trustDecisionCache.init();
+    servletContext.setAttribute(Config.CONTEXT_ATTR_ENGINE_TRUST_DECISION_CACHE, trustDecisionCache);
+    trustMaterialIndex = new TrustMaterialIndex();
+    trustMaterialIndex.init();
+    servletContext.setAttribute(Config.CONTEXT_ATTR_ENGINE_TRUST_MATERIAL_INDEX, trustMaterialIndex);
+    idpRegistry = new IdPRegistry();
+    idpRegistry.init();
+    servletContext.setAttribute(Config.CONTEXT_ATTR_ENGINE_IDP_REGISTRY, idpRegistry);
+    DiscoveryFeedManager discoveryFeedManager = new DiscoveryFeedManager();
+    discoveryFeedManager.init();
+    servletContext.setAttribute(Guanxi.CONTEXT_ATTR_ENGINE_DISCOVERY_FEED_MANAGER, discoveryFeedManager);
+
+    ctx = loadMetadataContext(metadataFile.toURI().toURL().toString());
+    SAML2MetadataParserConfig config = (SAML2MetadataParserConfig)ctx.getBean("spUKFederationMetadataParser");
+    // Start each test with no record of a previous run
+    servletContext.removeAttribute(Config.CONTEXT_ATTR_ENGINE_METADATA_DIGESTS + config.getKey());
+    manager = (EntityManager)ctx.getBean("spSAML2EntityManager");
+  }
+
+  @After
+  public void cleanUp() {
+    if (ctx != null) {
+      new File(((SAML2MetadataParserConfig)ctx.getBean("spUKFederationMetadataParser")).getMetadataCacheFile()).delete();
+      ctx.close();
+    }
+    metadataFile.delete();
+  }
+
+  @Test
+  public void refreshAppliesOnlyChanges() throws Exception {
+    refresh(metadata);
+    assertChanges(3, 0, 0, 0);
+
+    Metadata unchangedHandler = manager.getMetadata(UNCHANGED);
+    Metadata modifiedHandler = manager.getMetadata(MODIFIED);
+    TrustMaterialIndex.EntityTrustMaterial unchangedMaterial = trustMaterialIndex.get(UNCHANGED);
+    TrustMaterialIndex.EntityTrustMaterial modifiedMaterial = trustMaterialIndex.get(MODIFIED);
+    IdP unchangedIdP = idpRegistry.getIdP(UNCHANGED);
+    IdP modifiedIdP = idpRegistry.getIdP(MODIFIED);
+    assertNotNull(unchangedHandler);
+    assertNotNull(modifiedHandler);
+    assertNotNull(manager.getMetadata(REMOVED));
+    assertNotNull(trustMaterialIndex.get(REMOVED));
+    assertNotNull(idpRegistry.getIdP(REMOVED));
+
+    // Make a decision about each entity so we can see which are thrown away
+    X509Certificate x509 = unchangedMaterial.getCertificates()[0];
+    for (String entityID : new String[] {UNCHANGED, MODIFIED, REMOVED}) {
+      trustDecisionCache.trustEntity(manager.getTrustEngine(), manager.getMetadata(entityID), x509);
+    }
+    assertEquals(3, trustDecisionCache.getSize());
+
+    refresh(modified(metadata));
+    assertChanges(1, 1, 1, 1);
+
+    // The unchanged entity keeps everything it had
+    assertSame(unchangedHandler, manager.getMetadata(UNCHANGED));
+    assertSame(unchangedMaterial, trustMaterialIndex.get(UNCHANGED));
+    assertSame(unchangedIdP, idpRegistry.getIdP(UNCHANGED));
+
+    // The modified entity is rebuilt
+    assertNotNull(manager.getMetadata(MODIFIED));
+    assertNotSame(modifiedHandler, manager.getMetadata(MODIFIED));
+    assertNotNull(trustMaterialIndex.get(MODIFIED));
+    assertNotSame(modifiedMaterial, trustMaterialIndex.get(MODIFIED));
+    assertNotNull(idpRegistry.getIdP(MODIFIED));
+    assertNotSame(modifiedIdP, idpRegistry.getIdP(MODIFIED));
+
+    // The removed entity is gone from everywhere
+    assertNull(manager.getMetadata(REMOVED));
+    assertNull(trustMaterialIndex.get(REMOVED));
+    assertNull(idpRegistry.getIdP(REMOVED));
+
+    // The added entity is everywhere
+    assertNotNull(manager.getMetadata(ADDED));
+    assertNotNull(trustMaterialIndex.get(ADDED));
+    assertNotNull(idpRegistry.getIdP(ADDED));
+
+    // Only the decision about the unchanged entity survives
+    assertEquals(1, trustDecisionCache.getSize());
+    long hits = trustDecisionCache.getHits();
+    trustDecisionCache.trustEntity(manager.getTrustEngine(), manager.getMetadata(UNCHANGED), x509);
+    assertEquals(hits + 1, trustDecisionCache.getHits());
+  }
+
+  @Test
+  public void changedCAListReloadsEverything() throws Exception {
+    refresh(metadata);
+    Metadata unchangedHandler = manager.getMetadata(UNCHANGED);
+    TrustMaterialIndex.EntityTrustMaterial unchangedMaterial = trustMaterialIndex.get(UNCHANGED);
+
+    // Only the federation's Extensions have changed
+    refresh(metadata.replace("VerifyDepth=\"3\"", "VerifyDepth=\"4\""));
+    assertChanges(0, 3, 0, 0);
+    assertNotSame(unchangedHandler, manager.getMetadata(UNCHANGED));
+    assertNotSame(unchangedMaterial, trustMaterialIndex.get(UNCHANGED));
+
+    // And the next refresh of the same Extensions leaves the entities alone
+    refresh(modified(metadata).replace("VerifyDepth=\"3\"", "VerifyDepth=\"4\""));
+    assertChanges(1, 1, 1, 1);
+  }
+
+  /**
+   * @return the metadata with REMOVED taken out, another KeyName for MODIFIED and ADDED put in
+   */
+  private String modified(String metadata) {
+    String added = "<EntityDescriptor entityID=\"" + ADDED + "\">" +
+                     "<IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">" +
+                       "<SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\" " +
+                                            "Location=\"https://added.example.ac.uk/SSO\"/>" +
+                     "</IDPSSODescriptor>" +
+                     "<Organization>" +
+                       "<OrganizationName xml:lang=\"en\">Added</OrganizationName>" +
+                       "<OrganizationDisplayName xml:lang=\"en\">Added University</OrganizationDisplayName>" +
+                       "<OrganizationURL xml:lang=\"en\">https://added.example.ac.uk/</OrganizationURL>" +
+                     "</Organization>" +
+                   "</EntityDescriptor>\n";
+
+    String modified = metadata.replaceFirst("(?s)<EntityDescriptor ID=\"007\" entityID=\"" + REMOVED + "\">.*?</EntityDescriptor>", "")
+                              .replace("<ds:KeyName>" + MODIFIED + "</ds:KeyName>",
+                                       "<ds:KeyName>" + MODIFIED + "</ds:KeyName><ds:KeyName>idp.example.ac.uk</ds:KeyName>")
+                              .replace("</EntitiesDescriptor>", added + "</EntitiesDescriptor>");
+    assertEquals(-1, modified.indexOf(REMOVED));
+    return modified;
+  }
+
+  private void refresh(String metadata) throws Exception {
+    FileOutputStream out = new FileOutputStream(metadataFile);
+    out.write(metadata.getBytes("UTF-8"));
+    out.close();
+    runMetadataParser(ctx);
+  }
+
+  private void assertChanges(int added, int modified, int unchanged, int removed) {
+    SAML2MetadataParserConfig config = (SAML2MetadataParserConfig)ctx.getBean("spUKFederationMetadataParser");
+    MetadataDigests digests = (MetadataDigests)servletContext.getAttribute(Config.CONTEXT_ATTR_ENGINE_METADATA_DIGESTS + config.getKey());
+    assertNotNull(digests);
+    assertEquals(added, digests.getLastChanges(MetadataDigests.Change.ADDED));
+    assertEquals(modified, digests.getLastChanges(MetadataDigests.Change.MODIFIED));
+    assertEquals(unchanged, digests.getLastChanges(MetadataDigests.Change.UNCHANGED));
+    assertEquals(removed, digests.getLastChanges(MetadataDigests.Change.REMOVED));
+  }
+
+  private String readResource(String name) throws Exception {
+    InputStream in = new FileInputStream(new File(SAML2MetadataParserTest.class.getResource(name).getPath()));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read = 0;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return out.toString("UTF-8");
+  }
+}
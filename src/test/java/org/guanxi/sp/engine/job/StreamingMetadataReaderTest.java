@@ -0,0 +1,257 @@
+/* CVS Header
+   $
+   $
+*/
+
+package org.guanxi.sp.engine.job;
+
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.transforms.Transforms;
+import org.apache.xml.security.utils.IdResolver;
+import org.apache.xml.security.utils.XMLUtils;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.sp.engine.EngineTest;
+import org.guanxi.xal.saml_2_0.metadata.EntitiesDescriptorDocument;
+import org.guanxi.xal.saml_2_0.metadata.EntitiesDescriptorType;
+import org.guanxi.xal.saml_2_0.metadata.EntityDescriptorType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks the streaming metadata reader finds the same IdPs, with the same content, as
+ * parsing the whole aggregate with XMLBeans, and that it keeps nothing from an aggregate
+ * whose signature doesn't verify.
+ */
+public class StreamingMetadataReaderTest extends EngineTest {
+  private static final String IDP1 = "https://idp1.example.ac.uk/shibboleth";
+  private static final String IDP2 = "https://idp2.example.ac.uk/shibboleth";
+  private static final String SP = "https://sp.example.ac.uk/shibboleth";
+
+  /**
+   * An aggregate with an IdP in the root, and an IdP and an SP in a nested EntitiesDescriptor.
+   * The first IdP uses the md and shibmd prefixes declared on the root, the second uses a default
+   * namespace of it's own and the ds prefix declared on the nested EntitiesDescriptor.
+   */
+  private static final String METADATA =
+    "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+    "<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\"\n" +
+    "    xmlns:shibmd=\"urn:mace:shibboleth:metadata:1.0\" Name=\"test\" ID=\"aggregate\">\n" +
+    "  <md:Extensions><shibmd:KeyAuthority VerifyDepth=\"2\"/></md:Extensions>\n" +
+    "  <md:EntityDescriptor entityID=\"" + IDP1 + "\">\n" +
+    "    <md:IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">\n" +
+    "      <md:Extensions><shibmd:Scope regexp=\"false\">idp1.example.ac.uk</shibmd:Scope></md:Extensions>\n" +
+    "      <md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\"\n" +
+    "          Location=\"https://idp1.example.ac.uk/SSO\"/>\n" +
+    "    </md:IDPSSODescriptor>\n" +
+    "  </md:EntityDescriptor>\n" +
+    "  <md:EntitiesDescriptor Name=\"nested\" xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\">\n" +
+    "    <md:Extensions><shibmd:KeyAuthority VerifyDepth=\"9\"/></md:Extensions>\n" +
+    "    <EntityDescriptor xmlns=\"urn:oasis:names:tc:SAML:2.0:metadata\" entityID=\"" + IDP2 + "\">\n" +
+    "      <IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">\n" +
+    "        <KeyDescriptor use=\"signing\"><ds:KeyInfo><ds:KeyName>idp2.example.ac.uk</ds:KeyName></ds:KeyInfo></KeyDescriptor>\n" +
+    "        <SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\"\n" +
+    "            Location=\"https://idp2.example.ac.uk/SSO\"/>\n" +
+    "      </IDPSSODescriptor>\n" +
+    "      <Organization><OrganizationDisplayName xml:lang=\"en\">IdP &amp; Two</OrganizationDisplayName></Organization>\n" +
+    "    </EntityDescriptor>\n" +
+    "    <md:EntityDescriptor entityID=\"" + SP + "\">\n" +
+    "      <md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">\n" +
+    "        <md:AssertionConsumerService index=\"0\" Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\"\n" +
+    "            Location=\"https://sp.example.ac.uk/acs\"/>\n" +
+    "      </md:SPSSODescriptor>\n" +
+    "    </md:EntityDescriptor>\n" +
+    "  </md:EntitiesDescriptor>\n" +
+    "</md:EntitiesDescriptor>\n";
+
+  private KeyPair federationKeys = null;
+  private File metadataFile = null;
+
+  @Before
+  public void init() throws Exception {
+    org.apache.xml.security.Init.init();
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(1024);
+    federationKeys = generator.generateKeyPair();
+    metadataFile = File.createTempFile("guanxi-streamed-metadata", ".xml");
+  }
+
+  @After
+  public void cleanUp() {
+    metadataFile.delete();
+  }
+
+  @Test
+  public void streamedIdPsMatchXMLBeans() throws Exception {
+    StreamingMetadataReader reader = new StreamingMetadataReader();
+    reader.read(new ByteArrayInputStream(METADATA.getBytes("UTF-8")));
+
+    List<EntityDescriptorType> expected = new ArrayList<EntityDescriptorType>();
+    findIdPs(EntitiesDescriptorDocument.Factory.parse(METADATA).getEntitiesDescriptor(), expected);
+    EntityDescriptorType[] streamed = reader.getIdPs();
+
+    assertEquals(3, reader.getEntitiesRead());
+    assertEquals(2, expected.size());
+    assertEquals(expected.size(), streamed.length);
+    for (int c = 0; c < streamed.length; c++) {
+      assertEquals(expected.get(c).getEntityID(), streamed[c].getEntityID());
+      assertEquals(flatten(expected.get(c).getDomNode()), flatten(streamed[c].getDomNode()));
+    }
+    assertEquals(IDP1, streamed[0].getEntityID());
+    assertEquals(IDP2, streamed[1].getEntityID());
+  }
+
+  @Test
+  public void rootIsKeptWithoutEntities() throws Exception {
+    StreamingMetadataReader reader = new StreamingMetadataReader();
+    reader.read(new ByteArrayInputStream(METADATA.getBytes("UTF-8")));
+
+    EntitiesDescriptorType root = reader.getEntitiesDescriptorDocument().getEntitiesDescriptor();
+    assertEquals("test", root.getName());
+    assertNotNull(root.getExtensions());
+    assertEquals(0, root.getEntityDescriptorArray().length);
+    assertEquals(0, root.getEntitiesDescriptorArray().length);
+    // The federation's Extensions, not the nested EntitiesDescriptor's
+    assertTrue(root.getExtensions().xmlText().indexOf("VerifyDepth=\"2\"") != -1);
+  }
+
+  @Test
+  public void signedAggregate() throws Exception {
+    write(sign(METADATA));
+    StreamingMetadataReader reader = new StreamingMetadataReader(federationKeys.getPublic());
+    reader.read(metadataFile);
+
+    assertEquals(2, reader.getIdPs().length);
+    assertNotNull(reader.getEntitiesDescriptorDocument());
+  }
+
+  @Test
+  public void failedDigestKeepsNothing() throws Exception {
+    StreamingMetadataReader reader = new StreamingMetadataReader(federationKeys.getPublic());
+    write(sign(METADATA));
+    reader.read(metadataFile);
+    assertEquals(2, reader.getIdPs().length);
+
+    // The signature is still good but the content it covers isn't
+    write(sign(METADATA).replace("idp2.example.ac.uk/SSO", "idp2.example.org/SSO"));
+    try {
+      reader.read(metadataFile);
+      fail("Tampered metadata was read");
+    }
+    catch(GuanxiException ge) {
+      assertTrue(ge.getMessage().indexOf("digest") != -1);
+    }
+
+    assertEquals(0, reader.getIdPs().length);
+    assertNull(reader.getEntitiesDescriptorDocument());
+  }
+
+  @Test
+  public void signedAggregateMustBeAFile() throws Exception {
+    try {
+      new StreamingMetadataReader(federationKeys.getPublic()).read(new ByteArrayInputStream(METADATA.getBytes("UTF-8")));
+      fail("Signed aggregate read from a stream");
+    }
+    catch(GuanxiException ge) {
+      // expected
+    }
+  }
+
+  /**
+   * Finds the IdPs in an aggregate, in document order, the way the XMLBeans parser did
+   */
+  private void findIdPs(EntitiesDescriptorType entitiesDescriptor, List<EntityDescriptorType> idps) {
+    for (EntityDescriptorType entityDescriptor : entitiesDescriptor.getEntityDescriptorArray()) {
+      if (entityDescriptor.getIDPSSODescriptorArray().length > 0) idps.add(entityDescriptor);
+    }
+    for (EntitiesDescriptorType nested : entitiesDescriptor.getEntitiesDescriptorArray()) {
+      findIdPs(nested, idps);
+    }
+  }
+
+  /**
+   * Writes out an element's names, attributes and text without it's namespace declarations,
+   * which differ between the aggregate and the streamed copy, or prefixes.
+   */
+  private String flatten(Node node) {
+    StringBuilder flat = new StringBuilder();
+    flatten(node, flat);
+    return flat.toString();
+  }
+
+  private void flatten(Node node, StringBuilder flat) {
+    if (node.getNodeType() == Node.DOCUMENT_NODE) {
+      node = ((Document)node).getDocumentElement();
+    }
+
+    if (node.getNodeType() == Node.ELEMENT_NODE) {
+      Element element = (Element)node;
+      flat.append("<{").append(element.getNamespaceURI()).append('}').append(element.getLocalName());
+      List<String> attributes = new ArrayList<String>();
+      NamedNodeMap map = element.getAttributes();
+      for (int c = 0; c < map.getLength(); c++) {
+        Attr attribute = (Attr)map.item(c);
+        if (!"http://www.w3.org/2000/xmlns/".equals(attribute.getNamespaceURI())) {
+          attributes.add("{" + attribute.getNamespaceURI() + "}" + attribute.getLocalName() + "=" + attribute.getValue());
+        }
+      }
+      Collections.sort(attributes);
+      flat.append(attributes).append('>');
+      for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+        flatten(child, flat);
+      }
+      flat.append("</>");
+    }
+    else if ((node.getNodeType() == Node.TEXT_NODE) || (node.getNodeType() == Node.CDATA_SECTION_NODE)) {
+      flat.append(node.getNodeValue());
+    }
+  }
+
+  /**
+   * Signs the aggregate the way a federation would, with an enveloped signature at the top
+   */
+  private String sign(String metadata) throws Exception {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    Document doc = factory.newDocumentBuilder().parse(new ByteArrayInputStream(metadata.getBytes("UTF-8")));
+    Element root = doc.getDocumentElement();
+    IdResolver.registerElementById(root, "aggregate");
+
+    XMLSignature signature = new XMLSignature(doc, "", XMLSignature.ALGO_ID_SIGNATURE_RSA_SHA256, Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+    root.insertBefore(signature.getElement(), root.getFirstChild());
+
+    Transforms transforms = new Transforms(doc);
+    transforms.addTransform(Transforms.TRANSFORM_ENVELOPED_SIGNATURE);
+    transforms.addTransform(Transforms.TRANSFORM_C14N_EXCL_OMIT_COMMENTS);
+    signature.addDocument("#aggregate", transforms, "http://www.w3.org/2001/04/xmlenc#sha256");
+    signature.sign(federationKeys.getPrivate());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    XMLUtils.outputDOM(doc, out);
+    return out.toString("UTF-8");
+  }
+
+  private void write(String metadata) throws Exception {
+    FileOutputStream out = new FileOutputStream(metadataFile);
+    out.write(metadata.getBytes("UTF-8"));
+    out.close();
+  }
+}
@@ -0,0 +1,212 @@
+/* CVS Header
+   $
+   $
+*/
+
+package org.guanxi.sp.engine.job;
+
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.transforms.Transforms;
+import org.apache.xml.security.transforms.params.InclusiveNamespaces;
+import org.apache.xml.security.utils.IdResolver;
+import org.apache.xml.security.utils.XMLUtils;
+import org.guanxi.common.GuanxiException;
+import org.guanxi.sp.engine.EngineTest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+/**
+ * Checks that a signed metadata aggregate can be verified while it's streamed, by comparing
+ * the streamed canonical form with the one the XML Security library builds from a DOM and
+ * by verifying aggregates the library has signed.
+ */
+public class StreamingSignatureVerifierTest extends EngineTest {
+  /** An aggregate with the sort of namespace and escaping quirks canonicalisation has to get right */
+  private static final String METADATA =
+    "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+    "<!-- The federation -->\n" +
+    "<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" xmlns:unused=\"urn:unused\"\n" +
+    "    xmlns:shibmd=\"urn:mace:shibboleth:metadata:1.0\" Name=\"test\" ID=\"aggregate\">\n" +
+    "  <md:Extensions><shibmd:KeyAuthority VerifyDepth=\"2\"/></md:Extensions>\n" +
+    "  <EntityDescriptor xmlns=\"urn:oasis:names:tc:SAML:2.0:metadata\" entityID=\"https://idp.example.ac.uk/shibboleth\">\n" +
+    "    <IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\" xml:lang=\"en\">\n" +
+    "      <Extensions><Scope xmlns=\"urn:mace:shibboleth:metadata:1.0\" regexp=\"false\">example.ac.uk</Scope></Extensions>\n" +
+    "      <KeyName xmlns=\"\" b=\"2\" a=\"tab&#9;newline&#10;&quot;&lt;\">A &amp; B &gt; C<![CDATA[ <raw> ]]></KeyName>\n" +
+    "    </IDPSSODescriptor>\n" +
+    "    <Organization><OrganizationDisplayName xml:lang=\"en\">Example <!-- inline --> University</OrganizationDisplayName></Organization>\n" +
+    "  </EntityDescriptor>\n" +
+    "</md:EntitiesDescriptor>\n";
+
+  private KeyPair federationKeys = null;
+  private File metadataFile = null;
+
+  @Before
+  public void init() throws Exception {
+    org.apache.xml.security.Init.init();
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(1024);
+    federationKeys = generator.generateKeyPair();
+    metadataFile = File.createTempFile("guanxi-signed-metadata", ".xml");
+  }
+
+  @After
+  public void cleanUp() {
+    metadataFile.delete();
+  }
+
+  @Test
+  public void exclusiveCanonicalFormMatchesDOM() throws Exception {
+    assertEquals(domCanonicalForm(Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS, null),
+                 streamedCanonicalForm(StreamingCanonicalizer.EXCLUSIVE, null));
+    assertEquals(domCanonicalForm(Canonicalizer.ALGO_ID_C14N_EXCL_WITH_COMMENTS, "#default unused"),
+                 streamedCanonicalForm(StreamingCanonicalizer.EXCLUSIVE_WITH_COMMENTS, "#default unused"));
+  }
+
+  @Test
+  public void inclusiveCanonicalFormMatchesDOM() throws Exception {
+    assertEquals(domCanonicalForm(Canonicalizer.ALGO_ID_C14N_OMIT_COMMENTS, null),
+                 streamedCanonicalForm(StreamingCanonicalizer.INCLUSIVE, null));
+    assertEquals(domCanonicalForm(Canonicalizer.ALGO_ID_C14N_WITH_COMMENTS, null),
+                 streamedCanonicalForm(StreamingCanonicalizer.INCLUSIVE_WITH_COMMENTS, null));
+  }
+
+  @Test
+  public void signedMetadataVerifies() throws Exception {
+    write(sign(METADATA, "#aggregate", Transforms.TRANSFORM_C14N_EXCL_OMIT_COMMENTS));
+    verify(federationKeys);
+
+    write(sign(METADATA, "", Transforms.TRANSFORM_C14N_OMIT_COMMENTS));
+    verify(federationKeys);
+  }
+
+  @Test
+  public void tamperedMetadataFailsDigest() throws Exception {
+    write(sign(METADATA, "#aggregate", Transforms.TRANSFORM_C14N_EXCL_OMIT_COMMENTS).replace("idp.example.ac.uk", "idp.example.org"));
+    try {
+      verify(federationKeys);
+      fail("Tampered metadata verified");
+    }
+    catch(GuanxiException ge) {
+      assertTrue(ge.getMessage().indexOf("digest") != -1);
+    }
+  }
+
+  @Test
+  public void otherKeyFailsSignature() throws Exception {
+    write(sign(METADATA, "#aggregate", Transforms.TRANSFORM_C14N_EXCL_OMIT_COMMENTS));
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(1024);
+    StreamingSignatureVerifier verifier = new StreamingSignatureVerifier(generator.generateKeyPair().getPublic());
+    try {
+      verifier.readSignature(metadataFile);
+      fail("Metadata signed with another key verified");
+    }
+    catch(GuanxiException ge) {
+      assertTrue(ge.getMessage().indexOf("signature") != -1);
+    }
+  }
+
+  @Test
+  public void unsignedMetadataFails() throws Exception {
+    write(METADATA);
+    try {
+      new StreamingSignatureVerifier(federationKeys.getPublic()).readSignature(metadataFile);
+      fail("Unsigned metadata verified");
+    }
+    catch(GuanxiException ge) {
+      // expected
+    }
+  }
+
+  /**
+   * Reads the signature from the metadata file and then streams the whole file through the verifier
+   */
+  private void verify(KeyPair keys) throws Exception {
+    StreamingSignatureVerifier verifier = new StreamingSignatureVerifier(keys.getPublic());
+    verifier.readSignature(metadataFile);
+
+    InputStream in = new FileInputStream(metadataFile);
+    XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+    while (reader.hasNext()) {
+      reader.next();
+      verifier.digest(reader);
+    }
+    reader.close();
+    in.close();
+
+    verifier.verifyDigest();
+  }
+
+  private String streamedCanonicalForm(String algorithm, String inclusiveNamespaces) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    StreamingCanonicalizer canonicalizer = new StreamingCanonicalizer(algorithm, inclusiveNamespaces, out);
+    XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(new ByteArrayInputStream(METADATA.getBytes("UTF-8")));
+    while (reader.hasNext()) {
+      reader.next();
+      canonicalizer.event(reader);
+    }
+    canonicalizer.flush();
+    return out.toString("UTF-8");
+  }
+
+  private String domCanonicalForm(String algorithm, String inclusiveNamespaces) throws Exception {
+    Document doc = parse(METADATA);
+    Canonicalizer canonicalizer = Canonicalizer.getInstance(algorithm);
+    return new String((inclusiveNamespaces == null) ? canonicalizer.canonicalizeSubtree(doc) :
+                      canonicalizer.canonicalizeSubtree(doc, inclusiveNamespaces), "UTF-8");
+  }
+
+  /**
+   * Signs the aggregate the way a federation would, with an enveloped signature at the top
+   */
+  private String sign(String metadata, String referenceURI, String canonicalization) throws Exception {
+    Document doc = parse(metadata);
+    Element root = doc.getDocumentElement();
+    IdResolver.registerElementById(root, "aggregate");
+
+    XMLSignature signature = new XMLSignature(doc, "", XMLSignature.ALGO_ID_SIGNATURE_RSA_SHA256, Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+    root.insertBefore(signature.getElement(), root.getFirstChild());
+
+    Transforms transforms = new Transforms(doc);
+    transforms.addTransform(Transforms.TRANSFORM_ENVELOPED_SIGNATURE);
+    transforms.addTransform(canonicalization);
+    if (Transforms.TRANSFORM_C14N_EXCL_OMIT_COMMENTS.equals(canonicalization)) {
+      transforms.item(1).getElement().appendChild(new InclusiveNamespaces(doc, "unused").getElement());
+    }
+    signature.addDocument(referenceURI, transforms, "http://www.w3.org/2001/04/xmlenc#sha256");
+    signature.sign(federationKeys.getPrivate());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    XMLUtils.outputDOM(doc, out);
+    return out.toString("UTF-8");
+  }
+
+  private Document parse(String xml) throws Exception {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+  }
+
+  private void write(String metadata) throws Exception {
+    FileOutputStream out = new FileOutputStream(metadataFile);
+    out.write(metadata.getBytes("UTF-8"));
+    out.close();
+  }
+}
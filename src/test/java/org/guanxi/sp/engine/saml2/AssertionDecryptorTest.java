@@ -0,0 +1,118 @@
+/* CVS Header
+   $
+   $
+*/
+
+package org.guanxi.sp.engine.saml2;
+
+import org.apache.xml.security.encryption.EncryptedData;
+import org.apache.xml.security.encryption.EncryptedKey;
+import org.apache.xml.security.encryption.XMLCipher;
+import org.apache.xml.security.keys.KeyInfo;
+import org.apache.xml.security.utils.EncryptionConstants;
+import org.apache.xmlbeans.XmlObject;
+import org.guanxi.common.Bag;
+import org.guanxi.sp.engine.EngineTest;
+import org.guanxi.sp.engine.service.saml2.AssertionDecryptor;
+import org.guanxi.sp.engine.service.saml2.AttributeExtractor;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the single DOM decryption of EncryptedAssertions
+ */
+public class AssertionDecryptorTest extends EngineTest {
+  private static final String SAML2 = "urn:oasis:names:tc:SAML:2.0:assertion";
+  private static final int ASSERTIONS = 2;
+
+  private static KeyPair guardKeys = null;
+  private static String encryptedResponse = null;
+
+  @BeforeClass
+  public static void encryptResponse() throws Exception {
+    org.apache.xml.security.Init.init();
+
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+    keyPairGenerator.initialize(2048);
+    guardKeys = keyPairGenerator.generateKeyPair();
+
+    StringBuilder response = new StringBuilder();
+    response.append("<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" " +
+                    "xmlns:saml=\"" + SAML2 + "\" ID=\"r1\">");
+    response.append("<saml:Issuer>https://idp.example.ac.uk/shibboleth</saml:Issuer>");
+    for (int c=0; c < ASSERTIONS; c++) {
+      response.append("<saml:Assertion ID=\"a" + c + "\"><saml:AttributeStatement>");
+      response.append("<saml:Attribute Name=\"isMemberOf\" NameFormat=\"urn:oasis:names:tc:SAML:2.0:attrname-format:basic\">");
+      for (int value=0; value < 500; value++) {
+        response.append("<saml:AttributeValue>group" + value + "</saml:AttributeValue>");
+      }
+      response.append("</saml:Attribute></saml:AttributeStatement></saml:Assertion>");
+    }
+    response.append("</samlp:Response>");
+
+    // Encrypt each Assertion as an IdP would, with a new secret key wrapped with the Guard's public key
+    Document document = (Document)XmlObject.Factory.parse(response.toString()).newDomNode();
+    NodeList assertions = document.getElementsByTagNameNS(SAML2, "Assertion");
+    List<Element> toEncrypt = new ArrayList<Element>();
+    for (int c=0; c < assertions.getLength(); c++) {
+      toEncrypt.add((Element)assertions.item(c));
+    }
+    for (Element assertion : toEncrypt) {
+      Element encryptedAssertion = document.createElementNS(SAML2, "saml:EncryptedAssertion");
+      assertion.getParentNode().replaceChild(encryptedAssertion, assertion);
+      encryptedAssertion.appendChild(assertion);
+
+      KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+      keyGenerator.init(128);
+      SecretKey secretKey = keyGenerator.generateKey();
+
+      XMLCipher keyCipher = XMLCipher.getInstance(XMLCipher.RSA_OAEP);
+      keyCipher.init(XMLCipher.WRAP_MODE, guardKeys.getPublic());
+      EncryptedKey encryptedKey = keyCipher.encryptKey(document, secretKey);
+
+      XMLCipher dataCipher = XMLCipher.getInstance(XMLCipher.AES_128);
+      dataCipher.init(XMLCipher.ENCRYPT_MODE, secretKey);
+      EncryptedData encryptedData = dataCipher.getEncryptedData();
+      KeyInfo keyInfo = new KeyInfo(document);
+      keyInfo.add(encryptedKey);
+      encryptedData.setKeyInfo(keyInfo);
+      dataCipher.doFinal(document, assertion, false);
+    }
+    encryptedResponse = XmlObject.Factory.parse(document).xmlText();
+  }
+
+  @Test
+  public void decryptsAllAssertions() throws Exception {
+    XmlObject decrypted = new AssertionDecryptor().decrypt(newDom(), guardKeys.getPrivate());
+
+    Document document = (Document)decrypted.getDomNode();
+    assertEquals(0, document.getElementsByTagNameNS(EncryptionConstants.EncryptionSpecNS, "EncryptedData").getLength());
+    assertEquals(ASSERTIONS, document.getElementsByTagNameNS(SAML2, "Assertion").getLength());
+    assertEquals(ASSERTIONS * 500, document.getElementsByTagNameNS(SAML2, "AttributeValue").getLength());
+    assertEquals("a0", ((Element)document.getElementsByTagNameNS(SAML2, "EncryptedAssertion").item(0).getFirstChild()).getAttribute("ID"));
+
+    // The attributes can be streamed straight out of the decrypted Response
+    final List<String> values = new ArrayList<String>();
+    new AttributeExtractor("nameid").extract(decrypted.newXMLStreamReader(), true, new Bag() {
+      public void addAttribute(String name, String value) {
+        values.add(value);
+      }
+    });
+    assertEquals(ASSERTIONS * 500, values.size());
+  }
+
+  private Document newDom() throws Exception {
+    return (Document)XmlObject.Factory.parse(encryptedResponse).newDomNode();
+  }
+}
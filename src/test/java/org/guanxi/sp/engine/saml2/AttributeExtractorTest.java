@@ -0,0 +1,127 @@
+/* CVS Header
+   $
+   $
+*/
+
+package org.guanxi.sp.engine.saml2;
+
+import org.apache.xmlbeans.XmlObject;
+import org.guanxi.common.Bag;
+import org.guanxi.sp.engine.EngineTest;
+import org.guanxi.sp.engine.service.saml2.AttributeExtractor;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the streaming attribute extractor adds the same attributes, in the same order,
+ * as the XMLBeans based extraction it replaced.
+ */
+public class AttributeExtractorTest extends EngineTest {
+  private static final String RESPONSE_START = "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" " +
+                                               "xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"r1\">" +
+                                               "<saml:Issuer>https://idp.example.ac.uk/shibboleth</saml:Issuer>";
+  private static final String RESPONSE_END = "</samlp:Response>";
+  private static final String URI = "urn:oasis:names:tc:SAML:2.0:attrname-format:uri";
+
+  private static final String ASSERTION =
+    "<saml:Assertion ID=\"a1\">" +
+      "<saml:Issuer>https://idp.example.ac.uk/shibboleth</saml:Issuer>" +
+      "<saml:Subject><saml:NameID>_transient1234</saml:NameID></saml:Subject>" +
+      "<saml:AttributeStatement>" +
+        "<saml:Attribute Name=\"uid\" NameFormat=\"urn:oasis:names:tc:SAML:2.0:attrname-format:basic\">" +
+          "<saml:AttributeValue>jbloggs</saml:AttributeValue>" +
+        "</saml:Attribute>" +
+        "<saml:Attribute Name=\"urn:oid:2.5.4.3\" NameFormat=\"" + URI + "\" FriendlyName=\"cn\">" +
+          "<saml:AttributeValue>Joe &amp; <![CDATA[Bloggs]]></saml:AttributeValue>" +
+        "</saml:Attribute>" +
+        "<saml:Attribute Name=\"urn:oid:1.3.6.1.4.1.5923.1.1.1.9\" NameFormat=\"" + URI + "\" FriendlyName=\"\">" +
+          "<saml:AttributeValue Scope=\"example.ac.uk\">member</saml:AttributeValue>" +
+        "</saml:Attribute>" +
+        "<saml:Attribute Name=\"urn:oid:1.3.6.1.4.1.5923.1.1.1.10\" NameFormat=\"" + URI + "\" FriendlyName=\"eduPersonTargetedID\">" +
+          "<saml:AttributeValue>" +
+            "<saml:NameID NameQualifier=\"https://idp.example.ac.uk/shibboleth\" SPNameQualifier=\"https://sp.example.ac.uk\">abc123</saml:NameID>" +
+          "</saml:AttributeValue>" +
+        "</saml:Attribute>" +
+        "<saml:Attribute Name=\"urn:oid:1.3.6.1.4.1.5923.1.5.1.1\" NameFormat=\"" + URI + "\" FriendlyName=\"isMemberOf\">" +
+          "<saml:AttributeValue>group1</saml:AttributeValue>" +
+          "<saml:AttributeValue><x:Group xmlns:x=\"urn:x\">ignored</x:Group></saml:AttributeValue>" +
+          "<saml:AttributeValue></saml:AttributeValue>" +
+          "<saml:AttributeValue>group2</saml:AttributeValue>" +
+        "</saml:Attribute>" +
+        "<saml:Attribute Name=\"other\" NameFormat=\"urn:oasis:names:tc:SAML:2.0:attrname-format:unspecified\">" +
+          "<saml:AttributeValue>ignored</saml:AttributeValue>" +
+        "</saml:Attribute>" +
+      "</saml:AttributeStatement>" +
+      "<saml:AttributeStatement>" +
+        "<saml:Attribute Name=\"ignored\" NameFormat=\"urn:oasis:names:tc:SAML:2.0:attrname-format:basic\">" +
+          "<saml:AttributeValue>ignored</saml:AttributeValue>" +
+        "</saml:Attribute>" +
+      "</saml:AttributeStatement>" +
+    "</saml:Assertion>";
+
+  private static final List<String> EXPECTED = Arrays.asList(
+    "nameid=_transient1234",
+    "uid=jbloggs",
+    "cn=Joe & Bloggs", "urn:oid:2.5.4.3=Joe & Bloggs", "2.5.4.3=Joe & Bloggs",
+    "urn:oid:1.3.6.1.4.1.5923.1.1.1.9=member@example.ac.uk", "1.3.6.1.4.1.5923.1.1.1.9=member@example.ac.uk",
+    "eduPersonTargetedID=abc123", "urn:oid:1.3.6.1.4.1.5923.1.1.1.10=abc123", "1.3.6.1.4.1.5923.1.1.1.10=abc123",
+    "namequalifier=https://idp.example.ac.uk/shibboleth", "spnamequalifier=https://sp.example.ac.uk",
+    "isMemberOf=group1", "urn:oid:1.3.6.1.4.1.5923.1.5.1.1=group1", "1.3.6.1.4.1.5923.1.5.1.1=group1",
+    "isMemberOf=group2", "urn:oid:1.3.6.1.4.1.5923.1.5.1.1=group2", "1.3.6.1.4.1.5923.1.5.1.1=group2");
+
+  @Test
+  public void plainAssertion() throws Exception {
+    assertEquals(EXPECTED, extract(RESPONSE_START + ASSERTION + RESPONSE_END, false));
+  }
+
+  @Test
+  public void decryptedAssertion() throws Exception {
+    // Plain Assertions are ignored when the Response was encrypted
+    String response = RESPONSE_START +
+                      ASSERTION.replaceAll("a1", "a0").replaceAll("jbloggs", "ignored") +
+                      "<saml:EncryptedAssertion>" + ASSERTION + "</saml:EncryptedAssertion>" +
+                      RESPONSE_END;
+    assertEquals(EXPECTED, extract(response, true));
+  }
+
+  @Test
+  public void decryptedAssertionMustBeSAML() throws Exception {
+    // Only a SAML Assertion inside the EncryptedAssertion is read
+    String foreign = ASSERTION.replace("<saml:Assertion ID=\"a1\">", "<x:Assertion xmlns:x=\"urn:x\" ID=\"x1\">")
+                              .replace("</saml:Assertion>", "</x:Assertion>")
+                              .replaceAll("jbloggs", "ignored");
+    String response = RESPONSE_START +
+                      "<saml:EncryptedAssertion>" + foreign + ASSERTION + "</saml:EncryptedAssertion>" +
+                      RESPONSE_END;
+    assertEquals(EXPECTED, extract(response, true));
+  }
+
+  @Test
+  public void stopsAtAssertionWithoutAttributes() throws Exception {
+    String noAttributes = "<saml:Assertion ID=\"a0\">" +
+                          "<saml:Subject><saml:NameID>_ignored</saml:NameID></saml:Subject>" +
+                          "</saml:Assertion>";
+    assertEquals(EXPECTED, extract(RESPONSE_START + ASSERTION + noAttributes + ASSERTION + RESPONSE_END, false));
+  }
+
+  private List<String> extract(String response, boolean encrypted) throws Exception {
+    RecordingBag bag = new RecordingBag();
+    new AttributeExtractor("nameid").extract(XmlObject.Factory.parse(response).newXMLStreamReader(), encrypted, bag);
+    return bag.added;
+  }
+
+  /**
+   * Records the attributes in the order they're added
+   */
+  private static class RecordingBag extends Bag {
+    List<String> added = new ArrayList<String>();
+
+    public void addAttribute(String name, String value) {
+      added.add(name + "=" + value);
+    }
+  }
+}
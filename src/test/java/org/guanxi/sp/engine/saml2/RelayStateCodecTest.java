@@ -0,0 +1,178 @@
+/* CVS Header
+   $
+   $
+*/
+
+package org.guanxi.sp.engine.saml2;
+
+import org.apache.xml.security.utils.Base64;
+import org.guanxi.sp.engine.EngineTest;
+import org.guanxi.sp.engine.service.saml2.RelayStateCodec;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+/**
+ * Checks RelayState tokens survive the trip to the IdP and back, and that anything
+ * tampered with, stale or malformed is turned away.
+ */
+public class RelayStateCodecTest extends EngineTest {
+  private static final String KEY = "test-relaystate-key";
+  private static final String GUARD = "protectedapp-guard";
+  private static final String SESSION = "GUARD_1234567890";
+  private static final int MAX_AGE = 1800;
+  /** The version byte, issue time and the length of the entityID */
+  private static final int ENTITY_ID_OFFSET = 1 + 4 + 2;
+  private static final int MAC_LENGTH = 16;
+
+  private RelayStateCodec codec = null;
+
+  @Before
+  public void newCodec() {
+    codec = newCodec(true, KEY);
+  }
+
+  @Test
+  public void roundTrip() {
+    long before = (System.currentTimeMillis() / 1000) * 1000;
+    RelayStateCodec.RelayState state = codec.decode(codec.encode(GUARD, SESSION));
+
+    assertNotNull(state);
+    assertEquals(GUARD, state.getGuardEntityID());
+    assertEquals(SESSION, state.getGuardSessionID());
+    assertTrue(state.getIssued() >= before);
+    assertTrue(state.getIssued() <= System.currentTimeMillis());
+  }
+
+  @Test
+  public void tokenIsURLSafe() {
+    // Enough tokens for the MACs to need the URL safe characters
+    for (int c = 0; c < 100; c++) {
+      String token = codec.encode(GUARD, SESSION + c);
+      assertTrue(token, token.matches("[A-Za-z0-9_-]+"));
+      assertEquals(SESSION + c, codec.decode(token).getGuardSessionID());
+    }
+  }
+
+  @Test
+  public void tamperedTokensAreRejected() throws Exception {
+    byte[] token = fromBase64URL(codec.encode(GUARD, SESSION));
+
+    // The last byte of the MAC, the first byte of the entityID and the last byte of the session ID
+    int[] positions = { token.length - 1, ENTITY_ID_OFFSET, token.length - MAC_LENGTH - 1 };
+    for (int position : positions) {
+      byte[] tampered = token.clone();
+      tampered[position] ^= 1;
+      assertNull("Tampered at " + position, codec.decode(toBase64URL(tampered)));
+    }
+  }
+
+  @Test
+  public void otherKeysAreRejected() {
+    assertNull(newCodec(true, "another-key").decode(codec.encode(GUARD, SESSION)));
+  }
+
+  @Test
+  public void issueTime() throws Exception {
+    long now = System.currentTimeMillis() / 1000;
+
+    assertNotNull(codec.decode(token(1, now - MAX_AGE + 10, GUARD, SESSION, KEY)));
+    assertNull(codec.decode(token(1, now - MAX_AGE - 10, GUARD, SESSION, KEY)));
+    assertNull(codec.decode(token(1, now + 60, GUARD, SESSION, KEY)));
+  }
+
+  @Test
+  public void unknownVersionIsRejected() throws Exception {
+    long now = System.currentTimeMillis() / 1000;
+
+    assertNotNull(codec.decode(token(1, now, GUARD, SESSION, KEY)));
+    assertNull(codec.decode(token(2, now, GUARD, SESSION, KEY)));
+  }
+
+  @Test
+  public void malformedTokensAreRejected() throws Exception {
+    assertNull(codec.decode(null));
+    assertNull(codec.decode(""));
+    assertNull(codec.decode("not a token!"));
+    // No room for anything but the MAC
+    assertNull(codec.decode(toBase64URL(new byte[MAC_LENGTH])));
+
+    // Correctly MACed but the session ID is missing
+    byte[] token = fromBase64URL(token(1, System.currentTimeMillis() / 1000, GUARD, SESSION, KEY));
+    byte[] payload = new byte[token.length - MAC_LENGTH - SESSION.length() - 2];
+    System.arraycopy(token, 0, payload, 0, payload.length);
+    assertNull(codec.decode(toBase64URL(macked(payload, KEY))));
+  }
+
+  @Test
+  public void overlongTokensAreRejected() throws Exception {
+    StringBuilder guard = new StringBuilder();
+    while (guard.length() < 1024) {
+      guard.append(GUARD);
+    }
+    String token = token(1, System.currentTimeMillis() / 1000, guard.toString(), SESSION, KEY);
+
+    assertTrue(token.length() > 1024);
+    assertNull(codec.decode(token));
+  }
+
+  @Test
+  public void disabledCodecDecodesNothing() {
+    RelayStateCodec disabled = newCodec(false, KEY);
+
+    assertFalse(disabled.isEnabled());
+    assertNull(disabled.decode(codec.encode(GUARD, SESSION)));
+  }
+
+  private static RelayStateCodec newCodec(boolean enabled, String key) {
+    RelayStateCodec codec = new RelayStateCodec();
+    codec.setEnabled(enabled);
+    codec.setKey(key);
+    codec.setMaxAge(MAX_AGE);
+    codec.init();
+    return codec;
+  }
+
+  /**
+   * Builds a token the way the codec does, but with whatever version and issue time we like
+   */
+  private static String token(int version, long issued, String guardEntityID, String guardSessionID, String key) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(version);
+    out.writeInt((int)issued);
+    out.writeUTF(guardEntityID);
+    out.writeUTF(guardSessionID);
+    out.flush();
+    return toBase64URL(macked(bytes.toByteArray(), key));
+  }
+
+  /**
+   * @return the payload followed by it's truncated HMAC-SHA256
+   */
+  private static byte[] macked(byte[] payload, String key) throws Exception {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(key.getBytes("UTF-8"), "HmacSHA256"));
+    byte[] token = new byte[payload.length + MAC_LENGTH];
+    System.arraycopy(payload, 0, token, 0, payload.length);
+    System.arraycopy(mac.doFinal(payload), 0, token, payload.length, MAC_LENGTH);
+    return token;
+  }
+
+  private static String toBase64URL(byte[] data) {
+    return Base64.encode(data).replaceAll("\\s", "").replace('+', '-').replace('/', '_').replaceAll("=", "");
+  }
+
+  private static byte[] fromBase64URL(String data) throws Exception {
+    StringBuilder b64 = new StringBuilder(data.replace('-', '+').replace('_', '/'));
+    while ((b64.length() % 4) != 0) {
+      b64.append('=');
+    }
+    return Base64.decode(b64.toString());
+  }
+}
@@ -0,0 +1,224 @@
+/* CVS Header
+   $
+   $
+*/
+
+package org.guanxi.sp.engine.saml2;
+
+import org.guanxi.common.job.SAML2MetadataParserConfig;
+import org.guanxi.sp.engine.Config;
+import org.guanxi.sp.engine.EngineTest;
+import org.guanxi.sp.engine.security.ReplayCache;
+import org.guanxi.sp.engine.service.saml2.ResponseValidator;
+import org.guanxi.sp.engine.service.saml2.ResponseValidator.Stage;
+import org.guanxi.sp.engine.trust.TrustDecisionCache;
+import org.guanxi.xal.saml_2_0.protocol.ResponseDocument;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.springframework.web.context.support.XmlWebApplicationContext;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Checks each of the ResponseValidator's stages turns away the Responses it should, lets
+ * through the ones it shouldn't and counts them.
+ */
+public class ResponseValidatorTest extends EngineTest {
+  private static final String IDP = "GUANXI-1235342852";
+  private static final String GUARD = "protectedapp-guard";
+  private static final String ACS = "https://sp.example.ac.uk/samlengine/s2/wbsso/acs";
+  private static final int MAX_RESPONSE_AGE = 300;
+  private static final int CLOCK_SKEW = 180;
+  /** Keeps the edge cases clear of the time it takes to run the test */
+  private static final long MARGIN = 10000;
+
+  private static XmlWebApplicationContext ctx = null;
+  private ReplayCache replayCache = null;
+  private ResponseValidator validator = null;
+
+  @BeforeClass
+  public static void loadMetadata() throws Exception {
+    String metadataURL = "file:///" + new File(ResponseValidatorTest.class.getResource("/metadata.xml").getPath()).getCanonicalPath();
+    ctx = loadMetadataContext(metadataURL);
+    TrustDecisionCache trustDecisionCache = new TrustDecisionCache();
+    trustDecisionCache.init();
+    servletContext.setAttribute(Config.CONTEXT_ATTR_ENGINE_TRUST_DECISION_CACHE, trustDecisionCache);
+    runMetadataParser(ctx);
+  }
+
+  @AfterClass
+  public static void cleanUp() {
+    if (ctx != null) {
+      new File(((SAML2MetadataParserConfig)ctx.getBean("spUKFederationMetadataParser")).getMetadataCacheFile()).delete();
+      ctx.close();
+    }
+  }
+
+  @Before
+  public void newValidator() {
+    replayCache = new ReplayCache();
+    replayCache.init();
+    servletContext.setAttribute(Config.CONTEXT_ATTR_ENGINE_REPLAY_CACHE, replayCache);
+
+    validator = new ResponseValidator();
+    validator.setServletContext(servletContext);
+    validator.setAssertionConsumerServiceURL(ACS);
+    validator.setMaxResponseAge(MAX_RESPONSE_AGE);
+    validator.setClockSkew(CLOCK_SKEW);
+    validator.init();
+  }
+
+  @Test
+  public void validResponsePasses() throws Exception {
+    assertNull(validate(response(IDP, ACS, now(), assertion(ACS, GUARD, now() - 1000, now() + 60000))));
+  }
+
+  @Test
+  public void issuer() throws Exception {
+    assertEquals(Stage.ISSUER, validate(response("https://unknown.example.ac.uk/idp", ACS, now(), "")));
+    assertEquals(Stage.ISSUER, validate(response(null, ACS, now(), "")));
+  }
+
+  @Test
+  public void destination() throws Exception {
+    String otherURL = "https://other.example.ac.uk/acs";
+
+    assertEquals(Stage.DESTINATION, validate(response(IDP, otherURL, now(), "")));
+    assertEquals(Stage.DESTINATION, validate(response(IDP, ACS, now(), assertion(otherURL, GUARD, 0, 0))));
+    assertNull(validate(response(IDP, null, now(), assertion(null, GUARD, 0, 0))));
+  }
+
+  @Test
+  public void audience() throws Exception {
+    assertEquals(Stage.DESTINATION, validate(response(IDP, ACS, now(), assertion(ACS, "other-guard", 0, 0))));
+    assertNull(validate(response(IDP, ACS, now(), assertion(ACS, null, 0, 0))));
+  }
+
+  @Test
+  public void issueInstant() throws Exception {
+    long skew = CLOCK_SKEW * 1000L;
+    long oldest = now() - (MAX_RESPONSE_AGE * 1000L) - skew;
+
+    assertNull(validate(response(IDP, ACS, now() + skew - MARGIN, "")));
+    assertEquals(Stage.TIME_WINDOW, validate(response(IDP, ACS, now() + skew + MARGIN, "")));
+    assertNull(validate(response(IDP, ACS, oldest + MARGIN, "")));
+    assertEquals(Stage.TIME_WINDOW, validate(response(IDP, ACS, oldest - MARGIN, "")));
+  }
+
+  @Test
+  public void conditions() throws Exception {
+    long skew = CLOCK_SKEW * 1000L;
+
+    assertNull(validate(response(IDP, ACS, now(), assertion(ACS, GUARD, now() + skew - MARGIN, 0))));
+    assertEquals(Stage.TIME_WINDOW, validate(response(IDP, ACS, now(), assertion(ACS, GUARD, now() + skew + MARGIN, 0))));
+    assertNull(validate(response(IDP, ACS, now(), assertion(ACS, GUARD, 0, now() - skew + MARGIN))));
+    assertEquals(Stage.TIME_WINDOW, validate(response(IDP, ACS, now(), assertion(ACS, GUARD, 0, now() - skew - MARGIN))));
+  }
+
+  @Test
+  public void replay() throws Exception {
+    String response = response(IDP, ACS, now(), assertion(ACS, GUARD, 0, 0));
+
+    // Looking for the Response mustn't record it
+    assertNull(validate(response));
+    assertNull(validate(response));
+
+    replayCache.checkAndRecord(IDP, "a1", 0);
+    assertEquals(Stage.REPLAY, validate(response));
+
+    newValidator();
+    replayCache.checkAndRecord(IDP, "r1", 0);
+    assertEquals(Stage.REPLAY, validate(response));
+
+    // The same ID from another IdP isn't a replay
+    newValidator();
+    replayCache.checkAndRecord("https://other.example.ac.uk/idp", "r1", 0);
+    assertNull(validate(response));
+  }
+
+  @Test
+  public void counters() throws Exception {
+    validate(response(IDP, ACS, now(), assertion(ACS, GUARD, 0, 0)));
+    validate(response(null, ACS, now(), ""));
+    validate(response(IDP, ACS, now() - 3600000, ""));
+
+    assertEquals(2, validator.getPassed(Stage.ISSUER));
+    assertEquals(1, validator.getRejected(Stage.ISSUER));
+    assertEquals(2, validator.getPassed(Stage.DESTINATION));
+    assertEquals(0, validator.getRejected(Stage.DESTINATION));
+    assertEquals(1, validator.getPassed(Stage.TIME_WINDOW));
+    assertEquals(1, validator.getRejected(Stage.TIME_WINDOW));
+    assertEquals(1, validator.getPassed(Stage.REPLAY));
+    assertEquals(0, validator.getRejected(Stage.REPLAY));
+
+    // The caller reports the later stages
+    validator.passed(Stage.SIGNATURE);
+    validator.rejected(Stage.DECRYPTION);
+    assertEquals(1, validator.getPassed(Stage.SIGNATURE));
+    assertEquals(1, validator.getRejected(Stage.DECRYPTION));
+    assertEquals(0, validator.getPassed(Stage.DECRYPTION));
+  }
+
+  private Stage validate(String response) throws Exception {
+    return validator.validate(ResponseDocument.Factory.parse(response), GUARD);
+  }
+
+  private static long now() {
+    return System.currentTimeMillis();
+  }
+
+  private static String time(long millis) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(new Date(millis));
+  }
+
+  /**
+   * @param issuer the Issuer or null to leave it out
+   * @param destination the Destination or null to leave it out
+   * @param issueInstant when the Response was issued
+   * @param assertions the Assertions in the Response
+   * @return a Response with an ID of r1
+   */
+  private static String response(String issuer, String destination, long issueInstant, String assertions) {
+    return "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" " +
+           "xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"r1\" Version=\"2.0\" " +
+           "IssueInstant=\"" + time(issueInstant) + "\"" +
+           ((destination == null) ? "" : " Destination=\"" + destination + "\"") + ">" +
+           ((issuer == null) ? "" : "<saml:Issuer>" + issuer + "</saml:Issuer>") +
+           "<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/></samlp:Status>" +
+           assertions +
+           "</samlp:Response>";
+  }
+
+  /**
+   * @param recipient the SubjectConfirmationData Recipient or null to leave it out
+   * @param audience the Audience or null to leave out the AudienceRestriction
+   * @param notBefore the Conditions' NotBefore or 0 to leave it out
+   * @param notOnOrAfter the Conditions' NotOnOrAfter or 0 to leave it out
+   * @return an Assertion with an ID of a1
+   */
+  private static String assertion(String recipient, String audience, long notBefore, long notOnOrAfter) {
+    return "<saml:Assertion ID=\"a1\" Version=\"2.0\" IssueInstant=\"" + time(now()) + "\">" +
+             "<saml:Issuer>" + IDP + "</saml:Issuer>" +
+             "<saml:Subject>" +
+               "<saml:NameID>_transient1234</saml:NameID>" +
+               "<saml:SubjectConfirmation Method=\"urn:oasis:names:tc:SAML:2.0:cm:bearer\">" +
+                 "<saml:SubjectConfirmationData" +
+                   ((recipient == null) ? "" : " Recipient=\"" + recipient + "\"") + "/>" +
+               "</saml:SubjectConfirmation>" +
+             "</saml:Subject>" +
+             "<saml:Conditions" +
+               ((notBefore == 0) ? "" : " NotBefore=\"" + time(notBefore) + "\"") +
+               ((notOnOrAfter == 0) ? "" : " NotOnOrAfter=\"" + time(notOnOrAfter) + "\"") + ">" +
+               ((audience == null) ? "" : "<saml:AudienceRestriction><saml:Audience>" + audience + "</saml:Audience></saml:AudienceRestriction>") +
+             "</saml:Conditions>" +
+           "</saml:Assertion>";
+  }
+}
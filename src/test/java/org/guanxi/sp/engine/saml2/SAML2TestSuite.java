@@ -0,0 +1,15 @@
+/* CVS Header
+   $
+   $
+*/
+
+package org.guanxi.sp.engine.saml2;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+@RunWith(Suite.class)
+@Suite.SuiteClasses( { AttributeExtractorTest.class, AssertionDecryptorTest.class, ResponseValidatorTest.class,
+                            RelayStateCodecTest.class } )
+public class SAML2TestSuite {
+}
@@ -0,0 +1,169 @@
+/* CVS Header
+   $
+   $
+*/
+
+package org.guanxi.sp.engine.security;
+
+import org.guanxi.sp.engine.EngineTest;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the replay cache remembers IDs for as long as it should, and no longer, by running
+ * it against a clock the test controls.
+ */
+public class ReplayCacheTest extends EngineTest {
+  private static final long MINUTE = 60 * 1000L;
+  /** A time on a bucket boundary so the expiry times below are exact */
+  private static final long START = 1000000 * MINUTE;
+  private static final String IDP = "https://idp.example.ac.uk/shibboleth";
+
+  private TestReplayCache cache = null;
+
+  @Before
+  public void initCache() {
+    cache = new TestReplayCache();
+    cache.setDefaultTimeToLive(300);
+    cache.setMaxTimeToLive(3600);
+    cache.setClockSkew(180);
+    cache.setTimeBucket(60);
+    cache.now = START;
+    cache.init();
+  }
+
+  @Test
+  public void replaysAreCaught() {
+    assertTrue(cache.checkAndRecord(IDP, "_a1", START + (5 * MINUTE)));
+    assertTrue(cache.checkAndRecord(IDP, "_a2", START + (5 * MINUTE)));
+    assertTrue(cache.checkAndRecord("https://other.example.ac.uk/shibboleth", "_a1", START + (5 * MINUTE)));
+    assertEquals(0, cache.getHits());
+
+    assertFalse(cache.checkAndRecord(IDP, "_a1", START + (5 * MINUTE)));
+    assertEquals(1, cache.getHits());
+    assertEquals(4, cache.getChecks());
+    assertTrue(cache.contains(IDP, "_a1"));
+    assertFalse(cache.contains(IDP, "_a3"));
+    assertEquals(3, cache.getSize());
+  }
+
+  @Test
+  public void entriesExpireAfterNotOnOrAfterPlusClockSkew() {
+    long notOnOrAfter = START + (2 * MINUTE);
+    long expires = notOnOrAfter + (3 * MINUTE);
+    assertTrue(cache.checkAndRecord(IDP, "_a1", notOnOrAfter));
+
+    // The IdP's clock might be ahead of ours so it's still a replay after NotOnOrAfter...
+    cache.now = notOnOrAfter + 1;
+    assertTrue(cache.contains(IDP, "_a1"));
+    cache.now = expires - 1;
+    assertTrue(cache.contains(IDP, "_a1"));
+
+    // ...and it's forgotten once the bucket it expires in has passed
+    cache.now = expires + MINUTE;
+    assertFalse(cache.contains(IDP, "_a1"));
+    assertEquals(0, cache.getSize());
+    assertTrue(cache.checkAndRecord(IDP, "_a1", cache.now + MINUTE));
+  }
+
+  @Test
+  public void messagesWithoutNotOnOrAfterUseTheDefault() {
+    assertTrue(cache.checkAndRecord(IDP, "_a1", 0));
+    cache.now = START + (8 * MINUTE) - 1;
+    assertTrue(cache.contains(IDP, "_a1"));
+    cache.now = START + (9 * MINUTE);
+    assertFalse(cache.contains(IDP, "_a1"));
+  }
+
+  @Test
+  public void timeToLiveIsCappedAtMaxTimeToLive() {
+    assertTrue(cache.checkAndRecord(IDP, "_a1", START + (10 * 24 * 60 * MINUTE)));
+    long expires = START + (60 * MINUTE) + (3 * MINUTE);
+
+    cache.now = expires - 1;
+    assertTrue(cache.contains(IDP, "_a1"));
+    cache.now = expires + MINUTE;
+    assertFalse(cache.contains(IDP, "_a1"));
+  }
+
+  @Test
+  public void idleCacheClearsEachBucketOnce() {
+    for (int c=0; c < 60; c++) {
+      assertTrue(cache.checkAndRecord(IDP, "_a" + c, START + (c * MINUTE)));
+    }
+    assertEquals(60, cache.getSize());
+    int ringLength = ((3600 + 180) / 60) + 2;
+
+    // Idle for several times the length of the ring
+    cache.clears = 0;
+    cache.now = START + (5 * ringLength * MINUTE);
+    assertEquals(0, cache.getSize());
+    assertEquals(ringLength, cache.clears);
+
+    // Nothing more to clear until time moves on, and new entries are kept
+    assertTrue(cache.checkAndRecord(IDP, "_a0", cache.now + MINUTE));
+    assertEquals(ringLength, cache.clears);
+    assertEquals(1, cache.getSize());
+    assertFalse(cache.checkAndRecord(IDP, "_a0", cache.now + MINUTE));
+  }
+
+  @Test
+  public void bucketHoldsAZeroHash() {
+    ReplayCache.Bucket bucket = new ReplayCache.Bucket();
+    assertFalse(bucket.contains(0));
+    bucket.add(0);
+    assertTrue(bucket.contains(0));
+    assertFalse(bucket.contains(1));
+    assertEquals(1, bucket.size);
+
+    bucket.clear();
+    assertFalse(bucket.contains(0));
+    assertEquals(0, bucket.size);
+  }
+
+  @Test
+  public void bucketGrowsAndKeepsCollidingHashes() {
+    ReplayCache.Bucket bucket = new ReplayCache.Bucket();
+    int initialCapacity = bucket.slots.length;
+
+    // Multiples of 4096 all start probing from the same slot until the table is bigger than 4096
+    for (long c=1; c <= 1000; c++) {
+      bucket.add(c * 4096);
+    }
+    assertEquals(1000, bucket.size);
+    assertTrue(bucket.slots.length > initialCapacity);
+    assertTrue(bucket.slots.length >= 2000);
+    for (long c=1; c <= 1000; c++) {
+      assertTrue(bucket.contains(c * 4096));
+    }
+    assertFalse(bucket.contains(1001 * 4096L));
+    assertFalse(bucket.contains(4095));
+
+    // A bucket that grew for a burst of logins shrinks back when it's emptied
+    bucket.clear();
+    assertEquals(initialCapacity, bucket.slots.length);
+    assertFalse(bucket.contains(4096));
+  }
+
+  /**
+   * A replay cache on a clock the test controls, which counts how many times its buckets are cleared
+   */
+  private static class TestReplayCache extends ReplayCache {
+    long now = 0;
+    int clears = 0;
+
+    long currentTime() {
+      return now;
+    }
+
+    Bucket newBucket() {
+      return new Bucket() {
+        void clear() {
+          clears++;
+          super.clear();
+        }
+      };
+    }
+  }
+}
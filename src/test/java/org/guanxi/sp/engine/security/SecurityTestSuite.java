@@ -0,0 +1,15 @@
+/* CVS Header
+   $
+   $
+*/
+
+package org.guanxi.sp.engine.security;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+import org.guanxi.sp.engine.security.shibboleth.IdPVerifierTest;
+
+@RunWith(Suite.class)
+@Suite.SuiteClasses( { ReplayCacheTest.class, IdPVerifierTest.class } )
+public class SecurityTestSuite {
+}
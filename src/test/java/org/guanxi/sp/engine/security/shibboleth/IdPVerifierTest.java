@@ -0,0 +1,102 @@
+/* CVS Header
+   $
+   $
+*/
+
+package org.guanxi.sp.engine.security.shibboleth;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.guanxi.common.job.SAML2MetadataParserConfig;
+import org.guanxi.sp.engine.Config;
+import org.guanxi.sp.engine.EngineTest;
+import org.guanxi.sp.engine.binding.InboundMessageDecoder;
+import org.guanxi.sp.engine.security.ReplayCache;
+import org.guanxi.sp.engine.trust.TrustDecisionCache;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.support.XmlWebApplicationContext;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.security.Security;
+
+/**
+ * Checks the SAML 1.1 IdPVerifier turns away an AuthenticationStatement it has already accepted
+ */
+public class IdPVerifierTest extends EngineTest {
+  private XmlWebApplicationContext ctx = null;
+
+  @After
+  public void cleanUp() {
+    if (ctx != null) {
+      new File(((SAML2MetadataParserConfig)ctx.getBean("spUKFederationMetadataParser")).getMetadataCacheFile()).delete();
+      ctx.close();
+    }
+  }
+
+  @Test
+  public void replayedResponseIsRejected() throws Exception {
+    Security.addProvider(new BouncyCastleProvider());
+
+    String metadataURL = "file:///" + new File(IdPVerifierTest.class.getResource("/metadata.xml").getPath()).getCanonicalPath();
+    ctx = loadMetadataContext(metadataURL);
+    TrustDecisionCache trustDecisionCache = new TrustDecisionCache();
+    trustDecisionCache.init();
+    servletContext.setAttribute(Config.CONTEXT_ATTR_ENGINE_TRUST_DECISION_CACHE, trustDecisionCache);
+    runMetadataParser(ctx);
+
+    ReplayCache replayCache = new ReplayCache();
+    replayCache.init();
+    servletContext.setAttribute(Config.CONTEXT_ATTR_ENGINE_REPLAY_CACHE, replayCache);
+    servletContext.setAttribute(Config.CONTEXT_ATTR_ENGINE_INBOUND_MESSAGE_DECODER, new InboundMessageDecoder());
+
+    StaticMessageSource messages = new StaticMessageSource();
+    messages.setUseCodeAsDefaultMessage(true);
+    IdPVerifier verifier = new IdPVerifier();
+    verifier.setServletContext(servletContext);
+    verifier.setMessages(messages);
+    verifier.setErrorPage("message.gxEngine");
+    verifier.init();
+
+    String samlResponse = readResource("/b64fromidp.txt");
+
+    MockHttpServletRequest request = newRequest(samlResponse);
+    assertTrue(verifier.preHandle(request, new MockHttpServletResponse(), null));
+    assertEquals("GUANXI-1235342852", request.getAttribute(Config.REQUEST_ATTRIBUTE_IDP_PROVIDER_ID));
+    assertEquals(0, replayCache.getHits());
+
+    // Both the Response and it's Assertion have been seen before
+    MockHttpServletRequest replay = newRequest(samlResponse);
+    assertFalse(verifier.preHandle(replay, new MockHttpServletResponse(), null));
+    assertEquals("The IdP's response has already been used", replay.getAttribute("error"));
+    assertEquals("GUANXI-1235342852", replay.getAttribute("message"));
+    assertEquals(2, replayCache.getHits());
+  }
+
+  private MockHttpServletRequest newRequest(String samlResponse) {
+    MockHttpServletRequest request = new MockHttpServletRequest(servletContext, "POST", "/shibb/acs");
+    request.addParameter("SAMLResponse", samlResponse);
+    return request;
+  }
+
+  private String readResource(String name) throws Exception {
+    File file = new File(new File(IdPVerifierTest.class.getResource(name).getPath()).getCanonicalPath());
+    BufferedInputStream stream = new BufferedInputStream(new FileInputStream(file));
+    try {
+      byte[] bytes = new byte[(int)file.length()];
+      int read = 0;
+      while (read < bytes.length) {
+        read += stream.read(bytes, read, bytes.length - read);
+      }
+      return new String(bytes, "UTF-8");
+    }
+    finally {
+      stream.close();
+    }
+  }
+}
@@ -0,0 +1,14 @@
+/* CVS Header
+   $
+   $
+*/
+
+package org.guanxi.sp.engine.session;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+@RunWith(Suite.class)
+@Suite.SuiteClasses( { SharedSessionStoreTest.class } )
+public class SessionTestSuite {
+}
@@ -0,0 +1,142 @@
+/* CVS Header
+   $
+   $
+*/
+
+package org.guanxi.sp.engine.session;
+
+import org.guanxi.sp.engine.EngineTest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs two file backed session stores on the same directory, as two Engine nodes
+ * would, and checks a login started on one can be completed on the other.
+ */
+public class SharedSessionStoreTest extends EngineTest {
+  private File sessionDir = null;
+  private FileEngineSessionStore node1 = null;
+  private FileEngineSessionStore node2 = null;
+
+  @Before
+  public void initStores() throws IOException {
+    sessionDir = File.createTempFile("engine-sessions", "");
+    sessionDir.delete();
+
+    node1 = createStore();
+    node2 = createStore();
+  }
+
+  @After
+  public void destroyStores() {
+    node1.destroy();
+    node2.destroy();
+    File[] files = sessionDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    sessionDir.delete();
+  }
+
+  @Test
+  public void loginCompletesOnAnotherNode() {
+    node1.put("ENGINE_1234", "protectedapp-guard");
+    assertEquals(1, node2.size());
+
+    EngineSession session = node2.claim("ENGINE_1234");
+    assertNotNull(session);
+    assertEquals("protectedapp-guard", session.getGuardEntityID());
+    assertEquals(EngineSession.State.PROCESSING, node1.get("ENGINE_1234").getState());
+
+    // A replayed response can't be claimed by either node
+    assertNull(node1.claim("ENGINE_1234"));
+    assertNull(node2.claim("ENGINE_1234"));
+
+    node2.complete("ENGINE_1234", true, "http://sp.example.org/podder?id=GUARD_1234");
+    session = node1.get("ENGINE_1234");
+    assertEquals(EngineSession.State.COMPLETED, session.getState());
+    assertEquals("http://sp.example.org/podder?id=GUARD_1234", session.getResult());
+
+    assertNotNull(node1.remove("ENGINE_1234"));
+    assertNull(node2.get("ENGINE_1234"));
+    assertEquals(0, node2.size());
+  }
+
+  @Test
+  public void releasedLoginCanBeClaimedAgain() {
+    node1.put("ENGINE_4321", "protectedapp-guard");
+    assertNotNull(node1.claim("ENGINE_4321"));
+
+    // A response that fails validation hands the login back for the real one
+    node1.release("ENGINE_4321");
+    assertEquals(EngineSession.State.PENDING, node2.get("ENGINE_4321").getState());
+    assertNotNull(node2.claim("ENGINE_4321"));
+  }
+
+  @Test
+  public void expiredLoginsAreRemoved() {
+    node1.setTimeToLive(0);
+    node1.put("ENGINE_5678", "protectedapp-guard");
+
+    assertNull(node2.claim("ENGINE_5678"));
+    node1.put("ENGINE_5678", "protectedapp-guard");
+    node2.expire();
+    assertEquals(0, node1.size());
+    assertEquals(1, node2.getExpirations());
+  }
+
+  @Test
+  public void completeWaitsForATakenSession() throws Exception {
+    node1.put("ENGINE_9876", "protectedapp-guard");
+    assertNotNull(node1.claim("ENGINE_9876"));
+
+    // Another node has the session file aside for a moment
+    final File sessionFile = sessionDir.listFiles()[0];
+    final File takenFile = new File(sessionDir, sessionFile.getName() + ".1234.claim");
+    assertTrue(sessionFile.renameTo(takenFile));
+    Thread other = new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(20);
+        }
+        catch(InterruptedException ie) {
+          // Put it back anyway
+        }
+        takenFile.renameTo(sessionFile);
+      }
+    };
+    other.start();
+
+    node2.complete("ENGINE_9876", true, "http://sp.example.org/podder?id=GUARD_9876");
+    other.join();
+    assertEquals(EngineSession.State.COMPLETED, node1.get("ENGINE_9876").getState());
+  }
+
+  @Test
+  public void fullStoreEvictsSessions() {
+    node1.setMaxSessions(2);
+    node1.put("ENGINE_1", "protectedapp-guard");
+    node2.put("ENGINE_2", "protectedapp-guard");
+    // node1 only learns about node2's session when it next counts the directory
+    node1.expire();
+    node1.put("ENGINE_3", "protectedapp-guard");
+
+    assertEquals(2, node2.size());
+    assertEquals(1, node1.getEvictions());
+    assertNotNull(node2.get("ENGINE_3"));
+  }
+
+  private FileEngineSessionStore createStore() {
+    FileEngineSessionStore store = new FileEngineSessionStore();
+    store.setDirectory(sessionDir.getPath());
+    store.init();
+    return store;
+  }
+}